@@ -64,6 +64,19 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    @Test
+    public void timeCallSessionEveryCallSampled() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        mBinderCallsStats.setSamplingInterval(1);
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+    }
+
     @Test
     public void timeCallSessionTrackingDisabled() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
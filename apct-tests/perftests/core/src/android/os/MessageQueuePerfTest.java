@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performance tests for {@link MessageQueue}, with and without concurrent enqueue.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageQueuePerfTest {
+    private static final int DELAYED_MESSAGES = 1000;
+    private static final long MAX_DELAY_MS = 60 * 60 * 1000;
+    private static final int PRODUCERS = 3;
+    private static final int MAX_PENDING = 1000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mThread;
+    private final List<Thread> mProducers = new ArrayList<>();
+    private volatile boolean mStopProducers;
+
+    @After
+    public void tearDown() throws Exception {
+        mStopProducers = true;
+        for (Thread producer : mProducers) {
+            producer.join();
+        }
+        mProducers.clear();
+        if (mThread != null) {
+            mThread.quit();
+            mThread.join();
+        }
+    }
+
+    @Test
+    public void timeSendDelayedMessage() {
+        sendDelayedMessages(createHandler(false));
+    }
+
+    @Test
+    public void timeSendDelayedMessageConcurrent() {
+        sendDelayedMessages(createHandler(true));
+    }
+
+    @Test
+    public void timePostContended() {
+        postContended(createHandler(false));
+    }
+
+    @Test
+    public void timePostContendedConcurrent() {
+        postContended(createHandler(true));
+    }
+
+    private Handler createHandler(boolean concurrent) {
+        mThread = new HandlerThread("MessageQueuePerfTest");
+        mThread.start();
+        if (concurrent) {
+            mThread.getLooper().getQueue().enableConcurrentEnqueue();
+        }
+        return new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Sends delayed messages to a queue that already holds {@link #DELAYED_MESSAGES} of them,
+     * which the classic queue inserts by walking its list.
+     */
+    private void sendDelayedMessages(Handler handler) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Random random = new Random(42);
+        for (int i = 0; i < DELAYED_MESSAGES; i++) {
+            handler.sendEmptyMessageDelayed(1, (long) (random.nextDouble() * MAX_DELAY_MS));
+        }
+        int sent = 0;
+        while (state.keepRunning()) {
+            handler.sendEmptyMessageDelayed(2, (long) (random.nextDouble() * MAX_DELAY_MS));
+            if (++sent == DELAYED_MESSAGES) {
+                state.pauseTiming();
+                handler.removeMessages(2);
+                sent = 0;
+                state.resumeTiming();
+            }
+        }
+    }
+
+    /**
+     * Posts to a queue that {@link #PRODUCERS} other threads post to at the same time.
+     */
+    private void postContended(Handler handler) {
+        final AtomicInteger pending = new AtomicInteger();
+        final Runnable runnable = pending::decrementAndGet;
+        for (int i = 0; i < PRODUCERS; i++) {
+            final Thread producer = new Thread(() -> {
+                while (!mStopProducers) {
+                    if (pending.get() < MAX_PENDING) {
+                        pending.incrementAndGet();
+                        handler.post(runnable);
+                    }
+                }
+            });
+            producer.start();
+            mProducers.add(producer);
+        }
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            pending.incrementAndGet();
+            handler.post(runnable);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.app.QueuedWork;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares writes of the XML and the binary ({@link Context#MODE_BINARY_PREFERENCES})
+ * SharedPreferences formats, for a file that already holds a number of keys.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SharedPreferencesBinaryPerfTest {
+    private static final String XML_NAME = "perf_xml";
+    private static final String BINARY_NAME = "perf_binary";
+    private static final int KEY_COUNT = 200;
+    // Number of apply() calls between two Activity.onPause()
+    private static final int APPLY_COUNT = 10;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteSharedPreferences(XML_NAME);
+        mContext.deleteSharedPreferences(BINARY_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteSharedPreferences(XML_NAME);
+        mContext.deleteSharedPreferences(BINARY_NAME);
+    }
+
+    private SharedPreferences createPrefs(String name, int mode) {
+        final SharedPreferences prefs = mContext.getSharedPreferences(name, mode);
+        final SharedPreferences.Editor editor = prefs.edit();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            editor.putString("string" + i, "value of string " + i);
+            editor.putInt("int" + i, i);
+        }
+        editor.commit();
+        return prefs;
+    }
+
+    private void commitOneKey(SharedPreferences prefs) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).commit();
+        }
+    }
+
+    private void applyAndWaitToFinish(SharedPreferences prefs) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            for (int j = 0; j < APPLY_COUNT; j++) {
+                prefs.edit().putInt("counter" + j, i++).apply();
+            }
+            // What Activity.onPause() waits for.
+            QueuedWork.waitToFinish();
+        }
+    }
+
+    @Test
+    public void timeCommitOneKeyXml() {
+        commitOneKey(createPrefs(XML_NAME, Context.MODE_PRIVATE));
+    }
+
+    @Test
+    public void timeCommitOneKeyBinary() {
+        commitOneKey(createPrefs(BINARY_NAME, Context.MODE_BINARY_PREFERENCES));
+    }
+
+    @Test
+    public void timeApplyAndWaitToFinishXml() {
+        applyAndWaitToFinish(createPrefs(XML_NAME, Context.MODE_PRIVATE));
+    }
+
+    @Test
+    public void timeApplyAndWaitToFinishBinary() {
+        applyAndWaitToFinish(createPrefs(BINARY_NAME, Context.MODE_BINARY_PREFERENCES));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.app.Activity;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.os.Debug;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+import android.view.DisplayListCanvas;
+import android.view.RenderNode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Performance test for drawing and measuring lines of spanned text, which go through
+ * {@link TextLine}. Besides the time, reports the number of objects allocated per iteration by
+ * the benchmarked thread as {@code <test>_allocations}; it should be 0 once warmed up.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class TextLineAllocationPerfTest {
+    private static final String TAG = "TextLineAllocationPerfTest";
+
+    private static final String WORDS = "Lorem ipsum dolor sit amet consectetur adipiscing elit "
+            + "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua";
+    private static final int LINES = 8;
+    private static final int WIDTH = 1200;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Layout mLayout;
+    private long mAllocations;
+
+    @Before
+    public void setUp() {
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            final int lineStart = text.length();
+            text.append(WORDS);
+            // Styles every few words, overlapping so that runs have several spans.
+            for (int start = lineStart; start < text.length(); start += 12) {
+                final int end = Math.min(start + 8, text.length());
+                text.setSpan(new ForegroundColorSpan(0xFF000000 | start), start, end,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                if ((start / 12) % 2 == 0) {
+                    text.setSpan(new StyleSpan(Typeface.BOLD), start, end,
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                } else {
+                    text.setSpan(new UnderlineSpan(), start + 2, end,
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+        }
+        final TextPaint paint = new TextPaint();
+        paint.setTextSize(20);
+        mLayout = StaticLayout.Builder.obtain(text, 0, text.length(), paint, WIDTH).build();
+        mAllocations = 0;
+        Debug.startAllocCounting();
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+    }
+
+    @Test
+    public void timeDrawSpanned() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final RenderNode node = RenderNode.create("benchmark", null);
+        int iterations = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final DisplayListCanvas canvas = node.start(WIDTH, 400);
+            Debug.resetThreadAllocCount();
+            state.resumeTiming();
+
+            mLayout.draw(canvas);
+
+            state.pauseTiming();
+            mAllocations += Debug.getThreadAllocCount();
+            iterations++;
+            node.end(canvas);
+            state.resumeTiming();
+        }
+        reportAllocations("drawSpanned", iterations);
+    }
+
+    @Test
+    public void timeMeasureSpanned() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int iterations = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            Debug.resetThreadAllocCount();
+            state.resumeTiming();
+
+            for (int i = 0; i < LINES; i++) {
+                mLayout.getLineMax(i);
+            }
+
+            state.pauseTiming();
+            mAllocations += Debug.getThreadAllocCount();
+            iterations++;
+            state.resumeTiming();
+        }
+        reportAllocations("measureSpanned", iterations);
+    }
+
+    private void reportAllocations(String name, int iterations) {
+        final long perIteration = iterations == 0 ? 0 : mAllocations / iterations;
+        Log.i(TAG, name + " allocations per iteration: " + perIteration);
+        final Bundle status = new Bundle();
+        status.putLong(name + "_allocations", perIteration);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
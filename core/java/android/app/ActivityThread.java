@@ -111,6 +111,7 @@ import android.provider.Settings;
 import android.renderscript.RenderScriptCacheDir;
 import android.security.NetworkSecurityPolicy;
 import android.security.net.config.NetworkSecurityConfigProvider;
+import android.text.StaticLayout;
 import android.util.AndroidRuntimeException;
 import android.util.ArrayMap;
 import android.util.DisplayMetrics;
@@ -5465,6 +5466,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
         // Ask text layout engine to free also as much as possible
         Canvas.freeTextLayoutCaches();
+        StaticLayout.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
 
         BinderInternal.forceGc("mem");
     }
@@ -5481,6 +5483,7 @@ public final class ActivityThread extends ClientTransactionHandler {
         }
 
         WindowManagerGlobal.getInstance().trimMemory(level);
+        StaticLayout.trimMemory(level);
         Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
     }
 
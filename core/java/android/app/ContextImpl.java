@@ -538,9 +538,10 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            final boolean binaryDeleted = SharedPreferencesBinaryFile.delete(prefs);
 
             // We failed if files are still lingering
-            return !(prefs.exists() || prefsBackup.exists());
+            return !(prefs.exists() || prefsBackup.exists()) && binaryDeleted;
         }
     }
 
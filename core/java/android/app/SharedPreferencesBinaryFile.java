@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Binary storage for a {@link SharedPreferencesImpl}: a snapshot of all preferences, plus an
+ * append-only log of the keys changed since that snapshot.
+ * <p>
+ * The snapshot is replaced with the same backup file scheme as the XML format: the old snapshot
+ * is renamed to a backup that is only deleted once the new one is synced. Each write appends a
+ * single log record holding all of its changes, with its own length and CRC, so a write torn by
+ * a crash is dropped as a whole, together with anything after it, when loading.
+ * </p>
+ * <p>
+ * Every snapshot has a generation, which is also stored in the header of the log started after
+ * it. A log of another generation, e.g. left behind by a crash between writing a snapshot and
+ * resetting the log, only holds changes the snapshot already contains and is ignored, since
+ * replaying it could revert newer values.
+ * </p>
+ * <p>
+ * The files are named after the XML file of the preferences, so that they are moved along with
+ * it by {@link android.content.Context#moveSharedPreferencesFrom}. This class is not thread
+ * safe; {@link SharedPreferencesImpl} serializes access to it.
+ * </p>
+ *
+ * @hide
+ */
+@VisibleForTesting
+public final class SharedPreferencesBinaryFile {
+    private static final String TAG = "SharedPreferencesBinaryFile";
+
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final int SNAPSHOT_MAGIC = 0x53504253; // SPBS
+    private static final int LOG_MAGIC = 0x5350424c; // SPBL
+    private static final int FORMAT_VERSION = 1;
+
+    // Magic, version and generation.
+    private static final int LOG_HEADER_SIZE = 16;
+    // Length and CRC of a log record.
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    // Write a new snapshot once the log holds this many writes, or grows larger than the
+    // snapshot.
+    private static final int MAX_LOG_RECORDS = 1000;
+    private static final long MIN_LOG_BYTES_FOR_SNAPSHOT = 16 * 1024;
+
+    private final File mSnapshotFile;
+    private final File mSnapshotBackupFile;
+    private final File mLogFile;
+
+    private boolean mNeedsSnapshot = true;
+    // Generation of the current snapshot, and of the log appended to.
+    private long mGeneration;
+    private int mLogRecordCount;
+    private long mLogLength;
+    private long mSnapshotLength;
+
+    public SharedPreferencesBinaryFile(File prefsFile) {
+        mSnapshotFile = getSnapshotFile(prefsFile);
+        mSnapshotBackupFile = SharedPreferencesImpl.makeBackupFile(mSnapshotFile);
+        mLogFile = getLogFile(prefsFile);
+    }
+
+    private static File getSnapshotFile(File prefsFile) {
+        return new File(prefsFile.getPath() + SNAPSHOT_SUFFIX);
+    }
+
+    private static File getLogFile(File prefsFile) {
+        return new File(prefsFile.getPath() + LOG_SUFFIX);
+    }
+
+    /**
+     * @return whether the preferences stored in {@code prefsFile} have a binary snapshot.
+     */
+    static boolean exists(File prefsFile) {
+        final File snapshot = getSnapshotFile(prefsFile);
+        return snapshot.exists() || SharedPreferencesImpl.makeBackupFile(snapshot).exists();
+    }
+
+    /**
+     * Deletes the binary files of the preferences stored in {@code prefsFile}.
+     *
+     * @return whether no binary file is left.
+     */
+    static boolean delete(File prefsFile) {
+        final File snapshot = getSnapshotFile(prefsFile);
+        final File backup = SharedPreferencesImpl.makeBackupFile(snapshot);
+        final File log = getLogFile(prefsFile);
+        snapshot.delete();
+        backup.delete();
+        log.delete();
+        return !(snapshot.exists() || backup.exists() || log.exists());
+    }
+
+    /**
+     * @return the file changed by every write, to detect writes by other processes.
+     */
+    File getLogFile() {
+        return mLogFile;
+    }
+
+    /**
+     * @return whether the next write has to be a full snapshot, as there is none yet, the last
+     *         write failed, or the log has grown too large.
+     */
+    boolean needsSnapshot() {
+        return mNeedsSnapshot || mLogRecordCount >= MAX_LOG_RECORDS
+                || (mLogLength >= MIN_LOG_BYTES_FOR_SNAPSHOT && mLogLength > mSnapshotLength);
+    }
+
+    /**
+     * Forces the next write to be a full snapshot, e.g. because changes taken for a write that
+     * failed are only left in memory.
+     */
+    void requireSnapshot() {
+        mNeedsSnapshot = true;
+    }
+
+    /**
+     * Maps the snapshot and replays the log over it. A torn log tail is truncated so that later
+     * records are appended after valid ones.
+     *
+     * @return the preferences, or null if there is no snapshot yet.
+     * @throws IOException if the snapshot can't be read; a damaged log tail is only logged.
+     */
+    public @Nullable Map<String, Object> read() throws IOException {
+        mNeedsSnapshot = true;
+        mGeneration = 0;
+        mLogRecordCount = 0;
+        mLogLength = 0;
+        mSnapshotLength = 0;
+
+        if (mSnapshotBackupFile.exists()) {
+            // The last snapshot may be incomplete, fall back to the previous one.
+            mSnapshotFile.delete();
+            mSnapshotBackupFile.renameTo(mSnapshotFile);
+        }
+        if (!mSnapshotFile.exists()) {
+            return null;
+        }
+
+        final Map<String, Object> map = new HashMap<>();
+        final ByteBuffer snapshot = map(mSnapshotFile);
+        try {
+            if (snapshot.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Bad snapshot magic in " + mSnapshotFile);
+            }
+            final int version = snapshot.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            mGeneration = snapshot.getLong();
+            final int count = snapshot.getInt();
+            for (int i = 0; i < count; i++) {
+                final String key = readString(snapshot);
+                map.put(key, readValue(snapshot));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated snapshot " + mSnapshotFile, e);
+        }
+        mSnapshotLength = snapshot.limit();
+
+        readLog(map);
+        mNeedsSnapshot = false;
+        return map;
+    }
+
+    private void readLog(Map<String, Object> map) {
+        if (!mLogFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try {
+            final ByteBuffer log = map(mLogFile);
+            if (log.remaining() < LOG_HEADER_SIZE || log.getInt() != LOG_MAGIC
+                    || log.getInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring log with bad header " + mLogFile);
+            } else if (log.getLong() != mGeneration) {
+                // Already contained in the snapshot, the next write starts a new log.
+                Log.w(TAG, "Ignoring log of another snapshot " + mLogFile);
+            } else {
+                validLength = LOG_HEADER_SIZE;
+                final CRC32 crc = new CRC32();
+                while (log.remaining() >= RECORD_HEADER_SIZE) {
+                    final int length = log.getInt();
+                    final long expectedCrc = log.getLong();
+                    if (length <= 0 || length > log.remaining()) {
+                        Log.w(TAG, "Dropping torn record at " + validLength + " of " + mLogFile);
+                        break;
+                    }
+                    final byte[] payload = new byte[length];
+                    log.get(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if (crc.getValue() != expectedCrc) {
+                        Log.w(TAG, "Dropping corrupt record at " + validLength + " of "
+                                + mLogFile);
+                        break;
+                    }
+                    applyRecord(ByteBuffer.wrap(payload), map);
+                    validLength += RECORD_HEADER_SIZE + length;
+                    mLogRecordCount++;
+                }
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to read " + mLogFile, e);
+        }
+        mLogLength = validLength;
+        truncateLog(validLength);
+    }
+
+    private static void applyRecord(ByteBuffer in, Map<String, Object> map) throws IOException {
+        // Decode the whole write before applying it, so that it is applied entirely or not at all.
+        final boolean clear = in.get() != 0;
+        final int count = in.getInt();
+        final Map<String, Object> changes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final byte op = in.get();
+            switch (op) {
+                case OP_PUT: {
+                    final String key = readString(in);
+                    changes.put(key, readValue(in));
+                    break;
+                }
+                case OP_REMOVE:
+                    changes.put(readString(in), null);
+                    break;
+                default:
+                    throw new IOException("Unknown log op " + op);
+            }
+        }
+        if (clear) {
+            map.clear();
+        }
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            if (e.getValue() != null) {
+                map.put(e.getKey(), e.getValue());
+            } else {
+                map.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Appends the changes of a write to the log as a single record and syncs it.
+     *
+     * @param clear whether all preferences were cleared before applying {@code changes}.
+     * @param changes the new values by key, with null values for removed keys.
+     */
+    public void append(boolean clear, Map<String, Object> changes, int mode) throws IOException {
+        if (!clear && changes.isEmpty()) {
+            return;
+        }
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeBoolean(clear);
+        payloadOut.writeInt(changes.size());
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            final Object value = e.getValue();
+            if (value != null) {
+                payloadOut.writeByte(OP_PUT);
+                writeString(payloadOut, e.getKey());
+                writeValue(payloadOut, value);
+            } else {
+                payloadOut.writeByte(OP_REMOVE);
+                writeString(payloadOut, e.getKey());
+            }
+        }
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeRecord(new DataOutputStream(record), payload, new CRC32());
+
+        final boolean newLog = mLogLength == 0;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mLogFile, !newLog);
+            if (newLog) {
+                writeLogHeader(out);
+            }
+            record.writeTo(out);
+            out.flush();
+            FileUtils.sync(out);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        if (newLog) {
+            ContextImpl.setFilePermissionsFromMode(mLogFile.getPath(), mode, 0);
+            mLogLength = LOG_HEADER_SIZE;
+        }
+        mLogLength += record.size();
+        mLogRecordCount++;
+    }
+
+    private void writeLogHeader(FileOutputStream out) throws IOException {
+        final DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(LOG_MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeLong(mGeneration);
+        header.flush();
+    }
+
+    /**
+     * Replaces the snapshot with {@code map} and resets the log.
+     */
+    public void writeSnapshot(Map<String, Object> map, int mode) throws IOException {
+        final long generation = mGeneration + 1;
+
+        // Keep the current snapshot as a backup until the new one is synced.
+        if (mSnapshotFile.exists()) {
+            if (!mSnapshotBackupFile.exists()) {
+                if (!mSnapshotFile.renameTo(mSnapshotBackupFile)) {
+                    throw new IOException("Couldn't rename file " + mSnapshotFile
+                            + " to backup file " + mSnapshotBackupFile);
+                }
+            } else {
+                mSnapshotFile.delete();
+            }
+        }
+
+        final FileOutputStream str = SharedPreferencesImpl.createFileOutputStream(mSnapshotFile);
+        if (str == null) {
+            throw new IOException("Couldn't create " + mSnapshotFile);
+        }
+        boolean success = false;
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(str));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(generation);
+            int count = 0;
+            for (Object value : map.values()) {
+                if (isSupported(value)) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (Map.Entry<String, Object> e : map.entrySet()) {
+                if (!isSupported(e.getValue())) {
+                    Log.w(TAG, "Dropping " + e.getKey() + " of unsupported type from "
+                            + mSnapshotFile);
+                    continue;
+                }
+                writeString(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+            out.flush();
+            FileUtils.sync(str);
+            mSnapshotLength = out.size();
+            success = true;
+        } finally {
+            IoUtils.closeQuietly(str);
+            if (!success && mSnapshotFile.exists() && !mSnapshotFile.delete()) {
+                Log.e(TAG, "Couldn't clean up partially-written file " + mSnapshotFile);
+            }
+        }
+        ContextImpl.setFilePermissionsFromMode(mSnapshotFile.getPath(), mode, 0);
+        mSnapshotBackupFile.delete();
+
+        // The snapshot contains everything in the log now, which is ignored from here on as it
+        // has the previous generation. Keep the log file itself, with just a header of the new
+        // generation, so that other processes keep seeing it change. Should that fail, the next
+        // append starts a new log.
+        mGeneration = generation;
+        mLogRecordCount = 0;
+        mLogLength = 0;
+        mNeedsSnapshot = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mLogFile);
+            writeLogHeader(out);
+            FileUtils.sync(out);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        ContextImpl.setFilePermissionsFromMode(mLogFile.getPath(), mode, 0);
+        mLogLength = LOG_HEADER_SIZE;
+    }
+
+    private void truncateLog(long length) {
+        if (length == 0) {
+            // No valid header, the next append starts a new log.
+            mLogFile.delete();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw")) {
+            if (raf.length() != length) {
+                raf.setLength(length);
+                raf.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to truncate " + mLogFile, e);
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel channel = in.getChannel();
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream payload,
+            CRC32 crc) throws IOException {
+        final byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeLong(crc.getValue());
+        out.write(bytes);
+        payload.reset();
+    }
+
+    private static boolean isSupported(Object value) {
+        return value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Boolean || value instanceof Set;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            final Set<?> set = (Set<?>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (Object s : set) {
+                writeString(out, (String) s);
+            }
+        } else {
+            throw new IOException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) throws IOException {
+        final byte type = in.get();
+        switch (type) {
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INT:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_FLOAT:
+                return in.getFloat();
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_STRING_SET: {
+                final int size = in.getInt();
+                final Set<String> set = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(in));
+                }
+                return set;
+            }
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    // Strings are stored as raw UTF-16 code units, so that values with broken surrogate pairs
+    // round-trip exactly.
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + length * 2);
+        return new String(chars);
+    }
+}
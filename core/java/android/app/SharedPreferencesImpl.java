@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -66,6 +67,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final File mFile;
     private final File mBackupFile;
     private final int mMode;
+    // Null unless stored in the binary format, see Context#MODE_BINARY_PREFERENCES.
+    @Nullable
+    private final SharedPreferencesBinaryFile mBinaryFile;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -86,6 +90,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private long mStatSize;
 
+    /**
+     * Changes committed to memory but not yet taken by a write to the binary file, with null
+     * values for removed keys. Only used with the binary format.
+     */
+    @GuardedBy("mLock")
+    private Map<String, Object> mPendingChanges = new HashMap<>();
+
+    /** Whether all keys were cleared before {@link #mPendingChanges} */
+    @GuardedBy("mLock")
+    private boolean mPendingClear;
+
+    /** Whether the XML file was loaded from a binary file, which is deleted once written */
+    @GuardedBy("mLock")
+    private boolean mLoadedFromBinaryFile;
+
     @GuardedBy("mLock")
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
@@ -107,6 +126,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
         mFile = file;
         mBackupFile = makeBackupFile(file);
         mMode = mode;
+        mBinaryFile = (mode & Context.MODE_BINARY_PREFERENCES) != 0
+                ? new SharedPreferencesBinaryFile(file) : null;
         mLoaded = false;
         mMap = null;
         mThrowable = null;
@@ -142,19 +163,29 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         Map<String, Object> map = null;
         StructStat stat = null;
+        boolean loadedFromBinaryFile = false;
         Throwable thrown = null;
         try {
-            stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
-                BufferedInputStream str = null;
+            if (mBinaryFile != null) {
+                map = loadFromBinaryFile();
                 try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16 * 1024);
-                    map = (Map<String, Object>) XmlUtils.readMapXml(str);
-                } catch (Exception e) {
-                    Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
-                } finally {
-                    IoUtils.closeQuietly(str);
+                    stat = Os.stat(mBinaryFile.getLogFile().getPath());
+                } catch (ErrnoException e) {
+                    // Nothing written in the binary format yet.
+                }
+            } else if (!mFile.exists() && SharedPreferencesBinaryFile.exists(mFile)) {
+                // No longer using the binary format, convert it on the next write.
+                try {
+                    map = new SharedPreferencesBinaryFile(mFile).read();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot read binary preferences for " + mFile.getAbsolutePath(),
+                            e);
+                }
+                loadedFromBinaryFile = true;
+            } else {
+                stat = Os.stat(mFile.getPath());
+                if (mFile.canRead()) {
+                    map = readMapXml(mFile);
                 }
             }
         } catch (ErrnoException e) {
@@ -167,6 +198,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         synchronized (mLock) {
             mLoaded = true;
             mThrowable = thrown;
+            mLoadedFromBinaryFile = loadedFromBinaryFile;
 
             // It's important that we always signal waiters, even if we'll make
             // them fail with an exception. The try-finally is pretty wide, but
@@ -175,8 +207,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 if (thrown == null) {
                     if (map != null) {
                         mMap = map;
-                        mStatTimestamp = stat.st_mtim;
-                        mStatSize = stat.st_size;
+                        if (stat != null) {
+                            mStatTimestamp = stat.st_mtim;
+                            mStatSize = stat.st_size;
+                        }
                     } else {
                         mMap = new HashMap<>();
                     }
@@ -191,6 +225,40 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    private static Map<String, Object> readMapXml(File file) {
+        BufferedInputStream str = null;
+        try {
+            str = new BufferedInputStream(
+                    new FileInputStream(file), 16 * 1024);
+            return (Map<String, Object>) XmlUtils.readMapXml(str);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot read " + file.getAbsolutePath(), e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(str);
+        }
+    }
+
+    /**
+     * Reads the binary file, or the XML file if nothing was written in the binary format yet.
+     * The next write then stores a full snapshot.
+     */
+    private Map<String, Object> loadFromBinaryFile() {
+        // Writes may still be in flight when reloading.
+        synchronized (mWritingToDiskLock) {
+            Map<String, Object> map = null;
+            try {
+                map = mBinaryFile.read();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read binary preferences for " + mFile.getAbsolutePath(), e);
+            }
+            if (map == null && mFile.canRead()) {
+                map = readMapXml(mFile);
+            }
+            return map != null ? map : new HashMap<>();
+        }
+    }
+
     static File makeBackupFile(File prefsFile) {
         return new File(prefsFile.getPath() + ".bak");
     }
@@ -223,7 +291,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(mBinaryFile != null
+                    ? mBinaryFile.getLogFile().getPath() : mFile.getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -500,7 +569,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
                 // writing to disk.
-                if (mDiskWritesInFlight > 0) {
+                // The binary format writes mPendingChanges instead, and copies
+                // mMap under mLock when it needs all of it.
+                if (mDiskWritesInFlight > 0 && mBinaryFile == null) {
                     // We can't modify our mMap as a currently
                     // in-flight write owns it.  Clone it before
                     // modifying it.
@@ -523,6 +594,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
                             mapToWriteToDisk.clear();
+                            if (mBinaryFile != null) {
+                                mPendingClear = true;
+                                mPendingChanges.clear();
+                            }
                         }
                         mClear = false;
                     }
@@ -547,6 +622,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                             }
                             mapToWriteToDisk.put(k, v);
                         }
+                        if (mBinaryFile != null) {
+                            mPendingChanges.put(k, v == this ? null : v);
+                        }
 
                         changesMade = true;
                         if (hasListeners) {
@@ -666,7 +744,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
     }
 
-    private static FileOutputStream createFileOutputStream(File file) {
+    static FileOutputStream createFileOutputStream(File file) {
         FileOutputStream str = null;
         try {
             str = new FileOutputStream(file);
@@ -691,6 +769,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     @GuardedBy("mWritingToDiskLock")
     private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        if (mBinaryFile != null) {
+            writeToBinaryFile(mcr);
+            return;
+        }
+
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -802,6 +885,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            synchronized (mLock) {
+                if (mLoadedFromBinaryFile) {
+                    SharedPreferencesBinaryFile.delete(mFile);
+                    mLoadedFromBinaryFile = false;
+                }
+            }
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -844,4 +934,75 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * Writes all changes not written yet to the binary file, either by appending them to its
+     * log or, when required, by storing a full snapshot.
+     *
+     * <p>Unlike the XML format, the changes of commits that are skipped because a later one is
+     * already queued are not lost: each write takes everything committed to memory so far, so
+     * queued {@link Editor#apply()} calls are coalesced into the first write that runs.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToBinaryFile(MemoryCommitResult mcr) {
+        if (mDiskStateGeneration >= mcr.memoryStateGeneration) {
+            // Already written along with an earlier queued write.
+            mcr.setDiskWriteResult(false, true);
+            return;
+        }
+
+        final long generation;
+        final boolean clear;
+        final Map<String, Object> changes;
+        Map<String, Object> snapshot = null;
+        synchronized (mLock) {
+            generation = mCurrentMemoryStateGeneration;
+            clear = mPendingClear;
+            changes = mPendingChanges;
+            mPendingClear = false;
+            mPendingChanges = new HashMap<>();
+            if (mBinaryFile.needsSnapshot()) {
+                snapshot = new HashMap<>(mMap);
+            }
+        }
+
+        final long startTime = System.currentTimeMillis();
+        try {
+            if (snapshot != null) {
+                mBinaryFile.writeSnapshot(snapshot, mMode);
+                // Converted from the XML format, if that is what was read.
+                mFile.delete();
+                mBackupFile.delete();
+            } else {
+                mBinaryFile.append(clear, changes, mMode);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "writeToBinaryFile: Got exception:", e);
+            // The changes taken above are only in memory now.
+            mBinaryFile.requireSnapshot();
+            mcr.setDiskWriteResult(false, false);
+            return;
+        }
+        final long writeDuration = System.currentTimeMillis() - startTime;
+
+        try {
+            final StructStat stat = Os.stat(mBinaryFile.getLogFile().getPath());
+            synchronized (mLock) {
+                mStatTimestamp = stat.st_mtim;
+                mStatSize = stat.st_size;
+            }
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+
+        mDiskStateGeneration = generation;
+        mcr.setDiskWriteResult(true, true);
+
+        mSyncTimes.add((int) writeDuration);
+        mNumSync++;
+
+        if (DEBUG || mNumSync % 1024 == 0 || writeDuration > MAX_FSYNC_DURATION_MILLIS) {
+            mSyncTimes.log(TAG, "Time required to write " + mFile + ": ");
+        }
+    }
 }
@@ -105,6 +105,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_BINARY_PREFERENCES,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -222,6 +223,17 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, the preferences are stored in
+     * a binary snapshot plus a log of changed keys, rather than rewriting the
+     * whole XML file on every commit.  Existing XML preferences are converted
+     * on the first write, and converted back once the flag is no longer set.
+     *
+     * @see #getSharedPreferences
+     * @hide
+     */
+    public static final int MODE_BINARY_PREFERENCES = 0x0020;
+
     /** @hide */
     @IntDef(flag = true, prefix = { "BIND_" }, value = {
             BIND_AUTO_CREATE,
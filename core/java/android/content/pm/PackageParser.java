@@ -102,8 +102,11 @@ import libcore.util.EmptyArray;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -232,6 +235,25 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /** Number of cache lookups that returned a cached package. */
+    public static final AtomicInteger sCacheHitCount = new AtomicInteger();
+
+    /** Number of cache lookups that found no cache entry. */
+    public static final AtomicInteger sCacheMissCount = new AtomicInteger();
+
+    /** Number of cache entries that were dropped because the package changed. */
+    public static final AtomicInteger sCacheStaleCount = new AtomicInteger();
+
+    /** Number of cache entries that could not be read. */
+    public static final AtomicInteger sCacheErrorCount = new AtomicInteger();
+
+    /**
+     * Every cache entry starts with a header identifying the package files it was parsed
+     * from. Bump the version whenever the header or the parceled package layout changes.
+     */
+    private static final int CACHE_ENTRY_MAGIC = 0x50504345; // PPCE
+    private static final int CACHE_ENTRY_VERSION = 1;
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -1003,8 +1025,9 @@ public class PackageParser {
      *
      * If {@code useCaches} is true, the package parser might return a cached
      * result from a previous parse of the same {@code packageFile} with the same
-     * {@code flags}. Note that this method does not check whether {@code packageFile}
-     * has changed since the last parse, it's up to callers to do so.
+     * {@code flags}. A cached result is only used while the inode, size and
+     * modification time of every APK of the package still match the ones it was
+     * parsed from.
      *
      * @see #parsePackageLite(File, int)
      */
@@ -1049,10 +1072,62 @@ public class PackageParser {
         StringBuilder sb = new StringBuilder(packageFile.getName());
         sb.append('-');
         sb.append(flags);
+        // Packages on different partitions can share a name.
+        sb.append('-');
+        sb.append(Integer.toHexString(packageFile.getAbsolutePath().hashCode()));
 
         return sb.toString();
     }
 
+    /**
+     * Returns the header of a cache entry for {@code packageFile} in its current state: the
+     * path, and the inode, size and modification time of every APK the package consists of.
+     * A cache entry is only valid while its header matches this one.
+     */
+    private static byte[] getCacheEntryHeader(File packageFile)
+            throws ErrnoException, IOException {
+        final File[] files;
+        if (packageFile.isDirectory()) {
+            files = packageFile.listFiles((dir, name) -> isApkPath(name));
+            if (files == null) {
+                throw new IOException("Unable to list " + packageFile);
+            }
+            Arrays.sort(files);
+        } else {
+            files = new File[] { packageFile };
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CACHE_ENTRY_MAGIC);
+        out.writeInt(CACHE_ENTRY_VERSION);
+        out.writeUTF(packageFile.getAbsolutePath());
+        out.writeInt(files.length);
+        for (File file : files) {
+            // NOTE: We don't use the File.lastModified API because it has the very
+            // non-ideal failure mode of returning 0 with no excepions thrown.
+            final StructStat stat = android.system.Os.stat(file.getAbsolutePath());
+            out.writeUTF(file.getName());
+            out.writeLong(stat.st_ino);
+            out.writeLong(stat.st_size);
+            out.writeLong(stat.st_mtime);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @VisibleForTesting
     protected Package fromCacheEntry(byte[] bytes) {
         return fromCacheEntryStatic(bytes);
@@ -1143,27 +1218,40 @@ public class PackageParser {
         final File cacheFile = new File(mCacheDir, cacheKey);
 
         try {
-            // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            final byte[] bytes;
+            try {
+                bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            } catch (FileNotFoundException e) {
+                sCacheMissCount.incrementAndGet();
+                return null;
+            }
+
+            // If the package changed since the entry was written, drop the entry.
+            final byte[] header = getCacheEntryHeader(packageFile);
+            if (!startsWith(bytes, header)) {
+                sCacheStaleCount.incrementAndGet();
+                cacheFile.delete();
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            Package p = fromCacheEntry(Arrays.copyOfRange(bytes, header.length, bytes.length));
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
                     for (String overlayApk : overlayApks) {
                         // If a static RRO is updated, return null.
                         if (!isCacheUpToDate(new File(overlayApk), cacheFile)) {
+                            sCacheStaleCount.incrementAndGet();
                             return null;
                         }
                     }
                 }
             }
+            sCacheHitCount.incrementAndGet();
             return p;
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
+            sCacheErrorCount.incrementAndGet();
 
             // If something went wrong while reading the cache entry, delete the cache file
             // so that we regenerate it the next time.
@@ -1196,7 +1284,9 @@ public class PackageParser {
                 return;
             }
 
+            final byte[] header = getCacheEntryHeader(packageFile);
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+                fos.write(header);
                 fos.write(cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
@@ -311,6 +311,50 @@ public class NetworkStats implements Parcelable {
         return clone;
     }
 
+    /**
+     * Replace all data stored in this object with a copy of the given
+     * {@link NetworkStats}, reusing the existing arrays when they are large
+     * enough. Useful for keeping a snapshot across polls without allocating.
+     */
+    public NetworkStats copyFrom(NetworkStats other) {
+        final int newSize = other.size;
+        if (capacity < newSize) {
+            final int newLength = Math.max(newSize, 10) * 3 / 2;
+            iface = new String[newLength];
+            uid = new int[newLength];
+            set = new int[newLength];
+            tag = new int[newLength];
+            metered = new int[newLength];
+            roaming = new int[newLength];
+            defaultNetwork = new int[newLength];
+            rxBytes = new long[newLength];
+            rxPackets = new long[newLength];
+            txBytes = new long[newLength];
+            txPackets = new long[newLength];
+            operations = new long[newLength];
+            capacity = newLength;
+        } else if (size > newSize) {
+            // don't hold on to interface names no longer in use
+            Arrays.fill(iface, newSize, size, null);
+        }
+
+        elapsedRealtime = other.elapsedRealtime;
+        System.arraycopy(other.iface, 0, iface, 0, newSize);
+        System.arraycopy(other.uid, 0, uid, 0, newSize);
+        System.arraycopy(other.set, 0, set, 0, newSize);
+        System.arraycopy(other.tag, 0, tag, 0, newSize);
+        System.arraycopy(other.metered, 0, metered, 0, newSize);
+        System.arraycopy(other.roaming, 0, roaming, 0, newSize);
+        System.arraycopy(other.defaultNetwork, 0, defaultNetwork, 0, newSize);
+        System.arraycopy(other.rxBytes, 0, rxBytes, 0, newSize);
+        System.arraycopy(other.rxPackets, 0, rxPackets, 0, newSize);
+        System.arraycopy(other.txBytes, 0, txBytes, 0, newSize);
+        System.arraycopy(other.txPackets, 0, txPackets, 0, newSize);
+        System.arraycopy(other.operations, 0, operations, 0, newSize);
+        size = newSize;
+        return this;
+    }
+
     /**
      * Clear all data stored in this object.
      */
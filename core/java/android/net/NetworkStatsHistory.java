@@ -151,6 +151,31 @@ public class NetworkStatsHistory implements Parcelable {
         out.writeLong(totalBytes);
     }
 
+    /**
+     * Create history that takes ownership of the given columns, which must all
+     * hold exactly one value per bucket.
+     */
+    public NetworkStatsHistory(long bucketDuration, long[] bucketStart, long[] activeTime,
+            long[] rxBytes, long[] rxPackets, long[] txBytes, long[] txPackets,
+            long[] operations) {
+        final int count = bucketStart.length;
+        if (activeTime.length != count || rxBytes.length != count
+                || rxPackets.length != count || txBytes.length != count
+                || txPackets.length != count || operations.length != count) {
+            throw new IllegalArgumentException("Mismatched history lengths");
+        }
+        this.bucketDuration = bucketDuration;
+        this.bucketStart = bucketStart;
+        this.activeTime = activeTime;
+        this.rxBytes = rxBytes;
+        this.rxPackets = rxPackets;
+        this.txBytes = txBytes;
+        this.txPackets = txPackets;
+        this.operations = operations;
+        bucketCount = count;
+        totalBytes = total(rxBytes) + total(txBytes);
+    }
+
     public NetworkStatsHistory(DataInputStream in) throws IOException {
         final int version = in.readInt();
         switch (version) {
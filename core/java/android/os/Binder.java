@@ -748,6 +748,9 @@ public class Binder implements IBinder {
             if (tracingEnabled) {
                 Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
             }
+            // Also reached when the stub throws an Error, which must not leave the session
+            // behind on this thread.
+            binderCallsStats.callEnded(callSession);
         }
         checkParcel(this, code, reply, "Unreasonably large binder reply buffer");
         reply.recycle();
@@ -759,7 +762,6 @@ public class Binder implements IBinder {
         // to the main transaction loop to wait for another incoming transaction.  Either
         // way, strict mode begone!
         StrictMode.clearGatheredViolations();
-        binderCallsStats.callEnded(callSession);
 
         return res;
     }
@@ -24,6 +24,8 @@ import android.util.Printer;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.os.LooperStats;
+
 /**
   * Class used to run a message loop for a thread.  Threads by default do
   * not have a message loop associated with them; to create one, call
@@ -88,6 +90,11 @@ public final class Looper {
      */
     private long mSlowDeliveryThresholdMs;
 
+    /**
+     * If set, the looper records per-message dispatch statistics into it.
+     */
+    private LooperStats mStats;
+
     /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -170,6 +177,7 @@ public final class Looper {
                         msg.callback + ": " + msg.what);
             }
 
+            final LooperStats stats = me.mStats;
             final long traceTag = me.mTraceTag;
             long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
             long slowDeliveryThresholdMs = me.mSlowDeliveryThresholdMs;
@@ -188,6 +196,8 @@ public final class Looper {
             }
 
             final long dispatchStart = needStartTime ? SystemClock.uptimeMillis() : 0;
+            // Same clock as uptimeMillis(), with a finer resolution.
+            final long statsStartNanos = stats != null ? System.nanoTime() : 0;
             final long dispatchEnd;
             try {
                 msg.target.dispatchMessage(msg);
@@ -197,6 +207,12 @@ public final class Looper {
                     Trace.traceEnd(traceTag);
                 }
             }
+            if (stats != null) {
+                final long dispatchMicros = (System.nanoTime() - statsStartNanos) / 1000;
+                final long delayMicros = msg.when > 0
+                        ? Math.max(0, statsStartNanos / 1000 - msg.when * 1000) : -1;
+                stats.messageDispatched(msg, delayMicros, dispatchMicros);
+            }
             if (logSlowDelivery) {
                 if (slowDeliveryDetected) {
                     if ((dispatchStart - msg.when) <= 10) {
@@ -303,6 +319,27 @@ public final class Looper {
         mSlowDeliveryThresholdMs = slowDeliveryThresholdMs;
     }
 
+    /**
+     * Enables or disables recording of per-message dispatch statistics, see
+     * {@link #getStats()}. Disabling discards the statistics recorded so far.
+     * {@hide}
+     */
+    public void setStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mStats = null;
+        } else if (mStats == null) {
+            mStats = new LooperStats();
+        }
+    }
+
+    /**
+     * Returns the dispatch statistics of this looper, or null if they are not enabled.
+     * {@hide}
+     */
+    public @Nullable LooperStats getStats() {
+        return mStats;
+    }
+
     /**
      * Quits the looper.
      * <p>
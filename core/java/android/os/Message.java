@@ -109,6 +109,9 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
     /*package*/ Message next;
 
+    // Order among the delayed messages due at the same time, see MessageQueue.
+    /*package*/ int delayedSeq;
+
 
     /** @hide */
     public static final Object sPoolSync = new Object();
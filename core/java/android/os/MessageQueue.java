@@ -28,6 +28,8 @@ import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -51,10 +53,25 @@ public final class MessageQueue {
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
-    private boolean mQuitting;
+    private volatile boolean mQuitting;
 
     // Indicates whether next() is blocked waiting in pollOnce() with a non-zero timeout.
-    private boolean mBlocked;
+    private volatile boolean mBlocked;
+
+    // With concurrent enqueue, messages are pushed onto mInbox without taking the lock, and
+    // moved to mMessages, or to mDelayed until they are due, by whoever holds the lock next.
+    // See enableConcurrentEnqueue().
+    private volatile boolean mConcurrent;
+    private final AtomicReference<Message> mInbox = new AtomicReference<>();
+    // Head of mInbox once quit() has drained it for the last time.
+    private static final Message CLOSED_INBOX = new Message();
+    private DelayedMessages mDelayed;
+    // Last message of mMessages, or null if unknown.  Only maintained with concurrent enqueue.
+    private Message mTail;
+    // While mBlocked, when next() will wake up by itself, and the due time of the barrier
+    // stalling the queue, so that enqueuers can tell whether their message needs a wake up.
+    private volatile long mBlockedUntil;
+    private volatile long mBlockedBarrierWhen;
 
     // The next barrier token.
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
@@ -100,10 +117,37 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
+            if (mConcurrent) {
+                drainLocked(now);
+            }
             return mMessages == null || now < mMessages.when;
         }
     }
 
+    /**
+     * Lets other threads enqueue messages without taking the queue lock, and keeps delayed
+     * messages in a heap until they are due, instead of inserting them in the middle of the
+     * queue.  Meant for loopers that receive many messages from other threads.  Ordering,
+     * barriers, asynchronous messages and idle handlers behave as before.  Cannot be undone.
+     *
+     * <p>This method is safe to call from any thread.
+     *
+     * @hide
+     */
+    public void enableConcurrentEnqueue() {
+        synchronized (this) {
+            if (mConcurrent) {
+                return;
+            }
+            mDelayed = new DelayedMessages();
+            mTail = null;
+            // next() may be blocked without having published when it wakes up.
+            mBlockedUntil = Long.MAX_VALUE;
+            mBlockedBarrierWhen = Long.MAX_VALUE;
+            mConcurrent = true;
+        }
+    }
+
     /**
      * Add a new {@link IdleHandler} to this message queue.  This may be
      * removed automatically for you by returning false from
@@ -319,6 +363,11 @@ public final class MessageQueue {
         int pendingIdleHandlerCount = -1; // -1 only during first iteration
         int nextPollTimeoutMillis = 0;
         for (;;) {
+            if (nextPollTimeoutMillis != 0 && mConcurrent && mInbox.get() != null) {
+                // Enqueued after we last looked but possibly before mBlocked was set, in which
+                // case nobody woke us up.
+                nextPollTimeoutMillis = 0;
+            }
             if (nextPollTimeoutMillis != 0) {
                 Binder.flushPendingCommands();
             }
@@ -328,6 +377,9 @@ public final class MessageQueue {
             synchronized (this) {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
+                if (mConcurrent) {
+                    drainLocked(now);
+                }
                 Message prevMsg = null;
                 Message msg = mMessages;
                 if (msg != null && msg.target == null) {
@@ -346,8 +398,14 @@ public final class MessageQueue {
                         mBlocked = false;
                         if (prevMsg != null) {
                             prevMsg.next = msg.next;
+                            if (msg.next == null) {
+                                mTail = prevMsg;
+                            }
                         } else {
                             mMessages = msg.next;
+                            if (mMessages == null) {
+                                mTail = null;
+                            }
                         }
                         msg.next = null;
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
@@ -358,6 +416,14 @@ public final class MessageQueue {
                     // No more messages.
                     nextPollTimeoutMillis = -1;
                 }
+                if (mConcurrent && !mDelayed.isEmpty()) {
+                    // Wake up when the next delayed message is due, it is not in mMessages yet.
+                    final int delayedTimeoutMillis =
+                            (int) Math.min(mDelayed.peek().when - now, Integer.MAX_VALUE);
+                    if (nextPollTimeoutMillis < 0 || delayedTimeoutMillis < nextPollTimeoutMillis) {
+                        nextPollTimeoutMillis = delayedTimeoutMillis;
+                    }
+                }
 
                 // Process the quit message now that all pending messages have been handled.
                 if (mQuitting) {
@@ -374,6 +440,12 @@ public final class MessageQueue {
                 }
                 if (pendingIdleHandlerCount <= 0) {
                     // No idle handlers to run.  Loop and wait some more.
+                    if (mConcurrent) {
+                        mBlockedUntil = nextPollTimeoutMillis < 0
+                                ? Long.MAX_VALUE : now + nextPollTimeoutMillis;
+                        mBlockedBarrierWhen = mMessages != null && mMessages.target == null
+                                ? mMessages.when : Long.MAX_VALUE;
+                    }
                     mBlocked = true;
                     continue;
                 }
@@ -423,6 +495,13 @@ public final class MessageQueue {
                 return;
             }
             mQuitting = true;
+            if (mConcurrent) {
+                final long now = SystemClock.uptimeMillis();
+                drainLocked(now);
+                // Enqueuers that got past the mQuitting check fail once the inbox is closed,
+                // and whatever they pushed before is removed below with the rest.
+                queueInboxLocked(mInbox.getAndSet(CLOSED_INBOX), now);
+            }
 
             if (safe) {
                 removeAllFutureMessagesLocked();
@@ -466,6 +545,10 @@ public final class MessageQueue {
         // Enqueue a new sync barrier token.
         // We don't need to wake the queue because the purpose of a barrier is to stall it.
         synchronized (this) {
+            if (mConcurrent) {
+                // Messages due before the barrier must be queued ahead of it.
+                drainLocked(SystemClock.uptimeMillis());
+            }
             final int token = mNextBarrierToken++;
             final Message msg = Message.obtain();
             msg.markInUse();
@@ -487,6 +570,7 @@ public final class MessageQueue {
                 msg.next = p;
                 mMessages = msg;
             }
+            mTail = null;
             return token;
         }
     }
@@ -523,6 +607,7 @@ public final class MessageQueue {
                 mMessages = p.next;
                 needWake = mMessages == null || mMessages.target != null;
             }
+            mTail = null;
             p.recycleUnchecked();
 
             // If the loop is quitting then it is already awake.
@@ -540,8 +625,16 @@ public final class MessageQueue {
         if (msg.isInUse()) {
             throw new IllegalStateException(msg + " This message is already in use.");
         }
+        if (mConcurrent) {
+            return enqueueMessageConcurrent(msg, when);
+        }
 
         synchronized (this) {
+            if (mConcurrent) {
+                // Turned on since the check above, the messages now have to go through the
+                // inbox so that mTail stays right.
+                return enqueueMessageConcurrent(msg, when);
+            }
             if (mQuitting) {
                 IllegalStateException e = new IllegalStateException(
                         msg.target + " sending message to a Handler on a dead thread");
@@ -587,12 +680,140 @@ public final class MessageQueue {
         return true;
     }
 
+    private boolean enqueueMessageConcurrent(Message msg, long when) {
+        if (mQuitting) {
+            IllegalStateException e = new IllegalStateException(
+                    msg.target + " sending message to a Handler on a dead thread");
+            Log.w(TAG, e.getMessage(), e);
+            msg.recycle();
+            return false;
+        }
+
+        // The message may be dispatched and recycled as soon as it is pushed.
+        final boolean async = msg.isAsynchronous();
+        msg.markInUse();
+        msg.when = when;
+        Message head;
+        do {
+            head = mInbox.get();
+            if (head == CLOSED_INBOX) {
+                // Lost the race with quit().
+                IllegalStateException e = new IllegalStateException(
+                        msg.target + " sending message to a Handler on a dead thread");
+                Log.w(TAG, e.getMessage(), e);
+                msg.next = null;
+                msg.recycleUnchecked();
+                return false;
+            }
+            msg.next = head;
+        } while (!mInbox.compareAndSet(head, msg));
+
+        // Wake up the event queue if it is blocked past the time the message is due, unless a
+        // barrier stalls the message anyway.  next() checks the inbox again after setting
+        // mBlocked, so either it sees the message or we see mBlocked.
+        if (mBlocked && when < mBlockedUntil && (when < mBlockedBarrierWhen || async)) {
+            synchronized (this) {
+                // We can assume mPtr != 0 when mQuitting is false.
+                if (!mQuitting) {
+                    nativeWake(mPtr);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the delayed messages that became due to mMessages, and the messages pushed onto
+     * the inbox to mMessages, or to mDelayed if they are not due yet.
+     */
+    private void drainLocked(long now) {
+        // Delayed messages were sent before anything still in the inbox, so they go first to
+        // keep messages due at the same time in order.
+        while (!mDelayed.isEmpty() && mDelayed.peek().when <= now) {
+            insertLocked(mDelayed.poll());
+        }
+        // Only quit() closes the inbox, and it holds the lock too.
+        final Message head = mInbox.get();
+        if (head != null && head != CLOSED_INBOX) {
+            queueInboxLocked(mInbox.getAndSet(null), now);
+        }
+    }
+
+    /**
+     * Queues the messages taken off the inbox, whose head is msg, in the order they were sent.
+     */
+    private void queueInboxLocked(Message msg, long now) {
+        // The inbox is a stack, reverse it.
+        Message prev = null;
+        while (msg != null) {
+            final Message next = msg.next;
+            msg.next = prev;
+            prev = msg;
+            msg = next;
+        }
+        msg = prev;
+        while (msg != null) {
+            final Message next = msg.next;
+            msg.next = null;
+            if (msg.when > now) {
+                mDelayed.add(msg);
+            } else {
+                insertLocked(msg);
+            }
+            msg = next;
+        }
+    }
+
+    /**
+     * Inserts a message in mMessages, after the messages due at the same time.
+     */
+    private void insertLocked(Message msg) {
+        final long when = msg.when;
+        Message p = mMessages;
+        if (p == null || when == 0 || when < p.when) {
+            msg.next = p;
+            mMessages = msg;
+            if (p == null) {
+                mTail = msg;
+            }
+            return;
+        }
+        if (mTail == null) {
+            mTail = p;
+            while (mTail.next != null) {
+                mTail = mTail.next;
+            }
+        }
+        if (when >= mTail.when) {
+            // Usually the case, the message is due now and the queue holds no later ones.
+            mTail.next = msg;
+            mTail = msg;
+            return;
+        }
+        Message prev;
+        for (;;) {
+            prev = p;
+            p = p.next;
+            if (p == null || when < p.when) {
+                break;
+            }
+        }
+        msg.next = p; // invariant: p == prev.next
+        prev.next = msg;
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
         }
 
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+                if (mDelayed.contains(h, what, null, object, DelayedMessages.MATCH_WHAT)) {
+                    return true;
+                }
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
@@ -610,6 +831,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+                if (mDelayed.contains(h, 0, r, object, DelayedMessages.MATCH_CALLBACK)) {
+                    return true;
+                }
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
@@ -627,6 +854,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+                if (mDelayed.contains(h, 0, null, null, DelayedMessages.MATCH_HANDLER)) {
+                    return true;
+                }
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h) {
@@ -644,6 +877,11 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+                mDelayed.remove(h, what, null, object, DelayedMessages.MATCH_WHAT);
+            }
+            mTail = null;
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -678,6 +916,11 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+                mDelayed.remove(h, 0, r, object, DelayedMessages.MATCH_CALLBACK);
+            }
+            mTail = null;
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -712,6 +955,11 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+                mDelayed.remove(h, 0, null, object, DelayedMessages.MATCH_HANDLER);
+            }
+            mTail = null;
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -747,10 +995,19 @@ public final class MessageQueue {
             p = n;
         }
         mMessages = null;
+        mTail = null;
+        if (mDelayed != null) {
+            mDelayed.clear();
+        }
     }
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
+        mTail = null;
+        if (mDelayed != null) {
+            // Drained by quit(), so none of them are due.
+            mDelayed.clear();
+        }
         Message p = mMessages;
         if (p != null) {
             if (p.when > now) {
@@ -780,6 +1037,9 @@ public final class MessageQueue {
     void dump(Printer pw, String prefix, Handler h) {
         synchronized (this) {
             long now = SystemClock.uptimeMillis();
+            if (mConcurrent) {
+                drainLocked(now);
+            }
             int n = 0;
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 if (h == null || h == msg.target) {
@@ -787,6 +1047,14 @@ public final class MessageQueue {
                 }
                 n++;
             }
+            if (mConcurrent) {
+                for (Message msg : mDelayed.toSortedArray()) {
+                    if (h == null || h == msg.target) {
+                        pw.println(prefix + "Message " + n + ": " + msg.toString(now));
+                    }
+                    n++;
+                }
+            }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
                     + ", quitting=" + mQuitting + ")");
         }
@@ -795,9 +1063,17 @@ public final class MessageQueue {
     void writeToProto(ProtoOutputStream proto, long fieldId) {
         final long messageQueueToken = proto.start(fieldId);
         synchronized (this) {
+            if (mConcurrent) {
+                drainLocked(SystemClock.uptimeMillis());
+            }
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 msg.writeToProto(proto, MessageQueueProto.MESSAGES);
             }
+            if (mConcurrent) {
+                for (Message msg : mDelayed.toSortedArray()) {
+                    msg.writeToProto(proto, MessageQueueProto.MESSAGES);
+                }
+            }
             proto.write(MessageQueueProto.IS_POLLING_LOCKED, isPollingLocked());
             proto.write(MessageQueueProto.IS_QUITTING, mQuitting);
         }
@@ -894,6 +1170,136 @@ public final class MessageQueue {
         @Events int onFileDescriptorEvents(@NonNull FileDescriptor fd, @Events int events);
     }
 
+    /**
+     * Binary min-heap of the delayed messages of a queue with concurrent enqueue, ordered by
+     * due time and then by the order in which they were added.
+     */
+    private static final class DelayedMessages {
+        static final int MATCH_WHAT = 0;
+        static final int MATCH_CALLBACK = 1;
+        static final int MATCH_HANDLER = 2;
+
+        private Message[] mHeap = new Message[16];
+        private int mSize;
+        private int mNextSeq;
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        Message peek() {
+            return mHeap[0];
+        }
+
+        void add(Message msg) {
+            if (mSize == mHeap.length) {
+                mHeap = Arrays.copyOf(mHeap, mSize * 2);
+            }
+            msg.delayedSeq = mNextSeq++;
+            siftUp(mSize++, msg);
+        }
+
+        Message poll() {
+            final Message first = mHeap[0];
+            final Message last = mHeap[--mSize];
+            mHeap[mSize] = null;
+            if (mSize > 0) {
+                siftDown(0, last);
+            }
+            return first;
+        }
+
+        boolean contains(Handler h, int what, Runnable r, Object object, int match) {
+            for (int i = 0; i < mSize; i++) {
+                if (matches(mHeap[i], h, what, r, object, match)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void remove(Handler h, int what, Runnable r, Object object, int match) {
+            int kept = 0;
+            for (int i = 0; i < mSize; i++) {
+                final Message msg = mHeap[i];
+                if (matches(msg, h, what, r, object, match)) {
+                    msg.recycleUnchecked();
+                } else {
+                    mHeap[kept++] = msg;
+                }
+            }
+            if (kept == mSize) {
+                return;
+            }
+            Arrays.fill(mHeap, kept, mSize, null);
+            mSize = kept;
+            for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+                siftDown(i, mHeap[i]);
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mHeap[i].recycleUnchecked();
+                mHeap[i] = null;
+            }
+            mSize = 0;
+        }
+
+        Message[] toSortedArray() {
+            final Message[] sorted = Arrays.copyOf(mHeap, mSize);
+            Arrays.sort(sorted, (a, b) -> isBefore(a, b) ? -1 : isBefore(b, a) ? 1 : 0);
+            return sorted;
+        }
+
+        private static boolean matches(Message msg, Handler h, int what, Runnable r,
+                Object object, int match) {
+            if (msg.target != h || (object != null && msg.obj != object)) {
+                return false;
+            }
+            switch (match) {
+                case MATCH_WHAT:
+                    return msg.what == what;
+                case MATCH_CALLBACK:
+                    return msg.callback == r;
+                default:
+                    return true;
+            }
+        }
+
+        private static boolean isBefore(Message a, Message b) {
+            return a.when < b.when || (a.when == b.when && a.delayedSeq - b.delayedSeq < 0);
+        }
+
+        private void siftUp(int index, Message msg) {
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                if (!isBefore(msg, mHeap[parent])) {
+                    break;
+                }
+                mHeap[index] = mHeap[parent];
+                index = parent;
+            }
+            mHeap[index] = msg;
+        }
+
+        private void siftDown(int index, Message msg) {
+            final int half = mSize >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                if (child + 1 < mSize && isBefore(mHeap[child + 1], mHeap[child])) {
+                    child++;
+                }
+                if (!isBefore(mHeap[child], msg)) {
+                    break;
+                }
+                mHeap[index] = mHeap[child];
+                index = child;
+            }
+            mHeap[index] = msg;
+        }
+    }
+
     private static final class FileDescriptorRecord {
         public final FileDescriptor mDescriptor;
         public int mEvents;
@@ -17,6 +17,9 @@
 package android.os;
 
 import android.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -46,6 +49,7 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -221,6 +225,9 @@ public final class Parcel {
     private static final Parcel[] sOwnedPool = new Parcel[POOL_SIZE];
     private static final Parcel[] sHolderPool = new Parcel[POOL_SIZE];
 
+    // Lazily initialized page size, used to align shared memory mappings.
+    private static int sPageSize;
+
     // Keep in sync with frameworks/native/include/private/binder/ParcelValTypes.h.
     private static final int VAL_NULL = -1;
     private static final int VAL_STRING = 0;
@@ -664,6 +671,36 @@ public final class Parcel {
         nativeWriteBlob(mNativePtr, b, offset, len);
     }
 
+    /**
+     * Write a region of shared memory into the parcel at the current
+     * {@link #dataPosition} by reference. Only the file descriptor and the
+     * bounds of the region are written, so the data is neither copied into
+     * the parcel nor into the binder transaction, and does not count towards
+     * the transaction size limit.
+     * <p>
+     * The receiver maps the region read-only with
+     * {@link #readSharedMemoryRegion}. It can still map the memory writable if
+     * the memory allows it, so callers that must not see their data modified
+     * should call {@link SharedMemory#setProtect} with
+     * {@link OsConstants#PROT_READ} first.
+     *
+     * @param memory The memory holding the data, or null.
+     * @param offset Offset of the first byte of the region.
+     * @param len Number of bytes in the region.
+     * {@hide}
+     */
+    public final void writeSharedMemoryRegion(@Nullable SharedMemory memory, int offset,
+            int len) {
+        if (memory == null) {
+            writeInt(-1);
+            return;
+        }
+        Arrays.checkOffsetAndCount(memory.getSize(), offset, len);
+        writeInt(offset);
+        writeInt(len);
+        memory.writeToParcel(this, 0);
+    }
+
     /**
      * Write an integer value into the parcel at the current dataPosition(),
      * growing dataCapacity() if needed.
@@ -2243,6 +2280,48 @@ public final class Parcel {
         return nativeReadBlob(mNativePtr);
     }
 
+    /**
+     * Read a region of shared memory written with {@link #writeSharedMemoryRegion}
+     * and map it read-only.
+     *
+     * @return A read-only buffer whose position and limit delimit the region,
+     *     or null if null was written. The mapping is released when the buffer
+     *     is garbage collected, or right away with {@link SharedMemory#unmap}.
+     * {@hide}
+     */
+    public final @Nullable ByteBuffer readSharedMemoryRegion() {
+        final int offset = readInt();
+        if (offset < 0) {
+            return null;
+        }
+        final int len = readInt();
+        final SharedMemory memory = SharedMemory.CREATOR.createFromParcel(this);
+        try {
+            Arrays.checkOffsetAndCount(memory.getSize(), offset, len);
+            if (len == 0) {
+                return ByteBuffer.allocate(0).asReadOnlyBuffer();
+            }
+            // Mappings have to start at a page boundary.
+            final int mapOffset = offset - offset % getPageSize();
+            final ByteBuffer buffer = memory.map(OsConstants.PROT_READ, mapOffset,
+                    offset - mapOffset + len);
+            buffer.position(offset - mapOffset);
+            return buffer;
+        } catch (ErrnoException e) {
+            throw new RuntimeException("Unable to map shared memory region", e);
+        } finally {
+            // The mapping stays valid after the descriptor is closed.
+            memory.close();
+        }
+    }
+
+    private static int getPageSize() {
+        if (sPageSize == 0) {
+            sPageSize = (int) Os.sysconf(OsConstants._SC_PAGESIZE);
+        }
+        return sPageSize;
+    }
+
     /**
      * Read and return a String[] object from the parcel.
      * {@hide}
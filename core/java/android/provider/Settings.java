@@ -75,9 +75,11 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.provider.SettingsValidators.Validator;
 import android.speech.tts.TextToSpeech;
+import android.system.ErrnoException;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.AndroidException;
@@ -1636,6 +1638,15 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow wants to
+     * read the whole table from shared memory. If this key is mapped to a
+     * <code>null</code> string extra in the request bundle, the response bundle may
+     * contain the same key mapped to a {@link android.os.SharedMemory} holding a
+     * {@link SettingsSnapshot} of the table. Only supported for the global table.
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -2008,12 +2019,26 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Whether to ask the provider for a shared memory copy of the whole table,
+        // cleared if the provider declines to hand one out.
+        @GuardedBy("this")
+        private boolean mUseSnapshot;
+
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
+            this(uri, getCommand, setCommand, providerHolder, false);
+        }
+
+        public NameValueCache(Uri uri, String getCommand, String setCommand,
+                ContentProviderHolder providerHolder, boolean useSnapshot) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
             mProviderHolder = providerHolder;
+            mUseSnapshot = useSnapshot;
         }
 
         public boolean putStringForUser(ContentResolver cr, String name, String value,
@@ -2042,6 +2067,17 @@ public final class Settings {
             int currentGeneration = -1;
             if (isSelf) {
                 synchronized (NameValueCache.this) {
+                    if (mSnapshot != null) {
+                        final ArrayMap<String, String> values = mSnapshot.getValues();
+                        if (values != null) {
+                            return values.get(name);
+                        }
+                        if (!mSnapshot.isValid()) {
+                            // The provider replaced it, ask for the new one below.
+                            mSnapshot.close();
+                            mSnapshot = null;
+                        }
+                    }
                     if (mGenerationTracker != null) {
                         if (mGenerationTracker.isGenerationChanged()) {
                             if (DEBUG) {
@@ -2077,7 +2113,15 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
+                        if (isSelf && mUseSnapshot && mSnapshot == null) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
                             if (args == null) {
@@ -2113,6 +2157,10 @@ public final class Settings {
                         // Don't update our cache for reads of other users' data
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
+                                if (needsSnapshot) {
+                                    attachSnapshotLocked(b.getParcelable(
+                                            CALL_METHOD_TRACK_SNAPSHOT_KEY));
+                                }
                                 if (needsGenerationTracker) {
                                     MemoryIntArray array = b.getParcelable(
                                             CALL_METHOD_TRACK_GENERATION_KEY);
@@ -2208,13 +2256,40 @@ public final class Settings {
             }
         }
 
+        @GuardedBy("this")
+        private void attachSnapshotLocked(SharedMemory memory) {
+            if (memory == null) {
+                // Not offered to this caller, stop asking.
+                mUseSnapshot = false;
+                return;
+            }
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+            try {
+                mSnapshot = SettingsSnapshot.fromSharedMemory(memory);
+                if (DEBUG) {
+                    Log.i(TAG, "Received snapshot for type:" + mUri.getPath());
+                }
+            } catch (ErrnoException | IllegalArgumentException e) {
+                Log.e(TAG, "Error mapping settings snapshot", e);
+                memory.close();
+                mUseSnapshot = false;
+            }
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
                     mGenerationTracker.destroy();
                 }
+                if (mSnapshot != null) {
+                    mSnapshot.close();
+                }
                 mValues.clear();
                 mGenerationTracker = null;
+                mSnapshot = null;
             }
         }
     }
@@ -12918,7 +12993,8 @@ public final class Settings {
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
-                    sProviderHolder);
+                    sProviderHolder,
+                    /*useSnapshot=*/ true);
 
         // Certain settings have been moved from global to the per-user secure namespace
         private static final HashSet<String> MOVED_TO_SECURE;
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * A copy of a whole settings table kept in shared memory. The settings
+ * provider owns a writable instance and rewrites it whenever the table
+ * changes, client processes map the same region read-only and look up
+ * values without making a binder call.
+ * <p>
+ * Writes are published with a sequence lock: the sequence number in the
+ * header is odd while the payload is being rewritten and even once it is
+ * consistent again. Readers copy the payload out and only accept it if the
+ * sequence number did not move and the payload checksum matches, otherwise
+ * they should fall back to asking the provider. When the table outgrows the
+ * region the owner invalidates it and hands out a new one.
+ * </p>
+ * <p>
+ * This class is <strong>not</strong> thread safe.
+ * </p>
+ *
+ * @hide
+ */
+public final class SettingsSnapshot implements Closeable {
+    private static final int MAGIC = 0x53534e50; // "SSNP"
+
+    /** Sequence number of a region that has been replaced by a new one. */
+    private static final int SEQ_INVALID = -1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQ = 4;
+    private static final int OFFSET_LENGTH = 8;
+    private static final int OFFSET_CHECKSUM = 12;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int MIN_CAPACITY = 16 * 1024;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private final boolean mIsOwner;
+
+    // The last payload a reader decoded and the sequence number it was read at.
+    private int mSeq = SEQ_INVALID;
+    private ArrayMap<String, String> mValues;
+
+    private SettingsSnapshot(SharedMemory memory, ByteBuffer buffer, boolean isOwner) {
+        mMemory = memory;
+        mBuffer = buffer;
+        mIsOwner = isOwner;
+    }
+
+    /**
+     * Creates a writable snapshot holding the given values, sized with room
+     * for the table to grow.
+     *
+     * @throws ErrnoException If the shared memory cannot be created.
+     */
+    public static @NonNull SettingsSnapshot create(@NonNull String name,
+            @NonNull ArrayMap<String, String> values) throws ErrnoException {
+        final byte[] payload = encode(values);
+        final int capacity = Math.max(MIN_CAPACITY, HEADER_SIZE + 2 * payload.length);
+        final SharedMemory memory = SharedMemory.create(name, capacity);
+        final ByteBuffer buffer;
+        try {
+            buffer = memory.mapReadWrite();
+        } catch (ErrnoException e) {
+            memory.close();
+            throw e;
+        }
+        // Our own mapping stays writable, anyone we share the region with can only map
+        // it read-only.
+        memory.setProtect(OsConstants.PROT_READ);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_SEQ, 0);
+        final SettingsSnapshot snapshot = new SettingsSnapshot(memory, buffer, true);
+        snapshot.writePayload(payload);
+        return snapshot;
+    }
+
+    /**
+     * Maps a snapshot received from its owner for reading.
+     *
+     * @throws ErrnoException If the shared memory cannot be mapped.
+     * @throws IllegalArgumentException If the memory does not hold a snapshot.
+     */
+    public static @NonNull SettingsSnapshot fromSharedMemory(@NonNull SharedMemory memory)
+            throws ErrnoException {
+        final ByteBuffer buffer = memory.mapReadOnly();
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            SharedMemory.unmap(buffer);
+            throw new IllegalArgumentException("Not a settings snapshot");
+        }
+        return new SettingsSnapshot(memory, buffer, false);
+    }
+
+    /**
+     * @return The shared memory to hand out to clients.
+     */
+    public @NonNull SharedMemory getSharedMemory() {
+        return mMemory;
+    }
+
+    /**
+     * Replaces the contents of the snapshot. Only the owner can do this.
+     *
+     * @return Whether the values fit, if not the caller should {@link #invalidate()}
+     *     this snapshot and create a larger one.
+     */
+    public boolean update(@NonNull ArrayMap<String, String> values) {
+        enforceOwner();
+        final byte[] payload = encode(values);
+        if (HEADER_SIZE + payload.length > mBuffer.capacity()) {
+            return false;
+        }
+        writePayload(payload);
+        return true;
+    }
+
+    /**
+     * Marks the snapshot as replaced so that readers stop using it. Only the
+     * owner can do this.
+     */
+    public void invalidate() {
+        enforceOwner();
+        mBuffer.putInt(OFFSET_SEQ, SEQ_INVALID);
+    }
+
+    /**
+     * @return Whether the owner still publishes values through this snapshot.
+     */
+    public boolean isValid() {
+        return mBuffer.getInt(OFFSET_SEQ) != SEQ_INVALID;
+    }
+
+    /**
+     * Reads the current values. The returned map is shared between calls and
+     * must not be modified.
+     *
+     * @return The values, or null if a consistent copy could not be read, in
+     *     which case the caller should ask the provider instead.
+     */
+    public @Nullable ArrayMap<String, String> getValues() {
+        final int seq = mBuffer.getInt(OFFSET_SEQ);
+        if (seq == mSeq) {
+            return mValues;
+        }
+        if (seq == SEQ_INVALID || (seq & 1) != 0) {
+            return null;
+        }
+        final int length = mBuffer.getInt(OFFSET_LENGTH);
+        final int checksum = mBuffer.getInt(OFFSET_CHECKSUM);
+        if (length < 0 || length > mBuffer.capacity() - HEADER_SIZE) {
+            return null;
+        }
+        final byte[] payload = new byte[length];
+        final ByteBuffer source = mBuffer.duplicate();
+        source.position(HEADER_SIZE);
+        source.get(payload);
+        if (mBuffer.getInt(OFFSET_SEQ) != seq || checksum(payload) != checksum) {
+            // Raced with a write.
+            return null;
+        }
+        final ArrayMap<String, String> values;
+        try {
+            values = decode(payload);
+        } catch (IOException e) {
+            return null;
+        }
+        mSeq = seq;
+        mValues = values;
+        return values;
+    }
+
+    @Override
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mMemory.close();
+    }
+
+    private void writePayload(byte[] payload) {
+        final int seq = mBuffer.getInt(OFFSET_SEQ);
+        mBuffer.putInt(OFFSET_SEQ, (seq + 1) & Integer.MAX_VALUE);
+        final ByteBuffer target = mBuffer.duplicate();
+        target.position(HEADER_SIZE);
+        target.put(payload);
+        mBuffer.putInt(OFFSET_LENGTH, payload.length);
+        mBuffer.putInt(OFFSET_CHECKSUM, checksum(payload));
+        mBuffer.putInt(OFFSET_SEQ, (seq + 2) & Integer.MAX_VALUE);
+    }
+
+    private void enforceOwner() {
+        if (!mIsOwner) {
+            throw new IllegalStateException("Only the owner can modify a snapshot");
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(ArrayMap<String, String> values) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            final int count = values.size();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeString(out, values.keyAt(i));
+                writeString(out, values.valueAt(i));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ArrayMap<String, String> decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad count " + count);
+        }
+        final ArrayMap<String, String> values = new ArrayMap<>(count);
+        for (int i = 0; i < count; i++) {
+            final String name = readString(in);
+            values.put(name, readString(in));
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Caches the measured paragraphs and line breaks computed by {@link StaticLayout}, so that
+ * laying out the same text with the same paint and width again, e.g. when a list row is rebound,
+ * skips measuring and line breaking.
+ *
+ * Only text without spans is cached, since spans may change the measurement without changing
+ * the characters. The cache is bounded by the estimated memory use of its entries and is trimmed
+ * from {@link ComponentCallbacks2#onTrimMemory}.
+ *
+ * @hide
+ */
+public final class LineBreakCache {
+    // Budget for the estimated memory use of all entries, in bytes.
+    private static final int MAX_SIZE_BYTES = 512 * 1024;
+
+    // Longer texts are unlikely to be laid out again with the same parameters.
+    private static final int MAX_TEXT_LENGTH = 1024;
+
+    // Estimated memory use of an entry besides its per character and per line data.
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+
+    private static final LruCache<Key, Entry> sCache = new LruCache<Key, Entry>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Entry value) {
+            return value.mSize;
+        }
+    };
+
+    private LineBreakCache() {}
+
+    /**
+     * Returns the key for laying out the given text, or null if the layout cannot be cached.
+     */
+    public static @Nullable Key getKey(@NonNull CharSequence text, int start, int end,
+            @NonNull TextPaint paint, @NonNull TextDirectionHeuristic textDir,
+            @Layout.BreakStrategy int breakStrategy,
+            @Layout.HyphenationFrequency int hyphenationFrequency, boolean justified,
+            int width, @Nullable int[] indents, @Nullable int[] leftPaddings,
+            @Nullable int[] rightPaddings) {
+        if (text instanceof Spanned || end - start > MAX_TEXT_LENGTH || indents != null
+                || leftPaddings != null || rightPaddings != null) {
+            return null;
+        }
+        return new Key(text.toString(), start, end,
+                new PrecomputedText.Params(paint, textDir, breakStrategy, hyphenationFrequency),
+                justified, width);
+    }
+
+    public static @Nullable Entry get(@NonNull Key key) {
+        return sCache.get(key);
+    }
+
+    /**
+     * Adds the result of a layout. The paint of the key is copied, as it may be changed by the
+     * caller afterwards.
+     */
+    public static void put(@NonNull Key key, @NonNull PrecomputedText.ParagraphInfo[] paragraphs,
+            @NonNull ParagraphBreaks[] breaks) {
+        final PrecomputedText.Params params = key.mParams;
+        final Key copy = new Key(key.mText, key.mStart, key.mEnd,
+                new PrecomputedText.Params(new TextPaint(params.getTextPaint()),
+                        params.getTextDirection(), params.getBreakStrategy(),
+                        params.getHyphenationFrequency()),
+                key.mJustified, key.mWidth);
+        sCache.put(copy, new Entry(copy, paragraphs, breaks));
+    }
+
+    /**
+     * Drops entries depending on the given {@link ComponentCallbacks2} trim level.
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(sCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Returns the estimated memory use of the cached entries, in bytes.
+     */
+    @VisibleForTesting
+    public static int getSize() {
+        return sCache.size();
+    }
+
+    /**
+     * Identifies a layout by its characters, the text metrics of its paint and the parameters of
+     * the line breaking.
+     */
+    public static final class Key {
+        private final @NonNull String mText;
+        private final int mStart;
+        private final int mEnd;
+        private final @NonNull PrecomputedText.Params mParams;
+        private final boolean mJustified;
+        private final int mWidth;
+        private final int mHash;
+
+        private Key(@NonNull String text, int start, int end,
+                @NonNull PrecomputedText.Params params, boolean justified, int width) {
+            mText = text;
+            mStart = start;
+            mEnd = end;
+            mParams = params;
+            mJustified = justified;
+            mWidth = width;
+
+            // Same as String#hashCode() of the laid out region.
+            int hash = 0;
+            if (start == 0 && end == text.length()) {
+                hash = text.hashCode();
+            } else {
+                for (int i = start; i < end; i++) {
+                    hash = 31 * hash + text.charAt(i);
+                }
+            }
+            mHash = 31 * (31 * (31 * (31 * hash + start) + params.hashCode()) + width)
+                    + (justified ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return mHash == key.mHash
+                    && mStart == key.mStart
+                    && mEnd - mStart == key.mEnd - key.mStart
+                    && mWidth == key.mWidth
+                    && mJustified == key.mJustified
+                    && mText.regionMatches(mStart, key.mText, key.mStart, mEnd - mStart)
+                    && mParams.equals(key.mParams);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    /**
+     * The cached result of a layout. Must not be modified.
+     */
+    public static final class Entry {
+        public final @NonNull PrecomputedText.ParagraphInfo[] paragraphs;
+        // Null for the paragraphs the layout did not reach, e.g. past an ellipsis.
+        public final @NonNull ParagraphBreaks[] breaks;
+        private final int mSize;
+
+        private Entry(@NonNull Key key, @NonNull PrecomputedText.ParagraphInfo[] paragraphs,
+                @NonNull ParagraphBreaks[] breaks) {
+            this.paragraphs = paragraphs;
+            this.breaks = breaks;
+
+            int size = ENTRY_OVERHEAD_BYTES + key.mText.length() * 2;
+            for (int i = 0; i < paragraphs.length; i++) {
+                final MeasuredParagraph measured = paragraphs[i].measured;
+                // The native measurement plus the copied characters and the bidi levels.
+                size += measured.getMemoryUsage() + measured.getTextLength() * 3;
+                if (breaks[i] != null) {
+                    size += breaks[i].getMemoryUsage();
+                }
+            }
+            mSize = size;
+        }
+    }
+
+    /**
+     * The line breaks of a paragraph, as computed by StaticLayout.nComputeLineBreaks().
+     */
+    public static final class ParagraphBreaks {
+        public final int breakCount;
+        public final int[] breaks;
+        public final float[] widths;
+        public final float[] ascents;
+        public final float[] descents;
+        public final int[] flags;
+        public final float[] charWidths;
+
+        ParagraphBreaks(int breakCount, @NonNull StaticLayout.LineBreaks lineBreaks,
+                @NonNull float[] charWidths, int charCount) {
+            this.breakCount = breakCount;
+            breaks = Arrays.copyOf(lineBreaks.breaks, breakCount);
+            widths = Arrays.copyOf(lineBreaks.widths, breakCount);
+            ascents = Arrays.copyOf(lineBreaks.ascents, breakCount);
+            descents = Arrays.copyOf(lineBreaks.descents, breakCount);
+            flags = Arrays.copyOf(lineBreaks.flags, breakCount);
+            this.charWidths = Arrays.copyOf(charWidths, charCount);
+        }
+
+        /**
+         * Copies the breaks into the given LineBreaks, growing its arrays if needed.
+         */
+        void copyTo(@NonNull StaticLayout.LineBreaks lineBreaks) {
+            if (lineBreaks.breaks.length < breakCount) {
+                lineBreaks.breaks = new int[breakCount];
+                lineBreaks.widths = new float[breakCount];
+                lineBreaks.ascents = new float[breakCount];
+                lineBreaks.descents = new float[breakCount];
+                lineBreaks.flags = new int[breakCount];
+            }
+            System.arraycopy(breaks, 0, lineBreaks.breaks, 0, breakCount);
+            System.arraycopy(widths, 0, lineBreaks.widths, 0, breakCount);
+            System.arraycopy(ascents, 0, lineBreaks.ascents, 0, breakCount);
+            System.arraycopy(descents, 0, lineBreaks.descents, 0, breakCount);
+            System.arraycopy(flags, 0, lineBreaks.flags, 0, breakCount);
+        }
+
+        int getMemoryUsage() {
+            return breakCount * 4 * 5 + charWidths.length * 4;
+        }
+    }
+}
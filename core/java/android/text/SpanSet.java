@@ -44,15 +44,19 @@ public class SpanSet<E> {
 
     @SuppressWarnings("unchecked")
     public void init(Spanned spanned, int start, int limit) {
-        final E[] allSpans = spanned.getSpans(start, limit, classType);
-        final int length = allSpans.length;
-
-        if (length > 0 && (spans == null || spans.length < length)) {
-            // These arrays may end up being too large because of the discarded empty spans
-            spans = (E[]) Array.newInstance(classType, length);
-            spanStarts = new int[length];
-            spanEnds = new int[length];
-            spanFlags = new int[length];
+        final E[] allSpans;
+        int length = fillSpans(spanned, start, limit);
+        if (length < 0) {
+            allSpans = spanned.getSpans(start, limit, classType);
+            length = allSpans.length;
+            ensureCapacity(length);
+        } else {
+            if (length > 0 && (spans == null || spans.length < length)) {
+                ensureCapacity(length);
+                fillSpans(spanned, start, limit);
+            }
+            // Filled in place, the loop below only moves spans towards the start.
+            allSpans = spans;
         }
 
         int prevNumberOfSpans = numberOfSpans;
@@ -74,10 +78,45 @@ public class SpanSet<E> {
             numberOfSpans++;
         }
 
-        // cleanup extra spans left over from previous init() call
-        if (numberOfSpans < prevNumberOfSpans) {
-            // prevNumberofSpans was > 0, therefore spans != null
-            Arrays.fill(spans, numberOfSpans, prevNumberOfSpans, null);
+        // cleanup extra spans left over from previous init() call, and the empty spans
+        // discarded above
+        final int cleanupEnd = Math.max(prevNumberOfSpans, length);
+        if (numberOfSpans < cleanupEnd) {
+            // cleanupEnd was > 0, therefore spans != null
+            Arrays.fill(spans, numberOfSpans, cleanupEnd, null);
+        }
+    }
+
+    /**
+     * Fills {@link #spans} with the spans of the framework implementations of {@link Spanned}
+     * without allocating a result array. Subclasses may override getSpans(), so only the exact
+     * classes are handled.
+     *
+     * @return the number of spans found, which may exceed the capacity of {@link #spans}, or -1
+     *         if the spans have to be retrieved with {@link Spanned#getSpans}.
+     */
+    @SuppressWarnings("unchecked")
+    private int fillSpans(Spanned spanned, int start, int limit) {
+        final Class<?> spannedClass = spanned.getClass();
+        if (spannedClass == SpannableStringBuilder.class) {
+            return ((SpannableStringBuilder) spanned).fillSpans(start, limit,
+                    (Class<E>) classType, spans);
+        }
+        if (spannedClass == SpannedString.class || spannedClass == SpannableString.class) {
+            return ((SpannableStringInternal) spanned).fillSpans(start, limit,
+                    (Class<E>) classType, spans);
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void ensureCapacity(int length) {
+        if (length > 0 && (spans == null || spans.length < length)) {
+            // These arrays may end up being too large because of the discarded empty spans
+            spans = (E[]) Array.newInstance(classType, length);
+            spanStarts = new int[length];
+            spanEnds = new int[length];
+            spanFlags = new int[length];
         }
     }
 
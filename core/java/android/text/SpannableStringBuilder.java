@@ -16,6 +16,7 @@
 
 package android.text;
 
+import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.graphics.BaseCanvas;
 import android.graphics.Paint;
@@ -877,13 +878,37 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         getSpansRec(queryStart, queryEnd, kind, treeRoot(), ret, prioSortBuffer,
                 orderSortBuffer, 0, sortByInsertionOrder);
         if (sortByInsertionOrder) {
-            sort(ret, prioSortBuffer, orderSortBuffer);
+            sort(ret, count, prioSortBuffer, orderSortBuffer);
             recycle(prioSortBuffer);
             recycle(orderSortBuffer);
         }
         return ret;
     }
 
+    /**
+     * Same as {@link #getSpans(int, int, Class)}, but fills the given array instead of allocating
+     * one. Nothing is filled if the array is too small for the spans found.
+     *
+     * @param out Array to be filled with the spans, or null to only count them.
+     * @return The number of spans found, may be larger than the length of the array.
+     */
+    /* package */ <T> int fillSpans(int queryStart, int queryEnd, @NonNull Class<T> kind,
+            @Nullable T[] out) {
+        if (mSpanCount == 0) return 0;
+        final int count = countSpans(queryStart, queryEnd, kind, treeRoot());
+        if (count == 0 || out == null || count > out.length) {
+            return count;
+        }
+        final int[] prioSortBuffer = obtain(count);
+        final int[] orderSortBuffer = obtain(count);
+        getSpansRec(queryStart, queryEnd, kind, treeRoot(), out, prioSortBuffer,
+                orderSortBuffer, 0, true);
+        sort(out, count, prioSortBuffer, orderSortBuffer);
+        recycle(prioSortBuffer);
+        recycle(orderSortBuffer);
+        return count;
+    }
+
     private int countSpans(int queryStart, int queryEnd, Class kind, int i) {
         int count = 0;
         if ((i & 1) != 0) {
@@ -1062,13 +1087,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * span with a lower insertion order will be before a span with a higher insertion order.
      *
      * @param array Span array to be sorted.
+     * @param size Number of spans in the array.
      * @param priority Priorities of the spans
      * @param insertionOrder Insertion orders of the spans
      * @param <T> Span object type.
      * @param <T>
      */
-    private final <T> void sort(T[] array, int[] priority, int[] insertionOrder) {
-        int size = array.length;
+    private final <T> void sort(T[] array, int size, int[] priority, int[] insertionOrder) {
         for (int i = size / 2 - 1; i >= 0; i--) {
             siftDown(i, array, size, priority, insertionOrder);
         }
@@ -404,6 +404,66 @@ import java.lang.reflect.Array;
         return (T[]) nret;
     }
 
+    /**
+     * Same as {@link #getSpans(int, int, Class)}, but fills the given array instead of allocating
+     * one. The content of the array is unspecified if it is too small for the spans found.
+     *
+     * @param out array to be filled with the spans, or null to only count them.
+     * @return the number of spans found, may be larger than the length of the array.
+     */
+    /* package */ <T> int fillSpans(int queryStart, int queryEnd, Class<T> kind, T[] out) {
+        int count = 0;
+
+        int spanCount = mSpanCount;
+        Object[] spans = mSpans;
+        int[] data = mSpanData;
+        final int capacity = out == null ? 0 : out.length;
+
+        for (int i = 0; i < spanCount; i++) {
+            int spanStart = data[i * COLUMNS + START];
+            int spanEnd = data[i * COLUMNS + END];
+
+            if (spanStart > queryEnd) {
+                continue;
+            }
+            if (spanEnd < queryStart) {
+                continue;
+            }
+
+            if (spanStart != spanEnd && queryStart != queryEnd) {
+                if (spanStart == queryEnd) {
+                    continue;
+                }
+                if (spanEnd == queryStart) {
+                    continue;
+                }
+            }
+
+            if (kind != Object.class && !kind.isInstance(spans[i])) {
+                continue;
+            }
+
+            if (count < capacity) {
+                // Same order as getSpans(): by priority, then by insertion.
+                int prio = data[i * COLUMNS + FLAGS] & Spanned.SPAN_PRIORITY;
+                int j = count;
+                if (prio != 0) {
+                    for (j = 0; j < count; j++) {
+                        int p = getSpanFlags(out[j]) & Spanned.SPAN_PRIORITY;
+
+                        if (prio > p) {
+                            break;
+                        }
+                    }
+                    System.arraycopy(out, j, out, j + 1, count - j);
+                }
+                out[j] = (T) spans[i];
+            }
+            count++;
+        }
+        return count;
+    }
+
     public int nextSpanTransition(int start, int limit, Class kind) {
         int count = mSpanCount;
         Object[] spans = mSpans;
@@ -603,6 +603,16 @@ public class StaticLayout extends Layout {
         generate(b, b.mIncludePad, b.mIncludePad);
     }
 
+    /**
+     * Releases the cached results of previous layouts depending on the given
+     * {@link android.content.ComponentCallbacks2} trim level.
+     *
+     * @hide
+     */
+    public static void trimMemory(int level) {
+        LineBreakCache.trimMemory(level);
+    }
+
     /* package */ void generate(Builder b, boolean includepad, boolean trackpad) {
         final CharSequence source = b.mText;
         final int bufStart = b.mStart;
@@ -662,11 +672,32 @@ public class StaticLayout extends Layout {
             }
         }
 
+        // Plain text laid out again with the same parameters reuses the measurement and the line
+        // breaks of the previous layout.
+        LineBreakCache.Key cacheKey = null;
+        LineBreakCache.Entry cacheEntry = null;
+        LineBreakCache.ParagraphBreaks[] paragraphBreaks = null;
+        if (paragraphInfo == null) {
+            cacheKey = LineBreakCache.getKey(source, bufStart, bufEnd, paint, textDir,
+                    b.mBreakStrategy, b.mHyphenationFrequency,
+                    b.mJustificationMode != Layout.JUSTIFICATION_MODE_NONE, outerWidth,
+                    indents, mLeftPaddings, mRightPaddings);
+            if (cacheKey != null) {
+                cacheEntry = LineBreakCache.get(cacheKey);
+                if (cacheEntry != null) {
+                    paragraphInfo = cacheEntry.paragraphs;
+                }
+            }
+        }
+
         if (paragraphInfo == null) {
             final PrecomputedText.Params param = new PrecomputedText.Params(paint, textDir,
                     b.mBreakStrategy, b.mHyphenationFrequency);
             paragraphInfo = PrecomputedText.createMeasuredParagraphs(source, param, bufStart,
                     bufEnd, false /* computeLayout */);
+            if (cacheKey != null) {
+                paragraphBreaks = new LineBreakCache.ParagraphBreaks[paragraphInfo.length];
+            }
         }
 
         try {
@@ -750,29 +781,43 @@ public class StaticLayout extends Layout {
                 // but we don't want to recompute fontmetrics or span ranges the
                 // second time, so we cache those and then use those stored values
 
-                int breakCount = nComputeLineBreaks(
-                        nativePtr,
-
-                        // Inputs
-                        chs,
-                        measuredPara.getNativePtr(),
-                        paraEnd - paraStart,
-                        firstWidth,
-                        firstWidthLineCount,
-                        restWidth,
-                        variableTabStops,
-                        TAB_INCREMENT,
-                        mLineCount,
-
-                        // Outputs
-                        lineBreaks,
-                        lineBreaks.breaks.length,
-                        lineBreaks.breaks,
-                        lineBreaks.widths,
-                        lineBreaks.ascents,
-                        lineBreaks.descents,
-                        lineBreaks.flags,
-                        widths.getRawArray());
+                final LineBreakCache.ParagraphBreaks cachedBreaks =
+                        cacheEntry != null ? cacheEntry.breaks[paraIndex] : null;
+                int breakCount;
+                if (cachedBreaks != null) {
+                    breakCount = cachedBreaks.breakCount;
+                    cachedBreaks.copyTo(lineBreaks);
+                    System.arraycopy(cachedBreaks.charWidths, 0, widths.getRawArray(), 0,
+                            cachedBreaks.charWidths.length);
+                } else {
+                    breakCount = nComputeLineBreaks(
+                            nativePtr,
+
+                            // Inputs
+                            chs,
+                            measuredPara.getNativePtr(),
+                            paraEnd - paraStart,
+                            firstWidth,
+                            firstWidthLineCount,
+                            restWidth,
+                            variableTabStops,
+                            TAB_INCREMENT,
+                            mLineCount,
+
+                            // Outputs
+                            lineBreaks,
+                            lineBreaks.breaks.length,
+                            lineBreaks.breaks,
+                            lineBreaks.widths,
+                            lineBreaks.ascents,
+                            lineBreaks.descents,
+                            lineBreaks.flags,
+                            widths.getRawArray());
+                    if (paragraphBreaks != null) {
+                        paragraphBreaks[paraIndex] = new LineBreakCache.ParagraphBreaks(
+                                breakCount, lineBreaks, widths.getRawArray(), chs.length);
+                    }
+                }
 
                 final int[] breaks = lineBreaks.breaks;
                 final float[] lineWidths = lineBreaks.widths;
@@ -906,6 +951,9 @@ public class StaticLayout extends Layout {
             }
         } finally {
             nFinish(nativePtr);
+            if (paragraphBreaks != null) {
+                LineBreakCache.put(cacheKey, paragraphInfo, paragraphBreaks);
+            }
         }
     }
 
@@ -77,24 +77,34 @@ public class TextLine {
 
     private final DecorationInfo mDecorationInfo = new DecorationInfo();
     private final ArrayList<DecorationInfo> mDecorations = new ArrayList<>();
-
-    private static final TextLine[] sCached = new TextLine[3];
+    // Instances removed from mDecorations, reused for the next runs.
+    private final ArrayList<DecorationInfo> mRecycledDecorations = new ArrayList<>();
+
+    // Each thread keeps its own pool, so that threads laying out text in parallel neither
+    // contend on a lock nor allocate because another thread emptied the pool. A few instances
+    // are needed as spans may lay out text while their line is being drawn.
+    private static final int POOL_SIZE = 3;
+    private static final ThreadLocal<TextLine[]> sCached = new ThreadLocal<TextLine[]>() {
+        @Override
+        protected TextLine[] initialValue() {
+            return new TextLine[POOL_SIZE];
+        }
+    };
 
     /**
-     * Returns a new TextLine from the shared pool.
+     * Returns a new TextLine from the pool of the calling thread.
      *
      * @return an uninitialized TextLine
      */
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public static TextLine obtain() {
         TextLine tl;
-        synchronized (sCached) {
-            for (int i = sCached.length; --i >= 0;) {
-                if (sCached[i] != null) {
-                    tl = sCached[i];
-                    sCached[i] = null;
-                    return tl;
-                }
+        final TextLine[] cached = sCached.get();
+        for (int i = cached.length; --i >= 0;) {
+            if (cached[i] != null) {
+                tl = cached[i];
+                cached[i] = null;
+                return tl;
             }
         }
         tl = new TextLine();
@@ -105,7 +115,7 @@ public class TextLine {
     }
 
     /**
-     * Puts a TextLine back into the shared pool. Do not use this TextLine once
+     * Puts a TextLine back into the pool of the calling thread. Do not use this TextLine once
      * it has been returned.
      * @param tl the textLine
      * @return null, as a convenience from clearing references to the provided
@@ -125,12 +135,11 @@ public class TextLine {
         tl.mCharacterStyleSpanSet.recycle();
         tl.mReplacementSpanSpanSet.recycle();
 
-        synchronized(sCached) {
-            for (int i = 0; i < sCached.length; ++i) {
-                if (sCached[i] == null) {
-                    sCached[i] = tl;
-                    break;
-                }
+        final TextLine[] cached = sCached.get();
+        for (int i = 0; i < cached.length; ++i) {
+            if (cached[i] == null) {
+                cached[i] = tl;
+                break;
             }
         }
         return null;
@@ -1055,16 +1064,21 @@ public class TextLine {
         }
 
         // Copies the info, but not the start and end range.
-        public DecorationInfo copyInfo() {
-            final DecorationInfo copy = new DecorationInfo();
+        public void copyInfoTo(DecorationInfo copy) {
             copy.isStrikeThruText = isStrikeThruText;
             copy.isUnderlineText = isUnderlineText;
             copy.underlineColor = underlineColor;
             copy.underlineThickness = underlineThickness;
-            return copy;
         }
     }
 
+    private void clearDecorations() {
+        for (int i = 0; i < mDecorations.size(); i++) {
+            mRecycledDecorations.add(mDecorations.get(i));
+        }
+        mDecorations.clear();
+    }
+
     private void extractDecorationInfo(@NonNull TextPaint paint, @NonNull DecorationInfo info) {
         info.isStrikeThruText = paint.isStrikeThruText();
         if (info.isStrikeThruText) {
@@ -1177,7 +1191,7 @@ public class TextLine {
             int activeStart = i;
             int activeEnd = mlimit;
             final DecorationInfo decorationInfo = mDecorationInfo;
-            mDecorations.clear();
+            clearDecorations();
             for (int j = i, jnext; j < mlimit; j = jnext) {
                 jnext = mCharacterStyleSpanSet.getNextTransition(mStart + j, mStart + inext) -
                         mStart;
@@ -1212,7 +1226,7 @@ public class TextLine {
 
                     activeStart = j;
                     activePaint.set(wp);
-                    mDecorations.clear();
+                    clearDecorations();
                 } else {
                     // The present TextPaint is substantially equal to the last TextPaint except
                     // perhaps for decorations. We just need to expand the active piece of text to
@@ -1222,7 +1236,10 @@ public class TextLine {
 
                 activeEnd = jnext;
                 if (decorationInfo.hasDecoration()) {
-                    final DecorationInfo copy = decorationInfo.copyInfo();
+                    final int recycled = mRecycledDecorations.size();
+                    final DecorationInfo copy = recycled > 0
+                            ? mRecycledDecorations.remove(recycled - 1) : new DecorationInfo();
+                    decorationInfo.copyInfoTo(copy);
                     copy.start = j;
                     copy.end = jnext;
                     mDecorations.add(copy);
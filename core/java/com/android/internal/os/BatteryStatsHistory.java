@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Parcel;
+import android.os.ParcelFormatException;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Ring of sealed battery history chunks, oldest first.
+ * <p>
+ * {@link BatteryStatsImpl} records history into an in-memory buffer of bounded size. When that
+ * buffer is full it is handed over here as a chunk and recording continues in an empty buffer,
+ * so the history in memory never grows beyond one chunk. Chunks are written to their own file
+ * once, on the I/O handler, and are only read back one at a time while the history is being
+ * iterated. Once the ring holds the maximum number of chunks, the oldest one is dropped.
+ * </p>
+ * <p>
+ * Every chunk starts with an absolute history record, so any suffix of the ring followed by the
+ * active buffer is a valid history stream. Chunks share the history tag pool of
+ * {@link BatteryStatsImpl}, which therefore must not be cleared without clearing the ring.
+ * </p>
+ * <p>
+ * Apart from the I/O handler, which only touches the pending chunks, this class is not thread
+ * safe; {@link BatteryStatsImpl} calls it while holding its own lock.
+ * </p>
+ */
+final class BatteryStatsHistory {
+    private static final String TAG = "BatteryStatsHistory";
+    private static final String FILE_SUFFIX = ".bin";
+
+    private final File mDir;
+    private final int mMaxChunks;
+    private final Handler mIoHandler;
+
+    private final ArrayList<Chunk> mChunks = new ArrayList<>();
+    private int mNextChunkId;
+    private int mTotalSize;
+
+    // Chunks that have not made it to disk yet, or all chunks when there is no directory.
+    @GuardedBy("mPendingChunks")
+    private final SparseArray<byte[]> mPendingChunks = new SparseArray<>();
+
+    /**
+     * @param dir Directory holding one file per chunk, or null to keep chunks in memory.
+     * @param maxChunks Number of chunks kept before the oldest one is dropped.
+     * @param ioHandler Handler the chunk files are written and deleted on, or null to do so
+     *     on the calling thread.
+     */
+    @VisibleForTesting
+    BatteryStatsHistory(File dir, int maxChunks, Handler ioHandler) {
+        mDir = dir;
+        mMaxChunks = maxChunks;
+        mIoHandler = ioHandler;
+    }
+
+    /**
+     * Seals the contents of the given history buffer as the newest chunk. The buffer itself is
+     * left untouched.
+     */
+    void addChunk(Parcel buffer) {
+        final Chunk chunk = new Chunk(mNextChunkId++, buffer.dataSize());
+        final byte[] data = buffer.marshall();
+        mChunks.add(chunk);
+        mTotalSize += chunk.size;
+        synchronized (mPendingChunks) {
+            mPendingChunks.put(chunk.id, data);
+        }
+        if (mDir != null) {
+            runIo(() -> writeChunk(chunk.id));
+        }
+        while (mChunks.size() > mMaxChunks) {
+            removeOldestChunk();
+        }
+    }
+
+    /**
+     * Drops all chunks.
+     */
+    void clear() {
+        while (!mChunks.isEmpty()) {
+            removeOldestChunk();
+        }
+    }
+
+    int getChunkCount() {
+        return mChunks.size();
+    }
+
+    int getMaxChunks() {
+        return mMaxChunks;
+    }
+
+    /**
+     * @return Size in bytes of the history data in the chunk at the given position, 0 being the
+     *     oldest one.
+     */
+    int getChunkSize(int index) {
+        return mChunks.get(index).size;
+    }
+
+    /**
+     * @return Total size in bytes of the history data held in chunks.
+     */
+    int getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Reads back the chunk at the given position, 0 being the oldest one.
+     *
+     * @return A parcel positioned at the start of the chunk's history data that the caller must
+     *     recycle, or null if the chunk could not be read.
+     */
+    Parcel readChunk(int index) {
+        final Chunk chunk = mChunks.get(index);
+        byte[] data;
+        synchronized (mPendingChunks) {
+            data = mPendingChunks.get(chunk.id);
+        }
+        if (data == null && mDir != null) {
+            try {
+                data = getChunkFile(chunk.id).readFully();
+            } catch (IOException e) {
+                Slog.w(TAG, "Error reading battery history chunk " + chunk.id, e);
+                return null;
+            }
+        }
+        if (data == null || data.length != chunk.size) {
+            Slog.w(TAG, "Battery history chunk " + chunk.id + " is missing or has the wrong"
+                    + " size");
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(data, 0, data.length);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    /**
+     * Writes references to the chunks, to be restored by {@link #readRefsFromParcel} on the
+     * next boot.
+     */
+    void writeRefsToParcel(Parcel out) {
+        out.writeInt(mNextChunkId);
+        out.writeInt(mChunks.size());
+        for (int i = 0; i < mChunks.size(); i++) {
+            final Chunk chunk = mChunks.get(i);
+            out.writeInt(chunk.id);
+            out.writeInt(chunk.size);
+        }
+    }
+
+    /**
+     * Writes what {@link #writeRefsToParcel} writes for an empty ring, for parcels that carry
+     * the history data inline.
+     */
+    static void writeNoRefsToParcel(Parcel out) {
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    /**
+     * Restores the chunks written by {@link #writeRefsToParcel}, skipping those whose file is
+     * gone, and deletes any chunk file that is not referenced.
+     */
+    void readRefsFromParcel(Parcel in) {
+        clear();
+        final int nextChunkId = in.readInt();
+        final int count = in.readInt();
+        if (count < 0 || count > mMaxChunks * 2) {
+            throw new ParcelFormatException("Bad battery history chunk count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            final int id = in.readInt();
+            final int size = in.readInt();
+            if (mDir != null && getChunkFile(id).getBaseFile().exists()) {
+                mChunks.add(new Chunk(id, size));
+                mTotalSize += size;
+            }
+        }
+        while (mChunks.size() > mMaxChunks) {
+            removeOldestChunk();
+        }
+        mNextChunkId = nextChunkId;
+        if (mDir != null) {
+            final int[] ids = new int[mChunks.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mChunks.get(i).id;
+            }
+            runIo(() -> deleteUnreferencedFiles(ids));
+        }
+    }
+
+    private void removeOldestChunk() {
+        final Chunk chunk = mChunks.remove(0);
+        mTotalSize -= chunk.size;
+        synchronized (mPendingChunks) {
+            mPendingChunks.remove(chunk.id);
+        }
+        if (mDir != null) {
+            runIo(() -> getChunkFile(chunk.id).delete());
+        }
+    }
+
+    private void runIo(Runnable runnable) {
+        if (mIoHandler != null) {
+            mIoHandler.post(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private void writeChunk(int id) {
+        final byte[] data;
+        synchronized (mPendingChunks) {
+            data = mPendingChunks.get(id);
+        }
+        if (data == null) {
+            // Dropped before it could be written.
+            return;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Slog.w(TAG, "Failed to create " + mDir);
+            return;
+        }
+        final AtomicFile file = getChunkFile(id);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(data);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Slog.w(TAG, "Error writing battery history chunk " + id, e);
+            file.failWrite(stream);
+            // Keep the data in memory, it is still part of the history.
+            return;
+        }
+        synchronized (mPendingChunks) {
+            if (mPendingChunks.get(id) == data) {
+                mPendingChunks.remove(id);
+            }
+        }
+    }
+
+    private void deleteUnreferencedFiles(int[] ids) {
+        final String[] names = mDir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            final String base = name.endsWith(".bak")
+                    ? name.substring(0, name.length() - 4) : name;
+            boolean referenced = false;
+            for (int id : ids) {
+                if (base.equals(id + FILE_SUFFIX)) {
+                    referenced = true;
+                    break;
+                }
+            }
+            if (!referenced) {
+                new File(mDir, name).delete();
+            }
+        }
+    }
+
+    private AtomicFile getChunkFile(int id) {
+        return new AtomicFile(new File(mDir, id + FILE_SUFFIX));
+    }
+
+    private static final class Chunk {
+        final int id;
+        final int size;
+
+        Chunk(int id, int size) {
+            this.id = id;
+            this.size = size;
+        }
+    }
+}
@@ -140,7 +140,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 177 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 178 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -156,6 +156,13 @@ public class BatteryStatsImpl extends BatteryStats {
     static final int MAX_HISTORY_BUFFER; // 256KB
     static final int MAX_MAX_HISTORY_BUFFER; // 320KB
 
+    // Number of full history buffers kept on disk before the oldest one is dropped.
+    static final int MAX_HISTORY_CHUNKS;
+
+    // Once the history tag pool grows this large, it is cleared together with the sealed
+    // history chunks that refer to it when the next chunk is started. Tag indices have 16 bits.
+    static final int MAX_HISTORY_TAGS = 0x4000;
+
     static {
         if (ActivityManager.isLowRamDeviceStatic()) {
             MAX_HISTORY_ITEMS = 800;
@@ -163,12 +170,14 @@ public class BatteryStatsImpl extends BatteryStats {
             MAX_WAKELOCKS_PER_UID = 40;
             MAX_HISTORY_BUFFER = 96*1024;  // 96KB
             MAX_MAX_HISTORY_BUFFER = 128*1024; // 128KB
+            MAX_HISTORY_CHUNKS = 16;
         } else {
             MAX_HISTORY_ITEMS = 4000;
             MAX_MAX_HISTORY_ITEMS = 6000;
             MAX_WAKELOCKS_PER_UID = 200;
             MAX_HISTORY_BUFFER = 512*1024;  // 512KB
             MAX_MAX_HISTORY_BUFFER = 640*1024;  // 640KB
+            MAX_HISTORY_CHUNKS = 32;
         }
     }
 
@@ -652,10 +661,13 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNumHistoryItems;
 
     final Parcel mHistoryBuffer = Parcel.obtain();
+    // Full history buffers, written out to disk when there is a system directory.
+    final BatteryStatsHistory mHistoryChunks;
     final HistoryItem mHistoryLastWritten = new HistoryItem();
     final HistoryItem mHistoryLastLastWritten = new HistoryItem();
     final HistoryItem mHistoryReadTmp = new HistoryItem();
     final HistoryItem mHistoryAddTmp = new HistoryItem();
+    final HistoryItem mHistoryChunkStartTmp = new HistoryItem();
     final HashMap<HistoryTag, Integer> mHistoryTagPool = new HashMap<>();
     String[] mReadHistoryStrings;
     int[] mReadHistoryUids;
@@ -663,7 +675,6 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNextHistoryTagIdx = 0;
     int mNumHistoryTagChars = 0;
     int mHistoryBufferLastPos = -1;
-    boolean mHistoryOverflow = false;
     int mActiveHistoryStates = 0xffffffff;
     int mActiveHistoryStates2 = 0xffffffff;
     long mLastHistoryElapsedRealtime = 0;
@@ -713,6 +724,9 @@ public class BatteryStatsImpl extends BatteryStats {
     private HistoryItem mHistoryIterator;
     private boolean mReadOverflow;
     private boolean mIteratingHistory;
+    // Index of the sealed history chunk being iterated, the active buffer comes after them.
+    private int mReadHistoryChunk;
+    private Parcel mReadHistoryParcel;
 
     int mStartCount;
 
@@ -1054,6 +1068,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mPlatformIdleStateCallback = null;
         mUserInfoProvider = null;
         mConstants = new Constants(mHandler);
+        mHistoryChunks = new BatteryStatsHistory(null, MAX_HISTORY_CHUNKS, null);
         clearHistoryLocked();
     }
 
@@ -3737,78 +3752,52 @@ public class BatteryStatsImpl extends BatteryStats {
             mHistoryLastWritten.setTo(mHistoryLastLastWritten);
         }
 
-        boolean recordResetDueToOverflow = false;
-        final int dataSize = mHistoryBuffer.dataSize();
-        if (dataSize >= MAX_MAX_HISTORY_BUFFER*3) {
-            // Clients can't deal with history buffers this large. This only
-            // really happens when the device is on charger and interacted with
-            // for long periods of time, like in retail mode. Since the device is
-            // most likely charged, when unplugged, stats would have reset anyways.
-            // Reset the stats and mark that we overflowed.
-            // b/32540341
-            resetAllStatsLocked();
-
-            // Mark that we want to set *OVERFLOW* event and the RESET:START
-            // events.
-            recordResetDueToOverflow = true;
-
-        } else if (dataSize >= MAX_HISTORY_BUFFER) {
-            if (!mHistoryOverflow) {
-                mHistoryOverflow = true;
-                addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_UPDATE, cur);
-                addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_OVERFLOW, cur);
-                return;
-            }
-
-            // After overflow, we allow various bit-wise states to settle to 0.
-            boolean writeAnyway = false;
-            final int curStates = cur.states & HistoryItem.SETTLE_TO_ZERO_STATES
-                    & mActiveHistoryStates;
-            if (mHistoryLastWritten.states != curStates) {
-                // mActiveHistoryStates keeps track of which bits in .states are now being
-                // forced to 0.
-                int old = mActiveHistoryStates;
-                mActiveHistoryStates &= curStates | ~HistoryItem.SETTLE_TO_ZERO_STATES;
-                writeAnyway |= old != mActiveHistoryStates;
-            }
-            final int curStates2 = cur.states2 & HistoryItem.SETTLE_TO_ZERO_STATES2
-                    & mActiveHistoryStates2;
-            if (mHistoryLastWritten.states2 != curStates2) {
-                // mActiveHistoryStates2 keeps track of which bits in .states2 are now being
-                // forced to 0.
-                int old = mActiveHistoryStates2;
-                mActiveHistoryStates2 &= curStates2 | ~HistoryItem.SETTLE_TO_ZERO_STATES2;
-                writeAnyway |= old != mActiveHistoryStates2;
-            }
-
-            // Once we've reached the maximum number of items, we only
-            // record changes to the battery level and the most interesting states.
-            // Once we've reached the maximum maximum number of items, we only
-            // record changes to the battery level.
-            if (!writeAnyway && mHistoryLastWritten.batteryLevel == cur.batteryLevel &&
-                    (dataSize >= MAX_MAX_HISTORY_BUFFER
-                            || ((mHistoryLastWritten.states^cur.states)
-                                    & HistoryItem.MOST_INTERESTING_STATES) == 0
-                            || ((mHistoryLastWritten.states2^cur.states2)
-                                    & HistoryItem.MOST_INTERESTING_STATES2) == 0)) {
-                return;
-            }
-
-            addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_UPDATE, cur);
-            return;
-        }
-
-        if (dataSize == 0 || recordResetDueToOverflow) {
+        if (mHistoryBuffer.dataSize() >= MAX_HISTORY_BUFFER) {
+            startNextHistoryChunkLocked(elapsedRealtimeMs);
+        } else if (mHistoryBuffer.dataSize() == 0) {
             // The history is currently empty; we need it to start with a time stamp.
             cur.currentTime = System.currentTimeMillis();
-            if (recordResetDueToOverflow) {
-                addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_OVERFLOW, cur);
-            }
             addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_RESET, cur);
         }
         addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_UPDATE, cur);
     }
 
+    /**
+     * Seals the full history buffer as a chunk and starts over with an empty one. The new
+     * buffer starts with an absolute record of the current state, so that it can be read
+     * without the chunks before it once those have been dropped.
+     */
+    private void startNextHistoryChunkLocked(long elapsedRealtimeMs) {
+        if (mIteratingHistory) {
+            throw new IllegalStateException("Can't do this while iterating history!");
+        }
+        final long start = SystemClock.uptimeMillis();
+        if (mNextHistoryTagIdx >= MAX_HISTORY_TAGS) {
+            Slog.i(TAG, "History tag pool full, dropping history recorded before now");
+            mHistoryChunks.clear();
+            mHistoryTagPool.clear();
+            mNextHistoryTagIdx = 0;
+            mNumHistoryTagChars = 0;
+        } else {
+            mHistoryChunks.addChunk(mHistoryBuffer);
+        }
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferLastPos = -1;
+
+        final HistoryItem keyframe = mHistoryChunkStartTmp;
+        keyframe.setTo(mHistoryLastWritten);
+        keyframe.wakelockTag = null;
+        keyframe.wakeReasonTag = null;
+        keyframe.eventCode = HistoryItem.EVENT_NONE;
+        keyframe.eventTag = null;
+        keyframe.currentTime = System.currentTimeMillis();
+        addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_CURRENT_TIME, keyframe);
+        if (DEBUG_HISTORY) Slog.i(TAG, "Started history chunk "
+                + mHistoryChunks.getChunkCount() + " in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
     private void addHistoryBufferLocked(long elapsedRealtimeMs, byte cmd, HistoryItem cur) {
         if (mIteratingHistory) {
             throw new IllegalStateException("Can't do this while iterating history!");
@@ -3966,13 +3955,13 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
         mHistoryBuffer.setDataCapacity(MAX_HISTORY_BUFFER / 2);
+        mHistoryChunks.clear();
         mHistoryLastLastWritten.clear();
         mHistoryLastWritten.clear();
         mHistoryTagPool.clear();
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
         mHistoryBufferLastPos = -1;
-        mHistoryOverflow = false;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
     }
@@ -10124,6 +10113,9 @@ public class BatteryStatsImpl extends BatteryStats {
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
+        mHistoryChunks = new BatteryStatsHistory(
+                systemDir != null ? new File(systemDir, "battery-history") : null,
+                MAX_HISTORY_CHUNKS, BackgroundThread.getHandler());
         mHandler = new MyHandler(handler.getLooper());
         mConstants = new Constants(mHandler);
         mStartCount++;
@@ -10227,6 +10219,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mHandler = null;
         mExternalSync = null;
         mConstants = new Constants(mHandler);
+        mHistoryChunks = new BatteryStatsHistory(null, MAX_HISTORY_CHUNKS, null);
         clearHistoryLocked();
         readFromParcel(p);
         mPlatformIdleStateCallback = null;
@@ -10649,21 +10642,23 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public int getHistoryTotalSize() {
-        return MAX_HISTORY_BUFFER;
+        return MAX_HISTORY_BUFFER * (mHistoryChunks.getMaxChunks() + 1);
     }
 
     public int getHistoryUsedSize() {
-        return mHistoryBuffer.dataSize();
+        return mHistoryChunks.getTotalSize() + mHistoryBuffer.dataSize();
     }
 
     @Override
     public boolean startIteratingHistoryLocked() {
         if (DEBUG_HISTORY) Slog.i(TAG, "ITERATING: buff size=" + mHistoryBuffer.dataSize()
                 + " pos=" + mHistoryBuffer.dataPosition());
-        if (mHistoryBuffer.dataSize() <= 0) {
+        if (mHistoryBuffer.dataSize() <= 0 && mHistoryChunks.getChunkCount() == 0) {
             return false;
         }
         mHistoryBuffer.setDataPosition(0);
+        mReadHistoryChunk = 0;
+        mReadHistoryParcel = null;
         mReadOverflow = false;
         mIteratingHistory = true;
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
@@ -10703,18 +10698,17 @@ public class BatteryStatsImpl extends BatteryStats {
 
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
-        if (pos == 0) {
+        if (mReadHistoryParcel == null && mReadHistoryChunk == 0) {
             out.clear();
         }
-        boolean end = pos >= mHistoryBuffer.dataSize();
-        if (end) {
+        final Parcel src = getHistoryReadParcelLocked();
+        if (src == null) {
             return false;
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        readHistoryDelta(src, out);
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -10722,9 +10716,43 @@ public class BatteryStatsImpl extends BatteryStats {
         return true;
     }
 
+    /**
+     * Returns the parcel holding the next history record to read, moving on from one sealed
+     * chunk to the next and finally to the active buffer, or null at the end of the history.
+     * Only one chunk is held in memory at a time.
+     */
+    private Parcel getHistoryReadParcelLocked() {
+        while (true) {
+            if (mReadHistoryParcel != null) {
+                if (mReadHistoryParcel.dataPosition() < mReadHistoryParcel.dataSize()) {
+                    return mReadHistoryParcel;
+                }
+                if (mReadHistoryParcel == mHistoryBuffer) {
+                    return null;
+                }
+                mReadHistoryParcel.recycle();
+                mReadHistoryParcel = null;
+                mReadHistoryChunk++;
+            }
+            if (mReadHistoryChunk < mHistoryChunks.getChunkCount()) {
+                // Chunks start with an absolute record, so an unreadable one is just skipped.
+                mReadHistoryParcel = mHistoryChunks.readChunk(mReadHistoryChunk);
+                if (mReadHistoryParcel == null) {
+                    mReadHistoryChunk++;
+                }
+            } else {
+                mReadHistoryParcel = mHistoryBuffer;
+            }
+        }
+    }
+
     @Override
     public void finishIteratingHistoryLocked() {
         mIteratingHistory = false;
+        if (mReadHistoryParcel != null && mReadHistoryParcel != mHistoryBuffer) {
+            mReadHistoryParcel.recycle();
+        }
+        mReadHistoryParcel = null;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
         mReadHistoryStrings = null;
     }
@@ -12377,7 +12405,8 @@ public class BatteryStatsImpl extends BatteryStats {
                     || level >= 99
                     || (mDischargeCurrentLevel < 20 && level >= 80)
                     || (getHighDischargeAmountSinceCharge() >= 200
-                            && mHistoryBuffer.dataSize() >= MAX_HISTORY_BUFFER))) {
+                            && getHistoryUsedSize() >= getHistoryTotalSize()
+                                    - MAX_HISTORY_BUFFER))) {
                 Slog.i(TAG, "Resetting battery stats: level=" + level + " status=" + oldStatus
                         + " dischargeLevel=" + mDischargeCurrentLevel
                         + " lowAmount=" + getLowDischargeAmountSinceCharge()
@@ -13474,7 +13503,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        writeSummaryToParcel(out, true, true);
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
@@ -13579,6 +13608,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
+        mHistoryChunks.clear();
         mHistoryTagPool.clear();
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
@@ -13618,6 +13648,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         if (andOldHistory) {
+            mHistoryChunks.readRefsFromParcel(in);
             readOldHistory(in);
         }
 
@@ -13662,6 +13693,15 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+        writeHistory(out, inclData, andOldHistory, false);
+    }
+
+    /**
+     * @param chunkRefs Whether to write the sealed history chunks as references to their
+     *     files, which only an instance using the same system directory can resolve, instead of
+     *     including as many of the newest ones as a reader accepts with the history data.
+     */
+    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory, boolean chunkRefs) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -13674,6 +13714,10 @@ public class BatteryStatsImpl extends BatteryStats {
         if (!inclData) {
             out.writeInt(0);
             out.writeInt(0);
+            if (andOldHistory) {
+                BatteryStatsHistory.writeNoRefsToParcel(out);
+                writeOldHistory(out);
+            }
             return;
         }
         out.writeInt(mHistoryTagPool.size());
@@ -13683,16 +13727,51 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
+        final int sizePos = out.dataPosition();
+        out.writeInt(0);
+        final int dataPos = out.dataPosition();
+        if (!chunkRefs) {
+            writeHistoryChunksLocked(out);
+        }
         if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
                 + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
         out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        final int endPos = out.dataPosition();
+        out.setDataPosition(sizePos);
+        out.writeInt(endPos - dataPos);
+        out.setDataPosition(endPos);
 
         if (andOldHistory) {
+            if (chunkRefs) {
+                mHistoryChunks.writeRefsToParcel(out);
+            } else {
+                BatteryStatsHistory.writeNoRefsToParcel(out);
+            }
             writeOldHistory(out);
         }
     }
 
+    /**
+     * Writes the data of the newest sealed history chunks that fit next to the active buffer
+     * within the size {@link #readHistory} accepts, one chunk at a time.
+     */
+    private void writeHistoryChunksLocked(Parcel out) {
+        final int count = mHistoryChunks.getChunkCount();
+        int budget = MAX_MAX_HISTORY_BUFFER * 3 - 1 - mHistoryBuffer.dataSize();
+        int first = count;
+        while (first > 0 && mHistoryChunks.getChunkSize(first - 1) <= budget) {
+            first--;
+            budget -= mHistoryChunks.getChunkSize(first);
+        }
+        for (int i = first; i < count; i++) {
+            final Parcel chunk = mHistoryChunks.readChunk(i);
+            if (chunk != null) {
+                out.appendFrom(chunk, 0, chunk.dataSize());
+                chunk.recycle();
+            }
+        }
+    }
+
     void writeOldHistory(Parcel out) {
         if (!USE_OLD_HISTORY) {
             return;
@@ -14170,6 +14249,14 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcel(out, inclHistory, false);
+    }
+
+    /**
+     * @param historyChunkRefs Whether sealed history chunks are written as references to their
+     *     files rather than inline, see {@link #writeHistory(Parcel, boolean, boolean, boolean)}.
+     */
+    void writeSummaryToParcel(Parcel out, boolean inclHistory, boolean historyChunkRefs) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -14181,7 +14268,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        writeHistory(out, inclHistory, true, historyChunkRefs);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
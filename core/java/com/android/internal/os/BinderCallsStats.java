@@ -21,6 +21,7 @@ import android.os.SystemClock;
 import android.text.format.DateFormat;
 import android.util.ArrayMap;
 import android.util.SparseArray;
+import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -28,25 +29,49 @@ import com.android.internal.util.Preconditions;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ * <p>
+ * Every binder thread counts its calls in its own tables, without locking or allocating once
+ * a call description has been seen, and hands them over to the shared tables every
+ * {@link #MERGE_INTERVAL_CALLS} calls. Dumps therefore do not include the last few calls of
+ * each thread. With detailed tracking on, the CPU time of one in every
+ * {@link #getSamplingInterval()} calls is measured and recorded in a latency histogram, and
+ * times of the other calls are estimated from the samples.
+ * </p>
  */
 public class BinderCallsStats {
-    private static final int CALL_SESSIONS_POOL_SIZE = 100;
+    private static final int DEFAULT_SAMPLING_INTERVAL = 10;
+    private static final int MERGE_INTERVAL_CALLS = 64;
+    // Incoming calls nested on one thread that can be tracked without allocating a session.
+    private static final int MAX_NESTED_CALLS = 4;
+
+    /**
+     * Number of latency histogram buckets. Bucket 0 counts samples below
+     * {@link #HISTOGRAM_FIRST_BUCKET_MICROS}, every following bucket covers twice the range of
+     * the previous one and the last one counts everything above.
+     */
+    public static final int HISTOGRAM_BUCKETS = 16;
+    public static final int HISTOGRAM_FIRST_BUCKET_MICROS = 8;
+
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
     private volatile boolean mDetailedTracking = false;
+    private volatile int mSamplingInterval = DEFAULT_SAMPLING_INTERVAL;
+    // Incremented on every reset, so that threads drop the counts they have not handed over yet.
+    private volatile int mGeneration;
     @GuardedBy("mLock")
     private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
-    private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ThreadStats> mThreadStats = ThreadLocal.withInitial(
+            this::newThreadStats);
     private final Object mLock = new Object();
+    // Tables of every thread that handled a call, so that those of dead threads can be handed
+    // over and dropped.
+    @GuardedBy("mLock")
+    private final ArrayList<ThreadStats> mAllThreadStats = new ArrayList<>();
     private long mStartTime = System.currentTimeMillis();
 
     private BinderCallsStats() {
@@ -58,136 +83,260 @@ public class BinderCallsStats {
     }
 
     public CallSession callStarted(Binder binder, int code) {
-        return callStarted(binder.getClass().getName(), code);
-    }
-
-    private CallSession callStarted(String className, int code) {
-        CallSession s = mCallSessionsPool.poll();
-        if (s == null) {
-            s = new CallSession();
+        final ThreadStats threadStats = mThreadStats.get();
+        final CallSession s = threadStats.obtainSession();
+        s.mBinderClass = binder.getClass();
+        s.mCode = code;
+        if (mDetailedTracking && ++threadStats.mCallsSinceSample >= mSamplingInterval) {
+            threadStats.mCallsSinceSample = 0;
+            s.mStarted = SystemClock.currentThreadTimeMicro();
+        } else {
+            s.mStarted = -1;
         }
-        s.mCallStat.className = className;
-        s.mCallStat.msg = code;
-
-        s.mStarted = getThreadTimeMicro();
         return s;
     }
 
     public void callEnded(CallSession s) {
         Preconditions.checkNotNull(s);
-        long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
+        final long duration = s.mStarted >= 0
+                ? SystemClock.currentThreadTimeMicro() - s.mStarted : -1;
         s.mCallingUId = Binder.getCallingUid();
 
-        synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
-            if (uidEntry == null) {
-                uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+        final ThreadStats threadStats = mThreadStats.get();
+        threadStats.releaseSession(s);
+        final int generation = mGeneration;
+        if (threadStats.mGeneration != generation) {
+            threadStats.clear(generation);
+        }
+
+        UidEntry uidEntry = threadStats.mUidEntries.get(s.mCallingUId);
+        if (uidEntry == null) {
+            uidEntry = new UidEntry(s.mCallingUId);
+            threadStats.mUidEntries.put(s.mCallingUId, uidEntry);
+        }
+        uidEntry.callCount++;
+        if (mDetailedTracking) {
+            final CallStat callStat = uidEntry.getOrCreate(s.mBinderClass, s.mCode);
+            callStat.callCount++;
+            if (duration >= 0) {
+                uidEntry.recordedCallCount++;
+                uidEntry.time += duration;
+                callStat.record(duration);
             }
+        }
 
-            if (mDetailedTracking) {
-                // Find CallDesc entry and update its total time
-                CallStat callStat = uidEntry.mCallStats.get(s.mCallStat);
-                // Only create CallStat if it's a new entry, otherwise update existing instance
-                if (callStat == null) {
-                    callStat = new CallStat(s.mCallStat.className, s.mCallStat.msg);
-                    uidEntry.mCallStats.put(callStat, callStat);
+        if (++threadStats.mCallsSinceMerge >= MERGE_INTERVAL_CALLS) {
+            threadStats.mCallsSinceMerge = 0;
+            synchronized (mLock) {
+                // A reset may have happened since the check above.
+                if (generation == mGeneration) {
+                    mergeLocked(threadStats);
                 }
-                callStat.callCount++;
-                callStat.time += duration;
+                pruneDeadThreadsLocked();
             }
+            threadStats.clear(generation);
+        }
+    }
 
-            uidEntry.time += duration;
-            uidEntry.callCount++;
+    private ThreadStats newThreadStats() {
+        final ThreadStats threadStats = new ThreadStats(Thread.currentThread());
+        synchronized (mLock) {
+            mAllThreadStats.add(threadStats);
         }
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
-            mCallSessionsPool.add(s);
+        return threadStats;
+    }
+
+    /**
+     * Hands over the counts of the threads that died since the last call, and drops their
+     * tables.
+     */
+    @GuardedBy("mLock")
+    private void pruneDeadThreadsLocked() {
+        for (int i = mAllThreadStats.size() - 1; i >= 0; i--) {
+            final ThreadStats threadStats = mAllThreadStats.get(i);
+            // Everything the thread did happens-before isAlive() returns false.
+            if (threadStats.mThread.isAlive()) {
+                continue;
+            }
+            if (threadStats.mGeneration == mGeneration) {
+                mergeLocked(threadStats);
+            }
+            mAllThreadStats.remove(i);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void mergeLocked(ThreadStats threadStats) {
+        for (int i = threadStats.mUidEntries.size() - 1; i >= 0; i--) {
+            final UidEntry source = threadStats.mUidEntries.valueAt(i);
+            if (source.callCount == 0) {
+                continue;
+            }
+            UidEntry target = mUidEntries.get(source.uid);
+            if (target == null) {
+                target = new UidEntry(source.uid);
+                mUidEntries.put(source.uid, target);
+            }
+            target.add(source);
         }
     }
 
     public void dump(PrintWriter pw) {
-        Map<Integer, Long> uidTimeMap = new HashMap<>();
-        Map<Integer, Long> uidCallCountMap = new HashMap<>();
         long totalCallsCount = 0;
+        long totalRecordedCallsCount = 0;
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
-        List<UidEntry> entries = new ArrayList<>();
-        synchronized (mLock) {
-            for (int i = 0; i < uidEntriesSize; i++) {
-                UidEntry e = mUidEntries.valueAt(i);
-                entries.add(e);
-                totalCallsTime += e.time;
-                // Update per-uid totals
-                Long totalTimePerUid = uidTimeMap.get(e.uid);
-                uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
-                Long totalCallsPerUid = uidCallCountMap.get(e.uid);
-                uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
-                        : totalCallsPerUid + e.callCount);
-                totalCallsCount += e.callCount;
-            }
+        final List<UidEntry> entries = getUidEntries();
+        for (UidEntry e : entries) {
+            totalCallsTime += e.time;
+            totalCallsCount += e.callCount;
+            totalRecordedCallsCount += e.recordedCallCount;
         }
         if (mDetailedTracking) {
+            // The sections and columns up to the summary are parsed by tools, times are
+            // estimated from the sampled calls.
             pw.println("Raw data (uid,call_desc,time):");
-            entries.sort((o1, o2) -> {
-                if (o1.time < o2.time) {
-                    return 1;
-                } else if (o1.time > o2.time) {
-                    return -1;
-                }
-                return 0;
-            });
-            StringBuilder sb = new StringBuilder();
+            entries.sort((o1, o2) -> Long.compare(o2.getEstimatedTime(), o1.getEstimatedTime()));
+            final StringBuilder sb = new StringBuilder();
             for (UidEntry uidEntry : entries) {
-                List<CallStat> callStats = new ArrayList<>(uidEntry.mCallStats.keySet());
-                callStats.sort((o1, o2) -> {
-                    if (o1.time < o2.time) {
-                        return 1;
-                    } else if (o1.time > o2.time) {
-                        return -1;
-                    }
-                    return 0;
-                });
+                final List<CallStat> callStats = uidEntry.getCallStats();
+                callStats.sort((o1, o2) -> Long.compare(o2.getEstimatedTime(),
+                        o1.getEstimatedTime()));
                 for (CallStat e : callStats) {
                     sb.setLength(0);
                     sb.append("    ")
-                            .append(uidEntry.uid).append(",").append(e).append(',').append(e.time);
+                            .append(uidEntry.uid).append(",").append(e)
+                            .append(',').append(e.getEstimatedTime());
                     pw.println(sb);
                 }
             }
             pw.println();
             pw.println("Per UID Summary(UID: time, % of total_time, calls_count):");
-            List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidTimeMap.entrySet());
-            uidTotals.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
-            for (Map.Entry<Integer, Long> uidTotal : uidTotals) {
-                Long callCount = uidCallCountMap.get(uidTotal.getKey());
+            final long totalEstimatedTime = estimateTime(totalCallsTime, totalCallsCount,
+                    totalRecordedCallsCount);
+            for (UidEntry uidEntry : entries) {
+                final long estimatedTime = uidEntry.getEstimatedTime();
                 pw.println(String.format("  %7d: %11d %3.0f%% %8d",
-                        uidTotal.getKey(), uidTotal.getValue(),
-                        100d * uidTotal.getValue() / totalCallsTime, callCount));
+                        uidEntry.uid, estimatedTime,
+                        100d * estimatedTime / totalEstimatedTime, uidEntry.callCount));
             }
             pw.println();
             pw.println(String.format("  Summary: total_time=%d, "
                             + "calls_count=%d, avg_call_time=%.0f",
-                    totalCallsTime, totalCallsCount,
-                    (double)totalCallsTime / totalCallsCount));
+                    totalEstimatedTime, totalCallsCount,
+                    (double) totalCallsTime / totalRecordedCallsCount));
+            pw.println();
+
+            pw.print("Sampling interval: ");
+            pw.println(mSamplingInterval);
+            pw.println("Sampled calls (uid,call_desc,calls,sampled_calls,sampled_time,max_time):");
+            for (UidEntry uidEntry : entries) {
+                for (CallStat e : uidEntry.getCallStats()) {
+                    sb.setLength(0);
+                    sb.append("    ")
+                            .append(uidEntry.uid).append(",").append(e)
+                            .append(',').append(e.callCount)
+                            .append(',').append(e.recordedCallCount)
+                            .append(',').append(e.time)
+                            .append(',').append(e.maxTime);
+                    pw.println(sb);
+                }
+            }
+            pw.println();
+            pw.println("Latency histograms (call_desc: sampled calls per bucket, bucket 0 <"
+                    + HISTOGRAM_FIRST_BUCKET_MICROS + "us, each next bucket twice as wide):");
+            final ArrayMap<String, long[]> histograms = new ArrayMap<>();
+            for (UidEntry uidEntry : entries) {
+                for (CallStat e : uidEntry.getCallStats()) {
+                    if (e.histogram == null) {
+                        continue;
+                    }
+                    final String desc = e.toString();
+                    long[] histogram = histograms.get(desc);
+                    if (histogram == null) {
+                        histogram = new long[HISTOGRAM_BUCKETS];
+                        histograms.put(desc, histogram);
+                    }
+                    for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                        histogram[i] += e.histogram[i];
+                    }
+                }
+            }
+            for (int i = 0; i < histograms.size(); i++) {
+                sb.setLength(0);
+                sb.append("    ").append(histograms.keyAt(i)).append(':');
+                for (long count : histograms.valueAt(i)) {
+                    sb.append(' ').append(count);
+                }
+                pw.println(sb);
+            }
         } else {
             pw.println("Per UID Summary(UID: calls_count, % of total calls_count):");
-            List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidTimeMap.entrySet());
-            uidTotals.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
-            for (Map.Entry<Integer, Long> uidTotal : uidTotals) {
-                Long callCount = uidCallCountMap.get(uidTotal.getKey());
+            entries.sort((o1, o2) -> Long.compare(o2.callCount, o1.callCount));
+            for (UidEntry uidEntry : entries) {
                 pw.println(String.format("    %7d: %8d %3.0f%%",
-                        uidTotal.getKey(), callCount, 100d * uidTotal.getValue() / totalCallsTime));
+                        uidEntry.uid, uidEntry.callCount,
+                        100d * uidEntry.callCount / totalCallsCount));
             }
         }
     }
 
-    private long getThreadTimeMicro() {
-        // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
-        // enabled
-        return mDetailedTracking ? SystemClock.currentThreadTimeMicro() : 0;
+    public void dumpProto(ProtoOutputStream proto) {
+        proto.write(BinderCallsStatsProto.START_TIME_MS, mStartTime);
+        proto.write(BinderCallsStatsProto.DETAILED_TRACKING, mDetailedTracking);
+        proto.write(BinderCallsStatsProto.SAMPLING_INTERVAL, mSamplingInterval);
+        for (UidEntry uidEntry : getUidEntries()) {
+            final long uidToken = proto.start(BinderCallsStatsProto.UID_ENTRIES);
+            proto.write(BinderCallsStatsProto.UidEntry.UID, uidEntry.uid);
+            proto.write(BinderCallsStatsProto.UidEntry.CALL_COUNT, uidEntry.callCount);
+            proto.write(BinderCallsStatsProto.UidEntry.RECORDED_CALL_COUNT,
+                    uidEntry.recordedCallCount);
+            proto.write(BinderCallsStatsProto.UidEntry.CPU_TIME_MICROS, uidEntry.time);
+            for (CallStat e : uidEntry.getCallStats()) {
+                final long callToken = proto.start(BinderCallsStatsProto.UidEntry.CALL_STATS);
+                proto.write(BinderCallsStatsProto.UidEntry.CallStat.BINDER_CLASS,
+                        e.binderClass.getName());
+                proto.write(BinderCallsStatsProto.UidEntry.CallStat.TRANSACTION_CODE, e.code);
+                proto.write(BinderCallsStatsProto.UidEntry.CallStat.CALL_COUNT, e.callCount);
+                proto.write(BinderCallsStatsProto.UidEntry.CallStat.RECORDED_CALL_COUNT,
+                        e.recordedCallCount);
+                proto.write(BinderCallsStatsProto.UidEntry.CallStat.CPU_TIME_MICROS, e.time);
+                proto.write(BinderCallsStatsProto.UidEntry.CallStat.MAX_CPU_TIME_MICROS,
+                        e.maxTime);
+                if (e.histogram != null) {
+                    for (long count : e.histogram) {
+                        proto.write(BinderCallsStatsProto.UidEntry.CallStat.LATENCY_HISTOGRAM,
+                                count);
+                    }
+                }
+                proto.end(callToken);
+            }
+            proto.end(uidToken);
+        }
+    }
+
+    /**
+     * Returns copies of the merged per-uid entries, so that they can be read without holding
+     * the lock.
+     */
+    private List<UidEntry> getUidEntries() {
+        final List<UidEntry> entries = new ArrayList<>();
+        synchronized (mLock) {
+            pruneDeadThreadsLocked();
+            final int uidEntriesSize = mUidEntries.size();
+            for (int i = 0; i < uidEntriesSize; i++) {
+                final UidEntry source = mUidEntries.valueAt(i);
+                final UidEntry copy = new UidEntry(source.uid);
+                copy.add(source);
+                entries.add(copy);
+            }
+        }
+        return entries;
+    }
+
+    private static long estimateTime(long recordedTime, long callCount, long recordedCallCount) {
+        return recordedCallCount == 0 ? 0 : recordedTime * callCount / recordedCallCount;
     }
 
     public static BinderCallsStats getInstance() {
@@ -201,68 +350,178 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Sets how many calls go by for every call whose CPU time is measured when detailed
+     * tracking is enabled.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        Preconditions.checkArgumentPositive(samplingInterval, "samplingInterval");
+        if (samplingInterval != mSamplingInterval) {
+            reset();
+            mSamplingInterval = samplingInterval;
+        }
+    }
+
+    public int getSamplingInterval() {
+        return mSamplingInterval;
+    }
+
     public void reset() {
         synchronized (mLock) {
             mUidEntries.clear();
+            mGeneration++;
             mStartTime = System.currentTimeMillis();
         }
     }
 
+    /**
+     * Returns the index of the latency histogram bucket for the given CPU time.
+     */
+    @VisibleForTesting
+    public static int getHistogramBucket(long micros) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(micros / HISTOGRAM_FIRST_BUCKET_MICROS);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
     private static class CallStat {
-        String className;
-        int msg;
-        long time;
+        final Class<? extends Binder> binderClass;
+        final int code;
         long callCount;
+        long recordedCallCount;
+        long time;
+        long maxTime;
+        long[] histogram;
 
-        CallStat() {
+        CallStat(Class<? extends Binder> binderClass, int code) {
+            this.binderClass = binderClass;
+            this.code = code;
         }
 
-        CallStat(String className, int msg) {
-            this.className = className;
-            this.msg = msg;
+        long getEstimatedTime() {
+            return estimateTime(time, callCount, recordedCallCount);
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+        void record(long duration) {
+            recordedCallCount++;
+            time += duration;
+            if (duration > maxTime) {
+                maxTime = duration;
             }
+            if (histogram == null) {
+                histogram = new long[HISTOGRAM_BUCKETS];
+            }
+            histogram[getHistogramBucket(duration)]++;
+        }
 
-            CallStat callStat = (CallStat) o;
-
-            return msg == callStat.msg && (className.equals(callStat.className));
+        void add(CallStat other) {
+            callCount += other.callCount;
+            recordedCallCount += other.recordedCallCount;
+            time += other.time;
+            maxTime = Math.max(maxTime, other.maxTime);
+            if (other.histogram != null) {
+                if (histogram == null) {
+                    histogram = new long[HISTOGRAM_BUCKETS];
+                }
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    histogram[i] += other.histogram[i];
+                }
+            }
         }
 
-        @Override
-        public int hashCode() {
-            int result = className.hashCode();
-            result = 31 * result + msg;
-            return result;
+        void clear() {
+            callCount = 0;
+            recordedCallCount = 0;
+            time = 0;
+            maxTime = 0;
+            if (histogram != null) {
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    histogram[i] = 0;
+                }
+            }
         }
 
         @Override
         public String toString() {
-            return className + "/" + msg;
+            return binderClass.getName() + "/" + code;
         }
     }
 
     public static class CallSession {
         int mCallingUId;
         long mStarted;
-        CallStat mCallStat = new CallStat();
+        Class<? extends Binder> mBinderClass;
+        int mCode;
     }
 
     private static class UidEntry {
-        int uid;
+        final int uid;
         long time;
         long callCount;
+        long recordedCallCount;
+
+        // Aggregate time spent per each call name: binder class -> transaction code -> stats
+        final ArrayMap<Class<? extends Binder>, SparseArray<CallStat>> mCallStats =
+                new ArrayMap<>();
 
         UidEntry(int uid) {
             this.uid = uid;
         }
 
-        // Aggregate time spent per each call name: call_desc -> cpu_time_micros
-        Map<CallStat, CallStat> mCallStats = new ArrayMap<>();
+        long getEstimatedTime() {
+            return estimateTime(time, callCount, recordedCallCount);
+        }
+
+        CallStat getOrCreate(Class<? extends Binder> binderClass, int code) {
+            SparseArray<CallStat> codeStats = mCallStats.get(binderClass);
+            if (codeStats == null) {
+                codeStats = new SparseArray<>();
+                mCallStats.put(binderClass, codeStats);
+            }
+            CallStat callStat = codeStats.get(code);
+            if (callStat == null) {
+                callStat = new CallStat(binderClass, code);
+                codeStats.put(code, callStat);
+            }
+            return callStat;
+        }
+
+        List<CallStat> getCallStats() {
+            final List<CallStat> callStats = new ArrayList<>();
+            for (int i = 0; i < mCallStats.size(); i++) {
+                final SparseArray<CallStat> codeStats = mCallStats.valueAt(i);
+                for (int j = 0; j < codeStats.size(); j++) {
+                    callStats.add(codeStats.valueAt(j));
+                }
+            }
+            return callStats;
+        }
+
+        void add(UidEntry other) {
+            time += other.time;
+            callCount += other.callCount;
+            recordedCallCount += other.recordedCallCount;
+            for (int i = 0; i < other.mCallStats.size(); i++) {
+                final SparseArray<CallStat> codeStats = other.mCallStats.valueAt(i);
+                for (int j = 0; j < codeStats.size(); j++) {
+                    final CallStat callStat = codeStats.valueAt(j);
+                    if (callStat.callCount > 0) {
+                        getOrCreate(callStat.binderClass, callStat.code).add(callStat);
+                    }
+                }
+            }
+        }
+
+        void clear() {
+            time = 0;
+            callCount = 0;
+            recordedCallCount = 0;
+            for (int i = 0; i < mCallStats.size(); i++) {
+                final SparseArray<CallStat> codeStats = mCallStats.valueAt(i);
+                for (int j = 0; j < codeStats.size(); j++) {
+                    codeStats.valueAt(j).clear();
+                }
+            }
+        }
 
         @Override
         public String toString() {
@@ -272,21 +531,54 @@ public class BinderCallsStats {
                     ", mCallStats=" + mCallStats +
                     '}';
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+    /**
+     * Counts of the calls a single thread handled since it last handed them over. Only ever
+     * touched by that thread, entries are zeroed rather than removed so that they can be
+     * reused.
+     */
+    private static class ThreadStats {
+        final Thread mThread;
+        final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+        final CallSession[] mSessions = new CallSession[MAX_NESTED_CALLS];
+        int mDepth;
+        int mCallsSinceSample;
+        int mCallsSinceMerge;
+        int mGeneration;
+
+        ThreadStats(Thread thread) {
+            mThread = thread;
+        }
+
+        CallSession obtainSession() {
+            if (mDepth >= MAX_NESTED_CALLS) {
+                return new CallSession();
             }
+            CallSession s = mSessions[mDepth];
+            if (s == null) {
+                s = new CallSession();
+                mSessions[mDepth] = s;
+            }
+            mDepth++;
+            return s;
+        }
 
-            UidEntry uidEntry = (UidEntry) o;
-            return uid == uidEntry.uid;
+        void releaseSession(CallSession s) {
+            // Also releases the sessions of nested calls whose end was never reported.
+            for (int i = mDepth - 1; i >= 0; i--) {
+                if (mSessions[i] == s) {
+                    mDepth = i;
+                    return;
+                }
+            }
         }
 
-        @Override
-        public int hashCode() {
-            return uid;
+        void clear(int generation) {
+            for (int i = mUidEntries.size() - 1; i >= 0; i--) {
+                mUidEntries.valueAt(i).clear();
+            }
+            mGeneration = generation;
         }
     }
-
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Message;
+import android.text.format.DateFormat;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects statistics about the messages dispatched by a single {@link android.os.Looper}, per
+ * handler class and message: how many were dispatched, how long they waited in the queue past
+ * their due time and how long their dispatch took, with a latency histogram for both.
+ * <p>
+ * Messages are keyed by their {@link Message#what} or, for posted runnables, by the class of
+ * the runnable. Recording does not allocate once a handler class and message have been seen.
+ * </p>
+ */
+public class LooperStats {
+    /**
+     * Number of latency histogram buckets. Bucket 0 counts samples below
+     * {@link #HISTOGRAM_FIRST_BUCKET_MICROS}, every following bucket covers twice the range of
+     * the previous one and the last one counts everything above.
+     */
+    public static final int HISTOGRAM_BUCKETS = 20;
+    public static final int HISTOGRAM_FIRST_BUCKET_MICROS = 16;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<Class<? extends Handler>, HandlerEntry> mHandlerEntries =
+            new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mMessageCount;
+    @GuardedBy("mLock")
+    private long mStartTime = System.currentTimeMillis();
+
+    /**
+     * Records a dispatched message.
+     *
+     * @param delayMicros how long the message waited past its due time, or -1 if it has no due
+     *        time, i.e. was posted at the front of the queue.
+     * @param dispatchMicros how long the dispatch took.
+     */
+    public void messageDispatched(Message msg, long delayMicros, long dispatchMicros) {
+        synchronized (mLock) {
+            final Class<? extends Handler> handlerClass = msg.getTarget().getClass();
+            HandlerEntry handlerEntry = mHandlerEntries.get(handlerClass);
+            if (handlerEntry == null) {
+                handlerEntry = new HandlerEntry();
+                mHandlerEntries.put(handlerClass, handlerEntry);
+            }
+            final Runnable callback = msg.getCallback();
+            final MessageStat stat = callback != null
+                    ? handlerEntry.getOrCreate(handlerClass, callback.getClass())
+                    : handlerEntry.getOrCreate(handlerClass, msg.what);
+            stat.record(delayMicros, dispatchMicros);
+            mMessageCount++;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final long startTime;
+        final long messageCount;
+        final List<MessageStat> stats = new ArrayList<>();
+        synchronized (mLock) {
+            startTime = mStartTime;
+            messageCount = mMessageCount;
+            for (int i = 0; i < mHandlerEntries.size(); i++) {
+                mHandlerEntries.valueAt(i).copyTo(stats);
+            }
+        }
+        stats.sort((o1, o2) -> Long.compare(o2.dispatchTime, o1.dispatchTime));
+
+        pw.print(prefix);
+        pw.print("Start time: ");
+        pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", startTime));
+        pw.print(prefix);
+        pw.print("Messages: ");
+        pw.println(messageCount);
+        pw.print(prefix);
+        pw.println("Raw data (handler/message,count,dispatch_time,max_dispatch_time,"
+                + "delayed_count,delay,max_delay):");
+        final StringBuilder sb = new StringBuilder();
+        for (MessageStat e : stats) {
+            sb.setLength(0);
+            sb.append(prefix).append("  ").append(e)
+                    .append(',').append(e.count)
+                    .append(',').append(e.dispatchTime)
+                    .append(',').append(e.maxDispatchTime)
+                    .append(',').append(e.delayedCount)
+                    .append(',').append(e.delay)
+                    .append(',').append(e.maxDelay);
+            pw.println(sb);
+        }
+        pw.print(prefix);
+        pw.println("Dispatch time histograms (handler/message: messages per bucket, bucket 0 <"
+                + HISTOGRAM_FIRST_BUCKET_MICROS + "us, each next bucket twice as wide):");
+        for (MessageStat e : stats) {
+            dumpHistogram(pw, prefix, sb, e, e.dispatchHistogram);
+        }
+        pw.print(prefix);
+        pw.println("Queueing delay histograms (same buckets):");
+        for (MessageStat e : stats) {
+            if (e.delayedCount > 0) {
+                dumpHistogram(pw, prefix, sb, e, e.delayHistogram);
+            }
+        }
+    }
+
+    private static void dumpHistogram(PrintWriter pw, String prefix, StringBuilder sb,
+            MessageStat e, long[] histogram) {
+        sb.setLength(0);
+        sb.append(prefix).append("  ").append(e).append(':');
+        for (long count : histogram) {
+            sb.append(' ').append(count);
+        }
+        pw.println(sb);
+    }
+
+    /**
+     * Writes the statistics as the fields of a {@link LooperStatsProto}.
+     */
+    public void dumpProto(ProtoOutputStream proto, String threadName) {
+        final long startTime;
+        final long messageCount;
+        final List<MessageStat> stats = new ArrayList<>();
+        synchronized (mLock) {
+            startTime = mStartTime;
+            messageCount = mMessageCount;
+            for (int i = 0; i < mHandlerEntries.size(); i++) {
+                mHandlerEntries.valueAt(i).copyTo(stats);
+            }
+        }
+        proto.write(LooperStatsProto.THREAD_NAME, threadName);
+        proto.write(LooperStatsProto.START_TIME_MS, startTime);
+        proto.write(LooperStatsProto.MESSAGE_COUNT, messageCount);
+        for (MessageStat e : stats) {
+            final long token = proto.start(LooperStatsProto.MESSAGE_STATS);
+            proto.write(LooperStatsProto.MessageStat.HANDLER_CLASS, e.handlerClass.getName());
+            if (e.callbackClass != null) {
+                proto.write(LooperStatsProto.MessageStat.CALLBACK_CLASS,
+                        e.callbackClass.getName());
+            } else {
+                proto.write(LooperStatsProto.MessageStat.WHAT, e.what);
+            }
+            proto.write(LooperStatsProto.MessageStat.COUNT, e.count);
+            proto.write(LooperStatsProto.MessageStat.DISPATCH_TIME_MICROS, e.dispatchTime);
+            proto.write(LooperStatsProto.MessageStat.MAX_DISPATCH_TIME_MICROS,
+                    e.maxDispatchTime);
+            proto.write(LooperStatsProto.MessageStat.DELAYED_COUNT, e.delayedCount);
+            proto.write(LooperStatsProto.MessageStat.DELAY_MICROS, e.delay);
+            proto.write(LooperStatsProto.MessageStat.MAX_DELAY_MICROS, e.maxDelay);
+            for (long count : e.dispatchHistogram) {
+                proto.write(LooperStatsProto.MessageStat.DISPATCH_HISTOGRAM, count);
+            }
+            for (long count : e.delayHistogram) {
+                proto.write(LooperStatsProto.MessageStat.DELAY_HISTOGRAM, count);
+            }
+            proto.end(token);
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mHandlerEntries.clear();
+            mMessageCount = 0;
+            mStartTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns the index of the latency histogram bucket for the given time.
+     */
+    @VisibleForTesting
+    public static int getHistogramBucket(long micros) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(micros / HISTOGRAM_FIRST_BUCKET_MICROS);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    private static class MessageStat {
+        final Class<? extends Handler> handlerClass;
+        final Class<?> callbackClass;
+        final int what;
+        long count;
+        long dispatchTime;
+        long maxDispatchTime;
+        long delayedCount;
+        long delay;
+        long maxDelay;
+        final long[] dispatchHistogram = new long[HISTOGRAM_BUCKETS];
+        final long[] delayHistogram = new long[HISTOGRAM_BUCKETS];
+
+        MessageStat(Class<? extends Handler> handlerClass, Class<?> callbackClass, int what) {
+            this.handlerClass = handlerClass;
+            this.callbackClass = callbackClass;
+            this.what = what;
+        }
+
+        void record(long delayMicros, long dispatchMicros) {
+            count++;
+            dispatchTime += dispatchMicros;
+            if (dispatchMicros > maxDispatchTime) {
+                maxDispatchTime = dispatchMicros;
+            }
+            dispatchHistogram[getHistogramBucket(dispatchMicros)]++;
+            if (delayMicros >= 0) {
+                delayedCount++;
+                delay += delayMicros;
+                if (delayMicros > maxDelay) {
+                    maxDelay = delayMicros;
+                }
+                delayHistogram[getHistogramBucket(delayMicros)]++;
+            }
+        }
+
+        MessageStat copy() {
+            final MessageStat copy = new MessageStat(handlerClass, callbackClass, what);
+            copy.count = count;
+            copy.dispatchTime = dispatchTime;
+            copy.maxDispatchTime = maxDispatchTime;
+            copy.delayedCount = delayedCount;
+            copy.delay = delay;
+            copy.maxDelay = maxDelay;
+            System.arraycopy(dispatchHistogram, 0, copy.dispatchHistogram, 0, HISTOGRAM_BUCKETS);
+            System.arraycopy(delayHistogram, 0, copy.delayHistogram, 0, HISTOGRAM_BUCKETS);
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return handlerClass.getName() + "/"
+                    + (callbackClass != null ? callbackClass.getName() : Integer.toString(what));
+        }
+    }
+
+    private static class HandlerEntry {
+        final SparseArray<MessageStat> mWhatStats = new SparseArray<>();
+        final ArrayMap<Class<?>, MessageStat> mCallbackStats = new ArrayMap<>();
+
+        MessageStat getOrCreate(Class<? extends Handler> handlerClass, int what) {
+            MessageStat stat = mWhatStats.get(what);
+            if (stat == null) {
+                stat = new MessageStat(handlerClass, null, what);
+                mWhatStats.put(what, stat);
+            }
+            return stat;
+        }
+
+        MessageStat getOrCreate(Class<? extends Handler> handlerClass, Class<?> callbackClass) {
+            MessageStat stat = mCallbackStats.get(callbackClass);
+            if (stat == null) {
+                stat = new MessageStat(handlerClass, callbackClass, 0);
+                mCallbackStats.put(callbackClass, stat);
+            }
+            return stat;
+        }
+
+        void copyTo(List<MessageStat> stats) {
+            for (int i = 0; i < mWhatStats.size(); i++) {
+                stats.add(mWhatStats.valueAt(i).copy());
+            }
+            for (int i = 0; i < mCallbackStats.size(); i++) {
+                stats.add(mCallbackStats.valueAt(i).copy());
+            }
+        }
+    }
+}
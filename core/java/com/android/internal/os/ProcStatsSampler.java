@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static android.os.Process.PROC_COMBINE;
+import static android.os.Process.PROC_OUT_FLOAT;
+import static android.os.Process.PROC_OUT_LONG;
+import static android.os.Process.PROC_PARENS;
+import static android.os.Process.PROC_SPACE_TERM;
+
+import android.os.Process;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.FileDescriptor;
+import java.util.Arrays;
+
+/**
+ * Samples the system wide and per process CPU counters of /proc on behalf of all the
+ * {@link ProcessCpuTracker}s of a process, so that trackers updating at about the same time
+ * share a single pass over /proc instead of each listing and parsing it on their own.
+ * <p>
+ * {@link #sample()} is throttled: a sample younger than the throttle interval is handed out
+ * again instead of reading /proc. Samples are immutable, consumers compute their deltas against
+ * the previous sample they have seen. /proc/stat and /proc/loadavg are kept open between
+ * samples and all values are parsed into reused primitive buffers; only the per process arrays
+ * of a published sample are allocated.
+ * </p>
+ */
+public class ProcStatsSampler {
+    private static final String TAG = "ProcStatsSampler";
+
+    // Throttle interval in milliseconds.
+    private static final long DEFAULT_THROTTLE_INTERVAL = 100L;
+
+    // Large enough for the first line of /proc/stat, same as Process.readProcFile.
+    private static final int PROC_LINE_BUFFER_SIZE = 256;
+
+    private static final int[] PROCESS_STATS_FORMAT = new int[] {
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_PARENS,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 10: minor faults
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 12: major faults
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 14: utime
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 15: stime
+    };
+
+    /** Indexes of the per process values, in jiffies for the times. */
+    public static final int PROCESS_STAT_MINOR_FAULTS = 0;
+    public static final int PROCESS_STAT_MAJOR_FAULTS = 1;
+    public static final int PROCESS_STAT_UTIME = 2;
+    public static final int PROCESS_STAT_STIME = 3;
+    public static final int PROCESS_STAT_COUNT = 4;
+
+    private static final int[] SYSTEM_CPU_FORMAT = new int[] {
+        PROC_SPACE_TERM|PROC_COMBINE,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 1: user time
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 2: nice time
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 3: sys time
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 4: idle time
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 5: iowait time
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 6: irq time
+        PROC_SPACE_TERM|PROC_OUT_LONG                   // 7: softirq time
+    };
+
+    /** Indexes of the system wide CPU times, in jiffies. */
+    public static final int SYSTEM_CPU_USER = 0;
+    public static final int SYSTEM_CPU_NICE = 1;
+    public static final int SYSTEM_CPU_SYSTEM = 2;
+    public static final int SYSTEM_CPU_IDLE = 3;
+    public static final int SYSTEM_CPU_IOWAIT = 4;
+    public static final int SYSTEM_CPU_IRQ = 5;
+    public static final int SYSTEM_CPU_SOFTIRQ = 6;
+    public static final int SYSTEM_CPU_COUNT = 7;
+
+    private static final int[] LOAD_AVERAGE_FORMAT = new int[] {
+        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 0: 1 min
+        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 1: 5 mins
+        PROC_SPACE_TERM|PROC_OUT_FLOAT                  // 2: 15 mins
+    };
+
+    private static final ProcStatsSampler sInstance = new ProcStatsSampler();
+
+    public static ProcStatsSampler getInstance() {
+        return sInstance;
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private long mThrottleInterval = DEFAULT_THROTTLE_INTERVAL;
+    @GuardedBy("mLock")
+    private Sample mLastSample;
+
+    @GuardedBy("mLock")
+    private final ProcFile mSystemCpuFile = new ProcFile("/proc/stat");
+    @GuardedBy("mLock")
+    private final ProcFile mLoadAverageFile = new ProcFile("/proc/loadavg");
+    @GuardedBy("mLock")
+    private final long[] mSystemCpuData = new long[SYSTEM_CPU_COUNT];
+    @GuardedBy("mLock")
+    private final float[] mLoadAverageData = new float[3];
+    @GuardedBy("mLock")
+    private final long[] mProcessStatsData = new long[PROCESS_STAT_COUNT];
+
+    // Buffers for the listed pids and the values of the readable ones, grown as needed.
+    @GuardedBy("mLock")
+    private int[] mPids;
+    @GuardedBy("mLock")
+    private int[] mReadPids = new int[0];
+    @GuardedBy("mLock")
+    private long[] mReadStats = new long[0];
+
+    // Paths of the stat files of the pids of the last sample.
+    @GuardedBy("mLock")
+    private final SparseArray<String> mStatFiles = new SparseArray<>();
+
+    @VisibleForTesting
+    public ProcStatsSampler() {
+    }
+
+    /**
+     * Returns the most recent sample, reading /proc if it is older than the throttle interval.
+     * Callers that come in while another one is reading wait for and share its sample.
+     */
+    public Sample sample() {
+        synchronized (mLock) {
+            final long nowRealtime = SystemClock.elapsedRealtime();
+            if (mLastSample != null
+                    && nowRealtime < mLastSample.mElapsedRealtime + mThrottleInterval) {
+                return mLastSample;
+            }
+            final int oldMask = StrictMode.allowThreadDiskReadsMask();
+            try {
+                mLastSample = readSampleLocked();
+            } finally {
+                StrictMode.setThreadPolicyMask(oldMask);
+            }
+            return mLastSample;
+        }
+    }
+
+    /**
+     * Sets the throttle interval in milliseconds. 0 disables throttling.
+     */
+    public void setThrottleInterval(long throttleInterval) {
+        if (throttleInterval >= 0) {
+            synchronized (mLock) {
+                mThrottleInterval = throttleInterval;
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Sample readSampleLocked() {
+        final long nowUptime = SystemClock.uptimeMillis();
+        final long nowRealtime = SystemClock.elapsedRealtime();
+        final long nowWallTime = System.currentTimeMillis();
+
+        final boolean hasSystemCpu = mSystemCpuFile.read(SYSTEM_CPU_FORMAT, mSystemCpuData,
+                null);
+
+        mPids = Process.getPids("/proc", mPids);
+        int count = 0;
+        final int NP = mPids == null ? 0 : mPids.length;
+        if (mReadPids.length < NP) {
+            mReadPids = new int[NP];
+            mReadStats = new long[NP * PROCESS_STAT_COUNT];
+        }
+        for (int i = 0; i < NP; i++) {
+            final int pid = mPids[i];
+            if (pid < 0) {
+                break;
+            }
+            String statFile = mStatFiles.get(pid);
+            if (statFile == null) {
+                statFile = "/proc/" + pid + "/stat";
+                mStatFiles.put(pid, statFile);
+            }
+            // Processes that went away since they were listed are left out.
+            if (Process.readProcFile(statFile, PROCESS_STATS_FORMAT, null, mProcessStatsData,
+                    null)) {
+                mReadPids[count] = pid;
+                System.arraycopy(mProcessStatsData, 0, mReadStats, count * PROCESS_STAT_COUNT,
+                        PROCESS_STAT_COUNT);
+                count++;
+            }
+        }
+
+        final boolean hasLoadAverages = mLoadAverageFile.read(LOAD_AVERAGE_FORMAT, null,
+                mLoadAverageData);
+
+        final Sample sample = new Sample(nowUptime, nowRealtime, nowWallTime,
+                hasSystemCpu ? mSystemCpuData.clone() : null,
+                hasLoadAverages ? mLoadAverageData.clone() : null,
+                Arrays.copyOf(mReadPids, count),
+                Arrays.copyOf(mReadStats, count * PROCESS_STAT_COUNT));
+
+        for (int i = mStatFiles.size() - 1; i >= 0; i--) {
+            if (sample.indexOfPid(mStatFiles.keyAt(i)) < 0) {
+                mStatFiles.removeAt(i);
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * An immutable sample of the CPU counters of /proc.
+     */
+    public static final class Sample {
+        final long mUptime;
+        final long mElapsedRealtime;
+        final long mWallTime;
+        final long[] mSystemCpu;
+        final float[] mLoadAverages;
+        // Ascending, as listed by the kernel.
+        final int[] mPids;
+        final long[] mProcessStats;
+
+        Sample(long uptime, long elapsedRealtime, long wallTime, long[] systemCpu,
+                float[] loadAverages, int[] pids, long[] processStats) {
+            mUptime = uptime;
+            mElapsedRealtime = elapsedRealtime;
+            mWallTime = wallTime;
+            mSystemCpu = systemCpu;
+            mLoadAverages = loadAverages;
+            mPids = pids;
+            mProcessStats = processStats;
+        }
+
+        /** Time of the sample based on {@link SystemClock#uptimeMillis()}. */
+        public long getUptime() {
+            return mUptime;
+        }
+
+        /** Time of the sample based on {@link SystemClock#elapsedRealtime()}. */
+        public long getElapsedRealtime() {
+            return mElapsedRealtime;
+        }
+
+        /** Time of the sample based on {@link System#currentTimeMillis()}. */
+        public long getWallTime() {
+            return mWallTime;
+        }
+
+        public boolean hasSystemCpuTimes() {
+            return mSystemCpu != null;
+        }
+
+        /**
+         * @param field one of the SYSTEM_CPU_* indexes.
+         * @return time in jiffies.
+         */
+        public long getSystemCpuTime(int field) {
+            return mSystemCpu[field];
+        }
+
+        public boolean hasLoadAverages() {
+            return mLoadAverages != null;
+        }
+
+        /**
+         * @param index 0, 1 and 2 for the 1, 5 and 15 minutes average.
+         */
+        public float getLoadAverage(int index) {
+            return mLoadAverages[index];
+        }
+
+        /** Number of processes whose counters could be read. */
+        public int countProcesses() {
+            return mPids.length;
+        }
+
+        public int getPid(int index) {
+            return mPids[index];
+        }
+
+        /**
+         * Returns the index of the given pid, or a negative number if the sample does not
+         * have it.
+         */
+        public int indexOfPid(int pid) {
+            return Arrays.binarySearch(mPids, pid);
+        }
+
+        /**
+         * @param field one of the PROCESS_STAT_* indexes.
+         */
+        public long getProcessStat(int index, int field) {
+            return mProcessStats[index * PROCESS_STAT_COUNT + field];
+        }
+
+        /**
+         * Copies all the PROCESS_STAT_* values of a process, in that order.
+         */
+        public void getProcessStats(int index, long[] outStats) {
+            System.arraycopy(mProcessStats, index * PROCESS_STAT_COUNT, outStats, 0,
+                    PROCESS_STAT_COUNT);
+        }
+    }
+
+    /**
+     * A single line proc file that stays open and is re-read from the start.
+     */
+    private static final class ProcFile {
+        private final String mPath;
+        private final byte[] mBuffer = new byte[PROC_LINE_BUFFER_SIZE];
+        private FileDescriptor mFd;
+
+        ProcFile(String path) {
+            mPath = path;
+        }
+
+        boolean read(int[] format, long[] outLongs, float[] outFloats) {
+            try {
+                if (mFd == null) {
+                    mFd = Os.open(mPath, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+                }
+                final int len = Os.pread(mFd, mBuffer, 0, mBuffer.length, 0);
+                return len > 0
+                        && Process.parseProcLine(mBuffer, 0, len, format, null, outLongs,
+                                outFloats);
+            } catch (ErrnoException e) {
+                Slog.w(TAG, "Failed to read " + mPath, e);
+                // Reopen on the next read.
+                IoUtils.closeQuietly(mFd);
+                mFd = null;
+                return false;
+            }
+        }
+    }
+}
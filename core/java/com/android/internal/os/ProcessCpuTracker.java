@@ -26,6 +26,7 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import libcore.io.IoUtils;
@@ -113,29 +114,13 @@ public class ProcessCpuTracker {
     private final String[] mProcessFullStatsStringData = new String[6];
     private final long[] mProcessFullStatsData = new long[6];
 
-    private static final int[] SYSTEM_CPU_FORMAT = new int[] {
-        PROC_SPACE_TERM|PROC_COMBINE,
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 1: user time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 2: nice time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 3: sys time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 4: idle time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 5: iowait time
-        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 6: irq time
-        PROC_SPACE_TERM|PROC_OUT_LONG                   // 7: softirq time
-    };
-
-    private final long[] mSystemCpuData = new long[7];
-
-    private static final int[] LOAD_AVERAGE_FORMAT = new int[] {
-        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 0: 1 min
-        PROC_SPACE_TERM|PROC_OUT_FLOAT,                 // 1: 5 mins
-        PROC_SPACE_TERM|PROC_OUT_FLOAT                  // 2: 15 mins
-    };
-
-    private final float[] mLoadAverageData = new float[3];
+    private final long[] mSystemCpuData = new long[ProcStatsSampler.SYSTEM_CPU_COUNT];
 
     private final boolean mIncludeThreads;
 
+    // Shared source of the system wide and per process counters, see ProcStatsSampler.
+    private final ProcStatsSampler mSampler;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -168,7 +153,6 @@ public class ProcessCpuTracker {
     private int mRelIdleTime;
     private boolean mRelStatsAreGood;
 
-    private int[] mCurPids;
     private int[] mCurThreadPids;
 
     private final ArrayList<Stats> mProcStats = new ArrayList<Stats>();
@@ -294,7 +278,13 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, ProcStatsSampler.getInstance());
+    }
+
+    @VisibleForTesting
+    public ProcessCpuTracker(boolean includeThreads, ProcStatsSampler sampler) {
         mIncludeThreads = includeThreads;
+        mSampler = sampler;
         long jiffyHz = Os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
@@ -315,13 +305,16 @@ public class ProcessCpuTracker {
     public void update() {
         if (DEBUG) Slog.v(TAG, "Update: " + this);
 
-        final long nowUptime = SystemClock.uptimeMillis();
-        final long nowRealtime = SystemClock.elapsedRealtime();
-        final long nowWallTime = System.currentTimeMillis();
+        final ProcStatsSampler.Sample sample = mSampler.sample();
+        final long nowUptime = sample.getUptime();
+        final long nowRealtime = sample.getElapsedRealtime();
+        final long nowWallTime = sample.getWallTime();
 
-        final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
-                null, sysCpu, null)) {
+        if (sample.hasSystemCpuTimes()) {
+            final long[] sysCpu = mSystemCpuData;
+            for (int i = 0; i < ProcStatsSampler.SYSTEM_CPU_COUNT; i++) {
+                sysCpu[i] = sample.getSystemCpuTime(i);
+            }
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
             // Total system time is simply system time.
@@ -385,17 +378,15 @@ public class ProcessCpuTracker {
 
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            collectStats(sample.mPids, -1, mFirst, mProcStats, sample);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
 
-        final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
-                null, null, loadAverages)) {
-            float load1 = loadAverages[0];
-            float load5 = loadAverages[1];
-            float load15 = loadAverages[2];
+        if (sample.hasLoadAverages()) {
+            float load1 = sample.getLoadAverage(0);
+            float load5 = sample.getLoadAverage(1);
+            float load15 = sample.getLoadAverage(2);
             if (load1 != mLoad1 || load5 != mLoad5 || load15 != mLoad15) {
                 mLoad1 = load1;
                 mLoad5 = load5;
@@ -411,10 +402,13 @@ public class ProcessCpuTracker {
         mFirst = false;
     }
 
-    private int[] collectStats(String statsFile, int parentPid, boolean first,
-            int[] curPids, ArrayList<Stats> allProcs) {
+    /**
+     * Updates the stats of the processes, or of the threads of a process, against the given
+     * pids. The counters of processes come from the sample, the ones of threads are read here.
+     */
+    private void collectStats(int[] pids, int parentPid, boolean first,
+            ArrayList<Stats> allProcs, ProcStatsSampler.Sample sample) {
 
-        int[] pids = Process.getPids(statsFile, curPids);
         int NP = (pids == null) ? 0 : pids.length;
         int NS = allProcs.size();
         int curStatsIndex = 0;
@@ -436,12 +430,18 @@ public class ProcessCpuTracker {
                         + " pid " + pid + ": " + st);
 
                 if (st.interesting) {
-                    final long uptime = SystemClock.uptimeMillis();
+                    final long uptime;
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
-                            PROCESS_STATS_FORMAT, null, procStats, null)) {
-                        continue;
+                    if (parentPid < 0) {
+                        uptime = sample.getUptime();
+                        sample.getProcessStats(i, procStats);
+                    } else {
+                        uptime = SystemClock.uptimeMillis();
+                        if (!Process.readProcFile(st.statFile.toString(),
+                                PROCESS_STATS_FORMAT, null, procStats, null)) {
+                            continue;
+                        }
                     }
 
                     final long minfaults = procStats[PROCESS_STAT_MINOR_FAULTS];
@@ -467,8 +467,8 @@ public class ProcessCpuTracker {
                     if (parentPid < 0) {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
-                            mCurThreadPids = collectStats(st.threadsDir, pid, false,
-                                    mCurThreadPids, st.threadStats);
+                            mCurThreadPids = Process.getPids(st.threadsDir, mCurThreadPids);
+                            collectStats(mCurThreadPids, pid, false, st.threadStats, null);
                         }
                     }
 
@@ -536,10 +536,20 @@ public class ProcessCpuTracker {
                 }
 
                 if (parentPid < 0) {
+                    // Start from the sample the next deltas are taken against.
+                    st.base_uptime = sample.getUptime();
+                    st.base_minfaults = sample.getProcessStat(i,
+                            ProcStatsSampler.PROCESS_STAT_MINOR_FAULTS);
+                    st.base_majfaults = sample.getProcessStat(i,
+                            ProcStatsSampler.PROCESS_STAT_MAJOR_FAULTS);
+                    st.base_utime = sample.getProcessStat(i,
+                            ProcStatsSampler.PROCESS_STAT_UTIME) * mJiffyMillis;
+                    st.base_stime = sample.getProcessStat(i,
+                            ProcStatsSampler.PROCESS_STAT_STIME) * mJiffyMillis;
                     getName(st, st.cmdlineFile);
                     if (st.threadStats != null) {
-                        mCurThreadPids = collectStats(st.threadsDir, pid, true,
-                                mCurThreadPids, st.threadStats);
+                        mCurThreadPids = Process.getPids(st.threadsDir, mCurThreadPids);
+                        collectStats(mCurThreadPids, pid, true, st.threadStats, null);
                     }
                 } else if (st.interesting) {
                     st.name = st.baseName;
@@ -592,8 +602,6 @@ public class ProcessCpuTracker {
             NS--;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
         }
-
-        return pids;
     }
 
     /**
@@ -27,6 +27,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -69,6 +73,15 @@ public class FileRotator {
         public void read(InputStream in) throws IOException;
     }
 
+    /**
+     * {@link Reader} that can also read directly from a read-only mapping of
+     * each file, which lets it skip over data it is not interested in without
+     * copying it.
+     */
+    public interface MappedReader extends Reader {
+        public void read(ByteBuffer buffer) throws IOException;
+    }
+
     /**
      * External class that writes data to a given {@link OutputStream}.
      */
@@ -366,6 +379,10 @@ public class FileRotator {
     }
 
     private static void readFile(File file, Reader reader) throws IOException {
+        if (reader instanceof MappedReader) {
+            readMappedFile(file, (MappedReader) reader);
+            return;
+        }
         final FileInputStream fis = new FileInputStream(file);
         final BufferedInputStream bis = new BufferedInputStream(fis);
         try {
@@ -375,6 +392,21 @@ public class FileRotator {
         }
     }
 
+    private static void readMappedFile(File file, MappedReader reader) throws IOException {
+        final FileInputStream fis = new FileInputStream(file);
+        MappedByteBuffer buffer = null;
+        try {
+            final FileChannel channel = fis.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            reader.read(buffer);
+        } finally {
+            if (buffer != null) {
+                NioUtils.freeDirectBuffer(buffer);
+            }
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
     private static void writeFile(File file, Writer writer) throws IOException {
         final FileOutputStream fos = new FileOutputStream(file);
         final BufferedOutputStream bos = new BufferedOutputStream(fos);
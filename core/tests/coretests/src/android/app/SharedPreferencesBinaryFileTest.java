@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPreferencesBinaryFileTest {
+    private static final String NAME = "SharedPreferencesBinaryFileTest";
+
+    private Context mContext;
+    private Context mOtherContext;
+    private File mDir;
+    private File mPrefsFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+        mOtherContext = mContext.createDeviceProtectedStorageContext();
+        mContext.deleteSharedPreferences(NAME);
+        mOtherContext.deleteSharedPreferences(NAME);
+
+        mDir = new File(mContext.getCacheDir(), NAME);
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+        mPrefsFile = new File(mDir, "prefs.xml");
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteSharedPreferences(NAME);
+        mOtherContext.deleteSharedPreferences(NAME);
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    private static Map<String, Object> mapOf(Object... keysAndValues) {
+        final Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    private File getLogFile() {
+        return new File(mPrefsFile.getPath() + ".log");
+    }
+
+    private Map<String, Object> readAgain() throws Exception {
+        return new SharedPreferencesBinaryFile(mPrefsFile).read();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Set<String> set = new HashSet<>();
+        set.add("one");
+        set.add("two");
+        final SharedPreferencesBinaryFile file = new SharedPreferencesBinaryFile(mPrefsFile);
+        file.writeSnapshot(mapOf("int", 1, "long", 2L, "float", 3f, "boolean", true,
+                "string", "\ud800 broken surrogate", "set", set), Context.MODE_PRIVATE);
+        file.append(false, mapOf("int", 4, "long", null), Context.MODE_PRIVATE);
+
+        assertEquals(mapOf("int", 4, "float", 3f, "boolean", true,
+                "string", "\ud800 broken surrogate", "set", set), readAgain());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final SharedPreferencesBinaryFile file = new SharedPreferencesBinaryFile(mPrefsFile);
+        file.writeSnapshot(mapOf("a", 1, "b", 2), Context.MODE_PRIVATE);
+        file.append(true, mapOf("c", 3), Context.MODE_PRIVATE);
+
+        assertEquals(mapOf("c", 3), readAgain());
+    }
+
+    @Test
+    public void testTornWriteIsDroppedAsAWhole() throws Exception {
+        final SharedPreferencesBinaryFile file = new SharedPreferencesBinaryFile(mPrefsFile);
+        file.writeSnapshot(mapOf("a", 1), Context.MODE_PRIVATE);
+        file.append(false, mapOf("a", 2), Context.MODE_PRIVATE);
+        file.append(true, mapOf("b", 3, "c", 4), Context.MODE_PRIVATE);
+
+        try (RandomAccessFile log = new RandomAccessFile(getLogFile(), "rw")) {
+            log.setLength(log.length() - 3);
+        }
+        assertEquals(mapOf("a", 2), readAgain());
+
+        // Later writes are appended after the last valid one.
+        final SharedPreferencesBinaryFile reread = new SharedPreferencesBinaryFile(mPrefsFile);
+        reread.read();
+        reread.append(false, mapOf("d", 5), Context.MODE_PRIVATE);
+        assertEquals(mapOf("a", 2, "d", 5), readAgain());
+    }
+
+    @Test
+    public void testLogOfOlderSnapshotIsIgnored() throws Exception {
+        final SharedPreferencesBinaryFile file = new SharedPreferencesBinaryFile(mPrefsFile);
+        file.writeSnapshot(mapOf("a", 1, "b", 1), Context.MODE_PRIVATE);
+        file.append(true, mapOf("a", 2), Context.MODE_PRIVATE);
+        final byte[] oldLog = Files.readAllBytes(getLogFile().toPath());
+
+        // Crash after writing the next snapshot, before resetting the log.
+        file.writeSnapshot(mapOf("a", 3, "c", 3), Context.MODE_PRIVATE);
+        try (FileOutputStream out = new FileOutputStream(getLogFile())) {
+            out.write(oldLog);
+        }
+        assertEquals(mapOf("a", 3, "c", 3), readAgain());
+    }
+
+    @Test
+    public void testIncompleteSnapshotFallsBackToBackup() throws Exception {
+        final SharedPreferencesBinaryFile file = new SharedPreferencesBinaryFile(mPrefsFile);
+        file.writeSnapshot(mapOf("a", 1), Context.MODE_PRIVATE);
+        file.append(false, mapOf("b", 2), Context.MODE_PRIVATE);
+
+        // Crash while writing the next snapshot.
+        final File snapshot = new File(mPrefsFile.getPath() + ".bin");
+        assertTrue(snapshot.renameTo(new File(snapshot.getPath() + ".bak")));
+        try (FileOutputStream out = new FileOutputStream(snapshot)) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+        assertEquals(mapOf("a", 1, "b", 2), readAgain());
+    }
+
+    /**
+     * Moves the preferences to the other storage, which evicts them from the cache so that the
+     * next {@link Context#getSharedPreferences} reads them from disk.
+     */
+    private SharedPreferences reload(int mode) {
+        assertTrue(mOtherContext.moveSharedPreferencesFrom(mContext, NAME));
+        final Context context = mContext;
+        mContext = mOtherContext;
+        mOtherContext = context;
+        return mContext.getSharedPreferences(NAME, mode);
+    }
+
+    private File getFile(String suffix) {
+        return new File(mContext.getSharedPreferencesPath(NAME).getPath() + suffix);
+    }
+
+    @Test
+    public void testBinaryPreferences() {
+        SharedPreferences prefs = mContext.getSharedPreferences(NAME,
+                Context.MODE_BINARY_PREFERENCES);
+        assertTrue(prefs.edit().putInt("a", 1).putString("b", "2").commit());
+        prefs.edit().putLong("c", 3L).apply();
+        QueuedWork.waitToFinish();
+        assertTrue(getFile(".bin").exists());
+        assertFalse(getFile("").exists());
+
+        prefs = reload(Context.MODE_BINARY_PREFERENCES);
+        assertEquals(1, prefs.getInt("a", 0));
+        assertEquals("2", prefs.getString("b", null));
+        assertEquals(3L, prefs.getLong("c", 0));
+    }
+
+    @Test
+    public void testConvertFromXml() {
+        SharedPreferences prefs = mContext.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+        assertTrue(prefs.edit().putInt("a", 1).commit());
+
+        prefs = reload(Context.MODE_BINARY_PREFERENCES);
+        assertEquals(1, prefs.getInt("a", 0));
+        assertTrue(prefs.edit().putInt("b", 2).commit());
+        assertFalse(getFile("").exists());
+        assertTrue(getFile(".bin").exists());
+
+        prefs = reload(Context.MODE_BINARY_PREFERENCES);
+        assertEquals(1, prefs.getInt("a", 0));
+        assertEquals(2, prefs.getInt("b", 0));
+    }
+
+    @Test
+    public void testConvertBackToXml() {
+        SharedPreferences prefs = mContext.getSharedPreferences(NAME,
+                Context.MODE_BINARY_PREFERENCES);
+        assertTrue(prefs.edit().putInt("a", 1).commit());
+
+        prefs = reload(Context.MODE_PRIVATE);
+        assertEquals(1, prefs.getInt("a", 0));
+        assertTrue(prefs.edit().putInt("b", 2).commit());
+        assertTrue(getFile("").exists());
+        assertFalse(getFile(".bin").exists());
+        assertFalse(getFile(".log").exists());
+
+        prefs = reload(Context.MODE_PRIVATE);
+        assertEquals(1, prefs.getInt("a", 0));
+        assertEquals(2, prefs.getInt("b", 0));
+    }
+
+    @Test
+    public void testDeleteSharedPreferences() {
+        SharedPreferences prefs = mContext.getSharedPreferences(NAME,
+                Context.MODE_BINARY_PREFERENCES);
+        assertTrue(prefs.edit().putInt("a", 1).commit());
+        assertTrue(prefs.edit().putInt("b", 2).commit());
+        assertTrue(getFile(".log").exists());
+
+        assertTrue(mContext.deleteSharedPreferences(NAME));
+        assertFalse(getFile(".bin").exists());
+        assertFalse(getFile(".log").exists());
+
+        prefs = mContext.getSharedPreferences(NAME, Context.MODE_BINARY_PREFERENCES);
+        assertFalse(prefs.contains("a"));
+        assertFalse(prefs.contains("b"));
+    }
+}
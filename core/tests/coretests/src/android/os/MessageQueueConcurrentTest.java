@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MessageQueue} with {@link MessageQueue#enableConcurrentEnqueue()}.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class MessageQueueConcurrentTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mThread;
+    private MessageQueue mQueue;
+    private Handler mHandler;
+    private CountDownLatch mHandled;
+    // Only touched on the looper thread until mHandled is released.
+    private final List<Integer> mOrder = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueueConcurrentTest");
+        mThread.start();
+        mQueue = mThread.getLooper().getQueue();
+        mQueue.enableConcurrentEnqueue();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                mOrder.add(msg.what);
+                mHandled.countDown();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    /**
+     * Keeps the looper busy until the returned latch is released.
+     */
+    private CountDownLatch blockLooper() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mHandler.post(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(running.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return release;
+    }
+
+    private void awaitHandled(Integer... expected) throws Exception {
+        assertTrue(mHandled.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(expected), mOrder);
+    }
+
+    private static void sleepUntil(long uptimeMillis) {
+        long now;
+        while ((now = SystemClock.uptimeMillis()) < uptimeMillis) {
+            SystemClock.sleep(uptimeMillis - now);
+        }
+    }
+
+    @Test
+    public void testMessageOrder() throws Exception {
+        mHandled = new CountDownLatch(5);
+        final long when = SystemClock.uptimeMillis() + 200;
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(2), when + 1);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(3), when + 2);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(4), when + 2);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(0), when);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(1), when);
+        awaitHandled(0, 1, 2, 3, 4);
+    }
+
+    @Test
+    public void testDelayedMessageStaysAheadOfLaterMessageDueAtSameTime() throws Exception {
+        mHandled = new CountDownLatch(2);
+        final CountDownLatch release = blockLooper();
+        final long when = SystemClock.uptimeMillis() + 100;
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(0), when);
+        // Moves message 0 out of the inbox while it is not due yet.
+        assertTrue(mHandler.hasMessages(0));
+        sleepUntil(when);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(1), when);
+        release.countDown();
+        awaitHandled(0, 1);
+    }
+
+    @Test
+    public void testAtFrontOfQueue() throws Exception {
+        mHandled = new CountDownLatch(3);
+        final CountDownLatch release = blockLooper();
+        mHandler.sendEmptyMessage(2);
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(1));
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(0));
+        release.countDown();
+        awaitHandled(0, 1, 2);
+    }
+
+    @Test
+    public void testSyncBarrierStallsOnlySyncMessages() throws Exception {
+        mHandled = new CountDownLatch(1);
+        final int token = mQueue.postSyncBarrier();
+        mHandler.sendEmptyMessage(1);
+        final Message async = mHandler.obtainMessage(0);
+        async.setAsynchronous(true);
+        mHandler.sendMessage(async);
+        awaitHandled(0);
+
+        // The synchronous message is still waiting behind the barrier.
+        assertTrue(mHandler.hasMessages(1));
+        mHandled = new CountDownLatch(1);
+        mQueue.removeSyncBarrier(token);
+        awaitHandled(0, 1);
+    }
+
+    @Test
+    public void testAsyncMessageWakesLooperBlockedOnBarrier() throws Exception {
+        mHandled = new CountDownLatch(1);
+        mQueue.postSyncBarrier();
+        mHandler.sendEmptyMessage(1);
+        // Let the looper block on the barrier.
+        SystemClock.sleep(100);
+        final Message async = mHandler.obtainMessage(0);
+        async.setAsynchronous(true);
+        mHandler.sendMessage(async);
+        awaitHandled(0);
+    }
+
+    @Test
+    public void testRemoveMessages() throws Exception {
+        mHandled = new CountDownLatch(1);
+        final CountDownLatch release = blockLooper();
+        final Object token = new Object();
+        mHandler.sendEmptyMessageDelayed(0, 60 * 1000);
+        mHandler.sendMessage(mHandler.obtainMessage(1, token));
+        mHandler.sendEmptyMessage(2);
+        assertTrue(mHandler.hasMessages(0));
+        assertTrue(mHandler.hasMessages(1, token));
+
+        mHandler.removeMessages(0);
+        mHandler.removeCallbacksAndMessages(token);
+        assertFalse(mHandler.hasMessages(0));
+        assertFalse(mHandler.hasMessages(1));
+        assertTrue(mHandler.hasMessages(2));
+        release.countDown();
+        awaitHandled(2);
+    }
+
+    @Test
+    public void testSendersKeepTheirOrder() throws Exception {
+        final int threads = 4;
+        final int count = 1000;
+        mHandled = new CountDownLatch(threads * count);
+        final int[] lastSeen = new int[threads];
+        Arrays.fill(lastSeen, -1);
+        final boolean[] outOfOrder = new boolean[1];
+        final Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.arg2 != lastSeen[msg.arg1] + 1) {
+                    outOfOrder[0] = true;
+                }
+                lastSeen[msg.arg1] = msg.arg2;
+                mHandled.countDown();
+            }
+        };
+        final Thread[] senders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int sender = i;
+            senders[i] = new Thread(() -> {
+                for (int j = 0; j < count; j++) {
+                    handler.sendMessage(handler.obtainMessage(0, sender, j));
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        assertTrue(mHandled.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Counting down the latch publishes the handler's writes.
+        assertFalse(outOfOrder[0]);
+    }
+
+    @Test
+    public void testEnableWhileSending() throws Exception {
+        final int threads = 4;
+        final int count = 1000;
+        final HandlerThread thread = new HandlerThread("MessageQueueConcurrentTest.enable");
+        thread.start();
+        try {
+            final CountDownLatch handled = new CountDownLatch(threads * count);
+            final Handler handler = new Handler(thread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    handled.countDown();
+                }
+            };
+            final Thread[] senders = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                senders[i] = new Thread(() -> {
+                    for (int j = 0; j < count; j++) {
+                        handler.sendEmptyMessage(0);
+                    }
+                });
+                senders[i].start();
+            }
+            thread.getLooper().getQueue().enableConcurrentEnqueue();
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            // No message sent around the switch is lost.
+            assertTrue(handled.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @Test
+    public void testQuit() throws Exception {
+        mHandled = new CountDownLatch(1);
+        final CountDownLatch release = blockLooper();
+        mHandler.sendEmptyMessage(0);
+        mHandler.sendEmptyMessageDelayed(1, 60 * 1000);
+        mThread.quitSafely();
+        assertFalse(mHandler.sendEmptyMessage(2));
+        release.countDown();
+        awaitHandled(0);
+
+        mThread.join(TIMEOUT_MS);
+        assertFalse(mThread.isAlive());
+        assertEquals(Arrays.asList(0), mOrder);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.OsConstants;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ParcelTest {
+
+    @Test
+    public void testSharedMemoryRegion() throws Exception {
+        final SharedMemory memory = SharedMemory.create("ParcelTest", 3 * 4096);
+        final ByteBuffer source = memory.mapReadWrite();
+        for (int i = 0; i < source.capacity(); i++) {
+            source.put(i, (byte) i);
+        }
+        assertTrue(memory.setProtect(OsConstants.PROT_READ));
+
+        final Parcel p = Parcel.obtain();
+        try {
+            // An unaligned region spanning a page boundary.
+            p.writeSharedMemoryRegion(memory, 4000, 200);
+            p.writeSharedMemoryRegion(null, 0, 0);
+            p.writeInt(42);
+            p.setDataPosition(0);
+
+            final ByteBuffer region = p.readSharedMemoryRegion();
+            assertTrue(region.isReadOnly());
+            assertEquals(200, region.remaining());
+            for (int i = 0; i < 200; i++) {
+                assertEquals((byte) (4000 + i), region.get());
+            }
+            SharedMemory.unmap(region);
+            assertNull(p.readSharedMemoryRegion());
+            assertEquals(42, p.readInt());
+        } finally {
+            p.recycle();
+            SharedMemory.unmap(source);
+            memory.close();
+        }
+    }
+
+    @Test
+    public void testSharedMemoryRegion_empty() throws Exception {
+        final SharedMemory memory = SharedMemory.create("ParcelTest", 4096);
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeSharedMemoryRegion(memory, 4096, 0);
+            p.setDataPosition(0);
+            assertEquals(0, p.readSharedMemoryRegion().remaining());
+        } finally {
+            p.recycle();
+            memory.close();
+        }
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testSharedMemoryRegion_outOfBounds() throws Exception {
+        final SharedMemory memory = SharedMemory.create("ParcelTest", 4096);
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeSharedMemoryRegion(memory, 4000, 200);
+        } finally {
+            p.recycle();
+            memory.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link SettingsSnapshot}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+    private SettingsSnapshot mOwner;
+    private SettingsSnapshot mReader;
+
+    @Before
+    public void setUp() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("adb_enabled", "1");
+        values.put("device_name", "Pixel é");
+        values.put("null_setting", null);
+        mOwner = SettingsSnapshot.create("SettingsSnapshotTest", values);
+        mReader = SettingsSnapshot.fromSharedMemory(parcel(mOwner.getSharedMemory()));
+    }
+
+    @After
+    public void tearDown() {
+        mReader.close();
+        mOwner.close();
+    }
+
+    @Test
+    public void testRead() {
+        final ArrayMap<String, String> values = mReader.getValues();
+        assertEquals(3, values.size());
+        assertEquals("1", values.get("adb_enabled"));
+        assertEquals("Pixel é", values.get("device_name"));
+        assertTrue(values.containsKey("null_setting"));
+        assertNull(values.get("null_setting"));
+        // Unchanged snapshots are not decoded again.
+        assertSame(values, mReader.getValues());
+    }
+
+    @Test
+    public void testUpdate() {
+        mReader.getValues();
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("adb_enabled", "0");
+        assertTrue(mOwner.update(values));
+        final ArrayMap<String, String> read = mReader.getValues();
+        assertEquals(1, read.size());
+        assertEquals("0", read.get("adb_enabled"));
+    }
+
+    @Test
+    public void testUpdateTooLarge() {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        final int capacity = mOwner.getSharedMemory().getSize();
+        values.put("large", new String(new char[capacity]));
+        assertFalse(mOwner.update(values));
+        // The old values are still published.
+        assertEquals("1", mReader.getValues().get("adb_enabled"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        assertTrue(mReader.isValid());
+        mOwner.invalidate();
+        assertFalse(mReader.isValid());
+        assertNull(mReader.getValues());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReaderCannotUpdate() {
+        mReader.update(new ArrayMap<>());
+    }
+
+    private static SharedMemory parcel(SharedMemory memory) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            memory.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return SharedMemory.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LineBreakCacheTest {
+    private static final String TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n"
+            + "Sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.";
+    private static final int WIDTH = 200;
+
+    private TextPaint mPaint;
+
+    @Before
+    public void setup() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(20);
+        LineBreakCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    private StaticLayout build(CharSequence text, int maxLines) {
+        return StaticLayout.Builder.obtain(text, 0, text.length(), mPaint, WIDTH)
+                .setEllipsize(maxLines == Integer.MAX_VALUE ? null : TextUtils.TruncateAt.END)
+                .setMaxLines(maxLines)
+                .build();
+    }
+
+    private static void assertSameLines(Layout expected, Layout actual) {
+        assertEquals(expected.getLineCount(), actual.getLineCount());
+        for (int i = 0; i < expected.getLineCount(); i++) {
+            assertEquals(expected.getLineStart(i), actual.getLineStart(i));
+            assertEquals(expected.getLineEnd(i), actual.getLineEnd(i));
+            assertEquals(expected.getLineTop(i), actual.getLineTop(i));
+            assertEquals(expected.getLineWidth(i), actual.getLineWidth(i), 0.0f);
+            assertEquals(expected.getEllipsisStart(i), actual.getEllipsisStart(i));
+            assertEquals(expected.getEllipsisCount(i), actual.getEllipsisCount(i));
+        }
+    }
+
+    @Test
+    public void testCachedLayoutMatches() {
+        final StaticLayout uncached = build(new SpannedString(TEXT), Integer.MAX_VALUE);
+        assertEquals(0, LineBreakCache.getSize());
+
+        final StaticLayout first = build(TEXT, Integer.MAX_VALUE);
+        assertTrue(LineBreakCache.getSize() > 0);
+        final StaticLayout second = build(TEXT, Integer.MAX_VALUE);
+        assertSameLines(uncached, first);
+        assertSameLines(uncached, second);
+    }
+
+    @Test
+    public void testCachedEllipsizedLayoutMatches() {
+        final StaticLayout uncached = build(new SpannedString(TEXT), 2);
+        build(TEXT, 2);
+        assertSameLines(uncached, build(TEXT, 2));
+        // The paragraphs past the ellipsis are not cached yet.
+        assertSameLines(build(new SpannedString(TEXT), Integer.MAX_VALUE),
+                build(TEXT, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testPaintChangeMisses() {
+        build(TEXT, Integer.MAX_VALUE);
+        mPaint.setTextSize(40);
+        assertSameLines(build(new SpannedString(TEXT), Integer.MAX_VALUE),
+                build(TEXT, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testTrimMemory() {
+        build(TEXT, Integer.MAX_VALUE);
+        LineBreakCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertTrue(LineBreakCache.getSize() > 0);
+        LineBreakCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, LineBreakCache.getSize());
+    }
+}
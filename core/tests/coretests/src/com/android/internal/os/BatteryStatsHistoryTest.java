@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Test class for {@link BatteryStatsHistory}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.BatteryStatsHistoryTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsHistoryTest {
+    private static final int MAX_CHUNKS = 3;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = InstrumentationRegistry.getContext().getDir("battery-history",
+                Context.MODE_PRIVATE);
+        FileUtils.deleteContents(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+    }
+
+    @Test
+    public void testDropsOldestChunk() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, MAX_CHUNKS, null);
+        for (int i = 0; i < MAX_CHUNKS + 2; i++) {
+            addChunk(history, i, i + 1);
+        }
+        assertEquals(MAX_CHUNKS, history.getChunkCount());
+        assertEquals((3 + 4 + 5) * 4, history.getTotalSize());
+        assertChunk(history, 0, 2, 3);
+        assertChunk(history, 2, 4, 5);
+        assertEquals(MAX_CHUNKS, mDir.list().length);
+    }
+
+    @Test
+    public void testRestoreRefs() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, MAX_CHUNKS, null);
+        addChunk(history, 0, 1);
+        addChunk(history, 1, 2);
+        final Parcel refs = Parcel.obtain();
+        history.writeRefsToParcel(refs);
+        // Not referenced, as if the stats were not written after this chunk was sealed.
+        addChunk(history, 2, 3);
+
+        final BatteryStatsHistory restored = new BatteryStatsHistory(mDir, MAX_CHUNKS, null);
+        refs.setDataPosition(0);
+        restored.readRefsFromParcel(refs);
+        refs.recycle();
+        assertEquals(2, restored.getChunkCount());
+        assertChunk(restored, 0, 0, 1);
+        assertChunk(restored, 1, 1, 2);
+        assertEquals(2, mDir.list().length);
+
+        // Sealed after the unreferenced file was deleted, even though it reuses its id.
+        addChunk(restored, 3, 4);
+        assertChunk(restored, 2, 3, 4);
+        assertEquals(3, mDir.list().length);
+    }
+
+    @Test
+    public void testMissingChunkFile() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, MAX_CHUNKS, null);
+        addChunk(history, 0, 1);
+        final Parcel refs = Parcel.obtain();
+        history.writeRefsToParcel(refs);
+        FileUtils.deleteContents(mDir);
+
+        final BatteryStatsHistory restored = new BatteryStatsHistory(mDir, MAX_CHUNKS, null);
+        refs.setDataPosition(0);
+        restored.readRefsFromParcel(refs);
+        refs.recycle();
+        assertEquals(0, restored.getChunkCount());
+        assertEquals(0, restored.getTotalSize());
+    }
+
+    @Test
+    public void testInMemory() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(null, MAX_CHUNKS, null);
+        addChunk(history, 7, 8);
+        assertChunk(history, 0, 7, 8);
+        history.clear();
+        assertEquals(0, history.getChunkCount());
+        assertEquals(0, mDir.list().length);
+    }
+
+    private static void addChunk(BatteryStatsHistory history, int first, int count) {
+        final Parcel buffer = Parcel.obtain();
+        for (int i = 0; i < count; i++) {
+            buffer.writeInt(first + i);
+        }
+        history.addChunk(buffer);
+        buffer.recycle();
+    }
+
+    private static void assertChunk(BatteryStatsHistory history, int index, int first,
+            int count) {
+        final Parcel chunk = history.readChunk(index);
+        assertEquals(count * 4, chunk.dataSize());
+        for (int i = 0; i < count; i++) {
+            assertEquals(first + i, chunk.readInt());
+        }
+        assertEquals(0, chunk.dataAvail());
+        chunk.recycle();
+    }
+}
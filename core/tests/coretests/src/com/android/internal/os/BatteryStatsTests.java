@@ -25,6 +25,7 @@ import org.junit.runners.Suite;
         BatteryStatsCounterTest.class,
         BatteryStatsDualTimerTest.class,
         BatteryStatsDurationTimerTest.class,
+        BatteryStatsHistoryTest.class,
         BatteryStatsHelperTest.class,
         BatteryStatsImplTest.class,
         BatteryStatsNoteTest.class,
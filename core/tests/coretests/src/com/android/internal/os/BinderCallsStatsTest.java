@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test class for {@link BinderCallsStats}.
+ *
+ * To run the tests, use
+ *
+ * runtest -c com.android.internal.os.BinderCallsStatsTest frameworks-core
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinderCallsStatsTest {
+    // Enough calls for the calling thread to hand its counts over to the shared tables.
+    private static final int CALLS = 64;
+
+    @Test
+    public void testHistogramBucket() {
+        assertEquals(0, BinderCallsStats.getHistogramBucket(0));
+        assertEquals(0, BinderCallsStats.getHistogramBucket(7));
+        assertEquals(1, BinderCallsStats.getHistogramBucket(8));
+        assertEquals(1, BinderCallsStats.getHistogramBucket(15));
+        assertEquals(2, BinderCallsStats.getHistogramBucket(16));
+        assertEquals(BinderCallsStats.HISTOGRAM_BUCKETS - 1,
+                BinderCallsStats.getHistogramBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testDetailedTracking() {
+        final BinderCallsStats stats = new BinderCallsStats(true);
+        stats.setSamplingInterval(1);
+        final Binder binder = new TestBinder();
+        for (int i = 0; i < CALLS; i++) {
+            stats.callEnded(stats.callStarted(binder, 42));
+        }
+        final String dump = dump(stats);
+        assertTrue(dump, dump.contains(TestBinder.class.getName() + "/42," + CALLS + ","
+                + CALLS + ","));
+        assertTrue(dump, dump.contains("calls_count=" + CALLS));
+        // The raw data keeps the columns that existing tools parse.
+        assertTrue(dump, dump.contains("Raw data (uid,call_desc,time):\n    "
+                + Binder.getCallingUid() + "," + TestBinder.class.getName() + "/42,"));
+    }
+
+    @Test
+    public void testReset() {
+        final BinderCallsStats stats = new BinderCallsStats(true);
+        final Binder binder = new TestBinder();
+        for (int i = 0; i < CALLS / 2; i++) {
+            stats.callEnded(stats.callStarted(binder, 1));
+        }
+        stats.reset();
+        // Calls counted before the reset but not handed over yet are dropped.
+        for (int i = 0; i < CALLS; i++) {
+            stats.callEnded(stats.callStarted(binder, 2));
+        }
+        final String dump = dump(stats);
+        assertFalse(dump, dump.contains(TestBinder.class.getName() + "/1,"));
+        assertTrue(dump, dump.contains(TestBinder.class.getName() + "/2," + CALLS + ","));
+    }
+
+    @Test
+    public void testNestedCalls() {
+        final BinderCallsStats stats = new BinderCallsStats(false);
+        final Binder binder = new TestBinder();
+        final BinderCallsStats.CallSession outer = stats.callStarted(binder, 1);
+        final BinderCallsStats.CallSession inner = stats.callStarted(binder, 2);
+        assertNotSame(outer, inner);
+        stats.callEnded(inner);
+        stats.callEnded(outer);
+        // Sessions are reused once the calls have ended.
+        final BinderCallsStats.CallSession next = stats.callStarted(binder, 3);
+        assertSame(outer, next);
+        stats.callEnded(next);
+    }
+
+    @Test
+    public void testLeakedSessionIsReleased() {
+        final BinderCallsStats stats = new BinderCallsStats(false);
+        final Binder binder = new TestBinder();
+        final BinderCallsStats.CallSession outer = stats.callStarted(binder, 1);
+        // The nested call never reports its end.
+        stats.callStarted(binder, 2);
+        stats.callEnded(outer);
+        assertSame(outer, stats.callStarted(binder, 3));
+    }
+
+    @Test
+    public void testCallsOfDeadThreadAreKept() throws Exception {
+        final BinderCallsStats stats = new BinderCallsStats(true);
+        final Binder binder = new TestBinder();
+        // Fewer calls than needed for the thread to hand its counts over by itself.
+        final Thread thread = new Thread(() -> {
+            for (int i = 0; i < CALLS / 2; i++) {
+                stats.callEnded(stats.callStarted(binder, 7));
+            }
+        });
+        thread.start();
+        thread.join();
+        final String dump = dump(stats);
+        assertTrue(dump, dump.contains(TestBinder.class.getName() + "/7," + CALLS / 2 + ","));
+    }
+
+    private static String dump(BinderCallsStats stats) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static class TestBinder extends Binder {
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test class for {@link LooperStats}.
+ *
+ * To run the tests, use
+ *
+ * runtest -c com.android.internal.os.LooperStatsTest frameworks-core
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LooperStatsTest {
+
+    @Test
+    public void testHistogramBucket() {
+        assertEquals(0, LooperStats.getHistogramBucket(0));
+        assertEquals(0, LooperStats.getHistogramBucket(15));
+        assertEquals(1, LooperStats.getHistogramBucket(16));
+        assertEquals(2, LooperStats.getHistogramBucket(32));
+        assertEquals(LooperStats.HISTOGRAM_BUCKETS - 1,
+                LooperStats.getHistogramBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testMessagesKeyedByWhatAndCallback() {
+        final LooperStats stats = new LooperStats();
+        final Handler handler = new TestHandler();
+        stats.messageDispatched(Message.obtain(handler, 1), 100, 20);
+        stats.messageDispatched(Message.obtain(handler, 1), -1, 40);
+        stats.messageDispatched(Message.obtain(handler, 2), 0, 10);
+        stats.messageDispatched(Message.obtain(handler, new TestRunnable()), 0, 5);
+
+        final String dump = dump(stats);
+        assertTrue(dump, dump.contains("Messages: 4"));
+        // count, dispatch time, max dispatch time, delayed count, delay, max delay
+        assertTrue(dump, dump.contains(TestHandler.class.getName() + "/1,2,60,40,1,100,100"));
+        assertTrue(dump, dump.contains(TestHandler.class.getName() + "/2,1,10,10,1,0,0"));
+        assertTrue(dump, dump.contains(TestHandler.class.getName() + "/"
+                + TestRunnable.class.getName() + ",1,5,5,1,0,0"));
+    }
+
+    @Test
+    public void testReset() {
+        final LooperStats stats = new LooperStats();
+        stats.messageDispatched(Message.obtain(new TestHandler(), 1), 0, 10);
+        stats.reset();
+        final String dump = dump(stats);
+        assertTrue(dump, dump.contains("Messages: 0"));
+        assertFalse(dump, dump.contains(TestHandler.class.getName()));
+    }
+
+    private static String dump(LooperStats stats) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw, "");
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static class TestHandler extends Handler {
+        TestHandler() {
+            super(Looper.getMainLooper());
+        }
+    }
+
+    private static class TestRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Process;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test class for {@link ProcStatsSampler}.
+ *
+ * To run the tests, use
+ *
+ * runtest -c com.android.internal.os.ProcStatsSamplerTest frameworks-core
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProcStatsSamplerTest {
+
+    @Test
+    public void testSampleContainsOwnProcess() {
+        final ProcStatsSampler.Sample sample = new ProcStatsSampler().sample();
+        assertTrue(sample.hasSystemCpuTimes());
+        assertTrue(sample.hasLoadAverages());
+        final int index = sample.indexOfPid(Process.myPid());
+        assertTrue(index >= 0);
+        assertEquals(Process.myPid(), sample.getPid(index));
+        assertTrue(sample.getProcessStat(index, ProcStatsSampler.PROCESS_STAT_MINOR_FAULTS) > 0);
+    }
+
+    @Test
+    public void testThrottle() {
+        final ProcStatsSampler sampler = new ProcStatsSampler();
+        sampler.setThrottleInterval(60 * 1000);
+        final ProcStatsSampler.Sample sample = sampler.sample();
+        assertSame(sample, sampler.sample());
+
+        sampler.setThrottleInterval(0);
+        assertNotSame(sample, sampler.sample());
+    }
+
+    @Test
+    public void testTrackersShareSample() {
+        final ProcStatsSampler sampler = new ProcStatsSampler();
+        sampler.setThrottleInterval(60 * 1000);
+        final ProcessCpuTracker tracker1 = new ProcessCpuTracker(false, sampler);
+        final ProcessCpuTracker tracker2 = new ProcessCpuTracker(false, sampler);
+        tracker1.init();
+        tracker2.init();
+        assertEquals(sampler.sample().countProcesses(), tracker1.countStats());
+        assertEquals(tracker1.countStats(), tracker2.countStats());
+        for (int i = 0; i < tracker1.countStats(); i++) {
+            assertEquals(tracker1.getStats(i).pid, tracker2.getStats(i).pid);
+            assertEquals(tracker1.getStats(i).base_utime, tracker2.getStats(i).base_utime);
+        }
+    }
+}
@@ -66,7 +66,9 @@ import android.os.UserManagerInternal;
 import android.provider.Settings;
 import android.provider.Settings.Global;
 import android.provider.Settings.Secure;
+import android.provider.SettingsSnapshot;
 import android.provider.SettingsValidators;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -382,7 +384,11 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                Bundle result = packageValueForCallResult(setting, isTrackingGeneration(args));
+                if (isTrackingSnapshot(args)) {
+                    result = addGlobalSnapshotForCallResult(result);
+                }
+                return result;
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
@@ -1907,6 +1913,23 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isTrackingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+    }
+
+    private Bundle addGlobalSnapshotForCallResult(Bundle result) {
+        // Instant apps may only read a whitelist of settings, so they can't be
+        // handed the whole table.
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return result;
+        }
+        // The result may be one of the shared constant bundles, never modify it.
+        final Bundle bundle = new Bundle(result);
+        mSettingsRegistry.addGlobalSnapshotData(bundle);
+        return bundle;
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2128,6 +2151,11 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        // Shared memory copy of the global table for clients to read without a
+        // binder call, created when first requested.
+        @GuardedBy("mLock")
+        private SettingsSnapshot mGlobalSnapshot;
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2754,7 +2782,61 @@ public class SettingsProvider extends ContentProvider {
             }
         }
 
+        public void addGlobalSnapshotData(Bundle bundle) {
+            synchronized (mLock) {
+                if (mGlobalSnapshot == null) {
+                    mGlobalSnapshot = createGlobalSnapshotLocked(getGlobalSettingValuesLocked());
+                }
+                if (mGlobalSnapshot != null) {
+                    bundle.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY,
+                            mGlobalSnapshot.getSharedMemory());
+                }
+            }
+        }
+
+        private void updateGlobalSnapshotLocked() {
+            if (mGlobalSnapshot == null) {
+                return;
+            }
+            final ArrayMap<String, String> values = getGlobalSettingValuesLocked();
+            if (!mGlobalSnapshot.update(values)) {
+                // Outgrew the region, clients will ask for the new one.
+                mGlobalSnapshot.invalidate();
+                mGlobalSnapshot.close();
+                mGlobalSnapshot = createGlobalSnapshotLocked(values);
+            }
+        }
+
+        private SettingsSnapshot createGlobalSnapshotLocked(ArrayMap<String, String> values) {
+            try {
+                return SettingsSnapshot.create("settings_global", values);
+            } catch (ErrnoException e) {
+                Slog.e(LOG_TAG, "Error creating global settings snapshot", e);
+                return null;
+            }
+        }
+
+        private ArrayMap<String, String> getGlobalSettingValuesLocked() {
+            final ArrayMap<String, String> values = new ArrayMap<>();
+            final SettingsState settingsState = peekSettingsStateLocked(
+                    makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM));
+            if (settingsState != null) {
+                for (String name : settingsState.getSettingNamesLocked()) {
+                    values.put(name, settingsState.getSettingLocked(name).getValue());
+                }
+            }
+            return values;
+        }
+
         private void notifyForSettingsChange(int key, String name) {
+            if (isGlobalSettingsKey(key)) {
+                // Publish the new table before the generation moves, so clients that
+                // see the new generation also see the new value
+                synchronized (mLock) {
+                    updateGlobalSnapshotLocked();
+                }
+            }
+
             // Increment the generation first, so observers always see the new value
             mGenerationRegistry.incrementGeneration(key);
 
@@ -31,6 +31,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Settings.Global;
@@ -38,6 +39,7 @@ import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -71,8 +73,11 @@ import java.util.Set;
 
 /**
  * This class contains the state for one type of settings. It is responsible
- * for saving the state asynchronously to an XML file after a mutation and
- * loading the from an XML file on construction.
+ * for saving the state asynchronously to disk after a mutation and loading
+ * the state from disk on construction. The state is stored either as an XML
+ * file, or as a binary snapshot plus a log of changes (see
+ * {@link SettingsStateBinaryFile}); existing XML files are migrated to the
+ * binary format on first load when it is enabled.
  * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
@@ -93,6 +98,11 @@ final class SettingsState {
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
 
+    // Whether settings are persisted in the binary snapshot + change log format instead of
+    // rewriting the whole XML file on every change. Turning this off converts back to XML.
+    private static final boolean USE_BINARY_FORMAT =
+            SystemProperties.getBoolean("persist.sys.settings_binary_state", true);
+
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
 
@@ -186,6 +196,22 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mVersion = VERSION_UNDEFINED;
 
+    private final boolean mUseBinaryFormat;
+
+    @GuardedBy("mWriteLock")
+    private final SettingsStateBinaryFile mBinaryFile;
+
+    // Names of the settings changed since the last write, for the binary change log.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mChangedSettings = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private boolean mVersionChanged;
+
+    // Whether the next write has to store all settings rather than just the changes.
+    @GuardedBy("mLock")
+    private boolean mNeedsFullWrite = true;
+
     @GuardedBy("mLock")
     private long mLastNotWrittenMutationTimeMillis;
 
@@ -268,6 +294,9 @@ final class SettingsState {
         mHistoricalOperations = Build.IS_DEBUGGABLE
                 ? new ArrayList<>(HISTORICAL_OPERATION_COUNT) : null;
 
+        mUseBinaryFormat = USE_BINARY_FORMAT;
+        mBinaryFile = new SettingsStateBinaryFile(file);
+
         synchronized (mLock) {
             readStateSyncLocked();
         }
@@ -288,6 +317,7 @@ final class SettingsState {
             return;
         }
         mVersion = version;
+        mVersionChanged = true;
 
         scheduleWriteIfNeededLocked();
     }
@@ -307,6 +337,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mChangedSettings.add(name);
                 removedSomething = true;
             }
         }
@@ -361,6 +392,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
+            mChangedSettings.add(name);
             scheduleWriteIfNeededLocked();
         }
     }
@@ -395,6 +427,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        mChangedSettings.add(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -423,6 +456,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        mChangedSettings.add(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -452,6 +486,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        mChangedSettings.add(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -630,6 +665,103 @@ final class SettingsState {
     }
 
     private void doWriteState() {
+        if (mUseBinaryFormat) {
+            doWriteBinaryState();
+        } else {
+            doWriteXmlState();
+        }
+    }
+
+    private void doWriteBinaryState() {
+        boolean wroteState = false;
+        final int version;
+        final boolean versionChanged;
+        ArrayMap<String, Setting> settings = null;
+        ArrayMap<String, Setting> changes = null;
+
+        synchronized (mLock) {
+            if (mNeedsFullWrite) {
+                settings = getPersistentSettingsLocked();
+            } else {
+                changes = new ArrayMap<>(mChangedSettings.size());
+                for (int i = 0; i < mChangedSettings.size(); i++) {
+                    final String name = mChangedSettings.valueAt(i);
+                    final Setting setting = mSettings.get(name);
+                    // Deleted and transient settings are both recorded as deletions.
+                    changes.put(name, setting != null && !setting.isTransient()
+                            ? new Setting(setting) : null);
+                }
+            }
+            version = mVersion;
+            versionChanged = mVersionChanged;
+            mChangedSettings.clear();
+            mVersionChanged = false;
+            mNeedsFullWrite = false;
+            mDirty = false;
+            mWriteScheduled = false;
+        }
+
+        synchronized (mWriteLock) {
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST START] full=" + (settings != null));
+            }
+
+            try {
+                int snapshotVersion = version;
+                if (changes != null) {
+                    mBinaryFile.appendChanges(versionChanged ? version : VERSION_UNDEFINED,
+                            changes);
+                    if (mBinaryFile.needsCompaction()) {
+                        // Anything changed after this copy is still pending and will be
+                        // appended again by the next write, which is harmless.
+                        synchronized (mLock) {
+                            snapshotVersion = mVersion;
+                            settings = getPersistentSettingsLocked();
+                        }
+                    }
+                }
+                if (settings != null) {
+                    mBinaryFile.writeSnapshot(snapshotVersion, settings);
+                    // Either we just migrated from XML, or the XML is left over from before
+                    // the binary format was enabled; the snapshot supersedes it.
+                    new AtomicFile(mStatePersistFile).delete();
+                }
+                wroteState = true;
+
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[PERSIST END]");
+                }
+            } catch (Throwable t) {
+                Slog.wtf(LOG_TAG, "Failed to write settings", t);
+                // We don't know how much of the change log made it to disk, so store
+                // everything on the next write.
+                synchronized (mLock) {
+                    mNeedsFullWrite = true;
+                }
+            }
+        }
+
+        if (wroteState) {
+            synchronized (mLock) {
+                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private ArrayMap<String, Setting> getPersistentSettingsLocked() {
+        final int settingCount = mSettings.size();
+        final ArrayMap<String, Setting> settings = new ArrayMap<>(settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            final Setting setting = mSettings.valueAt(i);
+            if (!setting.isTransient()) {
+                settings.put(mSettings.keyAt(i), new Setting(setting));
+            }
+        }
+        return settings;
+    }
+
+    private void doWriteXmlState() {
         boolean wroteState = false;
         final int version;
         final ArrayMap<String, Setting> settings;
@@ -637,6 +769,8 @@ final class SettingsState {
         synchronized (mLock) {
             version = mVersion;
             settings = new ArrayMap<>(mSettings);
+            mChangedSettings.clear();
+            mVersionChanged = false;
             mDirty = false;
             mWriteScheduled = false;
         }
@@ -686,6 +820,11 @@ final class SettingsState {
 
                 wroteState = true;
 
+                // The binary format was turned off; the XML file is now authoritative.
+                if (mBinaryFile.exists()) {
+                    mBinaryFile.delete();
+                }
+
                 if (DEBUG_PERSISTENCE) {
                     Slog.i(LOG_TAG, "[PERSIST END]");
                 }
@@ -772,6 +911,56 @@ final class SettingsState {
     }
 
     private void readStateSyncLocked() {
+        if (mBinaryFile.exists()) {
+            readBinaryStateSyncLocked();
+            if (!mUseBinaryFormat) {
+                // Convert back to XML.
+                scheduleWriteIfNeededLocked();
+            }
+            return;
+        }
+
+        readXmlStateSyncLocked();
+        if (mUseBinaryFormat && stateFileExists(mStatePersistFile)) {
+            // Migrate the XML file to the binary format.
+            scheduleWriteIfNeededLocked();
+        }
+    }
+
+    private void readBinaryStateSyncLocked() {
+        try {
+            mBinaryFile.read(new SettingsStateBinaryFile.Callback() {
+                @Override
+                public void onVersion(int version) {
+                    mVersion = version;
+                }
+
+                @Override
+                public void onSetting(String id, String name, String value,
+                        String defaultValue, String packageName, String tag,
+                        boolean defaultFromSystem) {
+                    mSettings.put(name, new Setting(name, value, defaultValue, packageName,
+                            tag, defaultFromSystem, id));
+
+                    if (DEBUG_PERSISTENCE) {
+                        Slog.i(LOG_TAG, "[RESTORED] " + name + "=" + value);
+                    }
+                }
+
+                @Override
+                public void onDelete(String name) {
+                    mSettings.remove(name);
+                }
+            });
+            mNeedsFullWrite = false;
+        } catch (IOException e) {
+            String message = "Failed reading settings file: " + mStatePersistFile;
+            Slog.wtf(LOG_TAG, message);
+            throw new IllegalStateException(message, e);
+        }
+    }
+
+    private void readXmlStateSyncLocked() {
         FileInputStream in;
         try {
             in = new AtomicFile(mStatePersistFile).openRead();
@@ -794,13 +983,14 @@ final class SettingsState {
     }
 
     /**
-     * Uses AtomicFile to check if the file or its backup exists.
+     * Uses AtomicFile to check if the file or its backup exists, in either the XML
+     * or the binary format.
      * @param file The file to check for existence
      * @return whether the original or backup exist
      */
     public static boolean stateFileExists(File file) {
         AtomicFile stateFile = new AtomicFile(file);
-        return stateFile.exists();
+        return stateFile.exists() || SettingsStateBinaryFile.exists(file);
     }
 
     private void parseStateLocked(XmlPullParser parser)
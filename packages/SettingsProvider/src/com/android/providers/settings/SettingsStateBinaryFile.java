@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.FileUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Binary persistence for a {@link SettingsState}: a compact snapshot of all settings written
+ * through {@link AtomicFile}, plus an append-only log of the changes made since that snapshot.
+ * <p>
+ * Every log record carries its own length and CRC, so a record torn by a crash is detected and
+ * dropped together with anything after it when loading.
+ * </p>
+ * <p>
+ * Every snapshot has a generation, and log records are stamped with the generation of the
+ * snapshot they follow. Records of an older generation, e.g. left behind by a crash between
+ * writing a snapshot and truncating the log, are already contained in the snapshot and are
+ * skipped when loading, since replaying them could revert newer values.
+ * </p>
+ * <p>
+ * This class is not thread safe; {@link SettingsState} serializes access to it.
+ * </p>
+ */
+final class SettingsStateBinaryFile {
+    private static final String LOG_TAG = "SettingsStateBinaryFile";
+
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final int SNAPSHOT_MAGIC = 0x53534253; // SSBS
+    private static final int LOG_MAGIC = 0x5353424c; // SSBL
+    private static final int FORMAT_VERSION = 2;
+    // Files written before snapshots had generations; their log is replayed as a whole.
+    private static final int FORMAT_VERSION_NO_GENERATION = 1;
+
+    private static final int LOG_HEADER_SIZE = 8;
+
+    private static final byte OP_VERSION = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte OP_DELETE = 3;
+
+    // Compact once the log holds this many records, or grows larger than the snapshot.
+    private static final int MAX_LOG_RECORDS = 1000;
+    private static final long MIN_LOG_BYTES_FOR_COMPACTION = 16 * 1024;
+
+    interface Callback {
+        void onVersion(int version);
+
+        void onSetting(String id, String name, String value, String defaultValue,
+                String packageName, String tag, boolean defaultFromSystem);
+
+        void onDelete(String name);
+    }
+
+    private final AtomicFile mSnapshotFile;
+    private final File mLogFile;
+
+    // Generation of the current snapshot, stamped on the records appended after it.
+    private long mGeneration;
+    // Whether the log has the format without generations, and must not be appended to.
+    private boolean mLegacyLog;
+    private int mLogRecordCount;
+    private long mLogLength;
+    private long mSnapshotLength;
+
+    SettingsStateBinaryFile(File xmlFile) {
+        final File base = getBaseFile(xmlFile);
+        mSnapshotFile = new AtomicFile(new File(base.getPath() + SNAPSHOT_SUFFIX));
+        mLogFile = new File(base.getPath() + LOG_SUFFIX);
+    }
+
+    /**
+     * @return whether a binary snapshot exists for the settings stored in {@code xmlFile}.
+     */
+    static boolean exists(File xmlFile) {
+        final File base = getBaseFile(xmlFile);
+        return new AtomicFile(new File(base.getPath() + SNAPSHOT_SUFFIX)).exists();
+    }
+
+    private static File getBaseFile(File xmlFile) {
+        final String path = xmlFile.getPath();
+        return new File(path.endsWith(".xml") ? path.substring(0, path.length() - 4) : path);
+    }
+
+    boolean exists() {
+        return mSnapshotFile.exists();
+    }
+
+    /**
+     * Loads the snapshot and then replays the log through {@code callback}.
+     *
+     * @throws IOException if the snapshot can't be read; a damaged log tail is only logged.
+     */
+    void read(Callback callback) throws IOException {
+        DataInputStream in = null;
+        try {
+            final FileInputStream fis = mSnapshotFile.openRead();
+            mSnapshotLength = fis.getChannel().size();
+            in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Bad snapshot magic in " + mSnapshotFile.getBaseFile());
+            }
+            final int formatVersion = in.readInt();
+            if (formatVersion == FORMAT_VERSION) {
+                mGeneration = in.readLong();
+            } else if (formatVersion == FORMAT_VERSION_NO_GENERATION) {
+                mGeneration = 0;
+            } else {
+                throw new IOException("Unknown snapshot format " + formatVersion);
+            }
+            callback.onVersion(in.readInt());
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                readSetting(in, callback);
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        readLog(callback);
+    }
+
+    private void readLog(Callback callback) {
+        mLogRecordCount = 0;
+        mLogLength = 0;
+        mLegacyLog = false;
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        long goodLength = 0;
+        try {
+            if (in.readInt() != LOG_MAGIC) {
+                Slog.w(LOG_TAG, "Ignoring log with bad header " + mLogFile);
+                return;
+            }
+            final int formatVersion = in.readInt();
+            if (formatVersion == FORMAT_VERSION_NO_GENERATION) {
+                // Replayed as before, and folded into a snapshot on the next write.
+                mLegacyLog = true;
+            } else if (formatVersion != FORMAT_VERSION) {
+                Slog.w(LOG_TAG, "Ignoring log of unknown format " + formatVersion);
+                return;
+            }
+            goodLength = LOG_HEADER_SIZE;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final long expectedCrc = in.readLong();
+                if (length <= 0 || length > mLogFile.length()) {
+                    throw new IOException("Bad record length " + length);
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if (crc.getValue() != expectedCrc) {
+                    throw new IOException("Bad record checksum");
+                }
+                replayRecord(payload, !mLegacyLog, callback);
+                goodLength += 4 + 8 + length;
+                mLogRecordCount++;
+            }
+        } catch (IOException e) {
+            // A crash while appending leaves a partial record at the end of the log; every
+            // record before it was synced and is valid.
+            Slog.w(LOG_TAG, "Dropping damaged tail of " + mLogFile + " at " + goodLength, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        truncateLog(goodLength);
+        mLogLength = goodLength;
+    }
+
+    private void replayRecord(byte[] payload, boolean hasGeneration, Callback callback)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (hasGeneration && in.readLong() < mGeneration) {
+            // Written before the snapshot, which already contains it.
+            return;
+        }
+        final byte op = in.readByte();
+        switch (op) {
+            case OP_VERSION:
+                callback.onVersion(in.readInt());
+                break;
+            case OP_PUT:
+                readSetting(in, callback);
+                break;
+            case OP_DELETE:
+                callback.onDelete(readString(in));
+                break;
+            default:
+                throw new IOException("Unknown log op " + op);
+        }
+    }
+
+    /**
+     * Replaces the snapshot with {@code settings} and discards the log.
+     */
+    void writeSnapshot(int version, ArrayMap<String, SettingsState.Setting> settings)
+            throws IOException {
+        final long generation = mGeneration + 1;
+        FileOutputStream out = null;
+        try {
+            out = mSnapshotFile.startWrite();
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(generation);
+            data.writeInt(version);
+            data.writeInt(settings.size());
+            for (int i = 0; i < settings.size(); i++) {
+                writeSetting(data, settings.valueAt(i));
+            }
+            data.flush();
+            mSnapshotFile.finishWrite(out);
+            mSnapshotLength = mSnapshotFile.getBaseFile().length();
+        } catch (IOException | RuntimeException e) {
+            mSnapshotFile.failWrite(out);
+            throw e;
+        }
+
+        // The new snapshot contains everything in the log. Should truncating it fail, the
+        // records left have an older generation and are skipped when reading.
+        mGeneration = generation;
+        mLegacyLog = false;
+        truncateLog(0);
+        mLogRecordCount = 0;
+        mLogLength = 0;
+    }
+
+    /**
+     * Appends the given changes to the log and syncs it. A null value in {@code changes}
+     * records the deletion of that setting.
+     *
+     * @param version the new settings version, or {@link SettingsState#VERSION_UNDEFINED} if
+     *                it didn't change.
+     */
+    void appendChanges(int version, ArrayMap<String, SettingsState.Setting> changes)
+            throws IOException {
+        if (mLegacyLog) {
+            // needsCompaction() makes the caller write a snapshot with these changes instead.
+            return;
+        }
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream recordsOut = new DataOutputStream(records);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        final CRC32 crc = new CRC32();
+        int count = 0;
+
+        if (version != SettingsState.VERSION_UNDEFINED) {
+            payloadOut.writeLong(mGeneration);
+            payloadOut.writeByte(OP_VERSION);
+            payloadOut.writeInt(version);
+            writeRecord(recordsOut, payload, crc);
+            count++;
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            final SettingsState.Setting setting = changes.valueAt(i);
+            payloadOut.writeLong(mGeneration);
+            if (setting != null) {
+                payloadOut.writeByte(OP_PUT);
+                writeSetting(payloadOut, setting);
+            } else {
+                payloadOut.writeByte(OP_DELETE);
+                writeString(payloadOut, changes.keyAt(i));
+            }
+            writeRecord(recordsOut, payload, crc);
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        final boolean newLog = mLogLength == 0;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mLogFile, !newLog);
+            if (newLog) {
+                final DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(LOG_MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                mLogLength = LOG_HEADER_SIZE;
+            }
+            records.writeTo(out);
+            out.flush();
+            FileUtils.sync(out);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        mLogLength += records.size();
+        mLogRecordCount += count;
+    }
+
+    /**
+     * @return whether the log has grown enough that it should be folded into a new snapshot.
+     */
+    boolean needsCompaction() {
+        return mLegacyLog || mLogRecordCount >= MAX_LOG_RECORDS
+                || (mLogLength >= MIN_LOG_BYTES_FOR_COMPACTION && mLogLength > mSnapshotLength);
+    }
+
+    void delete() {
+        mSnapshotFile.delete();
+        mLogFile.delete();
+        mLegacyLog = false;
+        mLogRecordCount = 0;
+        mLogLength = 0;
+        mSnapshotLength = 0;
+    }
+
+    private void truncateLog(long length) {
+        if (!mLogFile.exists()) {
+            return;
+        }
+        if (length <= LOG_HEADER_SIZE) {
+            mLogFile.delete();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw")) {
+            if (raf.length() != length) {
+                raf.setLength(length);
+                raf.getFD().sync();
+            }
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed to truncate " + mLogFile, e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream payload,
+            CRC32 crc) throws IOException {
+        final byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeLong(crc.getValue());
+        out.write(bytes);
+        payload.reset();
+    }
+
+    private static void writeSetting(DataOutputStream out, SettingsState.Setting setting)
+            throws IOException {
+        writeString(out, setting.getId());
+        writeString(out, setting.getName());
+        writeString(out, setting.getValue());
+        writeString(out, setting.getDefaultValue());
+        writeString(out, setting.getPackageName());
+        writeString(out, setting.getTag());
+        out.writeBoolean(setting.isDefaultFromSystem());
+    }
+
+    private static void readSetting(DataInputStream in, Callback callback) throws IOException {
+        final String id = readString(in);
+        final String name = readString(in);
+        final String value = readString(in);
+        final String defaultValue = readString(in);
+        final String packageName = readString(in);
+        final String tag = readString(in);
+        final boolean defaultFromSystem = in.readBoolean();
+        callback.onSetting(id, name, value, defaultValue, packageName, tag, defaultFromSystem);
+    }
+
+    // Strings are stored as raw UTF-16 code units so that values with broken surrogate
+    // pairs or control characters round-trip exactly, like the base64 path of the XML format.
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
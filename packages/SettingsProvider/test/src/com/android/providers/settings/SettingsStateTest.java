@@ -17,6 +17,7 @@ package com.android.providers.settings;
 
 import android.os.Looper;
 import android.test.AndroidTestCase;
+import android.util.ArrayMap;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlSerializer;
@@ -26,6 +27,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 public class SettingsStateTest extends AndroidTestCase {
     public static final String CRAZY_STRING =
@@ -148,6 +150,111 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure changes appended to the binary change log after the first snapshot are
+     * replayed when reading, and that a torn record at the end of the log is dropped.
+     */
+    public void testReadWriteChangeLog() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final SettingsStateBinaryFile binaryFile = new SettingsStateBinaryFile(file);
+        file.delete();
+        binaryFile.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p1");
+            ssWriter.persistSyncLocked();
+
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", null, null, false, "p2");
+            ssWriter.persistSyncLocked();
+        }
+
+        final File logFile = new File(getContext().getCacheDir(), "setting.log");
+        assertTrue(logFile.exists());
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            // Half of a record header, as left behind by a crash during an append.
+            out.write(new byte[] {0, 0, 0, 42, 1, 2});
+        }
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                    ssReader.getVersionLocked());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k3").getValue());
+            assertEquals("p2", ssReader.getSettingLocked("k3").getPackageName());
+        }
+    }
+
+    /**
+     * Make sure log records written before the current snapshot are not replayed over it, as
+     * happens when crashing after writing a snapshot but before truncating the log.
+     */
+    public void testStaleChangeLogIsSkipped() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final SettingsStateBinaryFile binaryFile = new SettingsStateBinaryFile(file);
+        file.delete();
+        binaryFile.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+
+            ssWriter.insertSettingLocked("k1", "v2", null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.persistSyncLocked();
+        }
+
+        final File logFile = new File(getContext().getCacheDir(), "setting.log");
+        final byte[] staleLog = Files.readAllBytes(logFile.toPath());
+
+        // Fold the log into a new snapshot with newer values, then put the old log back.
+        final ArrayMap<String, SettingsState.Setting> settings = new ArrayMap<>();
+        synchronized (lock) {
+            ssWriter.insertSettingLocked("k1", "v3", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v3", null, false, "p1");
+            ssWriter.persistSyncLocked();
+            settings.put("k1", ssWriter.getSettingLocked("k1"));
+            settings.put("k2", ssWriter.getSettingLocked("k2"));
+        }
+        final SettingsStateBinaryFile compactor = new SettingsStateBinaryFile(file);
+        compactor.read(new SettingsStateBinaryFile.Callback() {
+            @Override
+            public void onVersion(int version) {}
+
+            @Override
+            public void onSetting(String id, String name, String value, String defaultValue,
+                    String packageName, String tag, boolean defaultFromSystem) {}
+
+            @Override
+            public void onDelete(String name) {}
+        });
+        compactor.writeSnapshot(SettingsState.SETTINGS_VERSION_NEW_ENCODING, settings);
+        try (FileOutputStream out = new FileOutputStream(logFile)) {
+            out.write(staleLog);
+        }
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v3", ssReader.getSettingLocked("k1").getValue());
+            assertEquals("v3", ssReader.getSettingLocked("k2").getValue());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
@@ -198,6 +198,15 @@ public class AppOpsService extends IAppOpsService.Stub {
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /*
+     * Read-only copy of what checkOperation() returns, by uid and package, so that the check
+     * path does not contend with noteOperation() on the service lock. Both levels are copied
+     * on write under the lock and never modified once published; an entry is dropped whenever
+     * anything it depends on changes. A published table never has pending deletions, as even
+     * reading such a SparseArray compacts it in place.
+     */
+    private volatile SparseArray<ArrayMap<String, int[]>> mCheckedModes = new SparseArray<>();
+
     long mLastUptime;
 
     /*
@@ -638,6 +647,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
             if (changed) {
+                invalidateCheckedModesLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -703,6 +713,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (uidState.pkgOps != null) {
                 ops = uidState.pkgOps.remove(packageName);
             }
+            invalidateCheckedModesLocked(uid);
 
             // If we just nuked the last package state check if the UID is valid.
             if (ops != null && uidState.pkgOps.isEmpty()
@@ -750,6 +761,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateCheckedModesLocked(uid);
                 scheduleFastWriteLocked();
             }
         }
@@ -778,6 +790,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         settleTime = mConstants.BG_STATE_SETTLE_TIME;
                     }
                     uidState.pendingStateCommitTime = SystemClock.uptimeMillis() + settleTime;
+                    invalidateCheckedModesLocked(uid);
                 }
                 if (uidState.startNesting != 0) {
                     // There is some actively running operation...  need to find it
@@ -955,6 +968,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     false /* uidMismatchExpected */);
             if (ops != null) {
                 ops.remove(op.op);
+                invalidateCheckedModesLocked(uid);
                 if (ops.size() <= 0) {
                     UidState uidState = ops.uidState;
                     ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
@@ -1029,6 +1043,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 scheduleWriteLocked();
             }
+            invalidateCheckedModesLocked(uid);
         }
 
         String[] uidPackageNames = getPackagesForUid(uid);
@@ -1105,6 +1120,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op != null) {
                 if (op.mode != mode) {
                     op.mode = mode;
+                    invalidateCheckedModesLocked(uid);
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -1304,6 +1320,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
 
+            invalidateCheckedModesLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -1426,21 +1443,91 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
-        synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
-            }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
+        final ArrayMap<String, int[]> checkedPackages = mCheckedModes.get(uid);
+        if (checkedPackages != null) {
+            final int[] checkedModes = checkedPackages.get(resolvedPackageName);
+            if (checkedModes != null) {
+                return checkedModes[code];
             }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
+        }
+        synchronized (this) {
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            addCheckedModesLocked(uid, resolvedPackageName);
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String packageName) {
+        if (isOpRestrictedLocked(uid, code, packageName)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, packageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        return op.mode;
+    }
+
+    /**
+     * Publishes the result of {@link #checkOperation} for every op of the given package, so
+     * that later checks can be answered without taking the lock.
+     */
+    private void addCheckedModesLocked(int uid, String packageName) {
+        final UidState uidState = getUidStateLocked(uid, false);
+        if (uidState == null || uidState.pkgOps == null
+                || !uidState.pkgOps.containsKey(packageName)) {
+            // Only packages we have already validated against the uid are cached, anything
+            // else is not invalidated when a package with that name shows up.
+            return;
+        }
+        if (uidState.pendingStateCommitTime != 0) {
+            // Keep going through the lock so the pending state gets committed.
+            return;
+        }
+        final SparseArray<ArrayMap<String, int[]>> published = mCheckedModes;
+        ArrayMap<String, int[]> checkedPackages = published.get(uid);
+        if (checkedPackages != null && checkedPackages.containsKey(packageName)) {
+            return;
+        }
+        final int[] modes = new int[AppOpsManager._NUM_OP];
+        for (int code = 0; code < AppOpsManager._NUM_OP; code++) {
+            modes[code] = checkOperationLocked(code, uid, packageName);
+        }
+        checkedPackages = checkedPackages != null
+                ? new ArrayMap<>(checkedPackages) : new ArrayMap<>();
+        checkedPackages.put(packageName, modes);
+        final SparseArray<ArrayMap<String, int[]>> checkedModes = published.clone();
+        checkedModes.put(uid, checkedPackages);
+        mCheckedModes = checkedModes;
+    }
+
+    private void invalidateCheckedModesLocked(int uid) {
+        final SparseArray<ArrayMap<String, int[]>> published = mCheckedModes;
+        final int index = published.indexOfKey(uid);
+        if (index < 0) {
+            return;
+        }
+        // Copy around the removed uid rather than removing it from a clone, which would leave
+        // a deleted slot behind for readers to compact.
+        final int size = published.size();
+        final SparseArray<ArrayMap<String, int[]>> checkedModes = new SparseArray<>(size - 1);
+        for (int i = 0; i < size; i++) {
+            if (i != index) {
+                checkedModes.append(published.keyAt(i), published.valueAt(i));
             }
-            return op.mode;
+        }
+        mCheckedModes = checkedModes;
+    }
+
+    private void invalidateCheckedModesLocked() {
+        if (mCheckedModes.size() > 0) {
+            mCheckedModes = new SparseArray<>();
         }
     }
 
@@ -2145,6 +2232,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
         }
         synchronized (this) {
+            invalidateCheckedModesLocked();
             upgradeLocked(oldVersion);
         }
     }
@@ -2393,7 +2481,30 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return;
             }
 
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+            // Copy everything that is persisted in one go, so that the file is consistent and
+            // the lock is not held while it is serialized and synced.
+            final SparseArray<SparseIntArray> uidOpModes = new SparseArray<>();
+            final List<AppOpsManager.PackageOps> allOps;
+            final boolean[] privileged;
+            synchronized (this) {
+                final int uidStateCount = mUidStates.size();
+                for (int i = 0; i < uidStateCount; i++) {
+                    UidState uidState = mUidStates.valueAt(i);
+                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                        uidOpModes.put(uidState.uid, uidState.opModes.clone());
+                    }
+                }
+                allOps = getPackagesForOps(null);
+                privileged = new boolean[allOps != null ? allOps.size() : 0];
+                for (int i = 0; i < privileged.length; i++) {
+                    AppOpsManager.PackageOps pkg = allOps.get(i);
+                    Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(),
+                            false /* edit */, false /* uidMismatchExpected */);
+                    // Should always be present as the list of PackageOps is generated
+                    // from Ops.
+                    privileged[i] = ops != null && ops.isPrivileged;
+                }
+            }
 
             try {
                 XmlSerializer out = new FastXmlSerializer();
@@ -2402,24 +2513,21 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.startTag(null, "app-ops");
                 out.attribute(null, "v", String.valueOf(CURRENT_VERSION));
 
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
+                final int uidCount = uidOpModes.size();
+                for (int i = 0; i < uidCount; i++) {
+                    out.startTag(null, "uid");
+                    out.attribute(null, "n", Integer.toString(uidOpModes.keyAt(i)));
+                    SparseIntArray opModes = uidOpModes.valueAt(i);
+                    final int opCount = opModes.size();
+                    for (int j = 0; j < opCount; j++) {
+                        final int op = opModes.keyAt(j);
+                        final int mode = opModes.valueAt(j);
+                        out.startTag(null, "op");
+                        out.attribute(null, "n", Integer.toString(op));
+                        out.attribute(null, "m", Integer.toString(mode));
+                        out.endTag(null, "op");
                     }
+                    out.endTag(null, "uid");
                 }
 
                 if (allOps != null) {
@@ -2436,17 +2544,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         }
                         out.startTag(null, "uid");
                         out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(),
-                                    false /* edit */, false /* uidMismatchExpected */);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
-                        }
+                        out.attribute(null, "p", Boolean.toString(privileged[i]));
                         List<AppOpsManager.OpEntry> ops = pkg.getOps();
                         for (int j=0; j<ops.size(); j++) {
                             AppOpsManager.OpEntry op = ops.get(j);
@@ -3495,6 +3593,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (restrictionState.setRestriction(code, restricted, exceptionPackages, userHandle)) {
+                invalidateCheckedModesLocked();
                 mHandler.sendMessage(PooledLambda.obtainMessage(
                         AppOpsService::notifyWatchersOfChange, this, code, UID_ANY));
             }
@@ -3529,6 +3628,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 opRestrictions.removeUser(userHandle);
             }
             removeUidsForUserLocked(userHandle);
+            invalidateCheckedModesLocked();
         }
     }
 
@@ -3741,6 +3841,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                invalidateCheckedModesLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
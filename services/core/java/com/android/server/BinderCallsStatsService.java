@@ -20,6 +20,7 @@ import android.os.Binder;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.util.Slog;
+import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.os.BinderCallsStats;
 
@@ -55,7 +56,8 @@ public class BinderCallsStatsService extends Binder {
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (args != null) {
-            for (final String arg : args) {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
                 if ("-a".equals(arg)) {
                     // We currently dump all information by default
                     continue;
@@ -73,11 +75,38 @@ public class BinderCallsStatsService extends Binder {
                     BinderCallsStats.getInstance().setDetailedTracking(false);
                     pw.println("Detailed tracking disabled");
                     return;
+                } else if ("--sampling-interval".equals(arg)) {
+                    if (i + 1 >= args.length) {
+                        pw.println("--sampling-interval requires an argument");
+                        return;
+                    }
+                    final int interval;
+                    try {
+                        interval = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        pw.println("Invalid sampling interval: " + args[i]);
+                        return;
+                    }
+                    if (interval <= 0) {
+                        pw.println("Invalid sampling interval: " + interval);
+                        return;
+                    }
+                    BinderCallsStats.getInstance().setSamplingInterval(interval);
+                    pw.println("Sampling interval set to " + interval);
+                    return;
+                } else if ("--proto".equals(arg)) {
+                    final ProtoOutputStream proto = new ProtoOutputStream(fd);
+                    BinderCallsStats.getInstance().dumpProto(proto);
+                    proto.flush();
+                    return;
                 } else if ("-h".equals(arg)) {
                     pw.println("binder_calls_stats commands:");
                     pw.println("  --reset: Reset stats");
                     pw.println("  --enable-detailed-tracking: Enables detailed tracking");
                     pw.println("  --disable-detailed-tracking: Disables detailed tracking");
+                    pw.println("  --sampling-interval N: Measures CPU time of one in N calls"
+                            + " when detailed tracking is enabled");
+                    pw.println("  --proto: Dumps stats in protobuf format");
                     return;
                 } else {
                     pw.println("Unknown option: " + arg);
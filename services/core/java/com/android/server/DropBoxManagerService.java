@@ -82,9 +82,9 @@ public final class DropBoxManagerService extends SystemService {
 
     private static final boolean PROFILE_DUMP = false;
 
-    // TODO: This implementation currently uses one file per entry, which is
-    // inefficient for smallish entries -- consider using a single queue file
-    // per tag (or even globally) instead.
+    // Entries that fit in a single block are packed into shared segments (see
+    // DropBoxSegmentStore); larger ones still get a file of their own.
+    private static final String SEGMENTS_DIR = "segments";
 
     // The cached context and derived objects
 
@@ -95,6 +95,7 @@ public final class DropBoxManagerService extends SystemService {
 
     private FileList mAllFiles = null;
     private ArrayMap<String, FileList> mFilesByTag = null;
+    private DropBoxSegmentStore mSegments = null;
 
     // Various bits of disk information
 
@@ -252,8 +253,20 @@ public final class DropBoxManagerService extends SystemService {
                 read += n;
             }
 
-            // If we have at least one block, compress it -- otherwise, just write
-            // the data in uncompressed form.
+            // If the whole entry fits in one block, pack it into a segment rather
+            // than giving it a file of its own.
+
+            if (read < buffer.length) {
+                if (read > max) {
+                    Slog.w(TAG, "Dropping: " + tag + " (" + read + " > " + max + " bytes)");
+                    buffer = null;  // Pass data = null to createEntry() to leave a tombstone
+                }
+                long time = createEntry(null, buffer, read, tag, flags);
+                sendEntryAddedBroadcast(tag, time);
+                return;
+            }
+
+            // Otherwise we have at least one block, so compress it.
 
             temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
             int bufferSize = mBlockSize;
@@ -261,7 +274,7 @@ public final class DropBoxManagerService extends SystemService {
             if (bufferSize < 512) bufferSize = 512;
             FileOutputStream foutput = new FileOutputStream(temp);
             output = new BufferedOutputStream(foutput, bufferSize);
-            if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
+            if ((flags & DropBoxManager.IS_GZIPPED) == 0) {
                 output = new GZIPOutputStream(output);
                 flags = flags | DropBoxManager.IS_GZIPPED;
             }
@@ -293,20 +306,9 @@ public final class DropBoxManagerService extends SystemService {
                 }
             } while (read > 0);
 
-            long time = createEntry(temp, tag, flags);
+            long time = createEntry(temp, null, 0, tag, flags);
             temp = null;
-
-            final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
-            dropboxIntent.putExtra(DropBoxManager.EXTRA_TAG, tag);
-            dropboxIntent.putExtra(DropBoxManager.EXTRA_TIME, time);
-            if (!mBooted) {
-                dropboxIntent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
-            }
-            // Call sendBroadcast after returning from this call to avoid deadlock. In particular
-            // the caller may be holding the WindowManagerService lock but sendBroadcast requires a
-            // lock in ActivityManagerService. ActivityManagerService has been caught holding that
-            // very lock while waiting for the WindowManagerService lock.
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_SEND_BROADCAST, dropboxIntent));
+            sendEntryAddedBroadcast(tag, time);
         } catch (IOException e) {
             Slog.e(TAG, "Can't write: " + tag, e);
         } finally {
@@ -317,6 +319,20 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
+    private void sendEntryAddedBroadcast(String tag, long time) {
+        final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
+        dropboxIntent.putExtra(DropBoxManager.EXTRA_TAG, tag);
+        dropboxIntent.putExtra(DropBoxManager.EXTRA_TIME, time);
+        if (!mBooted) {
+            dropboxIntent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+        }
+        // Call sendBroadcast after returning from this call to avoid deadlock. In particular
+        // the caller may be holding the WindowManagerService lock but sendBroadcast requires a
+        // lock in ActivityManagerService. ActivityManagerService has been caught holding that
+        // very lock while waiting for the WindowManagerService lock.
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SEND_BROADCAST, dropboxIntent));
+    }
+
     public boolean isTagEnabled(String tag) {
         final long token = Binder.clearCallingIdentity();
         try {
@@ -348,12 +364,10 @@ public final class DropBoxManagerService extends SystemService {
             if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
             }
-            final File file = entry.getFile(mDropBoxDir);
             try {
-                return new DropBoxManager.Entry(
-                        entry.tag, entry.timestampMillis, file, entry.flags);
+                return openEntry(entry);
             } catch (IOException e) {
-                Slog.wtf(TAG, "Can't read: " + file, e);
+                Slog.wtf(TAG, "Can't read: " + entry.tag + "@" + entry.timestampMillis, e);
                 // Continue to next file
             }
         }
@@ -399,6 +413,7 @@ public final class DropBoxManagerService extends SystemService {
 
         out.append("Drop box contents: ").append(mAllFiles.contents.size()).append(" entries\n");
         out.append("Max entries: ").append(mMaxFiles).append("\n");
+        out.append("Segments: ").append(mSegments.getSegmentCount()).append("\n");
 
         if (!searchArgs.isEmpty()) {
             out.append("Searching for:");
@@ -423,7 +438,8 @@ public final class DropBoxManagerService extends SystemService {
             if (doPrint) out.append("========================================\n");
             out.append(date).append(" ").append(entry.tag == null ? "(no tag)" : entry.tag);
 
-            final File file = entry.getFile(mDropBoxDir);
+            final File file = entry.record != null
+                    ? mSegments.getFile(entry.record) : entry.getFile(mDropBoxDir);
             if (file == null) {
                 out.append(" (no file)\n");
                 continue;
@@ -434,7 +450,8 @@ public final class DropBoxManagerService extends SystemService {
                 out.append(" (");
                 if ((entry.flags & DropBoxManager.IS_GZIPPED) != 0) out.append("compressed ");
                 out.append((entry.flags & DropBoxManager.IS_TEXT) != 0 ? "text" : "data");
-                out.append(", ").append(file.length()).append(" bytes)\n");
+                out.append(", ").append(entry.record != null ? entry.record.length : file.length());
+                out.append(" bytes)\n");
             }
 
             if (doFile || (doPrint && (entry.flags & DropBoxManager.IS_TEXT) == 0)) {
@@ -446,8 +463,7 @@ public final class DropBoxManagerService extends SystemService {
                 DropBoxManager.Entry dbe = null;
                 InputStreamReader isr = null;
                 try {
-                    dbe = new DropBoxManager.Entry(
-                             entry.tag, entry.timestampMillis, file, entry.flags);
+                    dbe = openEntry(entry);
 
                     if (doPrint) {
                         isr = new InputStreamReader(dbe.getInputStream());
@@ -536,6 +552,8 @@ public final class DropBoxManagerService extends SystemService {
         public final long timestampMillis;
         public final int flags;
         public final int blocks;
+        /** Where the data is packed in {@link #mSegments}, or null if it has its own file. */
+        public final DropBoxSegmentStore.Record record;
 
         /** Sorts earlier EntryFile instances before later ones. */
         public final int compareTo(EntryFile o) {
@@ -569,6 +587,7 @@ public final class DropBoxManagerService extends SystemService {
             this.tag = TextUtils.safeIntern(tag);
             this.timestampMillis = timestampMillis;
             this.flags = flags;
+            this.record = null;
 
             final File file = this.getFile(dir);
             if (!temp.renameTo(file)) {
@@ -590,9 +609,24 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = timestampMillis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.record = null;
             new FileOutputStream(getFile(dir)).close();
         }
 
+        /**
+         * Creates an entry whose data is packed into a segment.
+         *
+         * @param record of the entry in its segment
+         * @param blockSize to use for space accounting
+         */
+        public EntryFile(DropBoxSegmentStore.Record record, int blockSize) {
+            this.tag = TextUtils.safeIntern(record.tag);
+            this.timestampMillis = record.timestampMillis;
+            this.flags = record.flags;
+            this.blocks = (record.length + blockSize - 1) / blockSize;
+            this.record = record;
+        }
+
         /**
          * Extracts metadata from an existing on-disk log filename.
          *
@@ -603,6 +637,7 @@ public final class DropBoxManagerService extends SystemService {
          * @param blockSize to use for space accounting
          */
         public EntryFile(File file, int blockSize) {
+            this.record = null;
 
             boolean parseFailure = false;
 
@@ -666,6 +701,7 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = millis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.record = null;
         }
 
         /**
@@ -686,10 +722,12 @@ public final class DropBoxManagerService extends SystemService {
         }
 
         /**
-         * @return filename for this entry without the pathname.
+         * @return filename for this entry without the pathname, or null if it doesn't have
+         * a file of its own.
          */
         public String getFilename() {
-            return hasFile() ? Uri.encode(tag) + "@" + timestampMillis + getExtension() : null;
+            return hasFile() && record == null
+                    ? Uri.encode(tag) + "@" + timestampMillis + getExtension() : null;
         }
 
         /**
@@ -698,14 +736,14 @@ public final class DropBoxManagerService extends SystemService {
          *            know in which directory they're stored.
          */
         public File getFile(File dir) {
-            return hasFile() ? new File(dir, getFilename()) : null;
+            return hasFile() && record == null ? new File(dir, getFilename()) : null;
         }
 
         /**
-         * If an entry has a backing file, remove it.
+         * If an entry has a backing file of its own, remove it.
          */
         public void deleteFile(File dir) {
-            if (hasFile()) {
+            if (hasFile() && record == null) {
                 getFile(dir).delete();
             }
         }
@@ -736,6 +774,7 @@ public final class DropBoxManagerService extends SystemService {
 
             // Scan pre-existing files.
             for (File file : files) {
+                if (file.getName().equals(SEGMENTS_DIR)) continue;
                 if (file.getName().endsWith(".tmp")) {
                     Slog.i(TAG, "Cleaning temp file: " + file);
                     file.delete();
@@ -750,6 +789,12 @@ public final class DropBoxManagerService extends SystemService {
                     enrollEntry(entry);
                 }
             }
+
+            // Add entries packed into segments, from their indexes.
+            mSegments = new DropBoxSegmentStore(new File(mDropBoxDir, SEGMENTS_DIR));
+            for (DropBoxSegmentStore.Record record : mSegments.load()) {
+                enrollEntry(new EntryFile(record, mBlockSize));
+            }
         }
     }
 
@@ -772,8 +817,12 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
+    /**
+     * Moves a temporary file to a final log filename, or packs data into a segment, and
+     * enrolls it. Leaves a tombstone if there is neither.
+     */
+    private synchronized long createEntry(File temp, byte[] data, int length, String tag,
+            int flags) throws IOException {
         long t = System.currentTimeMillis();
 
         // Require each entry to have a unique timestamp; if there are entries
@@ -798,23 +847,57 @@ public final class DropBoxManagerService extends SystemService {
                 if (tagFiles != null && tagFiles.contents.remove(late)) {
                     tagFiles.blocks -= late.blocks;
                 }
-                if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if ((late.flags & DropBoxManager.IS_EMPTY) != 0) {
+                    deleteEntry(late);
+                    enrollEntry(createTombstone(late.tag, t++));
+                } else if (late.record != null) {
+                    final byte[] lateData = mSegments.read(late.record);
+                    deleteEntry(late);
+                    enrollEntry(new EntryFile(mSegments.append(late.tag, t++, late.flags,
+                            lateData, lateData.length), mBlockSize));
+                } else {
                     enrollEntry(new EntryFile(late.getFile(mDropBoxDir), mDropBoxDir,
                             late.tag, t++, late.flags, mBlockSize));
-                } else {
-                    enrollEntry(new EntryFile(mDropBoxDir, late.tag, t++));
                 }
             }
         }
 
-        if (temp == null) {
-            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
+        if (data != null) {
+            enrollEntry(new EntryFile(mSegments.append(tag, t, flags, data, length),
+                    mBlockSize));
+        } else if (temp == null) {
+            enrollEntry(createTombstone(tag, t));
         } else {
             enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
         }
         return t;
     }
 
+    /** Creates a tombstone for an entry whose contents were lost. */
+    private EntryFile createTombstone(String tag, long timestampMillis) throws IOException {
+        return new EntryFile(mSegments.append(tag, timestampMillis, DropBoxManager.IS_EMPTY,
+                null, 0), mBlockSize);
+    }
+
+    /** Removes the data of an entry that is no longer tracked. */
+    private void deleteEntry(EntryFile entry) {
+        if (entry.record != null) {
+            mSegments.remove(entry.record);
+        } else {
+            entry.deleteFile(mDropBoxDir);
+        }
+    }
+
+    /** Opens an entry that isn't a tombstone for reading. */
+    private DropBoxManager.Entry openEntry(EntryFile entry) throws IOException {
+        if (entry.record != null) {
+            return new DropBoxManager.Entry(entry.tag, entry.timestampMillis,
+                    mSegments.read(entry.record), entry.flags);
+        }
+        return new DropBoxManager.Entry(
+                entry.tag, entry.timestampMillis, entry.getFile(mDropBoxDir), entry.flags);
+    }
+
     /**
      * Trims the files on disk to make sure they aren't using too much space.
      * @return the overall quota for storage (in bytes)
@@ -838,7 +921,7 @@ public final class DropBoxManagerService extends SystemService {
             FileList tag = mFilesByTag.get(entry.tag);
             if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
             if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-            entry.deleteFile(mDropBoxDir);
+            deleteEntry(entry);
         }
 
         // Compute overall quota (a fraction of available free space) in blocks.
@@ -904,8 +987,8 @@ public final class DropBoxManagerService extends SystemService {
                     if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
 
                     try {
-                        entry.deleteFile(mDropBoxDir);
-                        enrollEntry(new EntryFile(mDropBoxDir, entry.tag, entry.timestampMillis));
+                        deleteEntry(entry);
+                        enrollEntry(createTombstone(entry.tag, entry.timestampMillis));
                     } catch (IOException e) {
                         Slog.e(TAG, "Can't write tombstone file", e);
                     }
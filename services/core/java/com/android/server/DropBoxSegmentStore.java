@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+import libcore.io.Streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs small drop box entries into shared segment files, so that bursts of tiny entries
+ * don't each cost a file of their own.
+ * <p>
+ * Entries are appended to the single active segment, one synced record at a time. Once the
+ * active segment has grown beyond {@link #MAX_ACTIVE_BYTES} it is sealed: the data of its
+ * remaining entries is deflated as one block, preceded by an index of the entries, so that
+ * loading a sealed segment only reads its index. Removing an entry clears its live flag in
+ * place, and a segment file is deleted as a whole once none of its entries are live.
+ * </p>
+ * <p>
+ * This class is not thread safe; {@link DropBoxManagerService} only calls it while holding its
+ * own lock.
+ * </p>
+ */
+final class DropBoxSegmentStore {
+    private static final String TAG = "DropBoxSegmentStore";
+
+    private static final String ACTIVE_SUFFIX = ".seg";
+    private static final String SEALED_SUFFIX = ".segz";
+
+    private static final int ACTIVE_MAGIC = 0x44425347; // DBSG
+    private static final int SEALED_MAGIC = 0x4442535a; // DBSZ
+    private static final int VERSION = 1;
+
+    // magic, version
+    private static final int ACTIVE_HEADER_SIZE = 8;
+    // magic, version, index length
+    private static final int SEALED_HEADER_SIZE = 12;
+    // live, payload length, payload crc
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    /** Size beyond which the active segment is sealed. */
+    @VisibleForTesting
+    static final int MAX_ACTIVE_BYTES = 64 * 1024;
+
+    /** Location of an entry's data in a segment. */
+    static final class Record {
+        final String tag;
+        final long timestampMillis;
+        final int flags;
+        final int length;
+
+        /** Segment holding the data, or null once removed. */
+        private Segment segment;
+        /** Offset of the data in the active file, or in the inflated body once sealed. */
+        private int dataOffset;
+        /** File offset of the byte flagging the record as live. */
+        private int livePosition;
+
+        private Record(String tag, long timestampMillis, int flags, int length) {
+            this.tag = tag;
+            this.timestampMillis = timestampMillis;
+            this.flags = flags;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final ArrayList<Record> records = new ArrayList<>();
+        boolean sealed;
+        /** Size of the file while active, or offset of the deflated body once sealed. */
+        int size;
+
+        Segment(int id, boolean sealed) {
+            this.id = id;
+            this.sealed = sealed;
+        }
+    }
+
+    private final File mDir;
+    private final SparseArray<Segment> mSegments = new SparseArray<>();
+    private Segment mActive;
+    private int mNextId;
+
+    DropBoxSegmentStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Scans the segment files for live entries, deleting any file that can't be read or no
+     * longer holds live entries.
+     *
+     * @return The live entries, in no particular order.
+     */
+    List<Record> load() {
+        mSegments.clear();
+        mActive = null;
+        mNextId = 0;
+
+        final ArrayList<Record> records = new ArrayList<>();
+        final String[] names = mDir.list();
+        if (names == null) return records;
+
+        // Active segments first: a sealed file is only complete once its active file is
+        // gone, so an active file wins over a sealed one left behind by an interrupted seal.
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean sealed = pass == 1;
+            final String suffix = sealed ? SEALED_SUFFIX : ACTIVE_SUFFIX;
+            for (String name : names) {
+                if (!name.endsWith(suffix)) continue;
+                final File file = new File(mDir, name);
+                final int id;
+                try {
+                    id = Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+                } catch (NumberFormatException e) {
+                    Slog.w(TAG, "Deleting unknown segment file " + file);
+                    file.delete();
+                    continue;
+                }
+                if (mSegments.get(id) != null) {
+                    file.delete();
+                    continue;
+                }
+
+                final Segment segment = new Segment(id, sealed);
+                try {
+                    if (sealed) {
+                        loadSealed(file, segment);
+                    } else {
+                        loadActive(file, segment);
+                    }
+                } catch (IOException | BufferUnderflowException e) {
+                    Slog.w(TAG, "Deleting unreadable segment file " + file, e);
+                    file.delete();
+                    continue;
+                }
+                mNextId = Math.max(mNextId, id + 1);
+                if (segment.records.isEmpty()) {
+                    file.delete();
+                    continue;
+                }
+                mSegments.put(id, segment);
+                records.addAll(segment.records);
+                if (!sealed && segment.size < MAX_ACTIVE_BYTES
+                        && (mActive == null || mActive.id < id)) {
+                    mActive = segment;
+                }
+            }
+        }
+
+        // Clean up leftovers of interrupted writes.
+        for (String name : names) {
+            if (!name.endsWith(ACTIVE_SUFFIX) && !name.endsWith(SEALED_SUFFIX)) {
+                new File(mDir, name).delete();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends an entry to the active segment, sealing it if it has grown large enough.
+     *
+     * @param data of the entry, or null for a tombstone.
+     * @param length of the data.
+     */
+    Record append(String tag, long timestampMillis, int flags, byte[] data, int length)
+            throws IOException {
+        final byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                RECORD_HEADER_SIZE + 14 + tagBytes.length + length);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(timestampMillis);
+        out.writeInt(flags);
+        out.writeShort(tagBytes.length);
+        out.write(tagBytes);
+        final int dataStart = out.size();
+        if (data != null) {
+            out.write(data, 0, length);
+        }
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        if (mActive == null) {
+            mActive = createActive();
+        }
+        final Segment segment = mActive;
+        final File file = getFile(segment);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file, true);
+            final DataOutputStream fout = new DataOutputStream(fos);
+            fout.writeByte(1);
+            fout.writeInt(payload.length);
+            fout.writeInt((int) crc.getValue());
+            fout.write(payload);
+            fout.flush();
+            FileUtils.sync(fos);
+        } catch (IOException e) {
+            // Anything written is cut off when loading; continue in a new segment.
+            mActive = null;
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+
+        final Record record = new Record(tag, timestampMillis, flags, data != null ? length : 0);
+        record.segment = segment;
+        record.livePosition = segment.size;
+        record.dataOffset = segment.size + RECORD_HEADER_SIZE + dataStart;
+        segment.size += RECORD_HEADER_SIZE + payload.length;
+        segment.records.add(record);
+
+        if (segment.size >= MAX_ACTIVE_BYTES) {
+            mActive = null;
+            try {
+                seal(segment);
+            } catch (IOException e) {
+                // The active file is still intact, and keeps being read as such.
+                Slog.w(TAG, "Can't seal segment " + segment.id, e);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Reads back the data of a live entry.
+     */
+    byte[] read(Record record) throws IOException {
+        final Segment segment = record.segment;
+        if (segment == null) throw new IOException("Entry was removed");
+
+        final byte[] data = new byte[record.length];
+        if (!segment.sealed) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(getFile(segment), "r");
+                file.seek(record.dataOffset);
+                file.readFully(data);
+            } finally {
+                IoUtils.closeQuietly(file);
+            }
+        } else {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(getFile(segment));
+                if (Streams.skipByReading(in, segment.size) != segment.size) {
+                    throw new IOException("Truncated segment " + segment.id);
+                }
+                in = new InflaterInputStream(in);
+                if (Streams.skipByReading(in, record.dataOffset) != record.dataOffset) {
+                    throw new IOException("Truncated segment " + segment.id);
+                }
+                Streams.readFully(in, data, 0, data.length);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Removes an entry, deleting its segment file if no live entries are left in it.
+     */
+    void remove(Record record) {
+        final Segment segment = record.segment;
+        if (segment == null) return;
+        record.segment = null;
+        segment.records.remove(record);
+
+        if (segment.records.isEmpty() && segment != mActive) {
+            getFile(segment).delete();
+            mSegments.remove(segment.id);
+            return;
+        }
+
+        // Not synced: at worst, an entry removed right before a crash comes back.
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(getFile(segment), "rw");
+            file.seek(record.livePosition);
+            file.writeByte(0);
+        } catch (IOException e) {
+            Slog.w(TAG, "Can't remove entry from segment " + segment.id, e);
+        } finally {
+            IoUtils.closeQuietly(file);
+        }
+    }
+
+    /**
+     * @return The file currently holding the data of a live entry.
+     */
+    File getFile(Record record) {
+        return record.segment != null ? getFile(record.segment) : null;
+    }
+
+    int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    private Segment createActive() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't mkdir: " + mDir);
+        }
+        final Segment segment = new Segment(mNextId++, false);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(getFile(segment));
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(ACTIVE_MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        segment.size = ACTIVE_HEADER_SIZE;
+        mSegments.put(segment.id, segment);
+        return segment;
+    }
+
+    private void loadActive(File file, Segment segment) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(IoUtils.readFileAsByteArray(file.getPath()));
+        if (buffer.getInt() != ACTIVE_MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Bad header");
+        }
+
+        final CRC32 crc = new CRC32();
+        int end = buffer.position();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = buffer.position();
+            final boolean live = buffer.get() != 0;
+            final int payloadLength = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (payloadLength < 14 || payloadLength > buffer.remaining()) break;
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), payloadLength);
+            if ((int) crc.getValue() != checksum) break;
+
+            final int payloadEnd = buffer.position() + payloadLength;
+            final long timestampMillis = buffer.getLong();
+            final int flags = buffer.getInt();
+            final String tag = readTag(buffer);
+            if (buffer.position() > payloadEnd) break;
+
+            if (live) {
+                final Record record = new Record(tag, timestampMillis, flags,
+                        payloadEnd - buffer.position());
+                record.segment = segment;
+                record.livePosition = start;
+                record.dataOffset = buffer.position();
+                segment.records.add(record);
+            }
+            buffer.position(payloadEnd);
+            end = payloadEnd;
+        }
+
+        if (end != buffer.limit()) {
+            Slog.w(TAG, "Dropping torn tail of segment " + segment.id);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(end);
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+        }
+        segment.size = end;
+    }
+
+    private void loadSealed(File file, Segment segment) throws IOException {
+        final byte[] header = new byte[SEALED_HEADER_SIZE];
+        final byte[] index;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(header);
+            final ByteBuffer buffer = ByteBuffer.wrap(header);
+            if (buffer.getInt() != SEALED_MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Bad header");
+            }
+            final int indexLength = buffer.getInt();
+            if (indexLength < 4 || indexLength > file.length() - SEALED_HEADER_SIZE) {
+                throw new IOException("Bad index length " + indexLength);
+            }
+            index = new byte[indexLength];
+            in.readFully(index);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(index);
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            final int livePosition = SEALED_HEADER_SIZE + buffer.position();
+            final boolean live = buffer.get() != 0;
+            final long timestampMillis = buffer.getLong();
+            final int flags = buffer.getInt();
+            final String tag = readTag(buffer);
+            final int dataOffset = buffer.getInt();
+            final int length = buffer.getInt();
+            if (live) {
+                final Record record = new Record(tag, timestampMillis, flags, length);
+                record.segment = segment;
+                record.livePosition = livePosition;
+                record.dataOffset = dataOffset;
+                segment.records.add(record);
+            }
+        }
+        segment.size = SEALED_HEADER_SIZE + index.length;
+    }
+
+    /**
+     * Rewrites the live entries of an active segment into a sealed segment file, with their
+     * data deflated as one block.
+     */
+    private void seal(Segment segment) throws IOException {
+        final File activeFile = getFile(segment);
+        final byte[] active = IoUtils.readFileAsByteArray(activeFile.getPath());
+        final ArrayList<Record> records = segment.records;
+
+        // index := count *(live timestamp flags tagLength tag dataOffset length)
+        final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        final DataOutputStream index = new DataOutputStream(indexBytes);
+        final int[] livePositions = new int[records.size()];
+        final int[] dataOffsets = new int[records.size()];
+        int dataOffset = 0;
+        index.writeInt(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            final byte[] tagBytes = record.tag.getBytes(StandardCharsets.UTF_8);
+            livePositions[i] = SEALED_HEADER_SIZE + index.size();
+            dataOffsets[i] = dataOffset;
+            index.writeByte(1);
+            index.writeLong(record.timestampMillis);
+            index.writeInt(record.flags);
+            index.writeShort(tagBytes.length);
+            index.write(tagBytes);
+            index.writeInt(dataOffset);
+            index.writeInt(record.length);
+            dataOffset += record.length;
+        }
+        index.flush();
+
+        final Segment sealed = new Segment(segment.id, true);
+        final AtomicFile file = new AtomicFile(getFile(sealed));
+        final Deflater deflater = new Deflater();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(SEALED_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(indexBytes.size());
+            indexBytes.writeTo(out);
+            out.flush();
+            final DeflaterOutputStream body = new DeflaterOutputStream(fos, deflater);
+            for (int i = 0; i < records.size(); i++) {
+                final Record record = records.get(i);
+                body.write(active, record.dataOffset, record.length);
+            }
+            body.finish();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            file.failWrite(fos);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            record.livePosition = livePositions[i];
+            record.dataOffset = dataOffsets[i];
+        }
+        segment.sealed = true;
+        segment.size = SEALED_HEADER_SIZE + indexBytes.size();
+        activeFile.delete();
+    }
+
+    private static String readTag(ByteBuffer buffer) {
+        final int length = buffer.getShort() & 0xffff;
+        if (length > buffer.remaining()) throw new BufferUnderflowException();
+        final String tag = new String(buffer.array(), buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return tag;
+    }
+
+    private File getFile(Segment segment) {
+        return new File(mDir, segment.id + (segment.sealed ? SEALED_SUFFIX : ACTIVE_SUFFIX));
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 import android.net.Uri;
@@ -51,6 +52,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    // Layout of the compiled key kept for each filter; see computeFilterKey().
+    private static final int KEY_ACTIONS = 0;
+    private static final int KEY_CATEGORIES = 1;
+    private static final int KEY_HOSTS = 2;
+    private static final int KEY_STRIDE = 3;
+
+    private static final int CATEGORY_OVERFLOW_INDEX = 63;
+    private static final long CATEGORY_OVERFLOW_BIT = 1L << CATEGORY_OVERFLOW_INDEX;
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -59,16 +69,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
-        int numS = register_intent_filter(f, f.schemesIterator(),
-                mSchemeToFilter, "      Scheme: ");
-        int numT = register_mime_types(f, "      Type: ");
+        final long[] key = computeFilterKey(f);
+        int numS = register_intent_filter(f, key, f.schemesIterator(),
+                mSchemeToFilter, mSchemeToKey, "      Scheme: ");
+        int numT = register_mime_types(f, key, "      Type: ");
         if (numS == 0 && numT == 0) {
-            register_intent_filter(f, f.actionsIterator(),
-                    mActionToFilter, "      Action: ");
+            register_intent_filter(f, key, f.actionsIterator(),
+                    mActionToFilter, mActionToKey, "      Action: ");
         }
         if (numT != 0) {
-            register_intent_filter(f, f.actionsIterator(),
-                    mTypedActionToFilter, "      TypedAction: ");
+            register_intent_filter(f, key, f.actionsIterator(),
+                    mTypedActionToFilter, mTypedActionToKey, "      TypedAction: ");
         }
     }
 
@@ -203,15 +214,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         int numS = unregister_intent_filter(f, f.schemesIterator(),
-                mSchemeToFilter, "      Scheme: ");
+                mSchemeToFilter, mSchemeToKey, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             unregister_intent_filter(f, f.actionsIterator(),
-                    mActionToFilter, "      Action: ");
+                    mActionToFilter, mActionToKey, "      Action: ");
         }
         if (numT != 0) {
             unregister_intent_filter(f, f.actionsIterator(),
-                    mTypedActionToFilter, "      TypedAction: ");
+                    mTypedActionToFilter, mTypedActionToKey, "      TypedAction: ");
         }
     }
 
@@ -389,7 +400,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         int N = listCut.size();
         for (int i = 0; i < N; ++i) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme,
-                    listCut.get(i), resultList, userId);
+                    listCut.get(i), null, null, resultList, userId);
         }
         filterResults(resultList);
         sortResults(resultList);
@@ -413,6 +424,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
         F[] schemeCut = null;
+        long[] firstTypeKeys = null;
+        long[] secondTypeKeys = null;
+        long[] thirdTypeKeys = null;
+        long[] schemeKeys = null;
 
         // If the intent includes a MIME type, then we want to collect all of
         // the filters that match that MIME type.
@@ -426,27 +441,33 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                         // Not a wild card, so we can just look for all filters that
                         // completely match or wildcards whose base type matches.
                         firstTypeCut = mTypeToFilter.get(resolvedType);
+                        firstTypeKeys = mTypeToKey.get(resolvedType);
                         if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
                         secondTypeCut = mWildTypeToFilter.get(baseType);
+                        secondTypeKeys = mWildTypeToKey.get(baseType);
                         if (debug) Slog.v(TAG, "Second type cut: "
                                 + Arrays.toString(secondTypeCut));
                     } else {
                         // We can match anything with our base type.
                         firstTypeCut = mBaseTypeToFilter.get(baseType);
+                        firstTypeKeys = mBaseTypeToKey.get(baseType);
                         if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
                         secondTypeCut = mWildTypeToFilter.get(baseType);
+                        secondTypeKeys = mWildTypeToKey.get(baseType);
                         if (debug) Slog.v(TAG, "Second type cut: "
                                 + Arrays.toString(secondTypeCut));
                     }
                     // Any */* types always apply, but we only need to do this
                     // if the intent type was not already */*.
                     thirdTypeCut = mWildTypeToFilter.get("*");
+                    thirdTypeKeys = mWildTypeToKey.get("*");
                     if (debug) Slog.v(TAG, "Third type cut: " + Arrays.toString(thirdTypeCut));
                 } else if (intent.getAction() != null) {
                     // The intent specified any type ({@literal *}/*).  This
                     // can be a whole heck of a lot of things, so as a first
                     // cut let's use the action instead.
                     firstTypeCut = mTypedActionToFilter.get(intent.getAction());
+                    firstTypeKeys = mTypedActionToKey.get(intent.getAction());
                     if (debug) Slog.v(TAG, "Typed Action list: " + Arrays.toString(firstTypeCut));
                 }
             }
@@ -457,6 +478,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // on the authority and path by directly matching each resulting filter).
         if (scheme != null) {
             schemeCut = mSchemeToFilter.get(scheme);
+            schemeKeys = mSchemeToKey.get(scheme);
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
@@ -465,25 +487,27 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // data.
         if (resolvedType == null && scheme == null && intent.getAction() != null) {
             firstTypeCut = mActionToFilter.get(intent.getAction());
+            firstTypeKeys = mActionToKey.get(intent.getAction());
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final long[] intentKey = computeIntentKey(intent);
         if (firstTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+                    scheme, firstTypeCut, firstTypeKeys, intentKey, finalList, userId);
         }
         if (secondTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+                    scheme, secondTypeCut, secondTypeKeys, intentKey, finalList, userId);
         }
         if (thirdTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+                    scheme, thirdTypeCut, thirdTypeKeys, intentKey, finalList, userId);
         }
         if (schemeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+                    scheme, schemeCut, schemeKeys, intentKey, finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -568,12 +592,16 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         out.print(prefix); out.print(label); out.print(": "); out.println(count);
     }
 
-    private final void addFilter(ArrayMap<String, F[]> map, String name, F filter) {
+    private final void addFilter(ArrayMap<String, F[]> map, ArrayMap<String, long[]> keyMap,
+            String name, F filter, long[] key) {
         F[] array = map.get(name);
         if (array == null) {
             array = newArray(2);
             map.put(name,  array);
             array[0] = filter;
+            final long[] keys = new long[2 * KEY_STRIDE];
+            System.arraycopy(key, 0, keys, 0, KEY_STRIDE);
+            keyMap.put(name, keys);
         } else {
             final int N = array.length;
             int i = N;
@@ -582,16 +610,21 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             }
             if (i < N) {
                 array[i] = filter;
+                System.arraycopy(key, 0, keyMap.get(name), i * KEY_STRIDE, KEY_STRIDE);
             } else {
                 F[] newa = newArray((N*3)/2);
                 System.arraycopy(array, 0, newa, 0, N);
                 newa[N] = filter;
                 map.put(name, newa);
+                final long[] newk = new long[newa.length * KEY_STRIDE];
+                System.arraycopy(keyMap.get(name), 0, newk, 0, N * KEY_STRIDE);
+                System.arraycopy(key, 0, newk, N * KEY_STRIDE, KEY_STRIDE);
+                keyMap.put(name, newk);
             }
         }
     }
 
-    private final int register_mime_types(F filter, String prefix) {
+    private final int register_mime_types(F filter, long[] key, String prefix) {
         final Iterator<String> i = filter.typesIterator();
         if (i == null) {
             return 0;
@@ -610,12 +643,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 name = name + "/*";
             }
 
-            addFilter(mTypeToFilter, name, filter);
+            addFilter(mTypeToFilter, mTypeToKey, name, filter, key);
 
             if (slashpos > 0) {
-                addFilter(mBaseTypeToFilter, baseName, filter);
+                addFilter(mBaseTypeToFilter, mBaseTypeToKey, baseName, filter, key);
             } else {
-                addFilter(mWildTypeToFilter, baseName, filter);
+                addFilter(mWildTypeToFilter, mWildTypeToKey, baseName, filter, key);
             }
         }
 
@@ -641,19 +674,19 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 name = name + "/*";
             }
 
-            remove_all_objects(mTypeToFilter, name, filter);
+            remove_all_objects(mTypeToFilter, mTypeToKey, name, filter);
 
             if (slashpos > 0) {
-                remove_all_objects(mBaseTypeToFilter, baseName, filter);
+                remove_all_objects(mBaseTypeToFilter, mBaseTypeToKey, baseName, filter);
             } else {
-                remove_all_objects(mWildTypeToFilter, baseName, filter);
+                remove_all_objects(mWildTypeToFilter, mWildTypeToKey, baseName, filter);
             }
         }
         return num;
     }
 
-    private final int register_intent_filter(F filter, Iterator<String> i,
-            ArrayMap<String, F[]> dest, String prefix) {
+    private final int register_intent_filter(F filter, long[] key, Iterator<String> i,
+            ArrayMap<String, F[]> dest, ArrayMap<String, long[]> destKeys, String prefix) {
         if (i == null) {
             return 0;
         }
@@ -663,13 +696,13 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             String name = i.next();
             num++;
             if (localLOGV) Slog.v(TAG, prefix + name);
-            addFilter(dest, name, filter);
+            addFilter(dest, destKeys, name, filter, key);
         }
         return num;
     }
 
     private final int unregister_intent_filter(F filter, Iterator<String> i,
-            ArrayMap<String, F[]> dest, String prefix) {
+            ArrayMap<String, F[]> dest, ArrayMap<String, long[]> destKeys, String prefix) {
         if (i == null) {
             return 0;
         }
@@ -679,15 +712,16 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             String name = i.next();
             num++;
             if (localLOGV) Slog.v(TAG, prefix + name);
-            remove_all_objects(dest, name, filter);
+            remove_all_objects(dest, destKeys, name, filter);
         }
         return num;
     }
 
-    private final void remove_all_objects(ArrayMap<String, F[]> map, String name,
-            Object object) {
+    private final void remove_all_objects(ArrayMap<String, F[]> map,
+            ArrayMap<String, long[]> keyMap, String name, Object object) {
         F[] array = map.get(name);
         if (array != null) {
+            final long[] keys = keyMap.get(name);
             int LAST = array.length-1;
             while (LAST >= 0 && array[LAST] == null) {
                 LAST--;
@@ -697,6 +731,8 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                     final int remain = LAST - idx;
                     if (remain > 0) {
                         System.arraycopy(array, idx+1, array, idx, remain);
+                        System.arraycopy(keys, (idx+1) * KEY_STRIDE, keys, idx * KEY_STRIDE,
+                                remain * KEY_STRIDE);
                     }
                     array[LAST] = null;
                     LAST--;
@@ -704,12 +740,130 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             }
             if (LAST < 0) {
                 map.remove(name);
+                keyMap.remove(name);
             } else if (LAST < (array.length/2)) {
                 F[] newa = newArray(LAST+2);
                 System.arraycopy(array, 0, newa, 0, LAST+1);
                 map.put(name, newa);
+                final long[] newk = new long[newa.length * KEY_STRIDE];
+                System.arraycopy(keys, 0, newk, 0, (LAST+1) * KEY_STRIDE);
+                keyMap.put(name, newk);
+            }
+        }
+    }
+
+    /**
+     * Returns the bit used to represent {@code category} in a filter's category mask,
+     * assigning a new one if {@code assign} is set and there are any left.  Categories
+     * beyond the first 63 seen all share {@link #CATEGORY_OVERFLOW_BIT}.
+     */
+    private long categoryBit(String category, boolean assign) {
+        final Integer index = mCategoryBits.get(category);
+        if (index != null) {
+            return 1L << index;
+        }
+        if (assign && mCategoryBits.size() < CATEGORY_OVERFLOW_INDEX) {
+            final int newIndex = mCategoryBits.size();
+            mCategoryBits.put(category, newIndex);
+            return 1L << newIndex;
+        }
+        return CATEGORY_OVERFLOW_BIT;
+    }
+
+    private static long bloomBit(String value) {
+        return 1L << (value.hashCode() & 63);
+    }
+
+    /**
+     * Returns the bloom bit for the host of {@code data}, or 0 if host matching can't be
+     * precomputed for it.  Hosts are compared case-insensitively by {@link IntentFilter},
+     * so only plain ASCII hosts are folded into the key.
+     */
+    private static long hostBit(String host) {
+        if (host == null) {
+            return 0;
+        }
+        for (int i = host.length() - 1; i >= 0; i--) {
+            if (host.charAt(i) >= 0x80) {
+                return 0;
             }
         }
+        return bloomBit(host.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compiles the parts of {@code filter} that are cheap to compare into a key of
+     * {@link #KEY_STRIDE} longs: an action bloom, a category mask and a host bloom.  A
+     * filter can only match an intent if {@link #keyMayMatch} holds for their keys.
+     */
+    private long[] computeFilterKey(F filter) {
+        final long[] key = new long[KEY_STRIDE];
+
+        final int numActions = filter.countActions();
+        for (int i = 0; i < numActions; i++) {
+            key[KEY_ACTIONS] |= bloomBit(filter.getAction(i));
+        }
+
+        final int numCategories = filter.countCategories();
+        for (int i = 0; i < numCategories; i++) {
+            key[KEY_CATEGORIES] |= categoryBit(filter.getCategory(i), true);
+        }
+
+        // Authorities are only consulted when the filter has schemes and no scheme
+        // specific part matched, and wildcard hosts are matched by suffix; anything we
+        // can't express as an exact host leaves the host unconstrained.
+        final int numAuthorities = filter.countDataAuthorities();
+        if (numAuthorities == 0 || filter.countDataSchemes() == 0
+                || filter.countDataSchemeSpecificParts() != 0) {
+            key[KEY_HOSTS] = -1L;
+        } else {
+            for (int i = 0; i < numAuthorities; i++) {
+                final IntentFilter.AuthorityEntry auth = filter.getDataAuthority(i);
+                final String host = auth.getHost();
+                final long bit = host != null && !host.startsWith("*") ? hostBit(host) : 0;
+                if (bit == 0) {
+                    key[KEY_HOSTS] = -1L;
+                    break;
+                }
+                key[KEY_HOSTS] |= bit;
+            }
+        }
+        return key;
+    }
+
+    private long[] computeIntentKey(Intent intent) {
+        final long[] key = new long[KEY_STRIDE];
+
+        final String action = intent.getAction();
+        if (action != null) {
+            key[KEY_ACTIONS] = bloomBit(action);
+        }
+
+        final Set<String> categories = intent.getCategories();
+        if (categories != null) {
+            for (String category : categories) {
+                key[KEY_CATEGORIES] |= categoryBit(category, false);
+            }
+        }
+
+        final Uri data = intent.getData();
+        if (data != null) {
+            key[KEY_HOSTS] = hostBit(data.getHost());
+        }
+        return key;
+    }
+
+    /**
+     * Returns false if the filter whose key starts at {@code filterKeys[offset]} definitely
+     * can't match the intent with {@code intentKey}: it lacks the intent's action, one of
+     * its categories, or its host.
+     */
+    private static boolean keyMayMatch(long[] filterKeys, int offset, long[] intentKey) {
+        return (filterKeys[offset + KEY_ACTIONS] & intentKey[KEY_ACTIONS])
+                        == intentKey[KEY_ACTIONS]
+                && (intentKey[KEY_CATEGORIES] & ~filterKeys[offset + KEY_CATEGORIES]) == 0
+                && (filterKeys[offset + KEY_HOSTS] & intentKey[KEY_HOSTS])
+                        == intentKey[KEY_HOSTS];
     }
 
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
@@ -722,7 +876,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
             boolean debug, boolean defaultOnly, String resolvedType, String scheme,
-            F[] src, List<R> dest, int userId) {
+            F[] src, long[] srcKeys, long[] intentKey, List<R> dest, int userId) {
         final String action = intent.getAction();
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
@@ -747,6 +901,13 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             int match;
             if (debug) Slog.v(TAG, "Matching against filter " + filter);
 
+            if (srcKeys != null && !keyMayMatch(srcKeys, i * KEY_STRIDE, intentKey)) {
+                if (debug) {
+                    Slog.v(TAG, "  Filter key did not match; skipping");
+                }
+                continue;
+            }
+
             if (excludingStopped && isFilterStopped(filter, userId)) {
                 if (debug) {
                     Slog.v(TAG, "  Filter's target is stopped; skipping");
@@ -875,4 +1036,20 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * Compiled keys for the filters in each of the maps above, {@link #KEY_STRIDE} longs
+     * per filter at the same index as the filter in its array.
+     */
+    private final ArrayMap<String, long[]> mTypeToKey = new ArrayMap<>();
+    private final ArrayMap<String, long[]> mBaseTypeToKey = new ArrayMap<>();
+    private final ArrayMap<String, long[]> mWildTypeToKey = new ArrayMap<>();
+    private final ArrayMap<String, long[]> mSchemeToKey = new ArrayMap<>();
+    private final ArrayMap<String, long[]> mActionToKey = new ArrayMap<>();
+    private final ArrayMap<String, long[]> mTypedActionToKey = new ArrayMap<>();
+
+    /**
+     * Bit index assigned to each category seen in a registered filter.
+     */
+    private final ArrayMap<String, Integer> mCategoryBits = new ArrayMap<>();
 }
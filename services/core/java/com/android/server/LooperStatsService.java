@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import android.os.Binder;
+import android.os.Looper;
+import android.os.ServiceManager;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+import com.android.internal.os.LooperStats;
+import com.android.internal.os.LooperStatsServiceDumpProto;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Controls and dumps the message dispatch statistics of the main loopers of the system server,
+ * see {@link Looper#setStatsEnabled}.
+ */
+public class LooperStatsService extends Binder {
+
+    private static final String TAG = "LooperStatsService";
+
+    // Comma separated names of the threads whose loopers record statistics, "*" for all.
+    private static final String PERSIST_SYS_LOOPER_STATS = "persist.sys.looper_stats";
+    private static final String ALL_LOOPERS = "*";
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock")
+    private static final ArrayMap<String, Looper> sLoopers = new ArrayMap<>();
+    @GuardedBy("sLock")
+    private static final ArraySet<String> sEnabled = new ArraySet<>();
+
+    public static void start() {
+        addLooper(Looper.getMainLooper());
+        addLooper(UiThread.get().getLooper());
+        addLooper(DisplayThread.get().getLooper());
+        addLooper(FgThread.get().getLooper());
+        addLooper(BackgroundThread.get().getLooper());
+
+        final String enabled = SystemProperties.get(PERSIST_SYS_LOOPER_STATS);
+        if (!TextUtils.isEmpty(enabled)) {
+            Slog.i(TAG, "Enabled message stats for loopers " + enabled + ". Controlled by "
+                    + PERSIST_SYS_LOOPER_STATS + " or via dumpsys looper_stats --enable");
+            synchronized (sLock) {
+                for (String name : enabled.split(",")) {
+                    setEnabledLocked(name, true);
+                }
+            }
+        }
+        ServiceManager.addService("looper_stats", new LooperStatsService());
+    }
+
+    /**
+     * Makes the statistics of a looper controllable through this service, by the name of its
+     * thread. May be called before {@link #start}.
+     */
+    public static void addLooper(Looper looper) {
+        synchronized (sLock) {
+            final String name = looper.getThread().getName();
+            sLoopers.put(name, looper);
+            if (sEnabled.contains(name) || sEnabled.contains(ALL_LOOPERS)) {
+                looper.setStatsEnabled(true);
+            }
+        }
+    }
+
+    @GuardedBy("sLock")
+    private static boolean setEnabledLocked(String name, boolean enabled) {
+        if (ALL_LOOPERS.equals(name)) {
+            sEnabled.clear();
+            if (enabled) {
+                sEnabled.add(ALL_LOOPERS);
+            }
+            for (int i = 0; i < sLoopers.size(); i++) {
+                sLoopers.valueAt(i).setStatsEnabled(enabled);
+            }
+            return true;
+        }
+        if (enabled) {
+            sEnabled.add(name);
+        } else {
+            sEnabled.remove(name);
+        }
+        final Looper looper = sLoopers.get(name);
+        if (looper == null) {
+            return false;
+        }
+        looper.setStatsEnabled(enabled || sEnabled.contains(ALL_LOOPERS));
+        return true;
+    }
+
+    @GuardedBy("sLock")
+    private static void persistEnabledLocked() {
+        SystemProperties.set(PERSIST_SYS_LOOPER_STATS, TextUtils.join(",", sEnabled));
+    }
+
+    public static void reset() {
+        Slog.i(TAG, "Resetting stats");
+        synchronized (sLock) {
+            for (int i = 0; i < sLoopers.size(); i++) {
+                final LooperStats stats = sLoopers.valueAt(i).getStats();
+                if (stats != null) {
+                    stats.reset();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length > 0) {
+            final String arg = args[0];
+            if ("--reset".equals(arg)) {
+                reset();
+                pw.println("looper_stats reset.");
+                return;
+            } else if ("--enable".equals(arg) || "--disable".equals(arg)) {
+                final boolean enable = "--enable".equals(arg);
+                synchronized (sLock) {
+                    if (args.length == 1) {
+                        setEnabledLocked(ALL_LOOPERS, enable);
+                    }
+                    for (int i = 1; i < args.length; i++) {
+                        if (!setEnabledLocked(args[i], enable)) {
+                            pw.println("Unknown looper: " + args[i]);
+                        }
+                    }
+                    persistEnabledLocked();
+                }
+                pw.println(enable ? "Message stats enabled" : "Message stats disabled");
+                return;
+            } else if ("--proto".equals(arg)) {
+                final ProtoOutputStream proto = new ProtoOutputStream(fd);
+                synchronized (sLock) {
+                    for (int i = 0; i < sLoopers.size(); i++) {
+                        final LooperStats stats = sLoopers.valueAt(i).getStats();
+                        if (stats != null) {
+                            final long token = proto.start(LooperStatsServiceDumpProto.LOOPERS);
+                            stats.dumpProto(proto, sLoopers.keyAt(i));
+                            proto.end(token);
+                        }
+                    }
+                }
+                proto.flush();
+                return;
+            } else if ("-h".equals(arg)) {
+                pw.println("looper_stats commands:");
+                pw.println("  --reset: Reset stats");
+                pw.println("  --enable [THREAD...]: Enables stats for the loopers of the given"
+                        + " threads, or all of them");
+                pw.println("  --disable [THREAD...]: Disables stats for the loopers of the given"
+                        + " threads, or all of them");
+                pw.println("  --proto: Dumps stats in protobuf format");
+                return;
+            } else if (!"-a".equals(arg)) {
+                pw.println("Unknown option: " + arg);
+            }
+        }
+        synchronized (sLock) {
+            for (int i = 0; i < sLoopers.size(); i++) {
+                final LooperStats stats = sLoopers.valueAt(i).getStats();
+                pw.print(sLoopers.keyAt(i));
+                if (stats == null) {
+                    pw.println(": disabled");
+                    continue;
+                }
+                pw.println(":");
+                stats.dump(pw, "  ");
+            }
+        }
+    }
+}
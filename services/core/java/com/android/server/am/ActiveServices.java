@@ -1781,11 +1781,17 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    if (mAm.mConstants.OOM_ADJ_INCREMENTAL) {
+                        mAm.updateOomAdjIncrementalLocked(r.binding.service.app);
+                    } else {
+                        mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    }
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (!mAm.mConstants.OOM_ADJ_INCREMENTAL) {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2513,7 +2519,7 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        mAm.updateOomAdjIncrementalLocked(app);
 
         boolean created = false;
         try {
@@ -70,6 +70,8 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
     static final String KEY_PROCESS_START_ASYNC = "process_start_async";
     static final String KEY_TOP_TO_FGS_GRACE_DURATION = "top_to_fgs_grace_duration";
+    static final String KEY_OOM_ADJ_INCREMENTAL = "oom_adj_incremental";
+    static final String KEY_BROADCAST_COALESCING = "broadcast_coalescing";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES =
             SystemProperties.getInt("ro.vendor.qti.sys.fw.bg_apps_limit",32);
@@ -100,6 +102,8 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
     private static final boolean DEFAULT_PROCESS_START_ASYNC = true;
     private static final long DEFAULT_TOP_TO_FGS_GRACE_DURATION = 15 * 1000;
+    private static final boolean DEFAULT_OOM_ADJ_INCREMENTAL = false;
+    private static final boolean DEFAULT_BROADCAST_COALESCING = false;
 
     // Maximum number of cached processes we will allow.
     public int MAX_CACHED_PROCESSES = DEFAULT_MAX_CACHED_PROCESSES;
@@ -215,6 +219,15 @@ final class ActivityManagerConstants extends ContentObserver {
     // this long.
     public long TOP_TO_FGS_GRACE_DURATION = DEFAULT_TOP_TO_FGS_GRACE_DURATION;
 
+    // When updating the oom adj of a single process, also re-evaluate only the processes
+    // reachable from it through service bindings and provider connections, instead of
+    // falling back to recomputing every process in the LRU list.
+    public boolean OOM_ADJ_INCREMENTAL = DEFAULT_OOM_ADJ_INCREMENTAL;
+
+    // When a sticky or replace-pending broadcast is queued, drop the deliveries of older
+    // queued copies of the same intent to the registered receivers it will also reach.
+    public boolean BROADCAST_COALESCING = DEFAULT_BROADCAST_COALESCING;
+
     // Indicates whether the activity starts logging is enabled.
     // Controlled by Settings.Global.ACTIVITY_STARTS_LOGGING_ENABLED
     boolean mFlagActivityStartsLoggingEnabled;
@@ -389,6 +402,10 @@ final class ActivityManagerConstants extends ContentObserver {
                     DEFAULT_PROCESS_START_ASYNC);
             TOP_TO_FGS_GRACE_DURATION = mParser.getDurationMillis(KEY_TOP_TO_FGS_GRACE_DURATION,
                     DEFAULT_TOP_TO_FGS_GRACE_DURATION);
+            OOM_ADJ_INCREMENTAL = mParser.getBoolean(KEY_OOM_ADJ_INCREMENTAL,
+                    DEFAULT_OOM_ADJ_INCREMENTAL);
+            BROADCAST_COALESCING = mParser.getBoolean(KEY_BROADCAST_COALESCING,
+                    DEFAULT_BROADCAST_COALESCING);
 
             updateMaxCachedProcesses();
         }
@@ -467,6 +484,10 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(BG_START_TIMEOUT);
         pw.print("  "); pw.print(KEY_TOP_TO_FGS_GRACE_DURATION); pw.print("=");
         pw.println(TOP_TO_FGS_GRACE_DURATION);
+        pw.print("  "); pw.print(KEY_OOM_ADJ_INCREMENTAL); pw.print("=");
+        pw.println(OOM_ADJ_INCREMENTAL);
+        pw.print("  "); pw.print(KEY_BROADCAST_COALESCING); pw.print("=");
+        pw.println(BROADCAST_COALESCING);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
@@ -439,6 +439,7 @@ import com.android.server.IntentResolver;
 import com.android.server.IoThread;
 import com.android.server.LocalServices;
 import com.android.server.LockGuard;
+import com.android.server.LooperStatsService;
 import com.android.server.NetworkManagementInternal;
 import com.android.server.RescueParty;
 import com.android.server.ServiceThread;
@@ -1569,6 +1570,22 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mLruSeq = 0;
 
+    /**
+     * Scratch state for the incremental oom_adj traversal; see
+     * {@link #updateOomAdjReachableLocked}.
+     */
+    private final ArrayList<ProcessRecord> mTmpOomAdjQueue = new ArrayList<>();
+    private final ArraySet<ProcessRecord> mTmpOomAdjVisited = new ArraySet<>();
+
+    /**
+     * Statistics about oom_adj passes, reported in "dumpsys activity processes".
+     */
+    long mNumFullOomAdjUpdates = 0;
+    long mNumIncrementalOomAdjUpdates = 0;
+    long mNumIncrementalOomAdjFallbacks = 0;
+    long mTotalOomAdjProcsTouched = 0;
+    int mLastOomAdjProcsTouched = 0;
+
     /**
      * Keep track of the non-cached/empty process we last found, to help
      * determine how to distribute cached/empty processes next time.
@@ -1960,6 +1977,10 @@ public class ActivityManagerService extends IActivityManager.Stub
     // Enable B-service aging propagation on memory pressure.
     boolean mEnableBServicePropagation =
             SystemProperties.getBoolean("ro.vendor.qti.sys.fw.bservice_enable", false);
+    // Let binder threads post to the main handler without taking its queue lock.
+    // See MessageQueue#enableConcurrentEnqueue().
+    final boolean mConcurrentHandlerEnqueue =
+            SystemProperties.getBoolean("persist.sys.am.concurrent_enqueue", false);
 
     /**
      * Flag whether the current user is a "monkey", i.e. whether
@@ -3032,7 +3053,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mAppOpsService = mInjector.getAppOpsService(null, null);
         mBatteryStatsService = null;
         mCompatModePackages = null;
-        mConstants = null;
+        mConstants = new ActivityManagerConstants(this, null);
         mGrantFile = null;
         mHandler = null;
         mHandlerThread = null;
@@ -3076,7 +3097,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         mHandlerThread = new ServiceThread(TAG,
                 THREAD_PRIORITY_FOREGROUND, false /*allowIo*/);
         mHandlerThread.start();
+        if (mConcurrentHandlerEnqueue) {
+            mHandlerThread.getLooper().getQueue().enableConcurrentEnqueue();
+        }
         mHandler = new MainHandler(mHandlerThread.getLooper());
+        LooperStatsService.addLooper(mHandlerThread.getLooper());
         mUiHandler = mInjector.getUiHandler(this);
 
         mProcStartHandlerThread = new ServiceThread(TAG + ":procStart",
@@ -12672,7 +12697,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjIncrementalLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -12706,7 +12731,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    updateOomAdjIncrementalLocked(localCpr.proc);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -17222,6 +17247,12 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                pw.println("  mOomAdjIncremental=" + mConstants.OOM_ADJ_INCREMENTAL
+                        + " full=" + mNumFullOomAdjUpdates
+                        + " incremental=" + mNumIncrementalOomAdjUpdates
+                        + " fallbacks=" + mNumIncrementalOomAdjFallbacks
+                        + " lastTouched=" + mLastOomAdjProcsTouched
+                        + " totalTouched=" + mTotalOomAdjProcsTouched);
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -21963,6 +21994,12 @@ public class ActivityManagerService extends IActivityManager.Stub
         mCurBroadcastStats.addBroadcast(action, srcPackage, receiveCount, skipCount, dispatchTime);
     }
 
+    final void addBroadcastQueueStatLocked(String action, int queueDepth, long queueTime,
+            int coalescedCount) {
+        rotateBroadcastStatsIfNeededLocked();
+        mCurBroadcastStats.addQueueStats(action, queueDepth, queueTime, coalescedCount);
+    }
+
     final void addBackgroundCheckViolationLocked(String action, String targetPackage) {
         rotateBroadcastStatsIfNeededLocked();
         mCurBroadcastStats.addBackgroundCheckViolation(action, targetPackage);
@@ -25035,17 +25072,107 @@ public class ActivityManagerService extends IActivityManager.Stub
         // need to do a complete oom adj.
         final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
+        final long now = SystemClock.uptimeMillis();
+        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
         if (oomAdjAll
                 && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
             // Changed to/from cached state, so apps after it in the LRU
             // list may also be changed.
             updateOomAdjLocked();
+        } else if (mConstants.OOM_ADJ_INCREMENTAL) {
+            if (!updateOomAdjReachableLocked(app, TOP_APP, now) && oomAdjAll) {
+                mNumIncrementalOomAdjFallbacks++;
+                updateOomAdjLocked();
+            }
+        } else {
+            noteOomAdjPassLocked(1);
         }
         return success;
     }
 
+    /**
+     * Update OomAdj after {@code app} gained or lost a client through a service binding or a
+     * provider connection, or started running a service or receiver.  With
+     * {@link ActivityManagerConstants#OOM_ADJ_INCREMENTAL}, only {@code app} and the processes
+     * reachable from it are updated, unless one of them moves to or from the cached state;
+     * otherwise this is a full {@link #updateOomAdjLocked()}.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjIncrementalLocked(ProcessRecord app) {
+        if (!mConstants.OOM_ADJ_INCREMENTAL || app == null || app.thread == null) {
+            updateOomAdjLocked();
+            return;
+        }
+        updateOomAdjLocked(app, true);
+    }
+
+    /**
+     * Re-evaluate the processes whose importance may depend on {@code app}: the processes
+     * hosting services it is bound to and providers it is connected to, and transitively
+     * their own dependencies.  {@code app} itself must already have been updated in the
+     * current {@link #mAdjSeq}.
+     *
+     * @return false if one of the reached processes moved to or from the cached state, in
+     *         which case the caller needs to do a full update to redistribute cached adjs.
+     */
+    @GuardedBy("this")
+    private boolean updateOomAdjReachableLocked(ProcessRecord app, ProcessRecord TOP_APP,
+            long now) {
+        final ArrayList<ProcessRecord> queue = mTmpOomAdjQueue;
+        final ArraySet<ProcessRecord> visited = mTmpOomAdjVisited;
+        int touched = 1;
+        try {
+            visited.add(app);
+            collectOomAdjDependentsLocked(app, queue, visited);
+            for (int i = 0; i < queue.size(); i++) {
+                final ProcessRecord proc = queue.get(i);
+                final boolean wasCached = proc.cached;
+                final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                        ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+                updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+                touched++;
+                if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                    return false;
+                }
+                collectOomAdjDependentsLocked(proc, queue, visited);
+            }
+            return true;
+        } finally {
+            queue.clear();
+            visited.clear();
+            mNumIncrementalOomAdjUpdates++;
+            noteOomAdjPassLocked(touched);
+        }
+    }
+
+    @GuardedBy("this")
+    private void collectOomAdjDependentsLocked(ProcessRecord app,
+            ArrayList<ProcessRecord> queue, ArraySet<ProcessRecord> visited) {
+        for (int i = app.connections.size() - 1; i >= 0; i--) {
+            final ConnectionRecord cr = app.connections.valueAt(i);
+            if ((cr.flags & Context.BIND_WAIVE_PRIORITY) != 0) {
+                // The client doesn't influence the service's importance.
+                continue;
+            }
+            final ProcessRecord host = cr.binding.service.app;
+            if (host != null && host.thread != null && visited.add(host)) {
+                queue.add(host);
+            }
+        }
+        for (int i = app.conProviders.size() - 1; i >= 0; i--) {
+            final ProcessRecord host = app.conProviders.get(i).provider.proc;
+            if (host != null && host.thread != null && visited.add(host)) {
+                queue.add(host);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void noteOomAdjPassLocked(int touched) {
+        mLastOomAdjProcsTouched = touched;
+        mTotalOomAdjProcsTouched += touched;
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
@@ -25072,6 +25199,8 @@ public class ActivityManagerService extends IActivityManager.Stub
         mStackSupervisor.rankTaskLayersIfNeeded();
 
         mAdjSeq++;
+        mNumFullOomAdjUpdates++;
+        noteOomAdjPassLocked(N);
         mNewNumServiceProcs = 0;
         mNewNumAServiceProcs = 0;
 
@@ -23,6 +23,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
 
@@ -214,6 +215,9 @@ public final class BroadcastQueue {
     }
 
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
+        if (mService.mConstants.BROADCAST_COALESCING) {
+            coalesceParallelBroadcastLocked(r);
+        }
         mParallelBroadcasts.add(r);
         enqueueBroadcastHelper(r);
     }
@@ -237,6 +241,76 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * A sticky or replace-pending broadcast only needs to reach each registered receiver with
+     * its most recent value.  Mark the deliveries of older queued copies of the same intent to
+     * receivers that {@code r} will also reach as skipped, and drop any older record that is
+     * left with nothing to deliver.
+     */
+    private void coalesceParallelBroadcastLocked(BroadcastRecord r) {
+        if (!r.sticky && (r.intent.getFlags() & Intent.FLAG_RECEIVER_REPLACE_PENDING) == 0) {
+            return;
+        }
+        if (r.receivers == null || r.receivers.isEmpty()) {
+            return;
+        }
+        for (int i = mParallelBroadcasts.size() - 1; i >= 0; i--) {
+            final BroadcastRecord old = mParallelBroadcasts.get(i);
+            if (!canCoalesceLocked(old, r)) {
+                continue;
+            }
+            int coalesced = 0;
+            int remaining = 0;
+            final int N = old.receivers.size();
+            for (int j = 0; j < N; j++) {
+                if (old.delivery[j] != BroadcastRecord.DELIVERY_PENDING) {
+                    continue;
+                }
+                if (r.receivers.contains(old.receivers.get(j))) {
+                    old.delivery[j] = BroadcastRecord.DELIVERY_SKIPPED;
+                    coalesced++;
+                } else {
+                    remaining++;
+                }
+            }
+            if (coalesced == 0) {
+                continue;
+            }
+            r.coalescedCount += coalesced;
+            if (DEBUG_BROADCAST) {
+                Slog.v(TAG_BROADCAST, "***** COALESCED " + coalesced + " PARALLEL ["
+                        + mQueueName + "]: " + old.intent);
+            }
+            if (remaining == 0) {
+                // Done without delivering anything, account for it like for a record that
+                // went through processNextBroadcastLocked().
+                mParallelBroadcasts.remove(i);
+                old.dispatchTime = SystemClock.uptimeMillis();
+                old.dispatchClockTime = System.currentTimeMillis();
+                if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
+                    Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                        createBroadcastTraceTitle(old, BroadcastRecord.DELIVERY_PENDING),
+                        System.identityHashCode(old));
+                    Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                        createBroadcastTraceTitle(old, BroadcastRecord.DELIVERY_DELIVERED),
+                        System.identityHashCode(old));
+                }
+                noteBroadcastDispatchedLocked(old, mParallelBroadcasts.size() + 1);
+                addBroadcastToHistoryLocked(old);
+            }
+        }
+    }
+
+    private static boolean canCoalesceLocked(BroadcastRecord old, BroadcastRecord r) {
+        return old.userId == r.userId
+                && !old.ordered
+                && old.resultTo == null
+                && old.callingUid == r.callingUid
+                && old.appOp == r.appOp
+                && Arrays.equals(old.requiredPermissions, r.requiredPermissions)
+                && r.intent.filterEquals(old.intent);
+    }
+
     /**
      * Find the same intent from queued parallel broadcast, replace with a new one and return
      * the old one.
@@ -270,6 +344,18 @@ public final class BroadcastQueue {
         return null;
     }
 
+    /**
+     * Record how long {@code r} waited in this queue and how deep the queue was when it
+     * started dispatching.
+     */
+    private void noteBroadcastDispatchedLocked(BroadcastRecord r, int queueDepth) {
+        final String action = r.intent.getAction();
+        if (action != null) {
+            mService.addBroadcastQueueStatLocked(action, queueDepth,
+                    r.dispatchClockTime - r.enqueueClockTime, r.coalescedCount);
+        }
+    }
+
     private final void processCurBroadcastLocked(BroadcastRecord r,
             ProcessRecord app, boolean skipOomAdj) throws RemoteException {
         if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
@@ -288,7 +374,7 @@ public final class BroadcastQueue {
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
         if (!skipOomAdj) {
-            mService.updateOomAdjLocked();
+            mService.updateOomAdjIncrementalLocked(app);
         }
 
         // Tell the application to launch this receiver.
@@ -855,10 +941,17 @@ public final class BroadcastQueue {
                     System.identityHashCode(r));
             }
 
+            noteBroadcastDispatchedLocked(r, mParallelBroadcasts.size() + 1);
+
             final int N = r.receivers.size();
             if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Processing parallel broadcast ["
                     + mQueueName + "] " + r);
             for (int i=0; i<N; i++) {
+                if (r.delivery[i] == BroadcastRecord.DELIVERY_SKIPPED) {
+                    // Superseded by a newer copy of this broadcast; see
+                    // coalesceParallelBroadcastLocked().
+                    continue;
+                }
                 Object target = r.receivers.get(i);
                 if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
                         "Delivering non-ordered on [" + mQueueName + "] to registered "
@@ -1012,6 +1105,7 @@ public final class BroadcastQueue {
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            noteBroadcastDispatchedLocked(r, mOrderedBroadcasts.size());
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                     createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
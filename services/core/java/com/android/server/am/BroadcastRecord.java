@@ -76,6 +76,7 @@ final class BroadcastRecord extends Binder {
     int anrCount;           // has this broadcast record hit any ANRs?
     int manifestCount;      // number of manifest receivers dispatched.
     int manifestSkipCount;  // number of manifest receivers skipped.
+    int coalescedCount;     // number of older queued deliveries this one superseded.
     BroadcastQueue queue;   // the outbound queue handling this broadcast
 
     static final int IDLE = 0;
@@ -145,6 +146,9 @@ final class BroadcastRecord extends Binder {
         if (anrCount != 0) {
             pw.print(prefix); pw.print("anrCount="); pw.println(anrCount);
         }
+        if (coalescedCount != 0) {
+            pw.print(prefix); pw.print("coalescedCount="); pw.println(coalescedCount);
+        }
         if (resultTo != null || resultCode != -1 || resultData != null) {
             pw.print(prefix); pw.print("resultTo="); pw.print(resultTo);
                     pw.print(" resultCode="); pw.print(resultCode);
@@ -288,6 +292,7 @@ final class BroadcastRecord extends Binder {
         anrCount = from.anrCount;
         manifestCount = from.manifestCount;
         manifestSkipCount = from.manifestSkipCount;
+        coalescedCount = from.coalescedCount;
         queue = from.queue;
     }
 
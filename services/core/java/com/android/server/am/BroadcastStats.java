@@ -52,6 +52,11 @@ public final class BroadcastStats {
         int mSkipCount;
         long mTotalDispatchTime;
         long mMaxDispatchTime;
+        int mQueuedCount;
+        int mCoalescedCount;
+        int mMaxQueueDepth;
+        long mTotalQueueTime;
+        long mMaxQueueTime;
 
         ActionEntry(String action) {
             mAction = action;
@@ -92,6 +97,24 @@ public final class BroadcastStats {
         pe.mSendCount++;
     }
 
+    public void addQueueStats(String action, int queueDepth, long queueTime,
+            int coalescedCount) {
+        ActionEntry ae = mActions.get(action);
+        if (ae == null) {
+            ae = new ActionEntry(action);
+            mActions.put(action, ae);
+        }
+        ae.mQueuedCount++;
+        ae.mCoalescedCount += coalescedCount;
+        if (ae.mMaxQueueDepth < queueDepth) {
+            ae.mMaxQueueDepth = queueDepth;
+        }
+        ae.mTotalQueueTime += queueTime;
+        if (ae.mMaxQueueTime < queueTime) {
+            ae.mMaxQueueTime = queueTime;
+        }
+    }
+
     public void addBackgroundCheckViolation(String action, String targetPackage) {
         ActionEntry ae = mActions.get(action);
         if (ae == null) {
@@ -133,6 +156,21 @@ public final class BroadcastStats {
             pw.print(", max: ");
             TimeUtils.formatDuration(ae.mMaxDispatchTime, pw);
             pw.println();
+            if (ae.mQueuedCount > 0) {
+                pw.print(prefix);
+                pw.print("  Number dispatched: ");
+                pw.print(ae.mQueuedCount);
+                pw.print(", coalesced: ");
+                pw.print(ae.mCoalescedCount);
+                pw.print(", max queue depth: ");
+                pw.println(ae.mMaxQueueDepth);
+                pw.print(prefix);
+                pw.print("  Total queue time: ");
+                TimeUtils.formatDuration(ae.mTotalQueueTime, pw);
+                pw.print(", max: ");
+                TimeUtils.formatDuration(ae.mMaxQueueTime, pw);
+                pw.println();
+            }
             for (int j=ae.mPackages.size()-1; j>=0; j--) {
                 pw.print(prefix);
                 pw.print("  Package ");
@@ -178,6 +216,19 @@ public final class BroadcastStats {
             pw.print(",");
             pw.print(ae.mMaxDispatchTime);
             pw.println();
+            if (ae.mQueuedCount > 0) {
+                pw.print("q,");
+                pw.print(ae.mQueuedCount);
+                pw.print(",");
+                pw.print(ae.mCoalescedCount);
+                pw.print(",");
+                pw.print(ae.mMaxQueueDepth);
+                pw.print(",");
+                pw.print(ae.mTotalQueueTime);
+                pw.print(",");
+                pw.print(ae.mMaxQueueTime);
+                pw.println();
+            }
             for (int j=ae.mPackages.size()-1; j>=0; j--) {
                 pw.print("p,");
                 pw.print(ae.mPackages.keyAt(j));
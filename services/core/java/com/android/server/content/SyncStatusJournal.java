@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of sync status changes, kept next to the status and statistics files
+ * of {@link SyncStorageEngine}.
+ *
+ * <p>Every record carries a sequence number.  When a checkpoint is taken the active journal is
+ * sealed under the name of its last sequence number and a fresh one is started, so that the
+ * checkpoint can be written without holding up new records.  Sealed journals are deleted once
+ * every checkpoint covers them; records that are already part of a checkpoint are skipped when
+ * the journal is replayed.
+ *
+ * <p>Each record is laid out as: payload length, CRC32 of the sequence number and payload,
+ * sequence number, payload.  A torn or corrupt record ends the replay of its file.
+ */
+final class SyncStatusJournal {
+    private static final String TAG = "SyncStatusJournal";
+
+    private static final String ACTIVE_NAME = "status.journal";
+    private static final String SEALED_PREFIX = "status.journal-";
+
+    /** Payload length, CRC32 and sequence number. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Sanity limit for a single record; a status is a few hundred bytes. */
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    interface RecordHandler {
+        /** Called for each replayed record, with {@code in} positioned at the payload. */
+        void onRecord(long seq, Parcel in);
+    }
+
+    private final File mDir;
+    private final File mActiveFile;
+    private final CRC32 mCrc = new CRC32();
+
+    @GuardedBy("this")
+    private FileOutputStream mActiveStream;
+    @GuardedBy("this")
+    private long mActiveSize;
+    @GuardedBy("this")
+    private long mLastSeq;
+
+    SyncStatusJournal(File dir) {
+        mDir = dir;
+        mActiveFile = new File(dir, ACTIVE_NAME);
+    }
+
+    /**
+     * Replays, oldest first, every record with a sequence number above {@code afterSeq}.  New
+     * records are numbered after both the replayed records and {@code afterSeq}.
+     */
+    synchronized int replay(long afterSeq, RecordHandler handler) {
+        closeActiveLocked();
+        mLastSeq = Math.max(mLastSeq, afterSeq);
+        int count = 0;
+        for (long sealedSeq : getSealedSeqs()) {
+            count += replayFile(new File(mDir, SEALED_PREFIX + sealedSeq), afterSeq, handler);
+        }
+        count += replayFile(mActiveFile, afterSeq, handler);
+        mActiveSize = mActiveFile.length();
+        return count;
+    }
+
+    private int replayFile(File file, long afterSeq, RecordHandler handler) {
+        if (!file.exists()) {
+            return 0;
+        }
+        final byte[] data;
+        try {
+            data = IoUtils.readFileAsByteArray(file.getPath());
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to read " + file, e);
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final Parcel in = Parcel.obtain();
+        int count = 0;
+        try {
+            while (buffer.remaining() >= HEADER_SIZE) {
+                final int start = buffer.position();
+                final int length = buffer.getInt();
+                final int crc = buffer.getInt();
+                if (length < 0 || length > MAX_RECORD_SIZE || length > buffer.remaining() - 8) {
+                    buffer.position(start);
+                    break;
+                }
+                mCrc.reset();
+                mCrc.update(data, start + 8, 8 + length);
+                if ((int) mCrc.getValue() != crc) {
+                    buffer.position(start);
+                    break;
+                }
+                final long seq = buffer.getLong();
+                buffer.position(buffer.position() + length);
+                mLastSeq = Math.max(mLastSeq, seq);
+                if (seq <= afterSeq) {
+                    continue;
+                }
+                in.unmarshall(data, start + HEADER_SIZE, length);
+                in.setDataPosition(0);
+                try {
+                    handler.onRecord(seq, in);
+                    count++;
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "Skipping bad record " + seq + " in " + file, e);
+                }
+            }
+        } finally {
+            in.recycle();
+        }
+        if (buffer.position() < data.length) {
+            Slog.w(TAG, "Dropping " + (data.length - buffer.position()) + " trailing bytes of "
+                    + file);
+            if (file.equals(mActiveFile)) {
+                // Records appended after a torn one would never be replayed.
+                truncate(file, buffer.position());
+            }
+        }
+        return count;
+    }
+
+    private static void truncate(File file, long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to truncate " + file, e);
+        }
+    }
+
+    /**
+     * Appends a record holding {@code payload} and returns its sequence number.  If
+     * {@code sync} is true the journal is flushed to disk before returning.
+     */
+    synchronized long append(byte[] payload, boolean sync) throws IOException {
+        if (mActiveStream == null) {
+            mActiveStream = new FileOutputStream(mActiveFile, true);
+        }
+        final long seq = mLastSeq + 1;
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(0);
+        record.putLong(seq);
+        record.put(payload);
+        mCrc.reset();
+        mCrc.update(record.array(), 8, 8 + payload.length);
+        record.putInt(4, (int) mCrc.getValue());
+
+        mActiveStream.write(record.array());
+        if (sync) {
+            FileUtils.sync(mActiveStream);
+        }
+        mLastSeq = seq;
+        mActiveSize += record.capacity();
+        return seq;
+    }
+
+    /** Size in bytes of the active journal, i.e. of the records since the last seal. */
+    synchronized long getSize() {
+        return mActiveSize;
+    }
+
+    /**
+     * Seals the active journal so that new records go to a fresh one, and returns the sequence
+     * number of the last record written so far.  A checkpoint of the state at this point
+     * covers every record up to that number.
+     */
+    synchronized long seal() {
+        closeActiveLocked();
+        if (mActiveSize > 0 || mActiveFile.length() > 0) {
+            final File sealed = new File(mDir, SEALED_PREFIX + mLastSeq);
+            if (!mActiveFile.renameTo(sealed)) {
+                // Keep appending to the same file; replay skips what is checkpointed.
+                Slog.w(TAG, "Unable to seal " + mActiveFile);
+            }
+        }
+        mActiveSize = mActiveFile.length();
+        return mLastSeq;
+    }
+
+    /** Deletes the sealed journals whose records are all at or below {@code seq}. */
+    synchronized void deleteSealed(long seq) {
+        for (long sealedSeq : getSealedSeqs()) {
+            if (sealedSeq <= seq) {
+                new File(mDir, SEALED_PREFIX + sealedSeq).delete();
+            }
+        }
+    }
+
+    private void closeActiveLocked() {
+        if (mActiveStream != null) {
+            IoUtils.closeQuietly(mActiveStream);
+            mActiveStream = null;
+        }
+    }
+
+    private long[] getSealedSeqs() {
+        final String[] names = mDir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] seqs = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEALED_PREFIX)) {
+                try {
+                    seqs[count] = Long.parseLong(name.substring(SEALED_PREFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    Slog.w(TAG, "Ignoring " + name);
+                }
+            }
+        }
+        seqs = Arrays.copyOf(seqs, count);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+}
@@ -52,6 +52,7 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
@@ -148,13 +149,16 @@ public class SyncStorageEngine {
     public static final int MAX_HISTORY = 100;
 
     private static final int MSG_WRITE_STATUS = 1;
-    private static final long WRITE_STATUS_DELAY = 1000*60*10; // 10 minutes
+    private static final long WRITE_STATUS_DELAY = 1000*60*60; // 1 hour, changes are journaled
 
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
+    /** Checkpoint the journal early once it grows past this many bytes. */
+    private static final long MAX_STATUS_JOURNAL_SIZE = 64 * 1024;
+
     // the version of the accounts xml file format
     private static final int ACCOUNTS_VERSION = 3;
 
@@ -474,6 +478,39 @@ public class SyncStorageEngine {
      */
     private final AtomicFile mStatisticsFile;
 
+    /**
+     * Journal of the status and statistics changes made since {@link #mStatusFile} and
+     * {@link #mStatisticsFile} were last written, so that each sync completion does not
+     * rewrite them.
+     */
+    private final SyncStatusJournal mStatusJournal;
+
+    /** Guards the writes of the status and statistics files, which can happen off the lock. */
+    private final Object mCheckpointLock = new Object();
+
+    /** Last journal sequence number included in the status file. */
+    @GuardedBy("mCheckpointLock")
+    private long mStatusCheckpointSeq;
+
+    /** Last journal sequence number included in the statistics file. */
+    @GuardedBy("mCheckpointLock")
+    private long mStatisticsCheckpointSeq;
+
+    /**
+     * Generation of the last status and statistics snapshots taken.  Changes that are not
+     * journaled do not move the sequence number, so this is what orders the snapshots.
+     */
+    @GuardedBy("mAuthorities")
+    private long mStatusGeneration;
+    @GuardedBy("mAuthorities")
+    private long mStatisticsGeneration;
+
+    /** Generation of the snapshots last written to the status and statistics files. */
+    @GuardedBy("mCheckpointLock")
+    private long mStatusWrittenGeneration;
+    @GuardedBy("mCheckpointLock")
+    private long mStatisticsWrittenGeneration;
+
     private int mNextHistoryId = 0;
     private SparseArray<Boolean> mMasterSyncAutomatically = new SparseArray<Boolean>();
     private boolean mDefaultMasterSyncAutomatically;
@@ -506,10 +543,12 @@ public class SyncStorageEngine {
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"), "sync-accounts");
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"), "sync-status");
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"), "sync-stats");
+        mStatusJournal = new SyncStatusJournal(syncDir);
 
         readAccountInfoLocked();
         readStatusLocked();
         readStatisticsLocked();
+        replayStatusJournalLocked();
         readAndDeleteLegacyAccountInfoLocked();
         writeAccountInfoLocked();
         writeStatusLocked();
@@ -569,13 +608,25 @@ public class SyncStorageEngine {
         @Override
         public void handleMessage(Message msg) {
             if (msg.what == MSG_WRITE_STATUS) {
+                final long seq;
+                final long generation;
+                final byte[] data;
                 synchronized (mAuthorities) {
-                    writeStatusLocked();
+                    seq = mStatusJournal.seal();
+                    generation = ++mStatusGeneration;
+                    data = marshallStatusLocked(seq);
                 }
+                writeStatusFile(data, seq, generation);
             } else if (msg.what == MSG_WRITE_STATISTICS) {
+                final long seq;
+                final long generation;
+                final byte[] data;
                 synchronized (mAuthorities) {
-                    writeStatisticsLocked();
+                    seq = mStatusJournal.seal();
+                    generation = ++mStatisticsGeneration;
+                    data = marshallStatisticsLocked(seq);
                 }
+                writeStatisticsFile(data, seq, generation);
             }
         }
     }
@@ -1283,18 +1334,7 @@ public class SyncStorageEngine {
 
             status.addEvent(event.toString());
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATUS)) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
-            if (writeStatisticsNow) {
-                writeStatisticsLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATISTICS)) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATISTICS),
-                        WRITE_STATISTICS_DELAY);
-            }
+            journalStatusLocked(status, ds, writeStatusNow || writeStatisticsNow);
         }
 
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_STATUS);
@@ -1577,10 +1617,14 @@ public class SyncStorageEngine {
             mServices.clear();
             mSyncStatus.clear();
             mSyncHistory.clear();
+            for (int i = 0; i < mDayStats.length; i++) {
+                mDayStats[i] = null;
+            }
 
             readAccountInfoLocked();
             readStatusLocked();
             readStatisticsLocked();
+            replayStatusJournalLocked();
             readAndDeleteLegacyAccountInfoLocked();
             writeAccountInfoLocked();
             writeStatusLocked();
@@ -2140,6 +2184,8 @@ public class SyncStorageEngine {
 
     public static final int STATUS_FILE_END = 0;
     public static final int STATUS_FILE_ITEM = 100;
+    // Written last so that older readers stop at it after reading every item.
+    public static final int STATUS_FILE_JOURNAL_SEQ = 101;
 
     /**
      * Read all sync status back in to the initial engine state.
@@ -2148,6 +2194,7 @@ public class SyncStorageEngine {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Reading " + mStatusFile.getBaseFile());
         }
+        long seq = 0;
         try {
             byte[] data = mStatusFile.readFully();
             Parcel in = Parcel.obtain();
@@ -2156,14 +2203,9 @@ public class SyncStorageEngine {
             int token;
             while ((token=in.readInt()) != STATUS_FILE_END) {
                 if (token == STATUS_FILE_ITEM) {
-                    SyncStatusInfo status = new SyncStatusInfo(in);
-                    if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
-                        status.pending = false;
-                        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-                            Slog.v(TAG_FILE, "Adding status for id " + status.authorityId);
-                        }
-                        mSyncStatus.put(status.authorityId, status);
-                    }
+                    readStatusItemLocked(in);
+                } else if (token == STATUS_FILE_JOURNAL_SEQ) {
+                    seq = in.readLong();
                 } else {
                     // Ooops.
                     Slog.w(TAG, "Unknown status token: " + token);
@@ -2173,40 +2215,155 @@ public class SyncStorageEngine {
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial status");
         }
+        synchronized (mCheckpointLock) {
+            mStatusCheckpointSeq = seq;
+        }
+    }
+
+    private void readStatusItemLocked(Parcel in) {
+        SyncStatusInfo status = new SyncStatusInfo(in);
+        if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+            status.pending = false;
+            if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+                Slog.v(TAG_FILE, "Adding status for id " + status.authorityId);
+            }
+            mSyncStatus.put(status.authorityId, status);
+        }
     }
 
     /**
      * Write all sync status to the sync status file.
      */
     private void writeStatusLocked() {
-        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Slog.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
-        }
-
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         mHandler.removeMessages(MSG_WRITE_STATUS);
 
-        FileOutputStream fos = null;
-        try {
-            fos = mStatusFile.startWrite();
-            Parcel out = Parcel.obtain();
-            final int N = mSyncStatus.size();
-            for (int i=0; i<N; i++) {
-                SyncStatusInfo status = mSyncStatus.valueAt(i);
-                out.writeInt(STATUS_FILE_ITEM);
-                status.writeToParcel(out, 0);
-            }
-            out.writeInt(STATUS_FILE_END);
-            fos.write(out.marshall());
-            out.recycle();
+        final long seq = mStatusJournal.seal();
+        writeStatusFile(marshallStatusLocked(seq), seq, ++mStatusGeneration);
+    }
 
-            mStatusFile.finishWrite(fos);
-        } catch (java.io.IOException e1) {
-            Slog.w(TAG, "Error writing status", e1);
-            if (fos != null) {
-                mStatusFile.failWrite(fos);
+    private byte[] marshallStatusLocked(long seq) {
+        Parcel out = Parcel.obtain();
+        final int N = mSyncStatus.size();
+        for (int i=0; i<N; i++) {
+            SyncStatusInfo status = mSyncStatus.valueAt(i);
+            out.writeInt(STATUS_FILE_ITEM);
+            status.writeToParcel(out, 0);
+        }
+        out.writeInt(STATUS_FILE_JOURNAL_SEQ);
+        out.writeLong(seq);
+        out.writeInt(STATUS_FILE_END);
+        final byte[] data = out.marshall();
+        out.recycle();
+        return data;
+    }
+
+    /**
+     * Write a snapshot of the sync status, covering the journal up to {@code seq}, to the sync
+     * status file, unless a snapshot taken after it has already been written.  Does not need
+     * {@link #mAuthorities} to be held.
+     */
+    private void writeStatusFile(byte[] data, long seq, long generation) {
+        synchronized (mCheckpointLock) {
+            if (generation <= mStatusWrittenGeneration) {
+                // A newer snapshot has already been written.
+                return;
+            }
+            if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+                Slog.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
+            }
+
+            FileOutputStream fos = null;
+            try {
+                fos = mStatusFile.startWrite();
+                fos.write(data);
+                mStatusFile.finishWrite(fos);
+            } catch (java.io.IOException e1) {
+                Slog.w(TAG, "Error writing status", e1);
+                if (fos != null) {
+                    mStatusFile.failWrite(fos);
+                }
+                return;
             }
+            mStatusWrittenGeneration = generation;
+            mStatusCheckpointSeq = seq;
+            mStatusJournal.deleteSealed(Math.min(mStatusCheckpointSeq, mStatisticsCheckpointSeq));
+        }
+    }
+
+    /**
+     * Apply the journaled changes that are newer than the status and statistics files.
+     */
+    private void replayStatusJournalLocked() {
+        final long statusSeq;
+        final long statisticsSeq;
+        synchronized (mCheckpointLock) {
+            statusSeq = mStatusCheckpointSeq;
+            statisticsSeq = mStatisticsCheckpointSeq;
+        }
+        final int count = mStatusJournal.replay(Math.min(statusSeq, statisticsSeq),
+                (seq, in) -> {
+                    int token;
+                    while ((token = in.readInt()) != STATUS_FILE_END) {
+                        if (token == STATUS_FILE_ITEM) {
+                            if (seq > statusSeq) {
+                                readStatusItemLocked(in);
+                            } else {
+                                new SyncStatusInfo(in);
+                            }
+                        } else if (token == STATISTICS_FILE_ITEM) {
+                            DayStats ds = readDayStats(in, in.readInt());
+                            if (seq > statisticsSeq) {
+                                putDayStatsLocked(ds);
+                            }
+                        } else {
+                            Slog.w(TAG, "Unknown journal token: " + token);
+                            break;
+                        }
+                    }
+                });
+        if (count > 0) {
+            Slog.i(TAG, "Replayed " + count + " journaled status changes");
+        }
+    }
+
+    /**
+     * Journal the status of an authority and today's statistics after a sync. The status and
+     * statistics files are then checkpointed later, or as soon as the journal grows too large.
+     */
+    private void journalStatusLocked(SyncStatusInfo status, DayStats ds, boolean syncNow) {
+        Parcel out = Parcel.obtain();
+        out.writeInt(STATUS_FILE_ITEM);
+        status.writeToParcel(out, 0);
+        out.writeInt(STATISTICS_FILE_ITEM);
+        writeDayStats(out, ds);
+        out.writeInt(STATUS_FILE_END);
+        final byte[] data = out.marshall();
+        out.recycle();
+        try {
+            mStatusJournal.append(data, syncNow);
+        } catch (java.io.IOException e) {
+            Slog.w(TAG, "Error journaling status", e);
+            writeStatusLocked();
+            writeStatisticsLocked();
+            return;
+        }
+
+        if (mStatusJournal.getSize() >= MAX_STATUS_JOURNAL_SIZE) {
+            mHandler.removeMessages(MSG_WRITE_STATUS);
+            mHandler.removeMessages(MSG_WRITE_STATISTICS);
+            mHandler.sendEmptyMessage(MSG_WRITE_STATUS);
+            mHandler.sendEmptyMessage(MSG_WRITE_STATISTICS);
+            return;
+        }
+        if (!mHandler.hasMessages(MSG_WRITE_STATUS)) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATUS),
+                    WRITE_STATUS_DELAY);
+        }
+        if (!mHandler.hasMessages(MSG_WRITE_STATISTICS)) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATISTICS),
+                    WRITE_STATISTICS_DELAY);
         }
     }
 
@@ -2245,11 +2402,14 @@ public class SyncStorageEngine {
     public static final int STATISTICS_FILE_END = 0;
     public static final int STATISTICS_FILE_ITEM_OLD = 100;
     public static final int STATISTICS_FILE_ITEM = 101;
+    // Written last so that older readers stop at it after reading every item.
+    public static final int STATISTICS_FILE_JOURNAL_SEQ = 102;
 
     /**
      * Read all sync statistics back in to the initial engine state.
      */
     private void readStatisticsLocked() {
+        long seq = 0;
         try {
             byte[] data = mStatisticsFile.readFully();
             Parcel in = Parcel.obtain();
@@ -2264,15 +2424,13 @@ public class SyncStorageEngine {
                     if (token == STATISTICS_FILE_ITEM_OLD) {
                         day = day - 2009 + 14245;  // Magic!
                     }
-                    DayStats ds = new DayStats(day);
-                    ds.successCount = in.readInt();
-                    ds.successTime = in.readLong();
-                    ds.failureCount = in.readInt();
-                    ds.failureTime = in.readLong();
+                    DayStats ds = readDayStats(in, day);
                     if (index < mDayStats.length) {
                         mDayStats[index] = ds;
                         index++;
                     }
+                } else if (token == STATISTICS_FILE_JOURNAL_SEQ) {
+                    seq = in.readLong();
                 } else {
                     // Ooops.
                     Slog.w(TAG, "Unknown stats token: " + token);
@@ -2282,47 +2440,101 @@ public class SyncStorageEngine {
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial statistics");
         }
+        synchronized (mCheckpointLock) {
+            mStatisticsCheckpointSeq = seq;
+        }
+    }
+
+    private static DayStats readDayStats(Parcel in, int day) {
+        DayStats ds = new DayStats(day);
+        ds.successCount = in.readInt();
+        ds.successTime = in.readLong();
+        ds.failureCount = in.readInt();
+        ds.failureTime = in.readLong();
+        return ds;
+    }
+
+    private static void writeDayStats(Parcel out, DayStats ds) {
+        out.writeInt(ds.day);
+        out.writeInt(ds.successCount);
+        out.writeLong(ds.successTime);
+        out.writeInt(ds.failureCount);
+        out.writeLong(ds.failureTime);
     }
 
     /**
-     * Write all sync statistics to the sync status file.
+     * Put journaled statistics for a day, starting a new day if needed.
      */
-    private void writeStatisticsLocked() {
-        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Slog.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
+    private void putDayStatsLocked(DayStats ds) {
+        if (mDayStats[0] == null || ds.day == mDayStats[0].day) {
+            mDayStats[0] = ds;
+        } else if (ds.day > mDayStats[0].day) {
+            System.arraycopy(mDayStats, 0, mDayStats, 1, mDayStats.length-1);
+            mDayStats[0] = ds;
         }
+    }
 
+    /**
+     * Write all sync statistics to the sync status file.
+     */
+    private void writeStatisticsLocked() {
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         mHandler.removeMessages(MSG_WRITE_STATISTICS);
 
-        FileOutputStream fos = null;
-        try {
-            fos = mStatisticsFile.startWrite();
-            Parcel out = Parcel.obtain();
-            final int N = mDayStats.length;
-            for (int i=0; i<N; i++) {
-                DayStats ds = mDayStats[i];
-                if (ds == null) {
-                    break;
+        final long seq = mStatusJournal.seal();
+        writeStatisticsFile(marshallStatisticsLocked(seq), seq, ++mStatisticsGeneration);
+    }
+
+    private byte[] marshallStatisticsLocked(long seq) {
+        Parcel out = Parcel.obtain();
+        final int N = mDayStats.length;
+        for (int i=0; i<N; i++) {
+            DayStats ds = mDayStats[i];
+            if (ds == null) {
+                break;
+            }
+            out.writeInt(STATISTICS_FILE_ITEM);
+            writeDayStats(out, ds);
+        }
+        out.writeInt(STATISTICS_FILE_JOURNAL_SEQ);
+        out.writeLong(seq);
+        out.writeInt(STATISTICS_FILE_END);
+        final byte[] data = out.marshall();
+        out.recycle();
+        return data;
+    }
+
+    /**
+     * Write a snapshot of the sync statistics, covering the journal up to {@code seq}, to the
+     * sync statistics file, unless a snapshot taken after it has already been written.  Does
+     * not need {@link #mAuthorities} to be held.
+     */
+    private void writeStatisticsFile(byte[] data, long seq, long generation) {
+        synchronized (mCheckpointLock) {
+            if (generation <= mStatisticsWrittenGeneration) {
+                // A newer snapshot has already been written.
+                return;
+            }
+            if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+                Slog.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
+            }
+
+            FileOutputStream fos = null;
+            try {
+                fos = mStatisticsFile.startWrite();
+                fos.write(data);
+                mStatisticsFile.finishWrite(fos);
+            } catch (java.io.IOException e1) {
+                Slog.w(TAG, "Error writing stats", e1);
+                if (fos != null) {
+                    mStatisticsFile.failWrite(fos);
                 }
-                out.writeInt(STATISTICS_FILE_ITEM);
-                out.writeInt(ds.day);
-                out.writeInt(ds.successCount);
-                out.writeLong(ds.successTime);
-                out.writeInt(ds.failureCount);
-                out.writeLong(ds.failureTime);
-            }
-            out.writeInt(STATISTICS_FILE_END);
-            fos.write(out.marshall());
-            out.recycle();
-
-            mStatisticsFile.finishWrite(fos);
-        } catch (java.io.IOException e1) {
-            Slog.w(TAG, "Error writing stats", e1);
-            if (fos != null) {
-                mStatisticsFile.failWrite(fos);
+                return;
             }
+            mStatisticsWrittenGeneration = generation;
+            mStatisticsCheckpointSeq = seq;
+            mStatusJournal.deleteSealed(Math.min(mStatusCheckpointSeq, mStatisticsCheckpointSeq));
         }
     }
 
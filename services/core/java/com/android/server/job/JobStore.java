@@ -36,10 +36,12 @@ import android.text.format.DateUtils;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Pair;
+import android.util.LongSparseArray;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.BitUtils;
@@ -53,12 +55,16 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -99,6 +105,20 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    /** Changes made since {@link #mJobsFile} was last written; only touched on the IO thread. */
+    private final JobStoreJournal mJournal;
+    /** Generation of the jobs file on disk; the journal only applies on top of the same one. */
+    private int mJobsFileGeneration;
+
+    /**
+     * Persisted jobs added or removed since the last write, keyed by {@link #jobKey}. A null
+     * value means the job was removed.
+     */
+    @GuardedBy("mLock")
+    private final LongSparseArray<JobStatus> mPendingJobChanges = new LongSparseArray<>();
+    /** Whether the next write has to rewrite the whole jobs file. */
+    @GuardedBy("mLock")
+    private boolean mNeedsFullWrite;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -138,6 +158,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJournal = new JobStoreJournal(new File(jobDir, "jobs.log"));
 
         mJobSet = new JobSet();
 
@@ -152,7 +173,8 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = Math.max(mJobsFile.getLastModifiedTime(),
+                mJournal.getFile().lastModified());
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -200,6 +222,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingJobChanges.put(jobKey(jobStatus.getUid(), jobStatus.getJobId()), jobStatus);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -237,8 +260,16 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            final int uid = jobStatus.getUid();
+            final int jobId = jobStatus.getJobId();
+            // A replacement may already have been added under the same id.
+            if (mJobSet.get(uid, jobId) == null) {
+                mPendingJobChanges.put(jobKey(uid, jobId), null);
+            }
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -249,11 +280,15 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        mNeedsFullWrite = true;
+        maybeWriteStatusToDiskAsync();
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mPendingJobChanges.clear();
+        mNeedsFullWrite = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -314,9 +349,18 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** Journal record holding a job-info document with the job's new state. */
+    private static final byte JOURNAL_OP_PUT = 1;
+    /** Journal record holding the uid and id of a job that was removed. */
+    private static final byte JOURNAL_OP_REMOVE = 2;
+
+    private static long jobKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we append the jobs that changed to the journal, and fold
+     * the journal into a full rewrite of the jobs file once it grows too large.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -343,27 +387,137 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final LongSparseArray<JobStatus> changesCopy = new LongSparseArray<>();
+            final boolean fullWrite;
             synchronized (mLock) {
+                fullWrite = mNeedsFullWrite || mJournal.needsCompaction();
+                mNeedsFullWrite = false;
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(null, (job) -> {
                     if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                        storeCopy.add(fullWrite ? new JobStatus(job) : job);
                     }
                 });
+                if (!fullWrite) {
+                    for (int i = 0; i < mPendingJobChanges.size(); i++) {
+                        final JobStatus job = mPendingJobChanges.valueAt(i);
+                        changesCopy.put(mPendingJobChanges.keyAt(i),
+                                job != null ? new JobStatus(job) : null);
+                    }
+                }
+                mPendingJobChanges.clear();
+            }
+            final boolean success;
+            if (fullWrite) {
+                success = writeJobsMapImpl(storeCopy);
+            } else {
+                success = appendJobChangesImpl(changesCopy, storeCopy);
+            }
+            if (!success) {
+                synchronized (mLock) {
+                    mNeedsFullWrite = true;
+                }
+            } else if (!fullWrite && mJournal.needsCompaction()) {
+                // Fold the journal into the jobs file in the background.
+                mIoHandler.post(mWriteRunnable);
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished " + (fullWrite ? "writing" : "journaling") + ", took "
+                        + (sElapsedRealtimeClock.millis() - startElapsed) + "ms");
+            }
+        }
+
+        /**
+         * Appends the given changes to the journal.
+         *
+         * @param changes The changed jobs, a null value meaning the job was removed.
+         * @param persistedJobs All persisted jobs, only used for bookkeeping.
+         * @return Whether the changes were written.
+         */
+        private boolean appendJobChangesImpl(LongSparseArray<JobStatus> changes,
+                List<JobStatus> persistedJobs) {
+            try {
+                final List<byte[]> records = new ArrayList<>(changes.size());
+                for (int i = 0; i < changes.size(); i++) {
+                    final JobStatus jobStatus = changes.valueAt(i);
+                    if (jobStatus != null) {
+                        records.add(writeJobRecord(jobStatus));
+                    } else {
+                        final long key = changes.keyAt(i);
+                        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        final DataOutputStream out = new DataOutputStream(baos);
+                        out.writeByte(JOURNAL_OP_REMOVE);
+                        out.writeInt((int) (key >> 32));
+                        out.writeInt((int) key);
+                        out.flush();
+                        records.add(baos.toByteArray());
+                    }
+                }
+                mJournal.append(records);
+                mDirtyOperations = 0;
+            } catch (IOException e) {
+                Slog.w(TAG, "Error writing job journal, will rewrite jobs file.", e);
+                return false;
+            } catch (XmlPullParserException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Error persisting bundle.", e);
+                }
+                return false;
+            }
+            updatePersistStats(persistedJobs);
+            return true;
+        }
+
+        private byte[] writeJobRecord(JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            baos.write(JOURNAL_OP_PUT);
+            XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(baos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            out.startTag(null, "job-info");
+            out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+            writeJobToXml(out, jobStatus);
+            out.endTag(null, "job-info");
+            out.endDocument();
+            return baos.toByteArray();
+        }
+
+        private void updatePersistStats(List<JobStatus> jobList) {
+            int numSystemJobs = 0;
+            int numSyncJobs = 0;
+            for (int i = 0; i < jobList.size(); i++) {
+                final JobStatus jobStatus = jobList.get(i);
+                if (jobStatus.getUid() == Process.SYSTEM_UID) {
+                    numSystemJobs++;
+                    if (isSyncJob(jobStatus)) {
+                        numSyncJobs++;
+                    }
+                }
             }
+            mPersistInfo.countAllJobsSaved = jobList.size();
+            mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
+            mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private boolean writeJobsMapImpl(List<JobStatus> jobList) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
+            boolean success = false;
             try {
                 final long startTime = SystemClock.uptimeMillis();
+                final int generation = mJobsFileGeneration + 1;
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 XmlSerializer out = new FastXmlSerializer();
                 out.setOutput(baos, StandardCharsets.UTF_8.name());
@@ -372,17 +526,13 @@ public final class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "generation", Integer.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -400,6 +550,11 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+
+                // Everything in the journal is now part of the jobs file.
+                mJobsFileGeneration = generation;
+                mJournal.reset(generation);
+                success = true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -413,6 +568,7 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return success;
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -577,6 +733,8 @@ public final class JobStore {
     private final class ReadJobMapFromDiskRunnable implements Runnable {
         private final JobSet jobSet;
         private final boolean rtcGood;
+        /** Generation attribute of the last job-info document read. */
+        private int mReadGeneration;
 
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
@@ -593,10 +751,25 @@ public final class JobStore {
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                List<JobStatus> jobs = null;
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    int generation = 0;
+                    try {
+                        FileInputStream fis = mJobsFile.openRead();
+                        try {
+                            jobs = readJobMapImpl(fis, rtcGood);
+                            generation = mReadGeneration;
+                        } finally {
+                            fis.close();
+                        }
+                    } catch (FileNotFoundException e) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Could not find jobs file, probably there was nothing"
+                                    + " to load.");
+                        }
+                    }
+                    mJobsFileGeneration = generation;
+                    jobs = applyJournal(jobs, generation, rtcGood);
                     if (jobs != null) {
                         long now = sElapsedRealtimeClock.millis();
                         IActivityManager am = ActivityManager.getService();
@@ -616,11 +789,6 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
-                }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
             } finally {
@@ -633,10 +801,64 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
+        /**
+         * Replays the journal written since the jobs file of the given generation on top of the
+         * jobs read from it.
+         */
+        private List<JobStatus> applyJournal(List<JobStatus> jobs, int generation,
+                boolean rtcIsGood) {
+            final List<byte[]> records = mJournal.read(generation);
+            if (records.isEmpty()) {
+                return jobs;
+            }
+            final LongSparseArray<JobStatus> jobsByKey = new LongSparseArray<>();
+            if (jobs != null) {
+                for (int i = 0; i < jobs.size(); i++) {
+                    final JobStatus js = jobs.get(i);
+                    jobsByKey.put(jobKey(js.getUid(), js.getJobId()), js);
+                }
+            }
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                try {
+                    if (record.length > 0 && record[0] == JOURNAL_OP_PUT) {
+                        final List<JobStatus> put = readJobMapImpl(
+                                new ByteArrayInputStream(record, 1, record.length - 1),
+                                rtcIsGood);
+                        if (put != null) {
+                            for (int j = 0; j < put.size(); j++) {
+                                final JobStatus js = put.get(j);
+                                jobsByKey.put(jobKey(js.getUid(), js.getJobId()), js);
+                            }
+                        }
+                    } else if (record.length > 0 && record[0] == JOURNAL_OP_REMOVE) {
+                        final DataInputStream in = new DataInputStream(
+                                new ByteArrayInputStream(record, 1, record.length - 1));
+                        final int uid = in.readInt();
+                        final int jobId = in.readInt();
+                        jobsByKey.remove(jobKey(uid, jobId));
+                    } else {
+                        Slog.w(TAG, "Skipping unknown job journal record");
+                    }
+                } catch (XmlPullParserException | IOException e) {
+                    Slog.w(TAG, "Skipping unreadable job journal record", e);
+                }
+            }
+            final List<JobStatus> result = new ArrayList<>(jobsByKey.size());
+            for (int i = 0; i < jobsByKey.size(); i++) {
+                result.add(jobsByKey.valueAt(i));
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "Replayed " + records.size() + " job journal records");
+            }
+            return result;
+        }
+
+        private List<JobStatus> readJobMapImpl(InputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, StandardCharsets.UTF_8.name());
+            mReadGeneration = 0;
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -661,6 +883,10 @@ public final class JobStore {
                         Slog.d(TAG, "Invalid version number, aborting jobs file read.");
                         return null;
                     }
+                    final String generation = parser.getAttributeValue(null, "generation");
+                    if (generation != null) {
+                        mReadGeneration = Integer.parseInt(generation);
+                    }
                 } catch (NumberFormatException e) {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the persisted jobs since {@code jobs.xml} was last
+ * written in full.
+ * <p>
+ * The log header carries the generation of the jobs file it applies to, so a log left behind
+ * by a crash between writing a new jobs file and resetting the log is recognized as stale and
+ * ignored. Every record carries its own length and CRC, so a record torn by a crash is
+ * detected and dropped together with anything after it.
+ * </p>
+ * <p>
+ * This class is not thread safe; {@link JobStore} only touches it from the IO thread and, at
+ * boot, before any writes are scheduled.
+ * </p>
+ */
+final class JobStoreJournal {
+    private static final String TAG = "JobStoreJournal";
+
+    private static final int MAGIC = 0x4a424c47; // JBLG
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    // Fold the log into a new jobs file once it holds this many records or bytes.
+    private static final int MAX_RECORDS = 500;
+    private static final long MAX_BYTES = 256 * 1024;
+
+    private final File mFile;
+
+    private int mGeneration;
+    private int mRecordCount;
+    private long mLength;
+
+    JobStoreJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Reads the records of the log if it applies to the given jobs file generation.
+     *
+     * @return The record payloads in the order they were appended, empty if there is no log
+     *     or it belongs to another generation.
+     */
+    List<byte[]> read(int generation) {
+        final List<byte[]> records = new ArrayList<>();
+        mGeneration = generation;
+        mRecordCount = 0;
+        mLength = 0;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Slog.w(TAG, "Ignoring job journal with bad header");
+                return records;
+            }
+            final int logGeneration = in.readInt();
+            if (logGeneration != generation) {
+                Slog.i(TAG, "Ignoring stale job journal, generation " + logGeneration
+                        + " vs " + generation);
+                return records;
+            }
+            long length = HEADER_SIZE;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final long checksum;
+                final byte[] payload;
+                try {
+                    if (size < 0 || size > mFile.length()) {
+                        throw new IOException("Bad record size " + size);
+                    }
+                    checksum = in.readLong();
+                    payload = new byte[size];
+                    in.readFully(payload);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Dropping truncated job journal tail", e);
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    Slog.w(TAG, "Dropping corrupt job journal tail");
+                    break;
+                }
+                records.add(payload);
+                length += 4 + 8 + size;
+            }
+            mRecordCount = records.size();
+            mLength = length;
+        } catch (FileNotFoundException e) {
+            // Nothing was changed since the jobs file was written.
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading job journal", e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        if (mLength > 0 && mLength != mFile.length()) {
+            // Cut off the torn tail so that new records are not appended after it.
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "rw");
+                file.setLength(mLength);
+            } catch (IOException e) {
+                Slog.w(TAG, "Error truncating job journal", e);
+                mLength = 0;
+            } finally {
+                IoUtils.closeQuietly(file);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends the given record payloads and syncs the log.
+     */
+    void append(List<byte[]> payloads) throws IOException {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final boolean newLog = mLength == 0;
+        if (newLog) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mGeneration);
+        }
+        int count = 0;
+        final CRC32 crc = new CRC32();
+        for (byte[] payload : payloads) {
+            writeRecord(out, payload, crc);
+            count++;
+        }
+        out.flush();
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, !newLog);
+            bytes.writeTo(fos);
+            fos.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        mLength += bytes.size();
+        mRecordCount += count;
+    }
+
+    /**
+     * Discards all records; called once a jobs file of the given generation has been written.
+     */
+    void reset(int generation) {
+        mGeneration = generation;
+        mRecordCount = 0;
+        mLength = 0;
+        if (mFile.exists() && !mFile.delete()) {
+            Slog.w(TAG, "Failed to delete job journal " + mFile);
+        }
+    }
+
+    /**
+     * @return Whether the log has grown enough that it should be folded into a new jobs file.
+     */
+    boolean needsCompaction() {
+        return mRecordCount >= MAX_RECORDS || mLength >= MAX_BYTES;
+    }
+
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] payload, CRC32 crc)
+            throws IOException {
+        crc.reset();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeLong(crc.getValue());
+        out.write(payload);
+    }
+}
@@ -57,6 +57,7 @@ import com.android.internal.util.FileRotator;
 import com.android.internal.util.IndentingPrintWriter;
 
 import libcore.io.IoUtils;
+import libcore.io.Streams;
 
 import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
@@ -70,9 +71,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Objects;
@@ -80,8 +84,13 @@ import java.util.Objects;
 /**
  * Collection of {@link NetworkStatsHistory}, stored based on combined key of
  * {@link NetworkIdentitySet}, UID, set, and tag. Knows how to persist itself.
+ * <p>
+ * Persisted in a columnar layout: a dictionary of keys sorted by UID, followed
+ * by one column of {@code long} values per history field, holding the buckets
+ * of all keys back to back. Reading the stats of a single UID therefore only
+ * touches the matching keys and their slices of each column.
  */
-public class NetworkStatsCollection implements FileRotator.Reader {
+public class NetworkStatsCollection implements FileRotator.MappedReader {
     /** File header magic number: "ANET" */
     private static final int FILE_MAGIC = 0x414E4554;
 
@@ -93,9 +102,30 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_COLUMNAR = 17;
+
+    /** Size of a key dictionary entry: ident, uid, set, tag, duration, first, count */
+    private static final int KEY_RECORD_SIZE = 4 * 4 + 8 + 4 + 4;
+    /** bucketStart, activeTime, rxBytes, rxPackets, txBytes, txPackets, operations */
+    private static final int COLUMN_COUNT = 7;
+
+    /** Order of the key dictionary, which lets readers binary search for a UID. */
+    private static final Comparator<Key> COLUMNAR_KEY_ORDER = (a, b) -> {
+        int res = Integer.compare(a.uid, b.uid);
+        if (res == 0) {
+            res = Integer.compare(a.tag, b.tag);
+        }
+        if (res == 0) {
+            res = Integer.compare(a.set, b.set);
+        }
+        return res;
+    };
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    /** Only stats of this UID are read or recorded, unless {@link NetworkStats#UID_ALL}. */
+    private int mUidFilter = UID_ALL;
+
     private final long mBucketDuration;
 
     private long mStartMillis;
@@ -120,6 +150,15 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         mDirty = false;
     }
 
+    /**
+     * Only keep stats of the given UID when reading from disk or recording
+     * other collections from now on, or all of them when
+     * {@link NetworkStats#UID_ALL}.
+     */
+    public void setUidFilter(int uid) {
+        mUidFilter = uid;
+    }
+
     public long getStartMillis() {
         return mStartMillis;
     }
@@ -427,11 +466,16 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     public void recordCollection(NetworkStatsCollection another) {
         for (int i = 0; i < another.mStats.size(); i++) {
             final Key key = another.mStats.keyAt(i);
+            if (!matchesUidFilter(key.uid)) continue;
             final NetworkStatsHistory value = another.mStats.valueAt(i);
             recordHistory(key, value);
         }
     }
 
+    private boolean matchesUidFilter(int uid) {
+        return mUidFilter == UID_ALL || mUidFilter == uid;
+    }
+
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
         final Key key = new Key(ident, uid, set, tag);
@@ -481,50 +525,197 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
                         final Key key = new Key(ident, uid, set, tag);
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
-                        recordHistory(key, history);
+                        if (matchesUidFilter(uid)) {
+                            recordHistory(key, history);
+                        }
                     }
                 }
                 break;
             }
+            case VERSION_COLUMNAR: {
+                readColumnar(ByteBuffer.wrap(Streams.readFully(in)));
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
     }
 
+    @Override
+    public void read(ByteBuffer buffer) throws IOException {
+        try {
+            // verify file magic header intact
+            final int magic = buffer.getInt();
+            if (magic != FILE_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+
+            final int version = buffer.getInt();
+            if (version == VERSION_COLUMNAR) {
+                readColumnar(buffer);
+            } else {
+                // older formats are only understood as a stream
+                buffer.rewind();
+                read(new DataInputStream(new ByteBufferInputStream(buffer)));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new ProtocolException("truncated stats: " + e);
+        }
+    }
+
+    /**
+     * Read the part of a {@link #VERSION_COLUMNAR} file that follows its
+     * header, only materializing keys and histories that pass the UID filter.
+     */
+    private void readColumnar(ByteBuffer buffer) throws IOException {
+        // columnar := identSize *(NetworkIdentitySet) keySize *(key) bucketSize
+        //             COLUMN_COUNT *(bucketSize *(long))
+        final int identSize = buffer.getInt();
+        if (identSize < 0 || identSize > buffer.remaining()) {
+            throw new ProtocolException("unexpected ident count: " + identSize);
+        }
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identSize];
+        for (int i = 0; i < identSize; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+        }
+
+        final int keySize = buffer.getInt();
+        if (keySize < 0 || keySize > buffer.remaining() / KEY_RECORD_SIZE) {
+            throw new ProtocolException("unexpected key count: " + keySize);
+        }
+        final int keysPos = buffer.position();
+        final int bucketSizePos = keysPos + keySize * KEY_RECORD_SIZE;
+        final int bucketSize = buffer.getInt(bucketSizePos);
+        final int columnsPos = bucketSizePos + 4;
+        if (bucketSize < 0 || (long) bucketSize * 8 * COLUMN_COUNT
+                > buffer.limit() - columnsPos) {
+            throw new ProtocolException("unexpected bucket count: " + bucketSize);
+        }
+
+        int first = 0;
+        if (mUidFilter != UID_ALL) {
+            // keys are sorted by UID; find the first one of the filtered UID
+            int last = keySize;
+            while (first < last) {
+                final int mid = (first + last) >>> 1;
+                if (buffer.getInt(keysPos + mid * KEY_RECORD_SIZE + 4) < mUidFilter) {
+                    first = mid + 1;
+                } else {
+                    last = mid;
+                }
+            }
+        }
+
+        final ByteBuffer column = buffer.duplicate();
+        for (int i = first; i < keySize; i++) {
+            final int pos = keysPos + i * KEY_RECORD_SIZE;
+            final int uid = buffer.getInt(pos + 4);
+            if (!matchesUidFilter(uid)) break;
+
+            final int identIndex = buffer.getInt(pos);
+            final int set = buffer.getInt(pos + 8);
+            final int tag = buffer.getInt(pos + 12);
+            final long bucketDuration = buffer.getLong(pos + 16);
+            final int firstBucket = buffer.getInt(pos + 24);
+            final int bucketCount = buffer.getInt(pos + 28);
+            if (identIndex < 0 || identIndex >= identSize || firstBucket < 0
+                    || bucketCount < 0 || bucketCount > bucketSize - firstBucket) {
+                throw new ProtocolException("unexpected key at " + i);
+            }
+
+            final long[][] values = new long[COLUMN_COUNT][bucketCount];
+            for (int j = 0; j < COLUMN_COUNT; j++) {
+                // fits in an int, given the bucket count check above
+                column.position((int) (columnsPos + ((long) j * bucketSize + firstBucket) * 8));
+                column.asLongBuffer().get(values[j]);
+            }
+            final NetworkStatsHistory history = new NetworkStatsHistory(bucketDuration,
+                    values[0], values[1], values[2], values[3], values[4], values[5],
+                    values[6]);
+            recordHistory(new Key(idents[identIndex], uid, set, tag), history);
+        }
+    }
+
     public void write(DataOutputStream out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
+        // key dictionary sorted by UID, sharing each ident
+        final ArrayList<Key> keys = Lists.newArrayList();
+        keys.addAll(mStats.keySet());
+        Collections.sort(keys, COLUMNAR_KEY_ORDER);
+        final HashMap<NetworkIdentitySet, Integer> identIndex = Maps.newHashMap();
+        final ArrayList<NetworkIdentitySet> idents = Lists.newArrayList();
+        for (Key key : keys) {
+            if (!identIndex.containsKey(key.ident)) {
+                identIndex.put(key.ident, idents.size());
+                idents.add(key.ident);
             }
-            keys.add(key);
         }
 
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
+        out.writeInt(VERSION_COLUMNAR);
 
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
+        out.writeInt(idents.size());
+        for (NetworkIdentitySet ident : idents) {
             ident.writeToStream(out);
+        }
 
-            out.writeInt(keys.size());
+        out.writeInt(keys.size());
+        int bucketSize = 0;
+        for (Key key : keys) {
+            final NetworkStatsHistory history = mStats.get(key);
+            out.writeInt(identIndex.get(key.ident));
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeLong(history.getBucketDuration());
+            out.writeInt(bucketSize);
+            out.writeInt(history.size());
+            bucketSize += history.size();
+        }
+        out.writeInt(bucketSize);
+
+        final NetworkStatsHistory.Entry entry = new NetworkStatsHistory.Entry();
+        for (int j = 0; j < COLUMN_COUNT; j++) {
             for (Key key : keys) {
                 final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
+                for (int i = 0; i < history.size(); i++) {
+                    history.getValues(i, entry);
+                    out.writeLong(getColumnValue(entry, j));
+                }
             }
         }
 
         out.flush();
     }
 
+    /**
+     * Test if the given stream holds stats in the format written by
+     * {@link #write(DataOutputStream)}, leaving the stream where it was.
+     */
+    public static boolean isCurrentFormat(InputStream in) throws IOException {
+        in.mark(8);
+        try {
+            final DataInputStream din = new DataInputStream(in);
+            return din.readInt() == FILE_MAGIC && din.readInt() == VERSION_COLUMNAR;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static long getColumnValue(NetworkStatsHistory.Entry entry, int column) {
+        switch (column) {
+            case 0: return entry.bucketStart;
+            case 1: return entry.activeTime;
+            case 2: return entry.rxBytes;
+            case 3: return entry.rxPackets;
+            case 4: return entry.txBytes;
+            case 5: return entry.txPackets;
+            case 6: return entry.operations;
+            default: throw new IllegalArgumentException("unknown column " + column);
+        }
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -772,6 +963,37 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    /**
+     * Stream over the remaining bytes of a {@link ByteBuffer}, for the parts
+     * of a file that are variable length.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
@@ -17,6 +17,7 @@
 package com.android.server.net;
 
 import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
 import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
@@ -84,7 +85,10 @@ public class NetworkStatsRecorder {
     private final boolean mOnlyTags;
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
+    /** Private copy of the last snapshot, reused across polls. */
     private NetworkStats mLastSnapshot;
+    /** Delta between the last two snapshots, reused across polls. */
+    private NetworkStats mDelta;
 
     private final NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
@@ -92,6 +96,8 @@ public class NetworkStatsRecorder {
     private final CombiningRewriter mPendingRewriter;
 
     private WeakReference<NetworkStatsCollection> mComplete;
+    private int mUid = UID_ALL;
+    private WeakReference<NetworkStatsCollection> mUidComplete;
 
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
@@ -149,6 +155,9 @@ public class NetworkStatsRecorder {
         if (mComplete != null) {
             mComplete.clear();
         }
+        if (mUidComplete != null) {
+            mUidComplete.clear();
+        }
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -185,9 +194,36 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Load history of a single UID represented by {@link FileRotator}, unless
+     * complete history is already cached. Only the keys of that UID are read
+     * from each file, so this is much cheaper than loading complete history
+     * when the caller is only interested in one UID. Caches the history of
+     * the last UID, and updates it with future snapshots as long as reference
+     * is valid.
+     */
+    public NetworkStatsCollection getOrLoadUidLocked(int uid) {
+        checkNotNull(mRotator, "missing FileRotator");
+        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
+        if (res == null && mUid == uid && mUidComplete != null) {
+            res = mUidComplete.get();
+        }
+        if (res == null) {
+            res = loadLocked(Long.MIN_VALUE, Long.MAX_VALUE, uid);
+            mUid = uid;
+            mUidComplete = new WeakReference<NetworkStatsCollection>(res);
+        }
+        return res;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
+        return loadLocked(start, end, UID_ALL);
+    }
+
+    private NetworkStatsCollection loadLocked(long start, long end, int uid) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
+        res.setUidFilter(uid);
         try {
             mRotator.readMatching(res, start, end);
             res.recordCollection(mPending);
@@ -221,14 +257,17 @@ public class NetworkStatsRecorder {
 
         // assume first snapshot is bootstrap and don't record
         if (mLastSnapshot == null) {
-            mLastSnapshot = snapshot;
+            mLastSnapshot = new NetworkStats(0L, -1).copyFrom(snapshot);
             return;
         }
 
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        final NetworkStatsCollection uidComplete = mUidComplete != null
+                ? mUidComplete.get() : null;
 
-        final NetworkStats delta = NetworkStats.subtract(
-                snapshot, mLastSnapshot, mObserver, mCookie);
+        // compute delta into the arrays of the previous poll when large enough
+        mDelta = NetworkStats.subtract(snapshot, mLastSnapshot, mObserver, mCookie, mDelta);
+        final NetworkStats delta = mDelta;
         final long end = currentTimeMillis;
         final long start = end - delta.getElapsedRealtime();
 
@@ -279,10 +318,16 @@ public class NetworkStatsRecorder {
                 if (complete != null) {
                     complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
+                if (uidComplete != null && entry.uid == mUid) {
+                    uidComplete.recordData(ident, entry.uid, entry.set, entry.tag, start, end,
+                            entry);
+                }
             }
         }
 
-        mLastSnapshot = snapshot;
+        // keep a copy rather than the snapshot itself, which callers are
+        // then free to reuse
+        mLastSnapshot.copyFrom(snapshot);
 
         if (LOGV && unknownIfaces.size() > 0) {
             Slog.w(TAG, "unknown interfaces " + unknownIfaces + ", ignoring those stats");
@@ -359,6 +404,10 @@ public class NetworkStatsRecorder {
         if (complete != null) {
             complete.removeUids(uids);
         }
+        // history of a removed UID is migrated away, so load it again if asked
+        if (mUidComplete != null) {
+            mUidComplete.clear();
+        }
     }
 
     /**
@@ -431,6 +480,62 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Rewrite any persisted data still stored in an older format, so that
+     * future reads can take advantage of {@link NetworkStatsCollection}'s
+     * current layout.
+     */
+    public void upgradeFileFormatLocked() {
+        if (mRotator != null) {
+            try {
+                mRotator.rewriteAll(new FormatUpgradeRewriter(mBucketDuration));
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem upgrading network stats format", e);
+                recoverFromWtf();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem upgrading network stats format", e);
+                recoverFromWtf();
+            }
+        }
+    }
+
+    /**
+     * Rewriter that will rewrite any file not stored in the current
+     * {@link NetworkStatsCollection} format, leaving other files untouched.
+     */
+    private static class FormatUpgradeRewriter implements FileRotator.Rewriter {
+        private final NetworkStatsCollection mTemp;
+        private boolean mUpgrade;
+
+        public FormatUpgradeRewriter(long bucketDuration) {
+            mTemp = new NetworkStatsCollection(bucketDuration);
+        }
+
+        @Override
+        public void reset() {
+            mTemp.reset();
+            mUpgrade = false;
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            mUpgrade = !NetworkStatsCollection.isCurrentFormat(in);
+            if (mUpgrade) {
+                mTemp.read(in);
+            }
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            return mUpgrade;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mTemp.write(new DataOutputStream(out));
+        }
+    }
+
     public void importLegacyNetworkLocked(File file) throws IOException {
         checkNotNull(mRotator, "missing FileRotator");
 
@@ -385,6 +385,13 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             // upgrade any legacy stats, migrating them to rotated files
             maybeUpgradeLegacyStatsLocked();
 
+            // rewrite rotated files still in an older format, so that single
+            // UIDs can be read without loading complete history
+            mDevRecorder.upgradeFileFormatLocked();
+            mXtRecorder.upgradeFileFormatLocked();
+            mUidRecorder.upgradeFileFormatLocked();
+            mUidTagRecorder.upgradeFileFormatLocked();
+
             // read historical network stats from disk, since policy service
             // might need them right away.
             mXtStatsCached = mXtRecorder.getOrLoadCompleteLocked();
@@ -587,6 +594,28 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Collection holding at least the history of the given UID, which
+             * avoids loading complete history when it isn't cached already.
+             */
+            private NetworkStatsCollection getUidHistory(int uid) {
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) {
+                        return mUidComplete;
+                    }
+                    return mUidRecorder.getOrLoadUidLocked(uid);
+                }
+            }
+
+            private NetworkStatsCollection getUidTagHistory(int uid) {
+                synchronized (mStatsLock) {
+                    if (mUidTagComplete != null) {
+                        return mUidTagComplete;
+                    }
+                    return mUidTagRecorder.getOrLoadUidLocked(uid);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -636,10 +665,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
+                    return getUidHistory(uid).getHistory(template, null, uid, set, tag, fields,
                             Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
                 } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
+                    return getUidTagHistory(uid).getHistory(template, null, uid, set, tag, fields,
                             Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
                 }
             }
@@ -650,10 +679,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
+                    return getUidHistory(uid).getHistory(template, null, uid, set, tag, fields,
                             start, end, mAccessLevel, mCallingUid);
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
+                    return getUidTagHistory(uid).getHistory(template, null, uid, set, tag, fields,
                             start, end, mAccessLevel, mCallingUid);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
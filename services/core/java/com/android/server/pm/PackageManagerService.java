@@ -475,6 +475,8 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int SCAN_AS_VENDOR = 1<<20;
     static final int SCAN_AS_PRODUCT = 1<<21;
     static final int SCAN_AS_THEME = 1<<22;
+    /** The certificates of the package were collected while it was being parsed. */
+    static final int SCAN_CERTIFICATES_COLLECTED = 1<<23;
 
     @IntDef(flag = true, prefix = { "SCAN_" }, value = {
             SCAN_NO_DEX,
@@ -621,7 +623,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -8523,9 +8525,14 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + scanDir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        // Packages whose certificates cannot be reused from settings have them collected by
+        // the parsing threads. On a pre-N MR1 upgrade the reuse check looks at the package
+        // directory instead, so leave collection to the scan.
+        final ArrayMap<String, Long> knownPackageTimes =
+                mIsPreNMR1Upgrade ? null : getKnownPackageTimesLPr();
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback, knownPackageTimes)) {
             // Submit files for parsing in parallel
             int fileCount = 0;
             for (File file : files) {
@@ -8541,7 +8548,13 @@ public class PackageManagerService extends IPackageManager.Stub
 
             // Process results one by one
             for (; fileCount > 0; fileCount--) {
-                ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
+                Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "waitForParse");
+                final ParallelPackageParser.ParseResult parseResult;
+                try {
+                    parseResult = parallelPackageParser.take();
+                } finally {
+                    Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                }
                 Throwable throwable = parseResult.throwable;
                 int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
@@ -8551,14 +8564,20 @@ public class PackageManagerService extends IPackageManager.Stub
                     if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
                         renameStaticSharedLibraryPackage(parseResult.pkg);
                     }
+                    Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER,
+                            "scanPackage [" + parseResult.scanFile + "]");
                     try {
                         if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
-                            scanPackageChildLI(parseResult.pkg, parseFlags, scanFlags,
+                            scanPackageChildLI(parseResult.pkg, parseFlags,
+                                    parseResult.certificatesCollected
+                                            ? scanFlags | SCAN_CERTIFICATES_COLLECTED : scanFlags,
                                     currentTime, null);
                         }
                     } catch (PackageManagerException e) {
                         errorCode = e.error;
                         Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
+                    } finally {
+                        Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
                     }
                 } else if (throwable instanceof PackageParser.PackageParserException) {
                     PackageParser.PackageParserException e = (PackageParser.PackageParserException)
@@ -8581,12 +8600,30 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Returns the code path and time stamp of every package whose signing data
+     * {@link #collectCertificatesLI} can reuse as long as the package is unchanged.
+     */
+    @GuardedBy("mPackages")
+    private ArrayMap<String, Long> getKnownPackageTimesLPr() {
+        final ArrayMap<String, Long> times = new ArrayMap<>(mSettings.mPackages.size());
+        for (PackageSetting ps : mSettings.mPackages.values()) {
+            final SigningDetails signingDetails = ps.signatures.mSigningDetails;
+            if (signingDetails.signatures != null && signingDetails.signatures.length != 0
+                    && signingDetails.signatureSchemeVersion != SignatureSchemeVersion.UNKNOWN) {
+                times.put(ps.codePathString, ps.timeStamp);
+            }
+        }
+        return times;
+    }
+
     public static void reportSettingsProblem(int priority, String msg) {
         logCriticalInfo(priority, msg);
     }
 
     private void collectCertificatesLI(PackageSetting ps, PackageParser.Package pkg,
-            boolean forceCollect, boolean skipVerify) throws PackageManagerException {
+            boolean forceCollect, boolean skipVerify, boolean collected)
+            throws PackageManagerException {
         // When upgrading from pre-N MR1, verify the package time stamp using the package
         // directory and not the APK file.
         final long lastModifiedTime = mIsPreNMR1Upgrade
@@ -8617,7 +8654,11 @@ public class PackageManagerService extends IPackageManager.Stub
 
         try {
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
-            PackageParser.collectCertificates(pkg, skipVerify);
+            if (!collected) {
+                // Otherwise they were collected while parsing, with full verification
+                // unless the package is on a system partition.
+                PackageParser.collectCertificates(pkg, skipVerify);
+            }
             if (compareSignatures(pkg.mSigningDetails.signatures,
                   mVendorPlatformSignatures) == PackageManager.SIGNATURE_MATCH) {
                 // Overwrite package signature with our platform signature
@@ -8955,7 +8996,8 @@ public class PackageManagerService extends IPackageManager.Stub
         // cases, only data in Signing Block is verified instead of the whole file.
         final boolean skipVerify = ((parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0) ||
                 (forceCollect && canSkipFullPackageVerification(pkg));
-        collectCertificatesLI(pkgSetting, pkg, forceCollect, skipVerify);
+        collectCertificatesLI(pkgSetting, pkg, forceCollect, skipVerify,
+                (scanFlags & SCAN_CERTIFICATES_COLLECTED) != 0);
 
         // Reset profile if the application version is changed
         maybeClearProfilesForUpgradesLI(pkgSetting, pkg);
@@ -21551,6 +21593,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
+                pw.println("    package-cache: dump package parser cache statistics");
                 pw.println("    service-permissions: dump permissions required by services");
                 pw.println("    <package.name>: info about given package");
                 return;
@@ -21685,6 +21728,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_DEXOPT);
             } else if ("compiler-stats".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_COMPILER_STATS);
+            } else if ("package-cache".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_PACKAGE_CACHE);
             } else if ("changes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("service-permissions".equals(cmd)) {
@@ -22069,6 +22114,22 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 ipw.decreaseIndent();
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_PACKAGE_CACHE)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+
+                final IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ", 120);
+                ipw.println();
+                ipw.println("Package parser cache:");
+                ipw.increaseIndent();
+                ipw.print("dir="); ipw.println(mCacheDir);
+                ipw.print("hits="); ipw.print(PackageParser.sCacheHitCount.get());
+                ipw.print(" misses="); ipw.print(PackageParser.sCacheMissCount.get());
+                ipw.print(" stale="); ipw.print(PackageParser.sCacheStaleCount.get());
+                ipw.print(" errors="); ipw.println(PackageParser.sCacheErrorCount.get());
+                ipw.decreaseIndent();
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_SERVICE_PERMISSIONS)
                     && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
@@ -19,6 +19,7 @@ package com.android.server.pm;
 import android.content.pm.PackageParser;
 import android.os.Process;
 import android.os.Trace;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -31,11 +32,15 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
+import static com.android.server.pm.PackageManagerServiceUtils.getLastModifiedTime;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>If given the packages whose certificates are already known, the certificates of any
+ * other package are collected on the same thread right after parsing, so that the scan
+ * holding the package lock only has to commit the result.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
@@ -47,6 +52,9 @@ class ParallelPackageParser implements AutoCloseable {
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    // Code path to last modified time of the packages whose certificates can be reused from
+    // settings, or null if certificates should be left to the scan.
+    private final ArrayMap<String, Long> mKnownPackageTimes;
     private volatile String mInterruptedInThread;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
@@ -56,11 +64,18 @@ class ParallelPackageParser implements AutoCloseable {
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, null);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            ArrayMap<String, Long> knownPackageTimes) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mKnownPackageTimes = knownPackageTimes;
     }
 
     static class ParseResult {
@@ -68,6 +83,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        boolean certificatesCollected; // Set if the certificates of pkg were collected
 
         @Override
         public String toString() {
@@ -75,6 +91,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", certificatesCollected=" + certificatesCollected +
                     '}';
         }
     }
@@ -120,6 +137,19 @@ class ParallelPackageParser implements AutoCloseable {
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            if (pr.pkg != null && shouldCollectCertificates(pr.pkg)) {
+                Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER,
+                        "parallel collectCertificates [" + scanFile + "]");
+                try {
+                    collectCertificates(pr.pkg,
+                            (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0);
+                    pr.certificatesCollected = true;
+                } catch (Throwable e) {
+                    // Leave it to the scan, which collects them again and reports the error.
+                } finally {
+                    Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                }
+            }
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -138,6 +168,20 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    private boolean shouldCollectCertificates(PackageParser.Package pkg) {
+        if (mKnownPackageTimes == null) {
+            return false;
+        }
+        final Long knownTime = mKnownPackageTimes.get(pkg.codePath);
+        return knownTime == null || knownTime != getLastModifiedTime(pkg);
+    }
+
+    @VisibleForTesting
+    protected void collectCertificates(PackageParser.Package pkg, boolean skipVerify)
+            throws PackageParser.PackageParserException {
+        PackageParser.collectCertificates(pkg, skipVerify);
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
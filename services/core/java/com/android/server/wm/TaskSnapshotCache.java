@@ -17,10 +17,15 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -28,15 +33,41 @@ import java.util.Map.Entry;
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * Snapshots of running tasks are kept until their task or app goes away. Snapshots that had to
+ * be restored from disk, usually reduced resolution ones for recents, are kept in a second tier
+ * that is bounded by the size of their buffers and evicts the least recently used ones first.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    /** Maximum size in bytes of the buffers of the snapshots restored from disk. */
+    @VisibleForTesting
+    static final int MAX_RESTORED_CACHE_BYTES = ActivityManager.isLowRamDeviceStatic()
+            ? 4 * 1024 * 1024 : 16 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
+    /** Snapshots restored from disk by task id. Doesn't need the window manager lock. */
+    private final LruCache<Integer, TaskSnapshot> mRestoredCache =
+            new LruCache<Integer, TaskSnapshot>(MAX_RESTORED_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                    return getByteCount(snapshot);
+                }
+            };
+
+    // Statistics, guarded by the window manager lock.
+    private int mRunningHits;
+    private int mRestoredHits;
+    private int mMisses;
+    private int mDiskLoads;
+    private long mDiskLoadTimeMs;
+    private long mMaxDiskLoadTimeMs;
+
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
         mService = service;
         mLoader = loader;
@@ -47,6 +78,7 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
         }
+        mRestoredCache.remove(task.mTaskId);
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
@@ -62,13 +94,23 @@ class TaskSnapshotCache {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                mRunningHits++;
                 return entry.snapshot;
             }
+            if (!restoreFromDisk) {
+                mMisses++;
+                return null;
+            }
         }
 
-        // Try to restore from disk if asked.
-        if (!restoreFromDisk) {
-            return null;
+        // Try what we restored from disk before. A full resolution snapshot will do for a
+        // reduced resolution request, but not the other way around.
+        final TaskSnapshot restored = mRestoredCache.get(taskId);
+        if (restored != null && (reducedResolution || !restored.isReducedResolution())) {
+            synchronized (mService.mWindowMap) {
+                mRestoredHits++;
+            }
+            return restored;
         }
         return tryRestoreFromDisk(taskId, userId, reducedResolution);
     }
@@ -77,9 +119,22 @@ class TaskSnapshotCache {
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        final long startTime = SystemClock.uptimeMillis();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
-        if (snapshot == null) {
-            return null;
+        final long loadTime = SystemClock.uptimeMillis() - startTime;
+        synchronized (mService.mWindowMap) {
+            mMisses++;
+            mDiskLoads++;
+            mDiskLoadTimeMs += loadTime;
+            mMaxDiskLoadTimeMs = Math.max(mMaxDiskLoadTimeMs, loadTime);
+            if (snapshot == null) {
+                return null;
+            }
+
+            // Don't bring back a snapshot of a task that got a new one in the meantime.
+            if (!mRunningCache.containsKey(taskId)) {
+                mRestoredCache.put(taskId, snapshot);
+            }
         }
         return snapshot;
     }
@@ -106,6 +161,7 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        mRestoredCache.remove(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
@@ -120,12 +176,32 @@ class TaskSnapshotCache {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
+        pw.println(doublePrefix + "runningHits=" + mRunningHits + " restoredHits=" + mRestoredHits
+                + " misses=" + mMisses);
+        pw.println(doublePrefix + "diskLoads=" + mDiskLoads + " avgLoadTimeMs="
+                + (mDiskLoads > 0 ? mDiskLoadTimeMs / mDiskLoads : 0)
+                + " maxLoadTimeMs=" + mMaxDiskLoadTimeMs);
+        pw.println(doublePrefix + "restoredCache size=" + mRestoredCache.size() + "/"
+                + mRestoredCache.maxSize() + " bytes evictions=" + mRestoredCache.evictionCount());
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        for (Entry<Integer, TaskSnapshot> entry : mRestoredCache.snapshot().entrySet()) {
+            pw.println(doublePrefix + "Restored entry taskId=" + entry.getKey());
+            pw.println(triplePrefix + "snapshot=" + entry.getValue());
+        }
+    }
+
+    /**
+     * @return The number of bytes the buffer of the snapshot takes up, assuming 4 bytes per pixel.
+     */
+    @VisibleForTesting
+    static int getByteCount(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        return buffer != null ? buffer.getWidth() * buffer.getHeight() * 4 : 0;
     }
 
     private static final class CacheEntry {
@@ -739,6 +739,11 @@ public final class SystemServer {
         traceBeginAndSlog("StartBinderCallsStatsService");
         BinderCallsStatsService.start();
         traceEnd();
+
+        // Tracks messages dispatched by the main loopers, when enabled
+        traceBeginAndSlog("StartLooperStatsService");
+        LooperStatsService.start();
+        traceEnd();
     }
 
     /**
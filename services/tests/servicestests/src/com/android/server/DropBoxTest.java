@@ -40,6 +40,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.GZIPOutputStream;
 
@@ -558,6 +559,43 @@ public class DropBoxTest extends AndroidTestCase {
         f2.close();
     }
 
+    public void testSmallEntriesPackedIntoSegments() throws Exception {
+        File dir = getEmptyDir("testSmallEntriesPackedIntoSegments");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper());
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // Enough small entries to fill up and seal at least one segment
+        char[] padding = new char[256];
+        Arrays.fill(padding, 'x');
+        int count = 2 * DropBoxSegmentStore.MAX_ACTIVE_BYTES / padding.length;
+        for (int i = 0; i < count; i++) {
+            dropbox.addText("DropBoxTest", "TEST" + i + new String(padding));
+        }
+
+        // No entry got a file of its own
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].isDirectory());
+        boolean sealed = false;
+        for (File f : files[0].listFiles()) {
+            if (f.getName().endsWith(".segz")) sealed = true;
+        }
+        assertTrue(sealed);
+
+        // A new instance finds all entries, in order, from the segments on disk
+        service = new DropBoxManagerService(getContext(), dir, Looper.getMainLooper());
+        dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        long millis = 0;
+        for (int i = 0; i < count; i++) {
+            DropBoxManager.Entry e = dropbox.getNextEntry("DropBoxTest", millis);
+            assertEquals("TEST" + i + new String(padding), e.getText(1024));
+            millis = e.getTimeMillis();
+            e.close();
+        }
+        assertTrue(null == dropbox.getNextEntry("DropBoxTest", millis));
+    }
+
     public void testCreateDropBoxManagerWithInvalidDirectory() throws Exception {
         // If created with an invalid directory, the DropBoxManager should suffer quietly
         // and fail all operations (this is how it survives a full disk).
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}, checking that the compiled filter keys never hide a
+ * filter that {@link IntentFilter#match} would accept.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String ACTION_A = "com.android.test.ACTION_A";
+    private static final String ACTION_B = "com.android.test.ACTION_B";
+    private static final String CATEGORY_X = "com.android.test.CATEGORY_X";
+
+    private TestResolver mResolver;
+    private final List<IntentFilter> mAllFilters = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mResolver = new TestResolver();
+        mAllFilters.clear();
+
+        add(filter(ACTION_A));
+        add(filter(ACTION_A, Intent.CATEGORY_DEFAULT));
+        add(filter(ACTION_A, Intent.CATEGORY_DEFAULT, CATEGORY_X));
+        add(filter(ACTION_B, Intent.CATEGORY_DEFAULT));
+        add(filter(Intent.ACTION_MAIN, Intent.CATEGORY_LAUNCHER));
+        add(filter(Intent.ACTION_MAIN, Intent.CATEGORY_HOME, Intent.CATEGORY_DEFAULT));
+
+        add(dataFilter(Intent.ACTION_VIEW, "https", "www.example.com"));
+        add(dataFilter(Intent.ACTION_VIEW, "https", "*.example.com"));
+        add(dataFilter(Intent.ACTION_VIEW, "https", "*"));
+        add(dataFilter(Intent.ACTION_VIEW, "https", "Other.Example.ORG"));
+        add(dataFilter(Intent.ACTION_VIEW, "https", null));
+        add(dataFilter(Intent.ACTION_SEND, "https", "www.example.com"));
+
+        // Enough distinct categories to overflow the per-category bits.
+        for (int i = 0; i < 80; i++) {
+            add(filter(ACTION_B, "com.android.test.CATEGORY_" + i));
+        }
+    }
+
+    @Test
+    public void testActions() {
+        assertSameAsMatch(new Intent(ACTION_A));
+        assertSameAsMatch(new Intent(ACTION_B));
+        assertSameAsMatch(new Intent("com.android.test.UNKNOWN"));
+    }
+
+    @Test
+    public void testCategories() {
+        assertSameAsMatch(new Intent(ACTION_A).addCategory(CATEGORY_X));
+        assertSameAsMatch(new Intent(ACTION_A).addCategory("com.android.test.UNKNOWN"));
+        assertSameAsMatch(new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER));
+        assertSameAsMatch(new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME));
+        assertSameAsMatch(new Intent(ACTION_B).addCategory("com.android.test.CATEGORY_1"));
+        assertSameAsMatch(new Intent(ACTION_B).addCategory("com.android.test.CATEGORY_75"));
+    }
+
+    @Test
+    public void testHosts() {
+        assertSameAsMatch(view("https://www.example.com/path"));
+        assertSameAsMatch(view("https://WWW.EXAMPLE.COM/path"));
+        assertSameAsMatch(view("https://mail.example.com/"));
+        assertSameAsMatch(view("https://other.example.org/"));
+        assertSameAsMatch(view("https://nowhere.test/"));
+        assertSameAsMatch(new Intent(Intent.ACTION_SEND, Uri.parse("https://www.example.com")));
+    }
+
+    @Test
+    public void testRemoveFilter() {
+        final IntentFilter removed = mAllFilters.remove(0);
+        mResolver.removeFilter(removed);
+        assertSameAsMatch(new Intent(ACTION_A));
+
+        final IntentFilter removedData = mAllFilters.remove(5);
+        mResolver.removeFilter(removedData);
+        assertSameAsMatch(view("https://www.example.com/path"));
+    }
+
+    private void assertSameAsMatch(Intent intent) {
+        final List<IntentFilter> expected = new ArrayList<>();
+        for (IntentFilter f : mAllFilters) {
+            if (f.match(intent.getAction(), intent.getType(), intent.getScheme(),
+                    intent.getData(), intent.getCategories(), "IntentResolverTest") >= 0) {
+                expected.add(f);
+            }
+        }
+        final List<IntentFilter> actual = mResolver.queryIntent(intent, null, false, 0);
+        assertEquals(intent.toString(), expected.size(), actual.size());
+        for (IntentFilter f : expected) {
+            assertEquals(intent.toString(), true, actual.contains(f));
+        }
+    }
+
+    private void add(IntentFilter f) {
+        mAllFilters.add(f);
+        mResolver.addFilter(f);
+    }
+
+    private static IntentFilter filter(String action, String... categories) {
+        final IntentFilter f = new IntentFilter(action);
+        for (String category : categories) {
+            f.addCategory(category);
+        }
+        return f;
+    }
+
+    private static IntentFilter dataFilter(String action, String scheme, String host) {
+        final IntentFilter f = new IntentFilter(action);
+        f.addDataScheme(scheme);
+        if (host != null) {
+            f.addDataAuthority(host, null);
+        }
+        return f;
+    }
+
+    private static Intent view(String uri) {
+        return new Intent(Intent.ACTION_VIEW, Uri.parse(uri));
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+}
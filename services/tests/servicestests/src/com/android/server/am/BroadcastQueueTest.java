@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.AppOpsService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the coalescing of queued parallel broadcasts in {@link BroadcastQueue}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.BroadcastQueueTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BroadcastQueueTest {
+    private static final String TAG = BroadcastQueueTest.class.getSimpleName();
+    private static final String ACTION = "com.android.server.am.TEST_ACTION";
+    private static final String PACKAGE = "com.android.server.am.test";
+    private static final int CALLER_UID = 10001;
+    private static final int RECEIVER_UID = 10002;
+
+    private ActivityManagerService mAms;
+    private HandlerThread mHandlerThread;
+    private BroadcastQueue mQueue;
+    private BroadcastFilter mReceiver1;
+    private BroadcastFilter mReceiver2;
+
+    @Before
+    public void setUp() {
+        mAms = new ActivityManagerService(new ActivityManagerService.Injector() {
+            @Override
+            public AppOpsService getAppOpsService(File file, Handler handler) {
+                return null;
+            }
+
+            @Override
+            public Handler getUiHandler(ActivityManagerService service) {
+                return null;
+            }
+        });
+        mAms.mConstants.BROADCAST_COALESCING = true;
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mQueue = new BroadcastQueue(mAms, new Handler(mHandlerThread.getLooper()), TAG,
+                10 * 1000, false);
+        mReceiver1 = newReceiver();
+        mReceiver2 = newReceiver();
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+    }
+
+    private BroadcastFilter newReceiver() {
+        final ReceiverList receiverList = new ReceiverList(mAms, null, 1, RECEIVER_UID, 0,
+                Mockito.mock(IIntentReceiver.class));
+        final BroadcastFilter filter = new BroadcastFilter(new IntentFilter(ACTION),
+                receiverList, PACKAGE, null, RECEIVER_UID, 0, false, false);
+        receiverList.add(filter);
+        return filter;
+    }
+
+    private BroadcastRecord enqueue(Intent intent, String[] requiredPermissions, boolean sticky,
+            BroadcastFilter... receivers) {
+        final List<Object> list = new ArrayList<>();
+        for (BroadcastFilter receiver : receivers) {
+            list.add(receiver);
+        }
+        final BroadcastRecord r = new BroadcastRecord(mQueue, intent, null, PACKAGE, 1,
+                CALLER_UID, false, null, requiredPermissions, AppOpsManager.OP_NONE, null, list,
+                null, -1, null, null, false, sticky, false, 0);
+        synchronized (mAms) {
+            mQueue.enqueueParallelBroadcastLocked(r);
+        }
+        return r;
+    }
+
+    private static Intent newIntent(int value) {
+        return new Intent(ACTION).putExtra("value", value);
+    }
+
+    @Test
+    public void testStickyBroadcastIsCoalesced() {
+        final BroadcastRecord old = enqueue(newIntent(1), null, true, mReceiver1, mReceiver2);
+        final BroadcastRecord r = enqueue(newIntent(2), null, true, mReceiver1, mReceiver2);
+
+        assertEquals(1, mQueue.mParallelBroadcasts.size());
+        assertTrue(mQueue.mParallelBroadcasts.get(0) == r);
+        assertEquals(2, r.coalescedCount);
+
+        // The superseded record still shows up in the history and the stats.
+        final BroadcastRecord history = mQueue.mBroadcastHistory[0];
+        assertNotNull(history);
+        assertEquals(old.callingUid, history.callingUid);
+        assertTrue(history.intent.filterEquals(old.intent));
+        assertEquals(1, history.intent.getIntExtra("value", 0));
+        assertEquals(1, mAms.mCurBroadcastStats.mActions.get(ACTION).mQueuedCount);
+    }
+
+    @Test
+    public void testReplacePendingBroadcastIsPartlyCoalesced() {
+        final BroadcastRecord old = enqueue(
+                newIntent(1).addFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING), null, false,
+                mReceiver1, mReceiver2);
+        final BroadcastRecord r = enqueue(
+                newIntent(2).addFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING), null, false,
+                mReceiver2);
+
+        // mReceiver1 still needs the old value.
+        assertEquals(2, mQueue.mParallelBroadcasts.size());
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, old.delivery[0]);
+        assertEquals(BroadcastRecord.DELIVERY_SKIPPED, old.delivery[1]);
+        assertEquals(1, r.coalescedCount);
+        assertNull(mQueue.mBroadcastHistory[0]);
+    }
+
+    @Test
+    public void testBroadcastWithDifferentExtrasIsNotCoalesced() {
+        // Without FLAG_RECEIVER_REPLACE_PENDING, every value is delivered.
+        final BroadcastRecord old = enqueue(newIntent(1), null, false, mReceiver1);
+        final BroadcastRecord r = enqueue(newIntent(2), null, false, mReceiver1);
+
+        assertEquals(2, mQueue.mParallelBroadcasts.size());
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, old.delivery[0]);
+        assertEquals(0, r.coalescedCount);
+    }
+
+    @Test
+    public void testBroadcastWithDifferentIntentIsNotCoalesced() {
+        final BroadcastRecord old = enqueue(newIntent(1), null, true, mReceiver1);
+        final BroadcastRecord r = enqueue(newIntent(2).setData(Uri.parse("content://other")),
+                null, true, mReceiver1);
+
+        assertEquals(2, mQueue.mParallelBroadcasts.size());
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, old.delivery[0]);
+        assertEquals(0, r.coalescedCount);
+    }
+
+    @Test
+    public void testBroadcastWithDifferentPermissionsIsNotCoalesced() {
+        final BroadcastRecord old = enqueue(newIntent(1),
+                new String[] { Manifest.permission.ACCESS_FINE_LOCATION }, true,
+                mReceiver1);
+        final BroadcastRecord r = enqueue(newIntent(2), null, true, mReceiver1);
+
+        assertEquals(2, mQueue.mParallelBroadcasts.size());
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, old.delivery[0]);
+        assertEquals(0, r.coalescedCount);
+    }
+
+    @Test
+    public void testNotCoalescedWhenDisabled() {
+        mAms.mConstants.BROADCAST_COALESCING = false;
+        final BroadcastRecord old = enqueue(newIntent(1), null, true, mReceiver1);
+        final BroadcastRecord r = enqueue(newIntent(2), null, true, mReceiver1);
+
+        assertEquals(2, mQueue.mParallelBroadcasts.size());
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, old.delivery[0]);
+        assertEquals(0, r.coalescedCount);
+    }
+}
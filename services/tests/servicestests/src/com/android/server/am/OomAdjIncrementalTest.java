@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.app.IApplicationThread;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.AppOpsService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+/**
+ * Tests for the incremental oom adj update of {@link ActivityManagerService}: updating a
+ * process that gained a client and the processes reachable from it must leave every process
+ * with the same adj and process state as a full update.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.OomAdjIncrementalTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class OomAdjIncrementalTest {
+    private static final String TAG = "OomAdjIncrementalTest";
+    private static final String PACKAGE = "com.android.server.am.test";
+
+    private ActivityManagerService mAms;
+    private HandlerThread mHandlerThread;
+
+    @Before
+    public void setUp() throws Exception {
+        mAms = new ActivityManagerService(new ActivityManagerService.Injector() {
+            @Override
+            public AppOpsService getAppOpsService(File file, Handler handler) {
+                return null;
+            }
+
+            @Override
+            public Handler getUiHandler(ActivityManagerService service) {
+                return null;
+            }
+        });
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        final Handler handler = new Handler(mHandlerThread.getLooper());
+        mAms.mFgBroadcastQueue = new BroadcastQueue(mAms, handler, "foreground",
+                10 * 1000, false);
+        mAms.mBgBroadcastQueue = new BroadcastQueue(mAms, handler, "background",
+                60 * 1000, true);
+        mAms.mBroadcastQueues[0] = mAms.mFgBroadcastQueue;
+        mAms.mBroadcastQueues[1] = mAms.mBgBroadcastQueue;
+
+        final ProcessStatsService processStats = new ProcessStatsService(mAms,
+                new File(InstrumentationRegistry.getContext().getCacheDir(), "procstats"));
+        // Not due for a write, which would go through the main handler.
+        processStats.mLastWriteTime = SystemClock.uptimeMillis();
+        setFieldValue("mProcessStats", processStats);
+        setFieldValue("mStackSupervisor", mock(ActivityStackSupervisor.class));
+
+        mAms.mConstants.OOM_ADJ_INCREMENTAL = true;
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+    }
+
+    private void setFieldValue(String name, Object value) throws Exception {
+        final Field field = ActivityManagerService.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mAms, value);
+    }
+
+    /**
+     * Adds a process to the LRU list.  It has no pid, so nothing is set on or done to a real
+     * process.
+     */
+    private ProcessRecord newProcess(String name) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = PACKAGE;
+        info.uid = Process.FIRST_APPLICATION_UID + mAms.mLruProcesses.size();
+        final ProcessRecord app = new ProcessRecord(mAms, null, info, name, info.uid);
+        app.thread = mock(IApplicationThread.class);
+        app.lastActivityTime = SystemClock.uptimeMillis();
+        mAms.mLruProcesses.add(app);
+        return app;
+    }
+
+    private ServiceRecord newService(ProcessRecord host) {
+        final ServiceInfo info = new ServiceInfo();
+        info.applicationInfo = host.info;
+        info.packageName = PACKAGE;
+        info.name = "Service" + host.processName + host.services.size();
+        info.processName = host.processName;
+        final ServiceRecord service = new ServiceRecord(mAms, null,
+                new ComponentName(PACKAGE, info.name), new Intent.FilterComparison(new Intent()),
+                info, false, null);
+        service.app = host;
+        host.services.add(service);
+        return service;
+    }
+
+    private void startService(ProcessRecord host) {
+        newService(host).startRequested = true;
+    }
+
+    private void bind(ProcessRecord client, ProcessRecord host, int flags) {
+        final ServiceRecord service = newService(host);
+        final IntentBindRecord intent = new IntentBindRecord(service, service.intent);
+        final ConnectionRecord c = new ConnectionRecord(
+                new AppBindRecord(service, intent, client), null, null, flags, 0, null);
+        final ArrayList<ConnectionRecord> clist = new ArrayList<>();
+        clist.add(c);
+        service.connections.put(new Binder(), clist);
+        client.connections.add(c);
+    }
+
+    private void connectProvider(ProcessRecord client, ProcessRecord host) {
+        final ProviderInfo info = new ProviderInfo();
+        info.packageName = PACKAGE;
+        info.name = "Provider" + host.processName;
+        final ContentProviderRecord provider = new ContentProviderRecord(mAms, info, host.info,
+                new ComponentName(PACKAGE, info.name), false);
+        provider.proc = host;
+        host.pubProviders.put(info.name, provider);
+        final ContentProviderConnection conn = new ContentProviderConnection(provider, client);
+        provider.connections.add(conn);
+        client.conProviders.add(conn);
+    }
+
+    private void updateFull() {
+        synchronized (mAms) {
+            mAms.updateOomAdjLocked();
+        }
+    }
+
+    private void updateIncremental(ProcessRecord app) {
+        synchronized (mAms) {
+            mAms.updateOomAdjIncrementalLocked(app);
+        }
+    }
+
+    /**
+     * Returns the adj and the applied process state of every process.
+     */
+    private ArrayList<String> appliedState() {
+        final ArrayList<String> state = new ArrayList<>();
+        for (ProcessRecord app : mAms.mLruProcesses) {
+            state.add(app.processName + " adj=" + app.curAdj + " procState="
+                    + app.setProcState);
+        }
+        return state;
+    }
+
+    @Test
+    public void testBindingsMatchFullUpdate() {
+        final ProcessRecord a = newProcess("a");
+        a.foregroundServices = true;
+        final ProcessRecord b = newProcess("b");
+        startService(b);
+        final ProcessRecord c = newProcess("c");
+        startService(c);
+        // Unrelated to the bindings; the incremental update leaves it alone.
+        newProcess("other").foregroundServices = true;
+        updateFull();
+        final long fallbacks = mAms.mNumIncrementalOomAdjFallbacks;
+
+        bind(a, b, Context.BIND_AUTO_CREATE);
+        bind(b, c, Context.BIND_AUTO_CREATE);
+        // The host gained a client, so that is where the update starts.
+        updateIncremental(b);
+        final ArrayList<String> incremental = appliedState();
+        assertEquals(fallbacks, mAms.mNumIncrementalOomAdjFallbacks);
+        assertEquals(2, mAms.mLastOomAdjProcsTouched);
+        assertTrue(c.curAdj < ProcessList.SERVICE_ADJ);
+
+        updateFull();
+        assertEquals(appliedState(), incremental);
+    }
+
+    @Test
+    public void testProviderMatchesFullUpdate() {
+        final ProcessRecord a = newProcess("a");
+        a.foregroundServices = true;
+        final ProcessRecord b = newProcess("b");
+        startService(b);
+        final ProcessRecord c = newProcess("c");
+        startService(c);
+        bind(b, c, Context.BIND_AUTO_CREATE);
+        updateFull();
+        final long fallbacks = mAms.mNumIncrementalOomAdjFallbacks;
+
+        connectProvider(a, b);
+        updateIncremental(b);
+        final ArrayList<String> incremental = appliedState();
+        assertEquals(fallbacks, mAms.mNumIncrementalOomAdjFallbacks);
+        assertEquals(2, mAms.mLastOomAdjProcsTouched);
+        assertTrue(b.curAdj < ProcessList.SERVICE_ADJ);
+        assertTrue(c.curAdj < ProcessList.SERVICE_ADJ);
+
+        updateFull();
+        assertEquals(appliedState(), incremental);
+    }
+
+    @Test
+    public void testWaivedBindingIsNotFollowed() {
+        final ProcessRecord a = newProcess("a");
+        a.foregroundServices = true;
+        final ProcessRecord b = newProcess("b");
+        startService(b);
+        final ProcessRecord c = newProcess("c");
+        startService(c);
+        bind(b, c, Context.BIND_AUTO_CREATE | Context.BIND_WAIVE_PRIORITY);
+        updateFull();
+        final int adj = c.curAdj;
+
+        bind(a, b, Context.BIND_AUTO_CREATE);
+        updateIncremental(b);
+        final ArrayList<String> incremental = appliedState();
+        assertEquals(1, mAms.mLastOomAdjProcsTouched);
+        assertEquals(adj, c.curAdj);
+
+        updateFull();
+        assertEquals(appliedState(), incremental);
+    }
+
+    @Test
+    public void testCachedChangeFallsBackToFullUpdate() {
+        final ProcessRecord a = newProcess("a");
+        a.foregroundServices = true;
+        final ProcessRecord b = newProcess("b");
+        startService(b);
+        final ProcessRecord c = newProcess("c");
+        updateFull();
+        assertTrue(c.cached);
+        final long fallbacks = mAms.mNumIncrementalOomAdjFallbacks;
+
+        bind(a, b, Context.BIND_AUTO_CREATE);
+        bind(b, c, Context.BIND_AUTO_CREATE);
+        updateIncremental(b);
+        final ArrayList<String> incremental = appliedState();
+        assertEquals(fallbacks + 1, mAms.mNumIncrementalOomAdjFallbacks);
+        assertFalse(c.cached);
+
+        updateFull();
+        assertEquals(appliedState(), incremental);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test for SyncStatusJournal.
+ *
+ * atest ${ANDROID_BUILD_TOP}/frameworks/base/services/tests/servicestests/src/com/android/server/content/SyncStatusJournalTest.java
+ */
+@SmallTest
+public class SyncStatusJournalTest extends AndroidTestCase {
+
+    File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getFilesDir(), "syncjournal");
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mDir);
+        super.tearDown();
+    }
+
+    public void testReplay() throws Exception {
+        SyncStatusJournal journal = new SyncStatusJournal(mDir);
+        assertEquals(1, journal.append(record(10), false));
+        assertEquals(2, journal.append(record(20), true));
+        assertEquals(3, journal.append(record(30), false));
+
+        List<Integer> values = new ArrayList<>();
+        journal = new SyncStatusJournal(mDir);
+        assertEquals(2, journal.replay(1, (seq, in) -> values.add(in.readInt())));
+        assertEquals(2, values.size());
+        assertEquals(20, (int) values.get(0));
+        assertEquals(30, (int) values.get(1));
+    }
+
+    public void testSealAndDelete() throws Exception {
+        SyncStatusJournal journal = new SyncStatusJournal(mDir);
+        journal.append(record(10), false);
+        journal.append(record(20), false);
+        assertEquals(2, journal.seal());
+        assertEquals(0, journal.getSize());
+        assertEquals(3, journal.append(record(30), false));
+
+        // Records of the sealed journal are replayed until a checkpoint covers them.
+        List<Integer> values = new ArrayList<>();
+        new SyncStatusJournal(mDir).replay(0, (seq, in) -> values.add(in.readInt()));
+        assertEquals(3, values.size());
+
+        journal.deleteSealed(2);
+        values.clear();
+        SyncStatusJournal reopened = new SyncStatusJournal(mDir);
+        reopened.replay(2, (seq, in) -> values.add(in.readInt()));
+        assertEquals(1, values.size());
+        assertEquals(30, (int) values.get(0));
+        assertEquals(4, reopened.append(record(40), false));
+    }
+
+    public void testTornRecordDropped() throws Exception {
+        SyncStatusJournal journal = new SyncStatusJournal(mDir);
+        journal.append(record(10), false);
+        journal.append(record(20), false);
+        journal.seal();
+        journal.deleteSealed(0);
+
+        File active = new File(mDir, "status.journal");
+        assertFalse(active.exists());
+        File sealed = new File(mDir, "status.journal-2");
+        assertTrue(sealed.renameTo(active));
+        try (FileOutputStream out = new FileOutputStream(active, true)) {
+            out.write(new byte[] { 0, 0, 0, 8, 1, 2 });
+        }
+
+        List<Integer> values = new ArrayList<>();
+        journal = new SyncStatusJournal(mDir);
+        journal.replay(0, (seq, in) -> values.add(in.readInt()));
+        assertEquals(2, values.size());
+
+        // New records are still readable after the torn one.
+        assertEquals(3, journal.append(record(30), false));
+        values.clear();
+        new SyncStatusJournal(mDir).replay(0, (seq, in) -> values.add(in.readInt()));
+        assertEquals(3, values.size());
+        assertEquals(30, (int) values.get(2));
+    }
+
+    private static byte[] record(int value) {
+        Parcel out = Parcel.obtain();
+        out.writeInt(value);
+        final byte[] data = out.marshall();
+        out.recycle();
+        return data;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SyncStatusInfo;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.Process;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Test for SyncStorageEngine.
+ *
+ * atest ${ANDROID_BUILD_TOP}/frameworks/base/services/tests/servicestests/src/com/android/server/content/SyncStorageEngineTest.java
+ */
+@SmallTest
+public class SyncStorageEngineTest extends AndroidTestCase {
+
+    private static final Account ACCOUNT = new Account("test@example.com", "com.example");
+    private static final String AUTHORITY = "com.example.provider";
+    private static final int USER_ID = 0;
+
+    File mSyncDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSyncDir = new File(new File(getContext().getFilesDir(), "system"), "sync");
+        FileUtils.deleteContents(mSyncDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mSyncDir);
+        super.tearDown();
+    }
+
+    private static void sync(SyncStorageEngine engine, long elapsedTime, String result) {
+        final SyncOperation op = new SyncOperation(ACCOUNT, USER_ID, Process.myUid(),
+                "com.example", SyncOperation.REASON_IS_SYNCABLE, SyncStorageEngine.SOURCE_USER,
+                AUTHORITY, new Bundle(), false, ContentResolver.SYNC_EXEMPTION_NONE);
+        final long id = engine.insertStartSyncEvent(op, System.currentTimeMillis());
+        assertTrue(id >= 0);
+        engine.stopSyncEvent(id, elapsedTime, result, 0, 0);
+    }
+
+    /**
+     * Changes that were only journaled are replayed when the engine starts again.
+     */
+    public void testJournaledStatusIsReplayed() throws Exception {
+        SyncStorageEngine engine = SyncStorageEngine.newTestInstance(getContext());
+        // Not syncable, so that no sync is requested.
+        engine.setIsSyncable(ACCOUNT, USER_ID, AUTHORITY, 0, Process.myUid());
+        sync(engine, 1000, SyncStorageEngine.MESG_SUCCESS);
+        sync(engine, 2000, SyncStorageEngine.MESG_SUCCESS);
+        sync(engine, 4000, "error");
+
+        engine = SyncStorageEngine.newTestInstance(getContext());
+        final SyncStatusInfo status = engine.getStatusByAuthority(
+                new SyncStorageEngine.EndPoint(ACCOUNT, AUTHORITY, USER_ID));
+        assertNotNull(status);
+        assertEquals(3, status.totalStats.numSourceUser);
+        assertEquals(1, status.totalStats.numFailures);
+        assertTrue(status.lastSuccessTime > 0);
+        assertTrue(status.lastFailureTime > 0);
+
+        final SyncStorageEngine.DayStats ds = engine.getDayStatistics()[0];
+        assertNotNull(ds);
+        assertEquals(2, ds.successCount);
+        assertEquals(3000, ds.successTime);
+        assertEquals(1, ds.failureCount);
+        assertEquals(4000, ds.failureTime);
+    }
+}
@@ -338,6 +338,42 @@ public class JobStoreTest {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that jobs added and removed after the jobs file was written are replayed from the
+     * journal.
+     */
+    @Test
+    public void testJournaledChangesPersisted() throws Exception {
+        JobStatus js1 = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setOverrideDeadline(10000)
+                .setPersisted(true)
+                .build(), SOME_UID, null, -1, null);
+        JobStatus js2 = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setOverrideDeadline(10000)
+                .setPersisted(true)
+                .build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js1);
+        waitForPendingIo();
+        mTaskStoreUnderTest.add(js2);
+        mTaskStoreUnderTest.remove(js1, true);
+        // Replace job 2 with a new version under the same id.
+        JobStatus js2Updated = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setOverrideDeadline(10000)
+                .setPriority(3)
+                .setPersisted(true)
+                .build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.remove(js2, false);
+        mTaskStoreUnderTest.add(js2Updated);
+        waitForPendingIo();
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect.", 1, jobStatusSet.size());
+        JobStatus jobStatus = jobStatusSet.getAllJobs().iterator().next();
+        assertEquals("Wrong job persisted.", 2, jobStatus.getJobId());
+        assertEquals("Stale job version persisted.", 3, jobStatus.getPriority());
+    }
+
     @Test
     public void testRequiredNetworkType() throws Exception {
         assertPersistedEquals(new JobInfo.Builder(0, mComponent)
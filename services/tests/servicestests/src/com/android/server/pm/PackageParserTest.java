@@ -26,6 +26,7 @@ import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.os.Bundle;
+import android.os.FileUtils;
 import android.os.Parcel;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.MediumTest;
@@ -110,6 +111,31 @@ public class PackageParserTest {
         assertEquals("android", pkg.packageName);
     }
 
+    @Test
+    public void testParse_staleCache() throws Exception {
+        File apk = new File(mTmpDir, "framework-res.apk");
+        assertTrue(FileUtils.copyFile(FRAMEWORK, apk));
+        File cacheDir = new File(mTmpDir, "cache");
+        assertTrue(cacheDir.mkdir());
+
+        PackageParser pp = new CachePackageNameParser();
+        pp.setCacheDir(cacheDir);
+        pp.parsePackage(apk, 0 /* parseFlags */, true /* useCaches */);
+        PackageParser.Package pkg = pp.parsePackage(apk, 0 /* parseFlags */,
+                true /* useCaches */);
+        assertEquals("cache_android", pkg.packageName);
+
+        // Once the APK changes, the cache entry must not be used any more.
+        assertTrue(apk.setLastModified(apk.lastModified() - 60 * 1000));
+        pkg = pp.parsePackage(apk, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("android", pkg.packageName);
+
+        // The entry was rewritten for the current APK.
+        pkg = pp.parsePackage(apk, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("cache_android", pkg.packageName);
+        assertEquals(1, cacheDir.list().length);
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         PackageParser pp = new PackageParser();
@@ -18,6 +18,7 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import junit.framework.Assert;
@@ -27,6 +28,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -66,6 +68,50 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testCollectCertificates() {
+        // Nonexistent files have a last modified time of 0.
+        ArrayMap<String, Long> knownPackageTimes = new ArrayMap<>();
+        knownPackageTimes.put("known", 0L);
+        knownPackageTimes.put("changed", 1L);
+        mParser = new CollectingParallelPackageParser(knownPackageTimes);
+
+        Set<String> collected = new HashSet<>();
+        String[] names = {"known", "changed", "new"};
+        for (String name : names) {
+            mParser.submit(new File(name), 0);
+        }
+        for (int i = 0; i < names.length; i++) {
+            ParallelPackageParser.ParseResult result = mParser.take();
+            Assert.assertNull(result.throwable);
+            if (result.certificatesCollected) {
+                collected.add(result.pkg.packageName);
+            }
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("changed", "new")), collected);
+    }
+
+    class CollectingParallelPackageParser extends ParallelPackageParser {
+
+        CollectingParallelPackageParser(ArrayMap<String, Long> knownPackageTimes) {
+            super(null, false, null, null, null, knownPackageTimes);
+        }
+
+        @Override
+        protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
+                int parseFlags) throws PackageParser.PackageParserException {
+            PackageParser.Package pkg = new PackageParser.Package(scanFile.getName());
+            pkg.codePath = scanFile.getPath();
+            pkg.baseCodePath = scanFile.getPath();
+            return pkg;
+        }
+
+        @Override
+        protected void collectCertificates(PackageParser.Package pkg, boolean skipVerify) {
+            // Do not actually read the package for testing
+        }
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
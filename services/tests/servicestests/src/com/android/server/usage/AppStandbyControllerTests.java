@@ -62,6 +62,7 @@ import android.support.test.filters.SmallTest;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.view.Display;
 
 import com.android.server.SystemService;
@@ -452,6 +453,31 @@ public class AppStandbyControllerTests {
         assertTimeout(mController, RARE_THRESHOLD * 2 + 2, STANDBY_BUCKET_RARE);
     }
 
+    @Test
+    public void testReportEvents() throws Exception {
+        assertTimeout(mController, 0, STANDBY_BUCKET_NEVER);
+
+        // A batch of events for two users is handled like the same events one by one.
+        final List<UsageEvents.Event> events = new ArrayList<>();
+        final IntArray userIds = new IntArray();
+        UsageEvents.Event ev = new UsageEvents.Event();
+        ev.mPackage = PACKAGE_1;
+        ev.mEventType = NOTIFICATION_SEEN;
+        events.add(ev);
+        userIds.add(USER_ID2);
+        ev = new UsageEvents.Event();
+        ev.mPackage = PACKAGE_1;
+        ev.mEventType = USER_INTERACTION;
+        events.add(ev);
+        userIds.add(USER_ID);
+        mController.reportEvents(events, userIds, 0);
+
+        assertTimeout(mController, WORKING_SET_THRESHOLD - 1, STANDBY_BUCKET_ACTIVE);
+        assertEquals(STANDBY_BUCKET_WORKING_SET,
+                mController.getAppStandbyBucket(PACKAGE_1, USER_ID2, mInjector.mElapsedRealtime,
+                        false));
+    }
+
     @Test
     public void testScreenTimeAndBuckets() throws Exception {
         mInjector.setDisplayOn(false);
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.res.Configuration;
+import android.os.FileUtils;
+import android.os.LocaleList;
+import android.test.AndroidTestCase;
+import android.util.AtomicFile;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+
+public class UsageStatsDatabaseTests extends AndroidTestCase {
+
+    final static String PACKAGE_1 = "com.android.testpackage1";
+    final static String PACKAGE_2 = "com.android.testpackage2";
+
+    final static long BEGIN_TIME = 1000000;
+
+    File mStorageDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorageDir = new File(getContext().getFilesDir(), "usagestats");
+        mStorageDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mStorageDir);
+        super.tearDown();
+    }
+
+    public void testQueryEvents() throws Exception {
+        UsageStatsDatabase db = new UsageStatsDatabase(mStorageDir);
+        db.init(BEGIN_TIME + 100000);
+        db.putUsageStats(UsageStatsManager.INTERVAL_DAILY, createStats());
+
+        List<UsageEvents.Event> events = db.queryEvents(BEGIN_TIME, BEGIN_TIME + 100000, null);
+        assertEquals(4, events.size());
+        assertEquals(PACKAGE_1, events.get(0).mPackage);
+        assertEquals("Activity", events.get(0).mClass);
+        assertEquals(BEGIN_TIME + 10, events.get(0).mTimeStamp);
+        assertEquals(UsageEvents.Event.MOVE_TO_FOREGROUND, events.get(0).mEventType);
+        assertEquals("shortcut", events.get(1).mShortcutId);
+        assertEquals(1234, events.get(2).mBucketAndReason);
+        assertEquals(createConfiguration(), events.get(3).mConfiguration);
+
+        // Only events in range, of the given package, are returned.
+        events = db.queryEvents(BEGIN_TIME + 11, BEGIN_TIME + 40, PACKAGE_1);
+        assertEquals(1, events.size());
+        assertEquals(BEGIN_TIME + 20, events.get(0).mTimeStamp);
+        assertNull(db.queryEvents(BEGIN_TIME, BEGIN_TIME + 100000, "com.android.unknown"));
+
+        // The events are still there for whole stats.
+        IntervalStats stats = db.getLatestUsageStats(UsageStatsManager.INTERVAL_DAILY);
+        assertEquals(4, stats.events.size());
+        assertEquals(BEGIN_TIME + 40, stats.events.get(3).mTimeStamp);
+    }
+
+    public void testMoveEventsOutOfXml() throws Exception {
+        // Stats written by a version that kept the events in the XML.
+        File dailyDir = new File(mStorageDir, "daily");
+        dailyDir.mkdirs();
+        UsageStatsXml.write(new AtomicFile(new File(dailyDir, Long.toString(BEGIN_TIME))),
+                createStats());
+        try (FileWriter writer = new FileWriter(new File(mStorageDir, "version"))) {
+            writer.write("3\n");
+        }
+
+        UsageStatsDatabase db = new UsageStatsDatabase(mStorageDir);
+        db.init(BEGIN_TIME + 100000);
+        assertTrue(new File(new File(mStorageDir, "events"), Long.toString(BEGIN_TIME)).exists());
+
+        List<UsageEvents.Event> events = db.queryEvents(BEGIN_TIME, BEGIN_TIME + 100000,
+                PACKAGE_2);
+        assertEquals(2, events.size());
+        assertEquals(BEGIN_TIME + 30, events.get(0).mTimeStamp);
+        assertEquals(1234, events.get(0).mBucketAndReason);
+    }
+
+    private static IntervalStats createStats() {
+        IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.endTime = BEGIN_TIME + 50;
+        stats.activeConfiguration = createConfiguration();
+        stats.getOrCreateConfigurationStats(stats.activeConfiguration);
+        stats.events = new EventList();
+
+        UsageEvents.Event event = stats.buildEvent(PACKAGE_1, "Activity");
+        event.mTimeStamp = BEGIN_TIME + 10;
+        event.mEventType = UsageEvents.Event.MOVE_TO_FOREGROUND;
+        stats.events.insert(event);
+
+        event = stats.buildEvent(PACKAGE_1, null);
+        event.mTimeStamp = BEGIN_TIME + 20;
+        event.mEventType = UsageEvents.Event.SHORTCUT_INVOCATION;
+        event.mShortcutId = "shortcut";
+        stats.events.insert(event);
+
+        event = stats.buildEvent(PACKAGE_2, null);
+        event.mTimeStamp = BEGIN_TIME + 30;
+        event.mEventType = UsageEvents.Event.STANDBY_BUCKET_CHANGED;
+        event.mBucketAndReason = 1234;
+        stats.events.insert(event);
+
+        event = stats.buildEvent(PACKAGE_2, null);
+        event.mTimeStamp = BEGIN_TIME + 40;
+        event.mEventType = UsageEvents.Event.CONFIGURATION_CHANGE;
+        event.mConfiguration = createConfiguration();
+        stats.events.insert(event);
+        return stats;
+    }
+
+    private static Configuration createConfiguration() {
+        Configuration config = new Configuration();
+        config.setLocales(LocaleList.forLanguageTags("en-US,fr-FR"));
+        config.orientation = Configuration.ORIENTATION_PORTRAIT;
+        config.densityDpi = 420;
+        return config;
+    }
+}
@@ -86,6 +86,7 @@ import android.os.UserHandle;
 import android.provider.Settings.Global;
 import android.telephony.TelephonyManager;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.KeyValueListParser;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -829,57 +830,76 @@ public class AppStandbyController {
     void reportEvent(UsageEvents.Event event, long elapsedRealtime, int userId) {
         if (!mAppIdleEnabled) return;
         synchronized (mAppIdleLock) {
-            // TODO: Ideally this should call isAppIdleFiltered() to avoid calling back
-            // about apps that are on some kind of whitelist anyway.
-            final boolean previouslyIdle = mAppIdleHistory.isIdle(
+            reportEventLocked(event, elapsedRealtime, userId);
+        }
+    }
+
+    /**
+     * Reports a batch of events at once, so that the lock is only taken once for all of them.
+     *
+     * @param userIds The user of each event.
+     */
+    void reportEvents(List<UsageEvents.Event> events, IntArray userIds, long elapsedRealtime) {
+        if (!mAppIdleEnabled) return;
+        synchronized (mAppIdleLock) {
+            final int size = events.size();
+            for (int i = 0; i < size; i++) {
+                reportEventLocked(events.get(i), elapsedRealtime, userIds.get(i));
+            }
+        }
+    }
+
+    private void reportEventLocked(UsageEvents.Event event, long elapsedRealtime, int userId) {
+        // TODO: Ideally this should call isAppIdleFiltered() to avoid calling back
+        // about apps that are on some kind of whitelist anyway.
+        final boolean previouslyIdle = mAppIdleHistory.isIdle(
+                event.mPackage, userId, elapsedRealtime);
+        // Inform listeners if necessary
+        if ((event.mEventType == UsageEvents.Event.MOVE_TO_FOREGROUND
+                || event.mEventType == UsageEvents.Event.MOVE_TO_BACKGROUND
+                || event.mEventType == UsageEvents.Event.SYSTEM_INTERACTION
+                || event.mEventType == UsageEvents.Event.USER_INTERACTION
+                || event.mEventType == UsageEvents.Event.NOTIFICATION_SEEN
+                || event.mEventType == UsageEvents.Event.SLICE_PINNED
+                || event.mEventType == UsageEvents.Event.SLICE_PINNED_PRIV)) {
+
+            final AppUsageHistory appHistory = mAppIdleHistory.getAppUsageHistory(
                     event.mPackage, userId, elapsedRealtime);
-            // Inform listeners if necessary
-            if ((event.mEventType == UsageEvents.Event.MOVE_TO_FOREGROUND
-                    || event.mEventType == UsageEvents.Event.MOVE_TO_BACKGROUND
-                    || event.mEventType == UsageEvents.Event.SYSTEM_INTERACTION
-                    || event.mEventType == UsageEvents.Event.USER_INTERACTION
-                    || event.mEventType == UsageEvents.Event.NOTIFICATION_SEEN
-                    || event.mEventType == UsageEvents.Event.SLICE_PINNED
-                    || event.mEventType == UsageEvents.Event.SLICE_PINNED_PRIV)) {
-
-                final AppUsageHistory appHistory = mAppIdleHistory.getAppUsageHistory(
-                        event.mPackage, userId, elapsedRealtime);
-                final int prevBucket = appHistory.currentBucket;
-                final int prevBucketReason = appHistory.bucketingReason;
-                final long nextCheckTime;
-                final int subReason = usageEventToSubReason(event.mEventType);
-                final int reason = REASON_MAIN_USAGE | subReason;
-                if (event.mEventType == UsageEvents.Event.NOTIFICATION_SEEN
-                        || event.mEventType == UsageEvents.Event.SLICE_PINNED) {
-                    // Mild usage elevates to WORKING_SET but doesn't change usage time.
-                    mAppIdleHistory.reportUsage(appHistory, event.mPackage,
-                            STANDBY_BUCKET_WORKING_SET, subReason,
-                            0, elapsedRealtime + mNotificationSeenTimeoutMillis);
-                    nextCheckTime = mNotificationSeenTimeoutMillis;
-                } else if (event.mEventType == UsageEvents.Event.SYSTEM_INTERACTION) {
-                    mAppIdleHistory.reportUsage(appHistory, event.mPackage,
-                            STANDBY_BUCKET_ACTIVE, subReason,
-                            0, elapsedRealtime + mSystemInteractionTimeoutMillis);
-                    nextCheckTime = mSystemInteractionTimeoutMillis;
-                } else {
-                    mAppIdleHistory.reportUsage(appHistory, event.mPackage,
-                            STANDBY_BUCKET_ACTIVE, subReason,
-                            elapsedRealtime, elapsedRealtime + mStrongUsageTimeoutMillis);
-                    nextCheckTime = mStrongUsageTimeoutMillis;
-                }
-                mHandler.sendMessageDelayed(mHandler.obtainMessage
-                        (MSG_CHECK_PACKAGE_IDLE_STATE, userId, -1, event.mPackage),
-                        nextCheckTime);
-                final boolean userStartedInteracting =
-                        appHistory.currentBucket == STANDBY_BUCKET_ACTIVE &&
-                        prevBucket != appHistory.currentBucket &&
-                        (prevBucketReason & REASON_MAIN_MASK) != REASON_MAIN_USAGE;
-                maybeInformListeners(event.mPackage, userId, elapsedRealtime,
-                        appHistory.currentBucket, reason, userStartedInteracting);
-
-                if (previouslyIdle) {
-                    notifyBatteryStats(event.mPackage, userId, false);
-                }
+            final int prevBucket = appHistory.currentBucket;
+            final int prevBucketReason = appHistory.bucketingReason;
+            final long nextCheckTime;
+            final int subReason = usageEventToSubReason(event.mEventType);
+            final int reason = REASON_MAIN_USAGE | subReason;
+            if (event.mEventType == UsageEvents.Event.NOTIFICATION_SEEN
+                    || event.mEventType == UsageEvents.Event.SLICE_PINNED) {
+                // Mild usage elevates to WORKING_SET but doesn't change usage time.
+                mAppIdleHistory.reportUsage(appHistory, event.mPackage,
+                        STANDBY_BUCKET_WORKING_SET, subReason,
+                        0, elapsedRealtime + mNotificationSeenTimeoutMillis);
+                nextCheckTime = mNotificationSeenTimeoutMillis;
+            } else if (event.mEventType == UsageEvents.Event.SYSTEM_INTERACTION) {
+                mAppIdleHistory.reportUsage(appHistory, event.mPackage,
+                        STANDBY_BUCKET_ACTIVE, subReason,
+                        0, elapsedRealtime + mSystemInteractionTimeoutMillis);
+                nextCheckTime = mSystemInteractionTimeoutMillis;
+            } else {
+                mAppIdleHistory.reportUsage(appHistory, event.mPackage,
+                        STANDBY_BUCKET_ACTIVE, subReason,
+                        elapsedRealtime, elapsedRealtime + mStrongUsageTimeoutMillis);
+                nextCheckTime = mStrongUsageTimeoutMillis;
+            }
+            mHandler.sendMessageDelayed(mHandler.obtainMessage
+                    (MSG_CHECK_PACKAGE_IDLE_STATE, userId, -1, event.mPackage),
+                    nextCheckTime);
+            final boolean userStartedInteracting =
+                    appHistory.currentBucket == STANDBY_BUCKET_ACTIVE &&
+                    prevBucket != appHistory.currentBucket &&
+                    (prevBucketReason & REASON_MAIN_MASK) != REASON_MAIN_USAGE;
+            maybeInformListeners(event.mPackage, userId, elapsedRealtime,
+                    appHistory.currentBucket, reason, userStartedInteracting);
+
+            if (previouslyIdle) {
+                notifyBatteryStats(event.mPackage, userId, false);
             }
         }
     }
@@ -16,7 +16,9 @@
 
 package com.android.server.usage;
 
+import android.app.usage.EventList;
 import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
 import android.os.Build;
@@ -41,9 +43,12 @@ import java.util.List;
 
 /**
  * Provides an interface to query for UsageStat data from an XML database.
+ * <p>
+ * The events of daily stats are kept apart, in {@link UsageStatsEventLog} files named after the
+ * beginning of their interval, so they can be queried without parsing the XML.
  */
 class UsageStatsDatabase {
-    private static final int CURRENT_VERSION = 3;
+    private static final int CURRENT_VERSION = 4;
 
     // Current version of the backup schema
     static final int BACKUP_VERSION = 1;
@@ -70,6 +75,7 @@ class UsageStatsDatabase {
 
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
+    private final File mEventLogDir;
     private final TimeSparseArray<AtomicFile>[] mSortedStatFiles;
     private final UnixCalendar mCal;
     private final File mVersionFile;
@@ -83,6 +89,7 @@ class UsageStatsDatabase {
                 new File(dir, "monthly"),
                 new File(dir, "yearly"),
         };
+        mEventLogDir = new File(dir, "events");
         mVersionFile = new File(dir, "version");
         mSortedStatFiles = new TimeSparseArray[mIntervalDirs.length];
         mCal = new UnixCalendar(0);
@@ -100,6 +107,11 @@ class UsageStatsDatabase {
                             + f.getAbsolutePath());
                 }
             }
+            mEventLogDir.mkdirs();
+            if (!mEventLogDir.exists()) {
+                throw new IllegalStateException("Failed to create directory "
+                        + mEventLogDir.getAbsolutePath());
+            }
 
             checkVersionAndBuildLocked();
             indexFilesLocked();
@@ -122,6 +134,7 @@ class UsageStatsDatabase {
                     files.removeAt(i);
                 }
             }
+            deleteOrphanEventLogsLocked();
         }
     }
 
@@ -161,7 +174,8 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats, QUERY_FLAG_FETCH_EVERYTHING);
+                    readLocked(UsageStatsManager.INTERVAL_DAILY, files.valueAt(i), stats,
+                            QUERY_FLAG_FETCH_EVERYTHING);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -193,6 +207,79 @@ class UsageStatsDatabase {
         return true;
     }
 
+    private AtomicFile getEventLogFile(long beginTime) {
+        return new AtomicFile(new File(mEventLogDir, Long.toString(beginTime)));
+    }
+
+    /**
+     * @return The event logs on disk, by the beginning of their interval.
+     */
+    private TimeSparseArray<AtomicFile> indexEventLogsLocked() {
+        final TimeSparseArray<AtomicFile> logs = new TimeSparseArray<>();
+        final File[] files = mEventLogDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                final String path = f.getPath();
+                if (path.endsWith(BAK_SUFFIX)) {
+                    f = new File(path.substring(0, path.length() - BAK_SUFFIX.length()));
+                }
+                final AtomicFile af = new AtomicFile(f);
+                try {
+                    logs.put(UsageStatsXml.parseBeginTime(af), af);
+                } catch (IOException e) {
+                    Slog.e(TAG, "Deleting unrecognized event log: " + f);
+                    af.delete();
+                }
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Deletes the event logs whose daily stats are gone.
+     */
+    private void deleteOrphanEventLogsLocked() {
+        final TimeSparseArray<AtomicFile> dailyFiles =
+                mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY];
+        final TimeSparseArray<AtomicFile> logs = indexEventLogsLocked();
+        for (int i = 0; i < logs.size(); i++) {
+            if (dailyFiles.get(logs.keyAt(i)) == null) {
+                logs.valueAt(i).delete();
+            }
+        }
+    }
+
+    /**
+     * Reads stats from the file, along with their events if they are in an event log.
+     */
+    private void readLocked(int intervalType, AtomicFile file, IntervalStats statsOut, int flags)
+            throws IOException {
+        UsageStatsXml.read(file, statsOut, flags);
+        if (intervalType == UsageStatsManager.INTERVAL_DAILY
+                && (flags & QUERY_FLAG_FETCH_EVENTS) != 0) {
+            final AtomicFile log = getEventLogFile(statsOut.beginTime);
+            if (log.exists()) {
+                UsageStatsEventLog.read(log, statsOut);
+            }
+        }
+    }
+
+    /**
+     * Writes stats to the file. The events of daily stats go to an event log instead.
+     */
+    private void writeLocked(int intervalType, AtomicFile file, IntervalStats stats)
+            throws IOException {
+        if (intervalType != UsageStatsManager.INTERVAL_DAILY) {
+            UsageStatsXml.write(file, stats);
+            return;
+        }
+        // Write an event log even if there are no events, so that a missing one means the events
+        // are still in the XML.
+        UsageStatsEventLog.write(getEventLogFile(stats.beginTime), stats.beginTime,
+                stats.events != null ? stats.events : new EventList());
+        UsageStatsXml.write(file, stats, QUERY_FLAG_FETCH_EVERYTHING & ~QUERY_FLAG_FETCH_EVENTS);
+    }
+
     private void indexFilesLocked() {
         final FilenameFilter backupFileFilter = new FilenameFilter() {
             @Override
@@ -298,6 +385,27 @@ class UsageStatsDatabase {
                 }
             }
         }
+
+        if (thisVersion < 4) {
+            // Move the events of daily stats out of their XML files.
+            Slog.i(TAG, "Moving usage events to event logs");
+            final File[] files = mIntervalDirs[UsageStatsManager.INTERVAL_DAILY].listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(BAK_SUFFIX)) {
+                        continue;
+                    }
+                    final AtomicFile af = new AtomicFile(f);
+                    final IntervalStats stats = new IntervalStats();
+                    try {
+                        UsageStatsXml.read(af, stats, QUERY_FLAG_FETCH_EVERYTHING);
+                        writeLocked(UsageStatsManager.INTERVAL_DAILY, af, stats);
+                    } catch (IOException e) {
+                        Slog.e(TAG, "Failed to move events of " + f, e);
+                    }
+                }
+            }
+        }
     }
 
     public void onTimeChanged(long timeDiffMillis) {
@@ -338,6 +446,26 @@ class UsageStatsDatabase {
                 files.clear();
             }
 
+            // Move the event logs along with their daily stats. Go from the end the logs are
+            // moving towards, so that no log is renamed onto one that hasn't been moved yet.
+            final TimeSparseArray<AtomicFile> logs = indexEventLogsLocked();
+            final int logCount = logs.size();
+            for (int j = 0; j < logCount; j++) {
+                final int i = timeDiffMillis > 0 ? logCount - 1 - j : j;
+                final AtomicFile log = logs.valueAt(i);
+                final long newTime = logs.keyAt(i) + timeDiffMillis;
+                if (newTime < 0) {
+                    log.delete();
+                } else {
+                    try {
+                        log.openRead().close();
+                    } catch (IOException e) {
+                        // Ignore, this is just to make sure there are no backups.
+                    }
+                    log.getBaseFile().renameTo(new File(mEventLogDir, Long.toString(newTime)));
+                }
+            }
+
             logBuilder.append(" files deleted: ").append(filesDeleted);
             logBuilder.append(" files moved: ").append(filesMoved);
             Slog.i(TAG, logBuilder.toString());
@@ -364,7 +492,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats, QUERY_FLAG_FETCH_EVERYTHING);
+                readLocked(intervalType, f, stats, QUERY_FLAG_FETCH_EVERYTHING);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -450,7 +578,7 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats, flags);
+                    readLocked(intervalType, f, stats, flags);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -464,6 +592,85 @@ class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Find the events of the daily stats on disk that happened in the given range. Events are
+     * read straight from the event logs, and only those that match are turned into objects.
+     *
+     * @param packageName The package to return events of, or null for all packages.
+     * @return The events in order, or null if there are none.
+     */
+    public List<UsageEvents.Event> queryEvents(long beginTime, long endTime,
+            String packageName) {
+        synchronized (mLock) {
+            final TimeSparseArray<AtomicFile> dailyFiles =
+                    mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY];
+            if (endTime <= beginTime) {
+                return null;
+            }
+
+            int startIndex = dailyFiles.closestIndexOnOrBefore(beginTime);
+            if (startIndex < 0) {
+                startIndex = 0;
+            }
+
+            ArrayList<UsageEvents.Event> results = null;
+            final int fileCount = dailyFiles.size();
+            for (int i = startIndex; i < fileCount && dailyFiles.keyAt(i) < endTime; i++) {
+                final long fileBeginTime = dailyFiles.keyAt(i);
+                final AtomicFile log = getEventLogFile(fileBeginTime);
+                try {
+                    if (!log.exists()) {
+                        // Events that didn't make it out of the XML, if any.
+                        final IntervalStats stats = new IntervalStats();
+                        UsageStatsXml.read(dailyFiles.valueAt(i), stats, QUERY_FLAG_FETCH_EVENTS);
+                        if (stats.events == null) {
+                            continue;
+                        }
+                        final int size = stats.events.size();
+                        for (int j = stats.events.firstIndexOnOrAfter(beginTime); j < size; j++) {
+                            final UsageEvents.Event event = stats.events.get(j);
+                            if (event.mTimeStamp >= endTime) {
+                                break;
+                            }
+                            if (packageName == null || packageName.equals(event.mPackage)) {
+                                if (results == null) {
+                                    results = new ArrayList<>();
+                                }
+                                results.add(event);
+                            }
+                        }
+                        continue;
+                    }
+
+                    final UsageStatsEventLog.Reader reader =
+                            new UsageStatsEventLog.Reader(log.readFully(), fileBeginTime);
+                    final int packageIndex =
+                            packageName != null ? reader.indexOfString(packageName) : -1;
+                    if (packageName != null && packageIndex < 0) {
+                        continue;
+                    }
+                    final int size = reader.size();
+                    for (int j = reader.firstIndexOnOrAfter(beginTime); j < size; j++) {
+                        if (reader.getTimeStamp(j) >= endTime) {
+                            break;
+                        }
+                        if (packageName == null || reader.getPackageIndex(j) == packageIndex) {
+                            if (results == null) {
+                                results = new ArrayList<>();
+                            }
+                            results.add(reader.getEvent(j));
+                        }
+                    }
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to read usage events of " + fileBeginTime, e);
+                    // We continue so that we return results that are not
+                    // corrupt.
+                }
+            }
+            return results;
+        }
+    }
+
     /**
      * Find the interval that best matches this range.
      *
@@ -523,6 +730,7 @@ class UsageStatsDatabase {
             // We must re-index our file list or we will be trying to read
             // deleted files.
             indexFilesLocked();
+            deleteOrphanEventLogsLocked();
         }
     }
 
@@ -603,7 +811,7 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            writeLocked(intervalType, f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
@@ -682,6 +890,7 @@ class UsageStatsDatabase {
                     for (int i = 0; i < mIntervalDirs.length; i++) {
                         deleteDirectoryContents(mIntervalDirs[i]);
                     }
+                    deleteDirectoryContents(mEventLogDir);
 
                     int fileCount = in.readInt();
                     for (int i = 0; i < fileCount; i++) {
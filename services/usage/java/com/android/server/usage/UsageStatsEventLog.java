@@ -0,0 +1,391 @@
+/**
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.content.res.Configuration;
+import android.os.LocaleList;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads and writes the events of an {@link IntervalStats} in a compact binary form.
+ * <p>
+ * Every string (package, class and shortcut id) is stored once in a table and events refer to
+ * it by index. Events are sorted by time and stored column by column, so the time column doubles
+ * as an index for range queries, and a query for one package compares ints instead of building
+ * an object for every event of the interval. Only the events that match are materialized, see
+ * {@link Reader#getEvent(int)}.
+ * <p>
+ * Layout, all big endian:
+ * <pre>
+ *   int magic, int version
+ *   int stringCount, stringCount * (int length, UTF-8 bytes)
+ *   int configCount, configCount * CONFIG_FIELD_COUNT ints
+ *   int eventCount
+ *   eventCount longs: time offset from the beginning of the interval
+ *   eventCount ints: package string index
+ *   eventCount ints: class string index, or -1
+ *   eventCount ints: event type
+ *   eventCount ints: flags
+ *   eventCount ints: extra, depending on the event type
+ * </pre>
+ */
+final class UsageStatsEventLog {
+    private static final int MAGIC = 0x55534556; // USEV
+    private static final int VERSION = 1;
+    private static final int NO_INDEX = -1;
+    private static final int CONFIG_FIELD_COUNT = 18;
+    private static final int BYTES_PER_EVENT = 8 + 5 * 4;
+
+    /**
+     * Writes the given events to the file, replacing what was there.
+     *
+     * @param beginTime The beginning of the interval, which event times are stored relative to.
+     */
+    static void write(AtomicFile file, long beginTime, EventList events) throws IOException {
+        FileOutputStream fos = file.startWrite();
+        try {
+            write(fos, beginTime, events);
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    /**
+     * Reads all events of the file into {@link IntervalStats#events}, replacing what was there.
+     * {@link IntervalStats#beginTime} must already be set.
+     */
+    static void read(AtomicFile file, IntervalStats statsOut) throws IOException {
+        final Reader reader = new Reader(file.readFully(), statsOut.beginTime);
+        if (statsOut.events == null) {
+            statsOut.events = new EventList();
+        } else {
+            statsOut.events.clear();
+        }
+        final int size = reader.size();
+        for (int i = 0; i < size; i++) {
+            statsOut.events.insert(reader.getEvent(i));
+        }
+    }
+
+    private static void write(OutputStream out, long beginTime, EventList events)
+            throws IOException {
+        final ArrayMap<String, Integer> strings = new ArrayMap<>();
+        final ArrayList<String> stringTable = new ArrayList<>();
+        final ArrayMap<Configuration, Integer> configs = new ArrayMap<>();
+        final ArrayList<Configuration> configTable = new ArrayList<>();
+
+        final int size = events.size();
+        final int[] packages = new int[size];
+        final int[] classes = new int[size];
+        final int[] extras = new int[size];
+        for (int i = 0; i < size; i++) {
+            final UsageEvents.Event event = events.get(i);
+            packages[i] = indexOf(event.mPackage, strings, stringTable);
+            classes[i] = indexOf(event.mClass, strings, stringTable);
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    extras[i] = indexOf(event.mConfiguration, configs, configTable);
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    extras[i] = indexOf(event.mShortcutId, strings, stringTable);
+                    break;
+                case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                    extras[i] = event.mBucketAndReason;
+                    break;
+            }
+        }
+        // Locales are kept in the string table too, so resolve them before writing it.
+        final int[] locales = new int[configTable.size()];
+        for (int i = 0; i < locales.length; i++) {
+            locales[i] = indexOf(configTable.get(i).getLocales().toLanguageTags(), strings,
+                    stringTable);
+        }
+
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+
+        dos.writeInt(stringTable.size());
+        for (int i = 0; i < stringTable.size(); i++) {
+            final byte[] bytes = stringTable.get(i).getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+
+        dos.writeInt(configTable.size());
+        for (int i = 0; i < configTable.size(); i++) {
+            writeConfiguration(dos, configTable.get(i), locales[i]);
+        }
+
+        dos.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dos.writeLong(events.get(i).mTimeStamp - beginTime);
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(packages[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(classes[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(events.get(i).mEventType);
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(events.get(i).mFlags);
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(extras[i]);
+        }
+        dos.flush();
+    }
+
+    private static <T> int indexOf(T value, ArrayMap<T, Integer> indexes, ArrayList<T> table) {
+        if (value == null) {
+            return NO_INDEX;
+        }
+        final Integer index = indexes.get(value);
+        if (index != null) {
+            return index;
+        }
+        table.add(value);
+        indexes.put(value, table.size() - 1);
+        return table.size() - 1;
+    }
+
+    /**
+     * Writes the same fields as {@link Configuration#writeXmlAttrs}.
+     */
+    private static void writeConfiguration(DataOutputStream out, Configuration config,
+            int localesIndex) throws IOException {
+        out.writeInt(Float.floatToIntBits(config.fontScale));
+        out.writeInt(config.mcc);
+        out.writeInt(config.mnc);
+        out.writeInt(localesIndex);
+        out.writeInt(config.touchscreen);
+        out.writeInt(config.keyboard);
+        out.writeInt(config.keyboardHidden);
+        out.writeInt(config.hardKeyboardHidden);
+        out.writeInt(config.navigation);
+        out.writeInt(config.navigationHidden);
+        out.writeInt(config.orientation);
+        out.writeInt(config.screenLayout);
+        out.writeInt(config.colorMode);
+        out.writeInt(config.uiMode);
+        out.writeInt(config.screenWidthDp);
+        out.writeInt(config.screenHeightDp);
+        out.writeInt(config.smallestScreenWidthDp);
+        out.writeInt(config.densityDpi);
+    }
+
+    /**
+     * Gives access to the events of a file without reading them all into objects.
+     */
+    static final class Reader {
+        private final ByteBuffer mBuffer;
+        private final long mBeginTime;
+        private final String[] mStrings;
+        private final Configuration[] mConfigs;
+        private final int mSize;
+        private final int mTimeOffset;
+        private final int mPackageOffset;
+        private final int mClassOffset;
+        private final int mTypeOffset;
+        private final int mFlagsOffset;
+        private final int mExtraOffset;
+
+        /**
+         * @param data The contents of the file.
+         * @param beginTime The beginning of the interval the events belong to.
+         */
+        Reader(byte[] data, long beginTime) throws IOException {
+            mBuffer = ByteBuffer.wrap(data);
+            mBeginTime = beginTime;
+            try {
+                if (mBuffer.getInt() != MAGIC) {
+                    throw new IOException("Bad magic");
+                }
+                final int version = mBuffer.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unrecognized version " + version);
+                }
+
+                mStrings = new String[readCount(4)];
+                for (int i = 0; i < mStrings.length; i++) {
+                    final int length = readCount(1);
+                    mStrings[i] = new String(data, mBuffer.position(), length,
+                            StandardCharsets.UTF_8);
+                    mBuffer.position(mBuffer.position() + length);
+                }
+
+                mConfigs = new Configuration[readCount(CONFIG_FIELD_COUNT * 4)];
+                for (int i = 0; i < mConfigs.length; i++) {
+                    mConfigs[i] = readConfiguration();
+                }
+
+                mSize = readCount(BYTES_PER_EVENT);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Truncated event log", e);
+            }
+            mTimeOffset = mBuffer.position();
+            mPackageOffset = mTimeOffset + mSize * 8;
+            mClassOffset = mPackageOffset + mSize * 4;
+            mTypeOffset = mClassOffset + mSize * 4;
+            mFlagsOffset = mTypeOffset + mSize * 4;
+            mExtraOffset = mFlagsOffset + mSize * 4;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long getTimeStamp(int index) {
+            return mBeginTime + mBuffer.getLong(mTimeOffset + index * 8);
+        }
+
+        /**
+         * @return The smallest index whose event happened at or after the given time, or
+         * {@link #size()} if there is none.
+         */
+        int firstIndexOnOrAfter(long timeStamp) {
+            int result = mSize;
+            int lo = 0;
+            int hi = mSize - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (getTimeStamp(mid) >= timeStamp) {
+                    hi = mid - 1;
+                    result = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return The index of the given string in the string table, to be compared with
+         * {@link #getPackageIndex(int)}, or -1 if no event refers to it.
+         */
+        int indexOfString(String string) {
+            for (int i = 0; i < mStrings.length; i++) {
+                if (mStrings[i].equals(string)) {
+                    return i;
+                }
+            }
+            return NO_INDEX;
+        }
+
+        int getPackageIndex(int index) {
+            return mBuffer.getInt(mPackageOffset + index * 4);
+        }
+
+        UsageEvents.Event getEvent(int index) throws IOException {
+            final UsageEvents.Event event = new UsageEvents.Event();
+            event.mTimeStamp = getTimeStamp(index);
+            event.mPackage = getString(getPackageIndex(index));
+            event.mClass = getString(mBuffer.getInt(mClassOffset + index * 4));
+            event.mEventType = mBuffer.getInt(mTypeOffset + index * 4);
+            event.mFlags = mBuffer.getInt(mFlagsOffset + index * 4);
+            final int extra = mBuffer.getInt(mExtraOffset + index * 4);
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    if (extra != NO_INDEX) {
+                        if (extra < 0 || extra >= mConfigs.length) {
+                            throw new IOException("Bad configuration index " + extra);
+                        }
+                        event.mConfiguration = mConfigs[extra];
+                    }
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    event.mShortcutId = getString(extra);
+                    break;
+                case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                    event.mBucketAndReason = extra;
+                    break;
+            }
+            if (event.mPackage == null) {
+                throw new IOException("No package for event " + index);
+            }
+            return event;
+        }
+
+        private String getString(int index) throws IOException {
+            if (index == NO_INDEX) {
+                return null;
+            }
+            if (index < 0 || index >= mStrings.length) {
+                throw new IOException("Bad string index " + index);
+            }
+            return mStrings[index];
+        }
+
+        /**
+         * Reads a count, making sure the rest of the buffer can hold that many items of the
+         * given size.
+         */
+        private int readCount(int itemSize) throws IOException {
+            final int count = mBuffer.getInt();
+            if (count < 0 || count > mBuffer.remaining() / itemSize) {
+                throw new IOException("Bad count " + count);
+            }
+            return count;
+        }
+
+        private Configuration readConfiguration() throws IOException {
+            final Configuration config = new Configuration();
+            config.fontScale = Float.intBitsToFloat(mBuffer.getInt());
+            config.mcc = mBuffer.getInt();
+            config.mnc = mBuffer.getInt();
+            final String locales = getString(mBuffer.getInt());
+            config.setLocales(LocaleList.forLanguageTags(locales));
+            config.touchscreen = mBuffer.getInt();
+            config.keyboard = mBuffer.getInt();
+            config.keyboardHidden = mBuffer.getInt();
+            config.hardKeyboardHidden = mBuffer.getInt();
+            config.navigation = mBuffer.getInt();
+            config.navigationHidden = mBuffer.getInt();
+            config.orientation = mBuffer.getInt();
+            config.screenLayout = mBuffer.getInt();
+            config.colorMode = mBuffer.getInt();
+            config.uiMode = mBuffer.getInt();
+            config.screenWidthDp = mBuffer.getInt();
+            config.screenHeightDp = mBuffer.getInt();
+            config.smallestScreenWidthDp = mBuffer.getInt();
+            config.densityDpi = mBuffer.getInt();
+            return config;
+        }
+    }
+
+    private UsageStatsEventLog() {
+    }
+}
@@ -58,6 +58,7 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
@@ -73,11 +74,16 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A service that collects, aggregates, and persists application usage data.
@@ -101,13 +107,36 @@ public class UsageStatsService extends SystemService implements
     private static final boolean ENABLE_KERNEL_UPDATES = true;
     private static final File KERNEL_COUNTER_FILE = new File("/proc/uid_procstat/set");
 
+    // Events that can be waiting to be reported before new ones get dropped.
+    private static final int MAX_PENDING_EVENTS = 10000;
+
     // Handler message types.
-    static final int MSG_REPORT_EVENT = 0;
+    static final int MSG_REPORT_EVENTS = 0;
     static final int MSG_FLUSH_TO_DISK = 1;
     static final int MSG_REMOVE_USER = 2;
     static final int MSG_UID_STATE_CHANGED = 3;
 
     private final Object mLock = new Object();
+
+    // Events reported on any thread, to be handled in batches on the handler thread. Producers
+    // only touch these, so reporting an event never waits for mLock.
+    private final ConcurrentLinkedQueue<PendingEvent> mPendingEvents =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPendingEventCount = new AtomicInteger();
+    private final AtomicBoolean mReportEventsScheduled = new AtomicBoolean();
+    private final AtomicLong mDroppedEventCount = new AtomicLong();
+
+    // Reused by reportPendingEventsLocked().
+    private final ArrayList<Event> mEventBatch = new ArrayList<>();
+    private final IntArray mEventBatchUserIds = new IntArray();
+
+    // Statistics about event batches, guarded by mLock.
+    private long mEventBatchCount;
+    private long mBatchedEventCount;
+    private int mMaxEventBatchSize;
+    private long mTotalEventLatencyMs;
+    private long mMaxEventLatencyMs;
+
     Handler mHandler;
     AppOpsManager mAppOps;
     UserManager mUserManager;
@@ -141,7 +170,7 @@ public class UsageStatsService extends SystemService implements
                     event.mPackage = packageName;
                     // This will later be converted to system time.
                     event.mTimeStamp = SystemClock.elapsedRealtime();
-                    mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+                    enqueueEvent(event, userId);
                 }
 
                 @Override
@@ -386,18 +415,56 @@ public class UsageStatsService extends SystemService implements
      */
     void shutdown() {
         synchronized (mLock) {
-            mHandler.removeMessages(MSG_REPORT_EVENT);
+            mHandler.removeMessages(MSG_REPORT_EVENTS);
+            reportPendingEventsLocked();
             flushToDiskLocked();
         }
     }
 
     /**
-     * Called by the Binder stub.
+     * Queues an event to be reported on the handler thread. Can be called on any thread, without
+     * holding any lock.
+     *
+     * @param event The event, whose timestamp is still in elapsed realtime.
+     */
+    void enqueueEvent(UsageEvents.Event event, int userId) {
+        if (mPendingEventCount.incrementAndGet() > MAX_PENDING_EVENTS) {
+            mPendingEventCount.decrementAndGet();
+            mDroppedEventCount.incrementAndGet();
+            return;
+        }
+        mPendingEvents.offer(new PendingEvent(event, userId));
+        if (!mReportEventsScheduled.getAndSet(true)) {
+            mHandler.sendEmptyMessage(MSG_REPORT_EVENTS);
+        }
+    }
+
+    /**
+     * Reports the events queued so far as one batch.
      */
-    void reportEvent(UsageEvents.Event event, int userId) {
+    void reportPendingEvents() {
+        // Clear first, so that events queued from now on schedule another batch.
+        mReportEventsScheduled.set(false);
         synchronized (mLock) {
-            final long timeNow = checkAndGetTimeLocked();
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
+            reportPendingEventsLocked();
+        }
+    }
+
+    private void reportPendingEventsLocked() {
+        if (mPendingEvents.isEmpty()) {
+            return;
+        }
+        final long timeNow = checkAndGetTimeLocked();
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+
+        PendingEvent pending;
+        while ((pending = mPendingEvents.poll()) != null) {
+            mPendingEventCount.decrementAndGet();
+            final Event event = pending.event;
+            final int userId = pending.userId;
+            final long latency = Math.max(0, elapsedRealtime - event.mTimeStamp);
+            mTotalEventLatencyMs += latency;
+            mMaxEventLatencyMs = Math.max(mMaxEventLatencyMs, latency);
             convertToSystemTimeLocked(event);
 
             if (event.getPackageName() != null
@@ -409,7 +476,6 @@ public class UsageStatsService extends SystemService implements
                     getUserDataAndInitializeIfNeededLocked(userId, timeNow);
             service.reportEvent(event);
 
-            mAppStandby.reportEvent(event, elapsedRealtime, userId);
             switch (event.mEventType) {
                 case Event.MOVE_TO_FOREGROUND:
                     mAppTimeLimit.moveToForeground(event.getPackageName(), event.getClassName(),
@@ -420,7 +486,17 @@ public class UsageStatsService extends SystemService implements
                             userId);
                     break;
             }
+            mEventBatch.add(event);
+            mEventBatchUserIds.add(userId);
         }
+
+        mAppStandby.reportEvents(mEventBatch, mEventBatchUserIds, elapsedRealtime);
+
+        mEventBatchCount++;
+        mBatchedEventCount += mEventBatch.size();
+        mMaxEventBatchSize = Math.max(mMaxEventBatchSize, mEventBatch.size());
+        mEventBatch.clear();
+        mEventBatchUserIds.clear();
     }
 
     /**
@@ -618,6 +694,27 @@ public class UsageStatsService extends SystemService implements
             }
 
             mAppTimeLimit.dump(pw);
+
+            pw.println();
+            pw.println("Event batches:");
+            pw.print("  batches="); pw.print(mEventBatchCount);
+            pw.print(" events="); pw.print(mBatchedEventCount);
+            pw.print(" maxBatchSize="); pw.println(mMaxEventBatchSize);
+            pw.print("  avgLatencyMs=");
+            pw.print(mBatchedEventCount > 0 ? mTotalEventLatencyMs / mBatchedEventCount : 0);
+            pw.print(" maxLatencyMs="); pw.println(mMaxEventLatencyMs);
+            pw.print("  pending="); pw.print(mPendingEventCount.get());
+            pw.print(" dropped="); pw.println(mDroppedEventCount.get());
+        }
+    }
+
+    private static final class PendingEvent {
+        final Event event;
+        final int userId;
+
+        PendingEvent(Event event, int userId) {
+            this.event = event;
+            this.userId = userId;
         }
     }
 
@@ -629,8 +726,8 @@ public class UsageStatsService extends SystemService implements
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_REPORT_EVENT:
-                    reportEvent((UsageEvents.Event) msg.obj, msg.arg1);
+                case MSG_REPORT_EVENTS:
+                    reportPendingEvents();
                     break;
 
                 case MSG_FLUSH_TO_DISK:
@@ -1107,7 +1204,7 @@ public class UsageStatsService extends SystemService implements
 
             event.mContentAnnotations = annotations;
 
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            enqueueEvent(event, userId);
         }
 
         @Override
@@ -1184,7 +1281,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = eventType;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            enqueueEvent(event, userId);
         }
 
         @Override
@@ -1201,7 +1298,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = eventType;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            enqueueEvent(event, userId);
         }
 
         @Override
@@ -1219,7 +1316,7 @@ public class UsageStatsService extends SystemService implements
 
             event.mEventType = UsageEvents.Event.CONFIGURATION_CHANGE;
             event.mConfiguration = new Configuration(config);
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            enqueueEvent(event, userId);
         }
 
         @Override
@@ -1238,7 +1335,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = Event.NOTIFICATION_INTERRUPTION;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            enqueueEvent(event, userId);
         }
 
         @Override
@@ -1256,7 +1353,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = Event.SHORTCUT_INVOCATION;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            enqueueEvent(event, userId);
         }
 
         @Override
@@ -77,9 +77,17 @@ public class UsageStatsXml {
     }
 
     public static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        write(file, stats, UsageStatsDatabase.QUERY_FLAG_FETCH_EVERYTHING);
+    }
+
+    /**
+     * Writes the stats, leaving out the parts that aren't in the given
+     * UsageStatsDatabase.QUERY_FLAG_* flags.
+     */
+    public static void write(AtomicFile file, IntervalStats stats, int flags) throws IOException {
         FileOutputStream fos = file.startWrite();
         try {
-            write(fos, stats);
+            write(fos, stats, flags);
             file.finishWrite(fos);
             fos = null;
         } finally {
@@ -115,6 +123,10 @@ public class UsageStatsXml {
     }
 
     static void write(OutputStream out, IntervalStats stats) throws IOException {
+        write(out, stats, UsageStatsDatabase.QUERY_FLAG_FETCH_EVERYTHING);
+    }
+
+    static void write(OutputStream out, IntervalStats stats, int flags) throws IOException {
         FastXmlSerializer xml = new FastXmlSerializer();
         xml.setOutput(out, "utf-8");
         xml.startDocument("utf-8", true);
@@ -122,7 +134,7 @@ public class UsageStatsXml {
         xml.startTag(null, USAGESTATS_TAG);
         xml.attribute(null, VERSION_ATTR, Integer.toString(CURRENT_VERSION));
 
-        UsageStatsXmlV1.write(xml, stats);
+        UsageStatsXmlV1.write(xml, stats, flags);
 
         xml.endTag(null, USAGESTATS_TAG);
         xml.endDocument();
@@ -414,8 +414,11 @@ final class UsageStatsXmlV1 {
      *
      * @param xml The serializer to which to write the packageStats data.
      * @param stats The stats object to write to the XML file.
+     * @param flags Whether to write the events, see
+     *              {@link UsageStatsDatabase#QUERY_FLAG_FETCH_EVENTS}.
      */
-    public static void write(XmlSerializer xml, IntervalStats stats) throws IOException {
+    public static void write(XmlSerializer xml, IntervalStats stats, int flags)
+            throws IOException {
         XmlUtils.writeLongAttribute(xml, END_TIME_ATTR, stats.endTime - stats.beginTime);
 
         writeCountAndTime(xml, INTERACTIVE_TAG, stats.interactiveTracker.count,
@@ -443,7 +446,9 @@ final class UsageStatsXmlV1 {
         xml.endTag(null, CONFIGURATIONS_TAG);
 
         xml.startTag(null, EVENT_LOG_TAG);
-        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        final int eventCount = stats.events != null
+                && (flags & UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS) != 0
+                ? stats.events.size() : 0;
         for (int i = 0; i < eventCount; i++) {
             writeEvent(xml, stats, stats.events.get(i));
         }
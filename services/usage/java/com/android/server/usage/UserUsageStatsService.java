@@ -359,41 +359,25 @@ class UserUsageStatsService {
 
     UsageEvents queryEvents(final long beginTime, final long endTime,
             boolean obfuscateInstantApps) {
-        final ArraySet<String> names = new ArraySet<>();
-        List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS,
-                new StatCombiner<UsageEvents.Event>() {
-                    @Override
-                    public void combine(IntervalStats stats, boolean mutable,
-                            List<UsageEvents.Event> accumulatedResult) {
-                        if (stats.events == null) {
-                            return;
-                        }
-
-                        final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                        final int size = stats.events.size();
-                        for (int i = startIndex; i < size; i++) {
-                            if (stats.events.get(i).mTimeStamp >= endTime) {
-                                return;
-                            }
-
-                            UsageEvents.Event event = stats.events.get(i);
-                            if (obfuscateInstantApps) {
-                                event = event.getObfuscatedIfInstantApp();
-                            }
-                            names.add(event.mPackage);
-                            if (event.mClass != null) {
-                                names.add(event.mClass);
-                            }
-                            accumulatedResult.add(event);
-                        }
-                    }
-                });
-
+        final List<UsageEvents.Event> results = queryEventList(beginTime, endTime, null);
         if (results == null || results.isEmpty()) {
             return null;
         }
 
+        final ArraySet<String> names = new ArraySet<>();
+        final int size = results.size();
+        for (int i = 0; i < size; i++) {
+            UsageEvents.Event event = results.get(i);
+            if (obfuscateInstantApps) {
+                event = event.getObfuscatedIfInstantApp();
+                results.set(i, event);
+            }
+            names.add(event.mPackage);
+            if (event.mClass != null) {
+                names.add(event.mClass);
+            }
+        }
+
         String[] table = names.toArray(new String[names.size()]);
         Arrays.sort(table);
         return new UsageEvents(results, table);
@@ -401,42 +385,66 @@ class UserUsageStatsService {
 
     UsageEvents queryEventsForPackage(final long beginTime, final long endTime,
             final String packageName) {
-        final ArraySet<String> names = new ArraySet<>();
-        names.add(packageName);
-        final List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, UsageStatsDatabase.QUERY_FLAG_FETCH_PACKAGES,
-                (stats, mutable, accumulatedResult) -> {
-                    if (stats.events == null) {
-                        return;
-                    }
-
-                    final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                    final int size = stats.events.size();
-                    for (int i = startIndex; i < size; i++) {
-                        if (stats.events.get(i).mTimeStamp >= endTime) {
-                            return;
-                        }
-
-                        final UsageEvents.Event event = stats.events.get(i);
-                        if (!packageName.equals(event.mPackage)) {
-                            continue;
-                        }
-                        if (event.mClass != null) {
-                            names.add(event.mClass);
-                        }
-                        accumulatedResult.add(event);
-                    }
-                });
-
+        final List<UsageEvents.Event> results = queryEventList(beginTime, endTime, packageName);
         if (results == null || results.isEmpty()) {
             return null;
         }
 
+        final ArraySet<String> names = new ArraySet<>();
+        names.add(packageName);
+        final int size = results.size();
+        for (int i = 0; i < size; i++) {
+            final UsageEvents.Event event = results.get(i);
+            if (event.mClass != null) {
+                names.add(event.mClass);
+            }
+        }
+
         final String[] table = names.toArray(new String[names.size()]);
         Arrays.sort(table);
         return new UsageEvents(results, table);
     }
 
+    /**
+     * Finds the events in the given range, like {@link #queryStats} does for the daily interval,
+     * but without reading whole intervals from disk.
+     *
+     * @param packageName The package to return events of, or null for all packages.
+     */
+    private List<UsageEvents.Event> queryEventList(long beginTime, long endTime,
+            String packageName) {
+        final IntervalStats currentStats = mCurrentStats[UsageStatsManager.INTERVAL_DAILY];
+        if (beginTime >= currentStats.endTime) {
+            // Nothing newer available.
+            return null;
+        }
+
+        // Get the events from disk, up to the in-memory stats.
+        final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
+        List<UsageEvents.Event> results = mDatabase.queryEvents(beginTime, truncatedEndTime,
+                packageName);
+
+        // Now add the in-memory events that match.
+        if (endTime > currentStats.beginTime && currentStats.events != null) {
+            final int startIndex = currentStats.events.firstIndexOnOrAfter(beginTime);
+            final int size = currentStats.events.size();
+            for (int i = startIndex; i < size; i++) {
+                final UsageEvents.Event event = currentStats.events.get(i);
+                if (event.mTimeStamp >= endTime) {
+                    break;
+                }
+                if (packageName != null && !packageName.equals(event.mPackage)) {
+                    continue;
+                }
+                if (results == null) {
+                    results = new ArrayList<>();
+                }
+                results.add(event);
+            }
+        }
+        return results;
+    }
+
     void persistActiveStats() {
         if (mStatsChanged) {
             Slog.i(TAG, mLogPrefix + "Flushing usage stats to disk");
@@ -36,6 +36,7 @@ import static android.net.NetworkStats.TAG_ALL;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -482,6 +483,54 @@ public class NetworkStatsTest {
         assertEquals(128L + 512L, clone.getTotalBytes());
     }
 
+    @Test
+    public void testCopyFrom() throws Exception {
+        final NetworkStats original = new NetworkStats(TEST_START, 5)
+                .addValues(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 128L, 8L, 0L, 2L, 20L)
+                .addValues(TEST_IFACE2, 100, SET_DEFAULT, TAG_NONE, 512L, 32L, 0L, 0L, 0L);
+
+        // copy into empty stats, then mutate original
+        final NetworkStats copy = new NetworkStats(0L, -1).copyFrom(original);
+        original.addValues(TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, 128L, 8L, 0L, 0L, 0L);
+
+        assertEquals(TEST_START, copy.getElapsedRealtime());
+        assertEquals(2, copy.size());
+        assertEquals(128L + 512L, copy.getTotalBytes());
+        assertValues(copy, 1, TEST_IFACE2, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 512L, 32L, 0L, 0L, 0L);
+
+        // copying smaller stats reuses existing arrays
+        final int capacity = copy.internalSize();
+        final NetworkStats smaller = new NetworkStats(TEST_START + 1, 1)
+                .addValues(TEST_IFACE, 102, SET_DEFAULT, TAG_NONE, 64L, 4L, 0L, 0L, 0L);
+        copy.copyFrom(smaller);
+
+        assertEquals(capacity, copy.internalSize());
+        assertEquals(1, copy.size());
+        assertEquals(64L, copy.getTotalBytes());
+        assertValues(copy, 0, TEST_IFACE, 102, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 64L, 4L, 0L, 0L, 0L);
+    }
+
+    @Test
+    public void testSubtractRecycle() throws Exception {
+        final NetworkStats before = new NetworkStats(TEST_START, 2)
+                .addValues(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 1024L, 8L, 0L, 0L, 11);
+        final NetworkStats after = new NetworkStats(TEST_START + 10, 2)
+                .addValues(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 1025L, 9L, 2L, 1L, 15);
+        final NetworkStats recycle = new NetworkStats(0L, 4)
+                .addValues(TEST_IFACE2, 101, SET_DEFAULT, TAG_NONE, 1L, 1L, 1L, 1L, 1);
+
+        final NetworkStats result = NetworkStats.subtract(after, before, null, null, recycle);
+
+        // delta is written into the recycled stats
+        assertSame(recycle, result);
+        assertEquals(10L, result.getElapsedRealtime());
+        assertEquals(1, result.size());
+        assertValues(result, 0, TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 1L, 1L, 2L, 1L, 4);
+    }
+
     @Test
     public void testAddWhenEmpty() throws Exception {
         final NetworkStats red = new NetworkStats(TEST_START, -1);
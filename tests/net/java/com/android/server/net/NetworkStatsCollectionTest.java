@@ -61,6 +61,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -265,6 +266,55 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testReadUidFilter() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+
+        int myUid = Process.myUid();
+        int otherUid = Process.myUid() + 1;
+
+        entry.rxBytes = 32;
+        collection.recordData(identSet, myUid, SET_DEFAULT, TAG_NONE, 0, 60 * MINUTE_IN_MILLIS,
+                entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet, otherUid, SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        entry.rxBytes = 128;
+        collection.recordData(identSet, Process.SYSTEM_UID, SET_DEFAULT, TAG_NONE,
+                60 * MINUTE_IN_MILLIS, 120 * MINUTE_IN_MILLIS, entry);
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(new DataOutputStream(bos));
+
+        // reading everything from a buffer matches reading from a stream
+        final NetworkStatsCollection all = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        all.read(ByteBuffer.wrap(bos.toByteArray()));
+        MoreAsserts.assertEquals(new int[] { Process.SYSTEM_UID, myUid, otherUid },
+                all.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertSummaryTotal(all, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // only the filtered UID is read
+        final NetworkStatsCollection filtered = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        filtered.setUidFilter(otherUid);
+        filtered.read(ByteBuffer.wrap(bos.toByteArray()));
+        MoreAsserts.assertEquals(new int[] { otherUid },
+                filtered.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertSummaryTotal(filtered, buildTemplateMobileAll(TEST_IMSI), 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // and it is also applied to recorded collections
+        filtered.reset();
+        filtered.setUidFilter(myUid);
+        filtered.recordCollection(collection);
+        MoreAsserts.assertEquals(new int[] { myUid },
+                filtered.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =